@@ -0,0 +1,99 @@
+package com.sharshar.currencybalancer.benchmarks;
+
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.algorithms.DriftTracker;
+import com.sharshar.currencybalancer.algorithms.PortfolioKernel;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done each time we check whether to balance: the total value, the adjustments and the drift
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalancerBenchmark {
+
+	@Param({"5", "20", "100"})
+	private int holdings;
+
+	@Param({"400", "2000"})
+	private int symbols;
+
+	private List<HoldingRatio> ratios;
+	private List<OwnedAsset> ownedAssets;
+	private List<PriceData> priceData;
+	private PriceSnapshot snapshot;
+	private PortfolioKernel kernel;
+	private double[] amounts;
+	private double[] prices;
+	private double[] scratch;
+	private DriftTracker tracker;
+	private int nextPrice;
+
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(42);
+		List<String> assets = data.getAssets(holdings);
+		ratios = data.getRatios(assets);
+		ownedAssets = data.getOwnedAssets(assets);
+		priceData = data.getPriceData(assets, symbols);
+		snapshot = PriceSnapshot.of(priceData);
+		kernel = new PortfolioKernel(ratios, SyntheticData.BASE_CURRENCY);
+		amounts = new double[kernel.size()];
+		prices = new double[kernel.size()];
+		scratch = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(snapshot, prices);
+		tracker = new DriftTracker(kernel);
+		tracker.load(amounts, prices);
+	}
+
+	@Benchmark
+	public double totalValue() {
+		return CurrencyBalancer.getTotalValue(ownedAssets, ratios, snapshot, SyntheticData.BASE_CURRENCY);
+	}
+
+	@Benchmark
+	public Map<String, Double> adjustments() {
+		return CurrencyBalancer.getAdjustments(ownedAssets, ratios, snapshot);
+	}
+
+	/**
+	 * Includes indexing the prices, the way callers that still have a list pay for it
+	 */
+	@Benchmark
+	public Map<String, Double> adjustmentsFromList() {
+		return CurrencyBalancer.getAdjustments(ownedAssets, ratios, priceData);
+	}
+
+	/**
+	 * What CurrencyBalancer.getDriftPercent does once it has the prices
+	 */
+	@Benchmark
+	public double driftPercent() {
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(snapshot, prices);
+		return kernel.getDriftPercent(amounts, prices, scratch);
+	}
+
+	/**
+	 * One price changing, then asking whether to balance, the way the stream does it
+	 */
+	@Benchmark
+	public boolean driftTrackerUpdate() {
+		int index = nextPrice++ % prices.length;
+		tracker.setPrice(index, prices[index] * (nextPrice % 2 == 0 ? 1.001 : 0.999));
+		return tracker.shouldBalance(0.05, 0.1);
+	}
+}
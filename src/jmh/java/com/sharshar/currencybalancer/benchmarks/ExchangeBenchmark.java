@@ -0,0 +1,88 @@
+package com.sharshar.currencybalancer.benchmarks;
+
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.services.OrderDispatcher;
+import com.sharshar.currencybalancer.services.SimulatedExchange;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole rebalances against the simulated exchange: reading the balances and prices, working out the adjustments
+ * and sending the orders through the dispatcher. The exchange answers immediately, so this is how many rebalances
+ * a second everything but the exchange can handle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExchangeBenchmark {
+
+	@Param({"5", "20"})
+	private int holdings;
+
+	@Param({"1", "4"})
+	private int threads;
+
+	private SimulatedExchange exchange;
+	private OrderDispatcher dispatcher;
+	private List<HoldingRatio> ratios;
+	private String[] symbols;
+	private double[] startPrices;
+	private int nextPrice;
+
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(42);
+		List<String> assets = data.getAssets(holdings);
+		ratios = data.getRatios(assets);
+		exchange = new SimulatedExchange().setBaseCurrency(SyntheticData.BASE_CURRENCY).setTakerFee(0);
+		exchange.init();
+		for (OwnedAsset asset : data.getOwnedAssets(assets)) {
+			// Plenty of everything, so no order is turned down
+			exchange.setBalance(asset.getAsset(), asset.getFree() * 1000);
+		}
+		List<PriceData> prices = data.getPriceData(assets, holdings);
+		symbols = new String[prices.size()];
+		startPrices = new double[prices.size()];
+		for (int i = 0; i < prices.size(); i++) {
+			symbols[i] = prices.get(i).getTicker();
+			startPrices[i] = prices.get(i).getPrice();
+			exchange.setPrice(symbols[i], startPrices[i]);
+		}
+		dispatcher = new OrderDispatcher(exchange, threads, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	/**
+	 * One price moves far enough that there is something to trade, then we rebalance back to the ratios
+	 */
+	@Benchmark
+	public int rebalance() {
+		int index = nextPrice % symbols.length;
+		// Up on one pass through the symbols and back down on the next
+		boolean up = (nextPrice++ / symbols.length) % 2 == 0;
+		exchange.setPrice(symbols[index], startPrices[index] * (up ? 1.2 : 0.8));
+		Map<String, Double> adjustments = CurrencyBalancer.getAdjustments(exchange.getBalancesWithValues(),
+				ratios, exchange.getPriceSnapshot());
+		Map<String, Double> orders = new HashMap<>();
+		for (Map.Entry<String, Double> adjustment : adjustments.entrySet()) {
+			if (!adjustment.getKey().equals(SyntheticData.BASE_CURRENCY) && adjustment.getValue() != 0) {
+				orders.put(adjustment.getKey() + SyntheticData.BASE_CURRENCY, adjustment.getValue());
+			}
+		}
+		return dispatcher.dispatch(orders).size();
+	}
+}
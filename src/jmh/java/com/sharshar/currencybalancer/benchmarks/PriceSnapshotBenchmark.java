@@ -0,0 +1,63 @@
+package com.sharshar.currencybalancer.benchmarks;
+
+import com.binance.api.client.domain.market.TickerPrice;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning the prices from the exchange into a snapshot, and looking the holdings up in it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceSnapshotBenchmark {
+
+	@Param({"400", "2000"})
+	private int symbols;
+
+	@Param({"20"})
+	private int holdings;
+
+	private BinanceAccountServices accountServices;
+	private List<TickerPrice> tickerPrices;
+	private PriceSnapshot snapshot;
+	private String[] holdingSymbols;
+
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(42);
+		List<String> assets = data.getAssets(holdings);
+		accountServices = new BinanceAccountServices();
+		tickerPrices = data.getTickerPrices(assets, symbols);
+		snapshot = accountServices.toPriceSnapshot(tickerPrices, new Date());
+		holdingSymbols = new String[assets.size()];
+		for (int i = 0; i < holdingSymbols.length; i++) {
+			holdingSymbols[i] = assets.get(i) + SyntheticData.BASE_CURRENCY;
+		}
+	}
+
+	@Benchmark
+	public PriceSnapshot parse() {
+		return accountServices.toPriceSnapshot(tickerPrices, new Date());
+	}
+
+	@Benchmark
+	public double lookupHoldings() {
+		double total = 0;
+		for (String symbol : holdingSymbols) {
+			double price = snapshot.getPrice(symbol);
+			if (!Double.isNaN(price)) {
+				total += price;
+			}
+		}
+		return total;
+	}
+}
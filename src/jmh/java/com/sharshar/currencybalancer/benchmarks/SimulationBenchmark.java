@@ -0,0 +1,88 @@
+package com.sharshar.currencybalancer.benchmarks;
+
+import com.sharshar.currencybalancer.algorithms.PriceHistory;
+import com.sharshar.currencybalancer.algorithms.RebalanceSimulator;
+import com.sharshar.currencybalancer.algorithms.RebalanceStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One backtest trial: rebalancing a set of ratios over the whole history
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+
+	@Param({"5", "20"})
+	private int holdings;
+
+	// Hourly prices, so 8760 is a year
+	@Param({"720", "8760"})
+	private int historyLength;
+
+	@Param({"1", "7"})
+	private int daysBetween;
+
+	private RebalanceSimulator simulator;
+	private double[] ratios;
+
+	@Setup
+	public void setup() {
+		SyntheticData data = new SyntheticData(42);
+		List<String> assets = data.getAssets(holdings);
+		Date start = new Date(1514764800000L);
+		Date end = SyntheticData.getEnd(start, historyLength);
+		PriceHistory history = data.getPriceHistory(assets, historyLength, start);
+		simulator = new RebalanceSimulator(data.getOwnedAssets(assets), history, start, end);
+		ratios = simulator.toRatios(data.getRatios(assets));
+	}
+
+	@Benchmark
+	public double[] simulate() {
+		return simulator.simulateEveryDays(ratios, daysBetween);
+	}
+
+	/**
+	 * Rebalancing every hour, so every price in the history is used
+	 */
+	@Benchmark
+	public double[] simulateEveryPrice() {
+		return simulator.simulate(ratios, SyntheticData.HOUR);
+	}
+
+	/**
+	 * Every frequency from 1 to 30 days, one simulation at a time, the way the sweep used to
+	 */
+	@Benchmark
+	public double[][] simulateEachFrequency() {
+		double[][] results = new double[30][];
+		for (int days = 1; days <= 30; days++) {
+			results[days - 1] = simulator.simulateEveryDays(ratios, days);
+		}
+		return results;
+	}
+
+	/**
+	 * Every frequency from 1 to 30 days in one pass
+	 */
+	@Benchmark
+	public double[][][] simulateAllFrequencies() {
+		return simulator.simulateAll(new double[][] {ratios}, 30);
+	}
+
+	/**
+	 * Watching the drift after every price, to compare with simulateEveryPrice
+	 */
+	@Benchmark
+	public double[][][] simulateThreshold() {
+		return simulator.simulateStrategies(new double[][] {ratios},
+				new RebalanceStrategy[] {RebalanceStrategy.threshold(0.02, 0.05)}, null);
+	}
+}
@@ -0,0 +1,138 @@
+package com.sharshar.currencybalancer.benchmarks;
+
+import com.binance.api.client.domain.market.TickerPrice;
+import com.sharshar.currencybalancer.algorithms.PriceHistory;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+
+import java.util.*;
+
+/**
+ * Made up holdings and prices, so the benchmarks don't need the exchange or the database. The same seed always
+ * gives the same data.
+ */
+public class SyntheticData {
+	public static final String BASE_CURRENCY = "BTC";
+	public static final long HOUR = 60L * 60L * 1000L;
+
+	private final Random random;
+
+	public SyntheticData(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @return the base currency followed by numberOfHoldings - 1 other assets
+	 */
+	public List<String> getAssets(int numberOfHoldings) {
+		List<String> assets = new ArrayList<>();
+		assets.add(BASE_CURRENCY);
+		for (int i = 1; i < numberOfHoldings; i++) {
+			assets.add("A" + i);
+		}
+		return assets;
+	}
+
+	/**
+	 * @return random ratios that add up to 1, every other asset allowing fractions
+	 */
+	public List<HoldingRatio> getRatios(List<String> assets) {
+		double[] weights = new double[assets.size()];
+		double total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = 0.1 + random.nextDouble();
+			total += weights[i];
+		}
+		List<HoldingRatio> ratios = new ArrayList<>();
+		for (int i = 0; i < weights.length; i++) {
+			ratios.add(new HoldingRatio().setTicker(assets.get(i)).setPercent(weights[i] / total)
+					.setFraction(i % 2 == 0));
+		}
+		return ratios;
+	}
+
+	public List<OwnedAsset> getOwnedAssets(List<String> assets) {
+		List<OwnedAsset> owned = new ArrayList<>();
+		for (String asset : assets) {
+			owned.add(new OwnedAsset().setAsset(asset).setFree(1 + random.nextDouble() * 1000).setLocked(0));
+		}
+		return owned;
+	}
+
+	/**
+	 * @return a price against the base currency for each asset, padded out with other symbols to numberOfSymbols
+	 */
+	public List<PriceData> getPriceData(List<String> assets, int numberOfSymbols) {
+		Date now = new Date();
+		List<PriceData> priceData = new ArrayList<>();
+		for (String symbol : getSymbols(assets, numberOfSymbols)) {
+			priceData.add(new PriceData().setTicker(symbol).setPrice(nextPrice()).setUpdateTime(now)
+					.setExchange(ScratchConstants.BINANCE));
+		}
+		return priceData;
+	}
+
+	/**
+	 * @return the same symbols as getPriceData, the way Binance sends them
+	 */
+	public List<TickerPrice> getTickerPrices(List<String> assets, int numberOfSymbols) {
+		List<TickerPrice> prices = new ArrayList<>();
+		for (String symbol : getSymbols(assets, numberOfSymbols)) {
+			TickerPrice tp = new TickerPrice();
+			tp.setSymbol(symbol);
+			tp.setPrice(String.format("%.8f", nextPrice()));
+			prices.add(tp);
+		}
+		return prices;
+	}
+
+	/**
+	 * A random walk for each asset, one price an hour
+	 *
+	 * @param assets - the assets
+	 * @param length - the number of prices for each asset
+	 * @param start - the time of the first price
+	 * @return the history
+	 */
+	public PriceHistory getPriceHistory(List<String> assets, int length, Date start) {
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		for (String asset : assets) {
+			List<PriceData> series = new ArrayList<>(length);
+			double price = nextPrice();
+			for (int i = 0; i < length; i++) {
+				price *= 1 + (random.nextDouble() - 0.5) * 0.02;
+				series.add(new PriceData().setTicker(asset + BASE_CURRENCY).setPrice(price)
+						.setUpdateTime(new Date(start.getTime() + i * HOUR)));
+			}
+			dataByAsset.put(asset, series);
+		}
+		return PriceHistory.fromPriceData(dataByAsset, BASE_CURRENCY, start, getEnd(start, length));
+	}
+
+	public static Date getEnd(Date start, int length) {
+		return new Date(start.getTime() + length * HOUR);
+	}
+
+	/**
+	 * The assets' symbols are spread through the list rather than all at the front
+	 */
+	private List<String> getSymbols(List<String> assets, int numberOfSymbols) {
+		List<String> symbols = new ArrayList<>();
+		for (String asset : assets) {
+			if (!asset.equals(BASE_CURRENCY)) {
+				symbols.add(asset + BASE_CURRENCY);
+			}
+		}
+		for (int i = symbols.size(); i < numberOfSymbols; i++) {
+			symbols.add("X" + i + "ETH");
+		}
+		Collections.shuffle(symbols, random);
+		return symbols;
+	}
+
+	private double nextPrice() {
+		return 0.00001 + random.nextDouble() * 0.1;
+	}
+}
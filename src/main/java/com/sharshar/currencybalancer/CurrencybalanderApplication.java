@@ -3,10 +3,16 @@ package com.sharshar.currencybalancer;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Collections;
+
 @SpringBootApplication
 public class CurrencybalanderApplication {
 
 	public static void main(String[] args) {
-		SpringApplication.run(CurrencybalanderApplication.class, args);
+		SpringApplication application = new SpringApplication(CurrencybalanderApplication.class);
+		// Let Prometheus scrape the metrics unless the properties say otherwise
+		application.setDefaultProperties(Collections.singletonMap(
+				"management.endpoints.web.exposure.include", "health,info,prometheus"));
+		application.run(args);
 	}
 }
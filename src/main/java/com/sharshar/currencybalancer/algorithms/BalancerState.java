@@ -0,0 +1,179 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything CurrencyBalancer works from: the desired ratios, what we own and the prices. It never changes once
+ * it's made. When the prices or the holdings change, a new state is made from the old one and swapped in whole,
+ * so anything that takes the state once sees the ratios, holdings and prices from the same moment, whatever
+ * other requests are doing.
+ *
+ * The ratios and assets are copied on the way in and the lists handed out can't be changed. The drift is only
+ * worked out the first time it's asked for, and then kept, since it can't change either.
+ */
+public final class BalancerState {
+	private final List<HoldingRatio> ratios;
+	private final PortfolioKernel kernel;
+	private final List<OwnedAsset> ownedAssets;
+	private final double[] amounts;
+	private final PriceSnapshot prices;
+	private final double[] tickerPrices;
+
+	// Null until it's asked for. Threads asking at the same time may each work it out, but get the same answer.
+	private volatile Drift drift;
+
+	/**
+	 * The drift of the holdings, both after rounding to amounts that can be traded, and before
+	 */
+	private static final class Drift {
+		private final double[] drifts;
+		private final double driftPercent;
+		private final double maxSingleDrift;
+		private final double unroundedDriftPercent;
+
+		Drift(double[] drifts, double driftPercent, double maxSingleDrift, double unroundedDriftPercent) {
+			this.drifts = drifts;
+			this.driftPercent = driftPercent;
+			this.maxSingleDrift = maxSingleDrift;
+			this.unroundedDriftPercent = unroundedDriftPercent;
+		}
+	}
+
+	/**
+	 * @param ratios - the desired ratios
+	 * @param ownedAssets - what we own
+	 * @param prices - the prices of everything on the exchange, null if there aren't any yet
+	 * @param baseCurrency - the currency everything is priced in
+	 */
+	public BalancerState(List<HoldingRatio> ratios, List<OwnedAsset> ownedAssets, PriceSnapshot prices,
+						 String baseCurrency) {
+		List<HoldingRatio> ratioCopies = new ArrayList<>();
+		for (HoldingRatio ratio : ratios) {
+			ratioCopies.add(new HoldingRatio().setTableId(ratio.getTableId()).setPortfolioId(ratio.getPortfolioId())
+					.setTicker(ratio.getTicker()).setPercent(ratio.getPercent()).setFraction(ratio.canDoFraction()));
+		}
+		this.ratios = Collections.unmodifiableList(ratioCopies);
+		this.kernel = new PortfolioKernel(this.ratios, baseCurrency);
+		this.ownedAssets = copy(ownedAssets);
+		this.amounts = loadAmounts(kernel, this.ownedAssets);
+		this.prices = prices == null ? PriceSnapshot.empty() : prices;
+		this.tickerPrices = loadPrices(kernel, this.prices);
+	}
+
+	private BalancerState(BalancerState from, List<OwnedAsset> ownedAssets, double[] amounts, PriceSnapshot prices,
+						  double[] tickerPrices) {
+		this.ratios = from.ratios;
+		this.kernel = from.kernel;
+		this.ownedAssets = ownedAssets;
+		this.amounts = amounts;
+		this.prices = prices;
+		this.tickerPrices = tickerPrices;
+	}
+
+	/**
+	 * @return the same state with new prices
+	 */
+	public BalancerState withPrices(PriceSnapshot newPrices) {
+		PriceSnapshot snapshot = newPrices == null ? PriceSnapshot.empty() : newPrices;
+		return new BalancerState(this, ownedAssets, amounts, snapshot, loadPrices(kernel, snapshot));
+	}
+
+	/**
+	 * @return the same state with new holdings
+	 */
+	public BalancerState withOwnedAssets(List<OwnedAsset> newOwnedAssets) {
+		List<OwnedAsset> copies = copy(newOwnedAssets);
+		return new BalancerState(this, copies, loadAmounts(kernel, copies), prices, tickerPrices);
+	}
+
+	private static List<OwnedAsset> copy(List<OwnedAsset> assets) {
+		List<OwnedAsset> copies = new ArrayList<>();
+		for (OwnedAsset asset : assets) {
+			copies.add(new OwnedAsset().setAsset(asset.getAsset()).setFree(asset.getFree())
+					.setLocked(asset.getLocked()));
+		}
+		return Collections.unmodifiableList(copies);
+	}
+
+	private static double[] loadAmounts(PortfolioKernel kernel, List<OwnedAsset> ownedAssets) {
+		double[] loaded = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, loaded);
+		return loaded;
+	}
+
+	private static double[] loadPrices(PortfolioKernel kernel, PriceSnapshot prices) {
+		double[] loaded = new double[kernel.size()];
+		kernel.loadPrices(prices, loaded);
+		return loaded;
+	}
+
+	public List<HoldingRatio> getRatios() {
+		return ratios;
+	}
+
+	public PortfolioKernel getKernel() {
+		return kernel;
+	}
+
+	public List<OwnedAsset> getOwnedAssets() {
+		return ownedAssets;
+	}
+
+	public PriceSnapshot getPrices() {
+		return prices;
+	}
+
+	private Drift getDrift() {
+		Drift result = drift;
+		if (result == null) {
+			double[] drifts = new double[kernel.size()];
+			double driftPercent = kernel.getDriftPercent(amounts, tickerPrices, drifts);
+			DriftTracker tracker = new DriftTracker(kernel);
+			tracker.load(amounts, tickerPrices);
+			result = new Drift(drifts, driftPercent, tracker.getMaxSingleDrift(), tracker.getDriftPercent());
+			drift = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return how far the ticker has drifted, as the adjustment relative to the amount owned
+	 */
+	public double getDrift(int index) {
+		return getDrift().drifts[index];
+	}
+
+	/**
+	 * @return the drift of each ticker, ignoring direction and weighted by its desired ratio
+	 */
+	public double getDriftPercent() {
+		return getDrift().driftPercent;
+	}
+
+	/**
+	 * @return true if any single ticker has drifted more than driftPercent in either direction
+	 */
+	public boolean ifMaxDriftExceededOnAnyCurrency(double driftPercent) {
+		for (double value : getDrift().drifts) {
+			if (Math.abs(value) > driftPercent) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the drift before rounding to amounts that can be traded is enough to rebalance
+	 */
+	public boolean shouldBalance(double minDrift, double minSingleDrift) {
+		Drift result = getDrift();
+		return DriftTracker.shouldBalance(result.maxSingleDrift, result.unroundedDriftPercent, minDrift,
+				minSingleDrift);
+	}
+}
@@ -0,0 +1,65 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes every result of a sweep as a line of comma separated values: the trial, the days between rebalances, the
+ * amount of bitcoin at the end, then the ratio of each asset and the amount of each asset at the end. The first
+ * line names the columns.
+ */
+public class CsvResultSink implements ResultSink, Closeable {
+	private final Writer writer;
+	private final StringBuilder line = new StringBuilder(256);
+	private boolean headerWritten;
+	private long lines;
+
+	public CsvResultSink(Writer writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public void accept(SweepEngine.TrialResult result) {
+		line.setLength(0);
+		if (!headerWritten) {
+			line.append("trial,daysBetween,amountBitcoin");
+			for (int i = 0; i < result.getNumberOfAssets(); i++) {
+				line.append(",ratio").append(result.getAsset(i));
+			}
+			for (int i = 0; i < result.getNumberOfAssets(); i++) {
+				line.append(",amount").append(result.getAsset(i));
+			}
+			line.append('\n');
+			headerWritten = true;
+		}
+		line.append(result.getTrial()).append(',').append(result.getDaysBetween()).append(',')
+				.append(result.getAmountBitcoin());
+		for (int i = 0; i < result.getNumberOfAssets(); i++) {
+			line.append(',').append(result.getRatio(i));
+		}
+		for (int i = 0; i < result.getNumberOfAssets(); i++) {
+			line.append(',').append(result.getFinalAmount(i));
+		}
+		line.append('\n');
+		try {
+			writer.append(line);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		lines++;
+	}
+
+	/**
+	 * @return the number of results written
+	 */
+	public long getLines() {
+		return lines;
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
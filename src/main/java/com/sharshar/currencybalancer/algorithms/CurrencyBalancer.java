@@ -4,23 +4,33 @@ import com.binance.api.client.domain.account.NewOrderResponse;
 import com.sharshar.currencybalancer.beans.HoldingRatio;
 import com.sharshar.currencybalancer.beans.OwnedAsset;
 import com.sharshar.currencybalancer.beans.PriceData;
-import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
 import com.sharshar.currencybalancer.services.BalancerServices;
+import com.sharshar.currencybalancer.services.PriceFeedService;
 import com.sharshar.currencybalancer.utils.ScratchException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Used to re-balance holdings based on values defined in the database
  *
+ * The ratios, holdings and prices are kept together in a BalancerState that is swapped whole when any of them
+ * change, so requests can use the balancer at the same time without locking, and each one works from a single
+ * consistent state.
+ *
  * Created by lsharshar on 5/19/2018.
  */
 @Service
@@ -32,23 +42,52 @@ public class CurrencyBalancer {
 	BalancerServices services;
 
 	@Autowired
-	BinanceAccountServices accountServices;
+	PriceFeedService priceFeed;
+
+	// Where the timings go, the global registry if there isn't one
+	@Autowired(required = false)
+	MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+	private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+	// The desired ratios, the currently owned assets and the prices, null until loaded
+	private final AtomicReference<BalancerState> state = new AtomicReference<>();
+
+	private final List<Consumer<BalancerState>> listeners = new CopyOnWriteArrayList<>();
 
-	// The desired ratios
-	private List<HoldingRatio> desiredHoldingRatios;
+	/**
+	 * Be told when the ratios or the holdings change, with the new state. New prices alone don't count, they come
+	 * from the price feed. The listener is called on the thread that changed them.
+	 */
+	public CurrencyBalancer addListener(Consumer<BalancerState> listener) {
+		listeners.add(listener);
+		return this;
+	}
 
-	// The currently owned assets
-	private List<OwnedAsset> ownedAssets;
+	public CurrencyBalancer removeListener(Consumer<BalancerState> listener) {
+		listeners.remove(listener);
+		return this;
+	}
 
-	// The current price of all the tickers on Binance
-	private List<PriceData> currentPriceData;
+	private BalancerState changed(BalancerState newState) {
+		for (Consumer<BalancerState> listener : listeners) {
+			try {
+				listener.accept(newState);
+			} catch (Exception ex) {
+				logger.error("Unable to pass on the new holdings", ex);
+			}
+		}
+		return newState;
+	}
 
 	public List<HoldingRatio> getDesiredHoldingRatios() {
-		return desiredHoldingRatios;
+		BalancerState current = state.get();
+		return current == null ? null : current.getRatios();
 	}
 
 	public List<OwnedAsset> getOwnedAssets() {
-		return ownedAssets;
+		BalancerState current = state.get();
+		return current == null ? null : current.getOwnedAssets();
 	}
 
 	public class CurrencyDrift {
@@ -69,9 +108,30 @@ public class CurrencyBalancer {
 		}
 	}
 
+	/**
+	 * @return the timer for one of the things the balancer works out, balancer.name
+	 */
+	private Timer getTimer(String name) {
+		return timers.computeIfAbsent(name, n -> Timer.builder("balancer." + n)
+				.publishPercentileHistogram()
+				.register(meterRegistry));
+	}
+
+	/**
+	 * Load the ratios and what we own, again after the ratios have been changed
+	 */
 	@PostConstruct
 	public void load() throws ScratchException {
-		desiredHoldingRatios = services.getDesiredRatios();
+		long start = System.nanoTime();
+		try {
+			loadHoldings();
+		} finally {
+			getTimer("load").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void loadHoldings() throws ScratchException {
+		List<HoldingRatio> desiredHoldingRatios = services.getDesiredRatios();
 		if (desiredHoldingRatios == null) {
 			throw new ScratchException("Cannot load holding ratios");
 		}
@@ -82,11 +142,59 @@ public class CurrencyBalancer {
 		if (Math.abs(1.0 - total) > 0.0001) {
 			throw new ScratchException("Holdings should add up to 1");
 		}
-		ownedAssets = services.getOwnedAssets();
+		List<OwnedAsset> ownedAssets = loadOwnedAssets();
+		BalancerState loaded = new BalancerState(desiredHoldingRatios, ownedAssets, priceFeed.getPriceSnapshot(), "BTC");
+		state.set(loaded);
+		changed(loaded);
+	}
+
+	private List<OwnedAsset> loadOwnedAssets() throws ScratchException {
+		List<OwnedAsset> ownedAssets = services.getOwnedAssets();
 		if (ownedAssets == null || ownedAssets.isEmpty()) {
 			throw new ScratchException("There appears to be no owned assets");
 		}
-		currentPriceData = accountServices.getData();
+		return ownedAssets;
+	}
+
+	/**
+	 * Load what we own from the exchange again, keeping the ratios and prices
+	 *
+	 * @return the state with the new holdings
+	 */
+	public BalancerState refreshOwnedAssets() throws ScratchException {
+		return setOwnedAssets(loadOwnedAssets());
+	}
+
+	/**
+	 * @return the state with these holdings in place of the ones we had
+	 */
+	public BalancerState setOwnedAssets(List<OwnedAsset> ownedAssets) {
+		return changed(state.updateAndGet(s -> s.withOwnedAssets(ownedAssets)));
+	}
+
+	/**
+	 * @return the state, with the prices from the shared feed swapped in if they've changed. The feed only goes to
+	 * the exchange when the prices are too old.
+	 */
+	public BalancerState getState() {
+		BalancerState current = state.get();
+		PriceSnapshot prices = priceFeed.getPriceSnapshot();
+		if (current == null || prices == null || prices == current.getPrices()) {
+			return current;
+		}
+		return state.updateAndGet(s -> isNewer(prices, s.getPrices()) ? s.withPrices(prices) : s);
+	}
+
+	/**
+	 * So a request that got its prices before another doesn't put the older ones back
+	 */
+	private static boolean isNewer(PriceSnapshot prices, PriceSnapshot than) {
+		if (prices == than) {
+			return false;
+		}
+		Date time = prices.getUpdateTime();
+		Date thanTime = than.getUpdateTime();
+		return time == null || thanTime == null || !time.before(thanTime);
 	}
 
 	/**
@@ -116,22 +224,23 @@ public class CurrencyBalancer {
 	 */
 	public double getTotalValue(String baseCurrency) {
 		// reload price data, just to be current
-		this.currentPriceData = accountServices.getData();
-		return getTotalValue(this.ownedAssets, this.desiredHoldingRatios, this.currentPriceData, baseCurrency);
+		BalancerState current = getState();
+		return getTotalValue(current.getOwnedAssets(), current.getRatios(), current.getPrices(), baseCurrency);
 	}
 
 	public static double getTotalValue(List<OwnedAsset> assets, List<HoldingRatio> ratios, List<PriceData> currentPriceData, String baseCurrency) {
+		return getTotalValue(assets, ratios, PriceSnapshot.of(currentPriceData), baseCurrency);
+	}
+
+	public static double getTotalValue(List<OwnedAsset> assets, List<HoldingRatio> ratios, PriceSnapshot currentPrices, String baseCurrency) {
 		if (!baseCurrency.equalsIgnoreCase("BTC")) {
 			// First convert to BTC, then convert back
-			double totalValueInBTC = getTotalValue(assets, ratios, currentPriceData, "BTC");
+			double totalValueInBTC = getTotalValue(assets, ratios, currentPrices, "BTC");
 			if (baseCurrency.equalsIgnoreCase("USD")) {
 				baseCurrency = "USDT";
 			}
 			// find the conversion from that currency from bitcoin
-			final String correctedBaseCurrency = baseCurrency;
-			PriceData pd = currentPriceData.stream()
-					.filter(c -> c.getTicker().equalsIgnoreCase("BTC" + correctedBaseCurrency))
-					.findFirst().orElse(null);
+			PriceData pd = currentPrices.getPriceData("BTC", baseCurrency);
 			if (pd == null) {
 				logger.error("Cannot find mapping for " + baseCurrency);
 				return 0.0;
@@ -144,7 +253,7 @@ public class CurrencyBalancer {
 		// Only do the ones we want to manage
 		for (HoldingRatio ratio : ratios) {
 			OwnedAsset asset = getOwnedAsset(ratio.getTicker(), assets);
-			totalValue += getValueOwned(asset, currentPriceData, baseCurrency);
+			totalValue += getValueOwned(asset, currentPrices, baseCurrency);
 		}
 		return totalValue;
 	}
@@ -158,6 +267,10 @@ public class CurrencyBalancer {
 	 * @return the total value of the amount owned in the base currency
 	 */
 	public static double getValueOwned(OwnedAsset ownedAsset, List<PriceData> priceData, String baseCurrency) {
+		return getValueOwned(ownedAsset, PriceSnapshot.of(priceData), baseCurrency);
+	}
+
+	public static double getValueOwned(OwnedAsset ownedAsset, PriceSnapshot prices, String baseCurrency) {
 		// If this is the base currency, just return the number owned
 		if (ownedAsset.getAsset().equalsIgnoreCase(baseCurrency)) {
 			double value = ownedAsset.getFree() + ownedAsset.getLocked();
@@ -165,9 +278,7 @@ public class CurrencyBalancer {
 			//		+ ownedAsset.getLocked() + " @ 1.0 = " + value);
 			return value;
 		}
-		PriceData data = priceData.stream()
-				.filter(c -> c.getTicker().equalsIgnoreCase(ownedAsset.getAsset() + baseCurrency))
-				.findFirst().orElse(null);
+		PriceData data = prices.getPriceData(ownedAsset.getAsset(), baseCurrency);
 		if (data == null) {
 			logger.error("Can't find price for: " + ownedAsset.getAsset() + " in " + baseCurrency);
 			return 0.0;
@@ -179,7 +290,15 @@ public class CurrencyBalancer {
 	}
 
 	public Map<String, Double> getAdjustments() {
-		return getAdjustments(ownedAssets, desiredHoldingRatios, currentPriceData);
+		return getAdjustments(getState());
+	}
+
+	/**
+	 * @return the adjustments to get back to the desired ratios from the state, by asset
+	 */
+	public Map<String, Double> getAdjustments(BalancerState state) {
+		return getTimer("adjustments").record(() ->
+				getAdjustments(state.getOwnedAssets(), state.getRatios(), state.getPrices()));
 	}
 
 	/**
@@ -189,6 +308,10 @@ public class CurrencyBalancer {
 	 * @return the map of adjustments that need to be made to achieve the desired ratio
 	 */
 	public static Map<String, Double> getAdjustments(List<OwnedAsset> ownedAssets, List<HoldingRatio> ratios, List<PriceData> priceData) {
+		return getAdjustments(ownedAssets, ratios, PriceSnapshot.of(priceData));
+	}
+
+	public static Map<String, Double> getAdjustments(List<OwnedAsset> ownedAssets, List<HoldingRatio> ratios, PriceSnapshot priceData) {
 		String baseCurrency = "BTC";
 		double totalValueOwned = getTotalValue(ownedAssets, ratios, priceData, baseCurrency);
 		Map<String, Double> adjustments = new HashMap<>();
@@ -200,7 +323,7 @@ public class CurrencyBalancer {
 				continue;
 			}
 			desiredRatio = ratio.getPercent();
-			PriceData pd = getPriceData(priceData, asset.getAsset(), baseCurrency);
+			PriceData pd = priceData.getPriceData(asset.getAsset(), baseCurrency);
 			if (pd == null) {
 				if (asset.getAsset().equalsIgnoreCase(baseCurrency)) {
 					currentPrice = 1.0;
@@ -223,24 +346,37 @@ public class CurrencyBalancer {
 		return adjustments;
 	}
 
+	/**
+	 * @return the desired ratio of the ticker, or null if there isn't one or we haven't loaded yet
+	 */
 	public HoldingRatio getHoldingRatio(String ticker) {
-		return desiredHoldingRatios.stream()
+		List<HoldingRatio> ratios = getDesiredHoldingRatios();
+		if (ratios == null) {
+			return null;
+		}
+		return ratios.stream()
 				.filter(c -> c.getTicker().equalsIgnoreCase(ticker))
 				.findFirst().orElse(null);
 	}
 
+	/**
+	 * @return the price of the ticker, or null if there isn't one or we haven't loaded yet
+	 */
 	public PriceData getPriceData(String ticker, String baseCurrency) {
-		return getPriceData(currentPriceData, ticker, baseCurrency);
+		BalancerState current = state.get();
+		return current == null ? null : current.getPrices().getPriceData(ticker, baseCurrency);
 	}
 
 	public static PriceData getPriceData(List<PriceData> priceData, String ticker, String baseCurrency) {
-		return priceData.stream()
-				.filter(c -> c.getTicker().equalsIgnoreCase(ticker + baseCurrency))
-				.findFirst().orElse(null);
+		return PriceSnapshot.of(priceData).getPriceData(ticker, baseCurrency);
 	}
 
+	/**
+	 * @return what we own of the ticker, or null if we don't own any or we haven't loaded yet
+	 */
 	public OwnedAsset getOwnedAsset(String ticker) {
-		return getOwnedAsset(ticker, ownedAssets);
+		List<OwnedAsset> assets = getOwnedAssets();
+		return assets == null ? null : getOwnedAsset(ticker, assets);
 	}
 
 	public static OwnedAsset getOwnedAsset(String ticker, List<OwnedAsset> assets) {
@@ -250,74 +386,67 @@ public class CurrencyBalancer {
 	}
 
 	public double getDriftPercent() {
-		double totalPercentDifference = 0;
-		Map<String, Double> adjustments = getAdjustments();
-		for (HoldingRatio ratio : desiredHoldingRatios) {
-			OwnedAsset asset = getOwnedAsset(ratio.getTicker());
-			Double adjustment = adjustments.get(asset.getAsset());
-			if (adjustment != null) {
-				// Negative and positive shouldn't count against each other
-				double thisPercentDifference = Math.abs(adjustment) / (asset.getFree() + asset.getLocked());
-				// Weight this relative to all desired holdings
-				totalPercentDifference += thisPercentDifference * ratio.getPercent();
-			}
-		}
-		return totalPercentDifference;
+		return getTimer("driftPercent").record(() -> getState().getDriftPercent());
 	}
 
 	public List<CurrencyDrift> getDrifts() {
-		List<CurrencyDrift> drifts = new ArrayList<>();
-		Map<String, Double> adjustments = getAdjustments();
-		for (HoldingRatio ratio : desiredHoldingRatios) {
-			OwnedAsset asset = getOwnedAsset(ratio.getTicker());
-			Double adjustment = adjustments.get(asset.getAsset());
-			if (adjustment != null) {
-				double thisPercentDifference = adjustment / (asset.getFree() + asset.getLocked());
-				drifts.add(new CurrencyDrift(asset.getAsset(), thisPercentDifference));
+		BalancerState current = getState();
+		PortfolioKernel kernel = current.getKernel();
+		List<CurrencyDrift> result = new ArrayList<>();
+		for (int i = 0; i < kernel.size(); i++) {
+			if (current.getDrift(i) != 0.0) {
+				result.add(new CurrencyDrift(kernel.getTicker(i), current.getDrift(i)));
 			}
 		}
-		return drifts;
+		return result;
 	}
 
 	public boolean ifMaxDriftExceededOnAnyCurrency(double driftPercent) {
-		Map<String, Double> adjustments = getAdjustments();
-		for (HoldingRatio ratio : desiredHoldingRatios) {
-			OwnedAsset asset = getOwnedAsset(ratio.getTicker());
-			Double adjustment = adjustments.get(asset.getAsset());
-			if (adjustment != null) {
-				// Negative and positive shouldn't count against each other
-				double thisPercentDifference = Math.abs(adjustment) / (asset.getFree() + asset.getLocked());
-				if (thisPercentDifference > driftPercent) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return getState().ifMaxDriftExceededOnAnyCurrency(driftPercent);
 	}
 
+	/**
+	 * Determine if we've drifted far enough from the desired ratios to rebalance. Unlike getDriftPercent, the
+	 * drift here is before rounding to amounts that can be traded.
+	 *
+	 * @param minDrift - rebalance if the drift, weighted by the desired ratios, is more than this (0 to ignore)
+	 * @param minSingleDrift - rebalance if any one currency drifted more than this (0 to ignore)
+	 * @return true if we should rebalance
+	 */
 	public boolean shouldBalance(double minDrift, double minSingleDrift) {
-		if (minDrift > 0 && getDriftPercent() > minDrift) {
-			return true;
-		}
-		if (minSingleDrift > 0 && ifMaxDriftExceededOnAnyCurrency(minSingleDrift)) {
-			return true;
-		}
-		return false;
+		return getTimer("shouldBalance").record(() -> getState().shouldBalance(minDrift, minSingleDrift));
 	}
 
 	public List<NewOrderResponse> balance() {
+		return balance(getState());
+	}
+
+	/**
+	 * Place the orders to get back to the desired ratios from the state
+	 *
+	 * @return the responses from the exchange, the sells then the buys (null for orders that failed)
+	 */
+	public List<NewOrderResponse> balance(BalancerState state) {
+		return getTimer("balance").record(() -> placeOrders(state));
+	}
+
+	private List<NewOrderResponse> placeOrders(BalancerState state) {
 		List<NewOrderResponse> newOrders = new ArrayList<>();
-		Map<String, Double> adjustments = getAdjustments();
+		Map<String, Double> adjustments = getAdjustments(state);
 		Map<String, Double> negativeAdjustments = new HashMap<>();
 		Map<String, Double> positiveAdjustments = new HashMap<>();
+		PortfolioKernel kernel = state.getKernel();
 
 		for (String ticker : adjustments.keySet()) {
 			double amount = adjustments.get(ticker);
-			if (amount != 0) {
+			int index = kernel.indexOf(ticker);
+			// The base currency is what the others are bought and sold with, so it isn't traded itself
+			if (amount != 0 && index >= 0 && !kernel.isBaseCurrency(index)) {
+				// The adjustments are by asset, the orders are by symbol, NEO is bought and sold as NEOBTC
 				if (amount > 0) {
-					positiveAdjustments.put(ticker, amount);
+					positiveAdjustments.put(kernel.getSymbol(index), amount);
 				} else {
-					negativeAdjustments.put(ticker, amount);
+					negativeAdjustments.put(kernel.getSymbol(index), amount);
 				}
 			}
 		}
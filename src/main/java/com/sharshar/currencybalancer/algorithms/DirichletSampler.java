@@ -0,0 +1,81 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.Random;
+
+/**
+ * Picks random ratios from a Dirichlet distribution and doesn't learn anything from the scores.
+ *
+ * With an alpha of 1 every mix of the assets is equally likely. Picking each ratio evenly between 0 and 1 and
+ * dividing by the total doesn't do that, it favours mixes near an even split. A smaller alpha favours putting
+ * most of the value in a few assets, a larger one favours an even split.
+ */
+public class DirichletSampler implements RatioOptimizer {
+	private final int numberOfAssets;
+	private final double alpha;
+	private final Random random;
+
+	public DirichletSampler(int numberOfAssets, double alpha, Random random) {
+		if (alpha <= 0) {
+			throw new IllegalArgumentException("alpha has to be more than 0");
+		}
+		this.numberOfAssets = numberOfAssets;
+		this.alpha = alpha;
+		this.random = random;
+	}
+
+	@Override
+	public double[][] ask(int max) {
+		double[][] ratios = new double[Math.max(0, max)][];
+		for (int k = 0; k < ratios.length; k++) {
+			ratios[k] = sample(numberOfAssets, alpha, random);
+		}
+		return ratios;
+	}
+
+	@Override
+	public void tell(double[][] ratios, double[] scores) {
+	}
+
+	/**
+	 * @return one set of ratios adding up to 1
+	 */
+	public static double[] sample(int numberOfAssets, double alpha, Random random) {
+		double[] ratios = new double[numberOfAssets];
+		double total = 0;
+		for (int i = 0; i < numberOfAssets; i++) {
+			ratios[i] = gamma(alpha, random);
+			total += ratios[i];
+		}
+		for (int i = 0; i < numberOfAssets; i++) {
+			ratios[i] = total > 0 ? ratios[i] / total : 1.0 / numberOfAssets;
+		}
+		return ratios;
+	}
+
+	/**
+	 * A random number from a gamma distribution with a scale of 1, using Marsaglia and Tsang's method
+	 */
+	static double gamma(double shape, Random random) {
+		if (shape == 1.0) {
+			return -Math.log(1.0 - random.nextDouble());
+		}
+		if (shape < 1.0) {
+			// Boost the shape above 1, then scale back down
+			return gamma(shape + 1.0, random) * Math.pow(random.nextDouble(), 1.0 / shape);
+		}
+		double d = shape - 1.0 / 3.0;
+		double c = 1.0 / Math.sqrt(9.0 * d);
+		while (true) {
+			double x = random.nextGaussian();
+			double v = 1.0 + c * x;
+			if (v <= 0) {
+				continue;
+			}
+			v = v * v * v;
+			double u = random.nextDouble();
+			if (Math.log(u) < 0.5 * x * x + d - d * v + d * Math.log(v)) {
+				return d * v;
+			}
+		}
+	}
+}
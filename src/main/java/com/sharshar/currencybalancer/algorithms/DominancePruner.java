@@ -0,0 +1,83 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops the sets of ratios that have fallen well behind the leader part way through a simulation. Each set of
+ * ratios is judged by its best interval, and the ones worth less than (1 - tolerance) of the best value so far are
+ * dropped, so a larger tolerance drops fewer of them.
+ *
+ * The leader at each checkpoint is shared by everything this pruner checks, so when a sweep splits its trials up
+ * across tasks, each task is judged against the best of every task that has got that far, not just its own. Use a
+ * new one for each sweep. Which sets of ratios get dropped depends on the order the tasks get to each checkpoint,
+ * so a sweep with a pruner isn't exactly repeatable.
+ *
+ * Prices can turn around, so something that's behind half way can still come out ahead. The tolerance is how much
+ * of that risk to take to save the simulation time.
+ */
+public class DominancePruner implements RebalanceSimulator.Pruner {
+	public static final int DEFAULT_CHECKPOINTS = 3;
+
+	private final double tolerance;
+	private final int checkpoints;
+	// The best value seen at each checkpoint, as the bits of a double so it can be raised without locking
+	private final AtomicLong[] leaders;
+
+	public DominancePruner(double tolerance) {
+		this(tolerance, DEFAULT_CHECKPOINTS);
+	}
+
+	public DominancePruner(double tolerance, int checkpoints) {
+		this.tolerance = tolerance;
+		this.checkpoints = checkpoints;
+		this.leaders = new AtomicLong[checkpoints];
+		for (int i = 0; i < checkpoints; i++) {
+			leaders[i] = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+		}
+	}
+
+	@Override
+	public int getCheckpoints() {
+		return checkpoints;
+	}
+
+	@Override
+	public void prune(int checkpoint, double[][] values, boolean[] active) {
+		double[] best = new double[values.length];
+		double leader = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < values.length; k++) {
+			best[k] = Double.NEGATIVE_INFINITY;
+			if (values[k] == null) {
+				continue;
+			}
+			for (double value : values[k]) {
+				best[k] = Math.max(best[k], value);
+			}
+			leader = Math.max(leader, best[k]);
+		}
+		leader = raiseLeader(checkpoint, leader);
+		if (leader <= 0 || Double.isInfinite(leader)) {
+			return;
+		}
+		for (int k = 0; k < values.length; k++) {
+			if (active[k] && best[k] < leader * (1 - tolerance)) {
+				active[k] = false;
+			}
+		}
+	}
+
+	/**
+	 * @return the leader at the checkpoint, after raising it to value if value is better
+	 */
+	private double raiseLeader(int checkpoint, double value) {
+		AtomicLong leader = leaders[checkpoint];
+		while (true) {
+			long bits = leader.get();
+			double current = Double.longBitsToDouble(bits);
+			// NaN is never better, so it never replaces the leader
+			if (!(value > current) || leader.compareAndSet(bits, Double.doubleToLongBits(value))) {
+				return Math.max(current, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of how far our holdings have drifted from the desired ratios as prices and balances change one at a
+ * time, without working everything out again on each change.
+ *
+ * The drift of an asset is the amount we'd need to buy (or sell, if negative) relative to what we own:
+ *
+ *     drift = ratio * totalValue / value - 1
+ *
+ * where value is the amount owned times the price. A price or balance change only moves one value and the total,
+ * so both are updated in constant time. The largest single drift only depends on the largest and smallest
+ * ratio / value, which are also kept up to date (they're only looked for again when the asset holding one of
+ * them moves the wrong way, so it's constant time on average). The weighted drift percent is only added up when
+ * it's asked for and can't be ruled out from the largest drift, which it can never be more than since the ratios
+ * add up to 1.
+ *
+ * Unlike PortfolioKernel, the drift here is before rounding to amounts we can trade, so it doesn't jump around
+ * for assets that can't be traded in fractions. Assets without a price don't count, the same as in the kernel.
+ *
+ * A tracker is not thread safe, callers that share one need to synchronize.
+ */
+public class DriftTracker {
+
+	// Add the total back up from scratch this often so rounding errors don't build up
+	private static final int RESYNC_INTERVAL = 1024;
+
+	private final double[] ratios;
+	private final double[] amounts;
+	private final double[] prices;
+	private final double[] values;
+	private double totalValue;
+	private int missingPrices;
+	private int updatesSinceResync;
+
+	// The assets with the largest and smallest ratio / value, -1 if they need to be found again
+	private int maxWeightIndex = -1;
+	private int minWeightIndex = -1;
+
+	// The weighted drift percent, NaN if it needs to be added up again
+	private double driftPercent = Double.NaN;
+
+	public DriftTracker(PortfolioKernel kernel) {
+		this(getRatios(kernel));
+	}
+
+	/**
+	 * @param ratios - the desired ratio of each asset, NaN for the ones we don't want any of
+	 */
+	public DriftTracker(double[] ratios) {
+		int size = ratios.length;
+		this.ratios = new double[size];
+		this.amounts = new double[size];
+		this.prices = new double[size];
+		this.values = new double[size];
+		for (int i = 0; i < size; i++) {
+			this.ratios[i] = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+		}
+		Arrays.fill(prices, Double.NaN);
+		resync();
+	}
+
+	private static double[] getRatios(PortfolioKernel kernel) {
+		double[] ratios = new double[kernel.size()];
+		for (int i = 0; i < ratios.length; i++) {
+			ratios[i] = kernel.getRatio(i);
+		}
+		return ratios;
+	}
+
+	/**
+	 * Load all the amounts and prices at once
+	 */
+	public void load(double[] newAmounts, double[] newPrices) {
+		System.arraycopy(newAmounts, 0, amounts, 0, amounts.length);
+		System.arraycopy(newPrices, 0, prices, 0, prices.length);
+		resync();
+	}
+
+	public int size() {
+		return ratios.length;
+	}
+
+	public void setPrice(int index, double price) {
+		if (Double.compare(prices[index], price) == 0) {
+			return;
+		}
+		if (Double.isNaN(prices[index])) {
+			missingPrices--;
+		}
+		if (Double.isNaN(price)) {
+			missingPrices++;
+		}
+		prices[index] = price;
+		updateValue(index);
+	}
+
+	public void setAmount(int index, double amount) {
+		if (Double.compare(amounts[index], amount) == 0) {
+			return;
+		}
+		amounts[index] = amount;
+		updateValue(index);
+	}
+
+	public double getPrice(int index) {
+		return prices[index];
+	}
+
+	public double getAmount(int index) {
+		return amounts[index];
+	}
+
+	/**
+	 * @return the total value of the assets with prices
+	 */
+	public double getTotalValue() {
+		return totalValue;
+	}
+
+	/**
+	 * @return true if every asset has a price
+	 */
+	public boolean isComplete() {
+		return missingPrices == 0;
+	}
+
+	/**
+	 * @return the drift of the asset, positive if we need more of it, 0 if it doesn't have a price
+	 */
+	public double getDrift(int index) {
+		if (!isTracked(index)) {
+			return 0.0;
+		}
+		return getWeight(index) * totalValue - 1;
+	}
+
+	/**
+	 * @return the largest drift of any one asset, in either direction
+	 */
+	public double getMaxSingleDrift() {
+		findExtremes();
+		if (maxWeightIndex < 0) {
+			return 0.0;
+		}
+		double over = getDrift(maxWeightIndex);
+		double under = getDrift(minWeightIndex);
+		return Math.max(Math.abs(over), Math.abs(under));
+	}
+
+	/**
+	 * @return the drift of each asset, ignoring direction and weighted by its desired ratio
+	 */
+	public double getDriftPercent() {
+		if (Double.isNaN(driftPercent)) {
+			double total = 0;
+			for (int i = 0; i < ratios.length; i++) {
+				// Negative and positive shouldn't count against each other
+				total += Math.abs(getDrift(i)) * ratios[i];
+			}
+			driftPercent = total;
+		}
+		return driftPercent;
+	}
+
+	public boolean ifMaxDriftExceededOnAnyCurrency(double maxDrift) {
+		return getMaxSingleDrift() > maxDrift;
+	}
+
+	/**
+	 * @return true if the current drift is enough to rebalance
+	 */
+	public boolean shouldBalance(double minDrift, double minSingleDrift) {
+		double maxSingleDrift = getMaxSingleDrift();
+		// The weighted drift can't be more than the largest single one, so only work it out if it could matter
+		double driftPercent = minDrift > 0 && maxSingleDrift > minDrift ? getDriftPercent() : 0.0;
+		return shouldBalance(maxSingleDrift, driftPercent, minDrift, minSingleDrift);
+	}
+
+	/**
+	 * Whether a drift is enough to rebalance. BalancerState and the streamed drift both use this, so they agree.
+	 *
+	 * @param maxSingleDrift - the largest drift of any one currency, in either direction
+	 * @param driftPercent - the drift weighted by the desired ratios
+	 * @param minDrift - rebalance if the weighted drift is more than this (0 to ignore)
+	 * @param minSingleDrift - rebalance if any one currency drifted more than this (0 to ignore)
+	 * @return true if we should rebalance
+	 */
+	public static boolean shouldBalance(double maxSingleDrift, double driftPercent, double minDrift,
+										double minSingleDrift) {
+		if (minSingleDrift > 0 && maxSingleDrift > minSingleDrift) {
+			return true;
+		}
+		return minDrift > 0 && maxSingleDrift > minDrift && driftPercent > minDrift;
+	}
+
+	private void updateValue(int index) {
+		double oldValue = values[index];
+		double newValue = Double.isNaN(prices[index]) ? 0.0 : amounts[index] * prices[index];
+		values[index] = newValue;
+		driftPercent = Double.NaN;
+		if (++updatesSinceResync >= RESYNC_INTERVAL) {
+			resync();
+			return;
+		}
+		totalValue += newValue - oldValue;
+		if (maxWeightIndex < 0) {
+			// Already need to look for them again
+			return;
+		}
+		if (!isTracked(index)) {
+			if (index == maxWeightIndex || index == minWeightIndex) {
+				maxWeightIndex = -1;
+			}
+			return;
+		}
+		double weight = getWeight(index);
+		boolean lostMax = false;
+		if (weight > getWeight(maxWeightIndex)) {
+			maxWeightIndex = index;
+		} else if (index == maxWeightIndex) {
+			// It went down, something else might be bigger now
+			lostMax = true;
+		}
+		boolean lostMin = false;
+		if (weight < getWeight(minWeightIndex)) {
+			minWeightIndex = index;
+		} else if (index == minWeightIndex) {
+			lostMin = true;
+		}
+		if (lostMax || lostMin) {
+			maxWeightIndex = -1;
+		}
+	}
+
+	/**
+	 * An asset counts if it has a price, and isn't one we neither own nor want
+	 */
+	private boolean isTracked(int index) {
+		return !Double.isNaN(prices[index]) && (values[index] != 0.0 || ratios[index] != 0.0);
+	}
+
+	/**
+	 * ratio / value, so the drift is weight * totalValue - 1. Infinite if we want some but own none.
+	 */
+	private double getWeight(int index) {
+		if (values[index] == 0.0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return ratios[index] / values[index];
+	}
+
+	/**
+	 * Look through all the assets for the largest and smallest weight. Both are found again together, so
+	 * maxWeightIndex of -1 means neither is known.
+	 */
+	private void findExtremes() {
+		if (maxWeightIndex >= 0) {
+			return;
+		}
+		minWeightIndex = -1;
+		for (int i = 0; i < ratios.length; i++) {
+			if (!isTracked(i)) {
+				continue;
+			}
+			double weight = getWeight(i);
+			if (maxWeightIndex < 0 || weight > getWeight(maxWeightIndex)) {
+				maxWeightIndex = i;
+			}
+			if (minWeightIndex < 0 || weight < getWeight(minWeightIndex)) {
+				minWeightIndex = i;
+			}
+		}
+	}
+
+	private void resync() {
+		double total = 0;
+		missingPrices = 0;
+		for (int i = 0; i < ratios.length; i++) {
+			if (Double.isNaN(prices[i])) {
+				values[i] = 0.0;
+				missingPrices++;
+			} else {
+				values[i] = amounts[i] * prices[i];
+				total += values[i];
+			}
+		}
+		totalValue = total;
+		updatesSinceResync = 0;
+		maxWeightIndex = -1;
+		minWeightIndex = -1;
+		driftPercent = Double.NaN;
+	}
+}
@@ -0,0 +1,211 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.*;
+
+/**
+ * Searches for good ratios a generation at a time, in the style of CMA-ES with a separate step size per asset.
+ *
+ * Ratios have to be positive and add up to 1, so the search works on the logs of the ratios instead, which can be
+ * anything. The first generation is picked evenly from every possible mix. After each generation the better half
+ * is averaged, weighted towards the best, to get the center of the next one, and how spread out they were around
+ * the old center sets how far the next one looks. Once the spread is small enough to make no real difference to
+ * the ratios, ask returns nothing, so the sweep can stop early.
+ */
+public class EvolutionStrategyOptimizer implements RatioOptimizer {
+	public static final int DEFAULT_POPULATION = 32;
+	// Stop once the biggest step would change a ratio by about this fraction of itself
+	private static final double MIN_SIGMA = 0.005;
+	// How much of the old step sizes carry over to the next generation
+	private static final double SIGMA_MEMORY = 0.3;
+
+	private final int numberOfAssets;
+	private final int populationSize;
+	private final Random random;
+	private final double[] weights;
+
+	private double[] mean;
+	private double[] sigma;
+	private int asked;
+	private final List<double[]> generation = new ArrayList<>();
+	private final List<Double> generationScores = new ArrayList<>();
+	private int generations;
+
+	public EvolutionStrategyOptimizer(int numberOfAssets, Random random) {
+		this(numberOfAssets, DEFAULT_POPULATION, random);
+	}
+
+	public EvolutionStrategyOptimizer(int numberOfAssets, int populationSize, Random random) {
+		if (populationSize < 2) {
+			throw new IllegalArgumentException("There have to be at least 2 in a generation");
+		}
+		this.numberOfAssets = numberOfAssets;
+		this.populationSize = populationSize;
+		this.random = random;
+		int parents = populationSize / 2;
+		this.weights = new double[parents];
+		double total = 0;
+		for (int i = 0; i < parents; i++) {
+			weights[i] = Math.log(parents + 0.5) - Math.log(i + 1);
+			total += weights[i];
+		}
+		for (int i = 0; i < parents; i++) {
+			weights[i] /= total;
+		}
+	}
+
+	@Override
+	public double[][] ask(int max) {
+		if (isFinished()) {
+			return new double[0][];
+		}
+		double[][] ratios = new double[Math.max(0, Math.min(max, populationSize - asked))][];
+		for (int k = 0; k < ratios.length; k++) {
+			ratios[k] = mean == null ? DirichletSampler.sample(numberOfAssets, 1.0, random) : sample();
+		}
+		asked += ratios.length;
+		return ratios;
+	}
+
+	private double[] sample() {
+		double[] logs = new double[numberOfAssets];
+		for (int i = 0; i < numberOfAssets; i++) {
+			logs[i] = mean[i] + sigma[i] * random.nextGaussian();
+		}
+		return toRatios(logs);
+	}
+
+	@Override
+	public void tell(double[][] ratios, double[] scores) {
+		for (int k = 0; k < ratios.length; k++) {
+			generation.add(toLogs(ratios[k]));
+			generationScores.add(scores[k]);
+		}
+		if (generation.size() >= populationSize) {
+			update();
+		}
+	}
+
+	/**
+	 * Move the center towards the best of the generation
+	 */
+	private void update() {
+		Integer[] order = new Integer[generation.size()];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = k;
+		}
+		// Best first, and the ones that were dropped last
+		Arrays.sort(order, (a, b) -> {
+			double scoreA = generationScores.get(a);
+			double scoreB = generationScores.get(b);
+			return Double.compare(Double.isNaN(scoreB) ? Double.NEGATIVE_INFINITY : scoreB,
+					Double.isNaN(scoreA) ? Double.NEGATIVE_INFINITY : scoreA);
+		});
+		// Only the ones that weren't dropped can be parents, with the weights spread over however many that is
+		int parents = 0;
+		while (parents < weights.length && !Double.isNaN(generationScores.get(order[parents]))) {
+			parents++;
+		}
+		if (parents == 0) {
+			// Nothing to learn from, try again from the same place
+			clearGeneration();
+			return;
+		}
+		double totalWeight = 0;
+		for (int p = 0; p < parents; p++) {
+			totalWeight += weights[p];
+		}
+		double[] parentWeights = new double[parents];
+		for (int p = 0; p < parents; p++) {
+			parentWeights[p] = weights[p] / totalWeight;
+		}
+		double[] newMean = new double[numberOfAssets];
+		for (int p = 0; p < parents; p++) {
+			double[] logs = generation.get(order[p]);
+			for (int i = 0; i < numberOfAssets; i++) {
+				newMean[i] += parentWeights[p] * logs[i];
+			}
+		}
+		// The first generation didn't have a center, so measure its spread around the new one
+		double[] oldMean = mean == null ? newMean : mean;
+		double[] newSigma = new double[numberOfAssets];
+		for (int i = 0; i < numberOfAssets; i++) {
+			double variance = 0;
+			for (int p = 0; p < parents; p++) {
+				double step = generation.get(order[p])[i] - oldMean[i];
+				variance += parentWeights[p] * step * step;
+			}
+			newSigma[i] = sigma == null ? Math.sqrt(variance)
+					: Math.sqrt(SIGMA_MEMORY * sigma[i] * sigma[i] + (1 - SIGMA_MEMORY) * variance);
+		}
+		mean = newMean;
+		sigma = newSigma;
+		clearGeneration();
+	}
+
+	private void clearGeneration() {
+		generation.clear();
+		generationScores.clear();
+		asked = 0;
+		generations++;
+	}
+
+	/**
+	 * @return true once the generations have closed in on one set of ratios
+	 */
+	public boolean isFinished() {
+		if (sigma == null) {
+			return false;
+		}
+		for (double s : sigma) {
+			if (s > MIN_SIGMA) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getGenerations() {
+		return generations;
+	}
+
+	/**
+	 * @return the center of the search, or null before the first generation is finished
+	 */
+	public double[] getMean() {
+		return mean == null ? null : toRatios(mean);
+	}
+
+	/**
+	 * The logs of the ratios, shifted so they average 0 since adding the same amount to all of them doesn't
+	 * change the ratios
+	 */
+	static double[] toLogs(double[] ratios) {
+		double[] logs = new double[ratios.length];
+		double total = 0;
+		for (int i = 0; i < ratios.length; i++) {
+			logs[i] = Math.log(Math.max(ratios[i], 1e-12));
+			total += logs[i];
+		}
+		for (int i = 0; i < logs.length; i++) {
+			logs[i] -= total / logs.length;
+		}
+		return logs;
+	}
+
+	static double[] toRatios(double[] logs) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double log : logs) {
+			max = Math.max(max, log);
+		}
+		double[] ratios = new double[logs.length];
+		double total = 0;
+		for (int i = 0; i < logs.length; i++) {
+			ratios[i] = Math.exp(logs[i] - max);
+			total += ratios[i];
+		}
+		for (int i = 0; i < ratios.length; i++) {
+			ratios[i] /= total;
+		}
+		return ratios;
+	}
+}
@@ -0,0 +1,136 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How trades are filled in a backtest, so it costs what it would on the exchange instead of being free:
+ *
+ * - every trade pays the taker fee, in the base currency
+ * - every trade moves the price against us by the slippage, which is half the spread plus an impact that grows
+ *   with the size of the trade: halfSpread + impact * (value of the trade)^impactExponent
+ * - amounts are rounded down to the lot size of the asset (1 for assets that can't be traded in fractions)
+ * - trades worth less than the minimum notional, or smaller than PortfolioKernel.MIN_ADJUSTMENT, aren't made
+ *
+ * Set it up with the setters and then hand it to a RebalanceSimulator, which looks up what it needs for each
+ * asset once.
+ */
+public class ExecutionModel {
+	private double takerFee = 0.001;
+	private double halfSpread = 0.0005;
+	private double impact;
+	private double impactExponent = 0.5;
+	private double minNotional = 0.001;
+	private double defaultLotSize;
+	private final Map<String, Double> lotSizes = new HashMap<>();
+	private final Map<String, Double> minNotionals = new HashMap<>();
+
+	/**
+	 * @return trades that are free, infinitely divisible and at the price, the way the simulator works without one
+	 */
+	public static ExecutionModel frictionless() {
+		return new ExecutionModel().setTakerFee(0).setHalfSpread(0).setImpact(0).setMinNotional(0);
+	}
+
+	public double getTakerFee() {
+		return takerFee;
+	}
+
+	/**
+	 * @param takerFee - the fee as a fraction of the value traded, 0.001 is 0.1%
+	 */
+	public ExecutionModel setTakerFee(double takerFee) {
+		this.takerFee = takerFee;
+		return this;
+	}
+
+	public double getHalfSpread() {
+		return halfSpread;
+	}
+
+	public ExecutionModel setHalfSpread(double halfSpread) {
+		this.halfSpread = halfSpread;
+		return this;
+	}
+
+	public double getImpact() {
+		return impact;
+	}
+
+	public ExecutionModel setImpact(double impact) {
+		this.impact = impact;
+		return this;
+	}
+
+	public double getImpactExponent() {
+		return impactExponent;
+	}
+
+	/**
+	 * @param impactExponent - how fast the impact grows with the size of the trade, 0.5 is the square root
+	 */
+	public ExecutionModel setImpactExponent(double impactExponent) {
+		this.impactExponent = impactExponent;
+		return this;
+	}
+
+	/**
+	 * @param minNotional - the smallest trade the exchange takes, in the base currency, unless set for the asset
+	 */
+	public ExecutionModel setMinNotional(double minNotional) {
+		this.minNotional = minNotional;
+		return this;
+	}
+
+	public ExecutionModel setMinNotional(String asset, double minNotional) {
+		minNotionals.put(asset.toUpperCase(), minNotional);
+		return this;
+	}
+
+	/**
+	 * @param lotSize - what amounts are rounded to, unless set for the asset. 0 to not round.
+	 */
+	public ExecutionModel setLotSize(double lotSize) {
+		this.defaultLotSize = lotSize;
+		return this;
+	}
+
+	public ExecutionModel setLotSize(String asset, double lotSize) {
+		lotSizes.put(asset.toUpperCase(), lotSize);
+		return this;
+	}
+
+	public double getMinNotional(String asset) {
+		return minNotionals.getOrDefault(asset.toUpperCase(), minNotional);
+	}
+
+	public double getLotSize(String asset) {
+		return lotSizes.getOrDefault(asset.toUpperCase(), defaultLotSize);
+	}
+
+	/**
+	 * @param notional - the value of the trade in the base currency
+	 * @return how far the price moves against the trade, as a fraction of the price
+	 */
+	public double getSlippage(double notional) {
+		if (impact == 0) {
+			return halfSpread;
+		}
+		return halfSpread + impact * Math.pow(notional, impactExponent);
+	}
+
+	/**
+	 * @param amount - the amount to trade, negative to sell
+	 * @param lotSize - the lot size, 0 to not round
+	 * @return the amount rounded towards 0 to a whole number of lots
+	 */
+	public static double roundToLot(double amount, double lotSize) {
+		if (lotSize <= 0) {
+			return amount;
+		}
+		// Allow for amounts that are a lot size exactly but came out a hair under
+		double lots = amount / lotSize;
+		double rounded = lots < 0 ? Math.ceil(lots - 1e-9) : Math.floor(lots + 1e-9);
+		return rounded * lotSize;
+	}
+}
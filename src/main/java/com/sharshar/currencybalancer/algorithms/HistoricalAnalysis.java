@@ -2,16 +2,28 @@ package com.sharshar.currencybalancer.algorithms;
 
 import com.sharshar.currencybalancer.beans.HoldingRatio;
 import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceCandle;
 import com.sharshar.currencybalancer.beans.PriceData;
-import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.PriceCandleRepository;
 import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import com.sharshar.currencybalancer.services.PriceFeedService;
+import com.sharshar.currencybalancer.utils.ScratchException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 /**
@@ -24,18 +36,108 @@ public class HistoricalAnalysis {
 
 	Logger logger = LogManager.getLogger();
 
-	private static final long DAY_MICROSECONDS = 1000L * 60 * 60 * 24;
+	static final long DAY_MICROSECONDS = 1000L * 60 * 60 * 24;
+	// The strategies that watch the drift could rebalance any hour, so the history can't be any coarser than minutes
+	private static final long STRATEGY_STEP = 1000L * 60 * 60;
 
 	@Autowired
 	PriceDataSQLRepository priceDataSQLRepository;
 
+	@Autowired
+	PriceCandleRepository priceCandleRepository;
+
 	@Autowired
 	CurrencyBalancer cb;
 
 	@Autowired
-	BinanceAccountServices accountServices;
+	PriceFeedService priceFeed;
+
+	@Value("${sweep.parallelism:0}")
+	private int sweepParallelism;
+
+	// How the sweep picks the ratios to try. EVOLUTION homes in on the best ones found.
+	@Value("${sweep.optimizer:DIRICHLET}")
+	private RatioOptimizer.Type sweepOptimizer = RatioOptimizer.Type.DIRICHLET;
+
+	// Drop ratios that fall this far behind the best part way through, 0 to finish them all
+	@Value("${sweep.pruneTolerance:0}")
+	private double sweepPruneTolerance;
+
+	// Seed the sweep's random choices with this so it can be repeated exactly, a new seed each time if not set
+	@Value("${sweep.seed:#{null}}")
+	private Long sweepSeed;
+
+	// Write every result of a sweep to this file as comma separated values if set, not just the best ones
+	@Value("${sweep.resultsFile:}")
+	private String sweepResultsFile;
+
+	// Charge fees and slippage and round trades the way the exchange would, instead of trading for free
+	@Value("${backtest.execution.enabled:false}")
+	private boolean executionEnabled;
+
+	@Value("${backtest.execution.fee:0.001}")
+	private double executionFee;
+
+	@Value("${backtest.execution.halfSpread:0.0005}")
+	private double executionHalfSpread;
+
+	@Value("${backtest.execution.impact:0}")
+	private double executionImpact;
+
+	@Value("${backtest.execution.impactExponent:0.5}")
+	private double executionImpactExponent;
+
+	// The smallest trade, in bitcoin
+	@Value("${backtest.execution.minNotional:0.001}")
+	private double executionMinNotional;
+
+	// What amounts are rounded to, for assets that can be traded in fractions. 0 to not round.
+	@Value("${backtest.execution.lotSize:0}")
+	private double executionLotSize;
+
+	// Read the price history from this tick file instead of the database if set
+	@Value("${backtest.tickFile:}")
+	private String tickFilePath;
 
-	public class AnalysisResult {
+	private TickFile tickFile;
+
+	// The directory tick files are exported to and imported from. Nothing outside it can be read or written.
+	@Value("${backtest.tickDir:}")
+	private String tickDir;
+
+	// Read the price history from the candles at the resolution that suits the rebalance frequency if set
+	@Value("${backtest.useCandles:false}")
+	private boolean useCandles;
+
+	// How many price histories to keep loaded. Each one holds every price of its assets between its dates.
+	@Value("${backtest.historyCacheSize:8}")
+	private int historyCacheSize = 8;
+
+	// Price history already loaded from the database, keyed by the assets and dates it covers, the least recently
+	// used first. Guarded by itself.
+	private final LinkedHashMap<String, PriceHistory> priceHistoryCache =
+			new LinkedHashMap<String, PriceHistory>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PriceHistory> eldest) {
+					return size() > historyCacheSize;
+				}
+			};
+
+	@PostConstruct
+	public void openTickFile() {
+		if (tickFilePath == null || tickFilePath.trim().isEmpty()) {
+			return;
+		}
+		try {
+			tickFile = TickFile.open(Paths.get(tickFilePath.trim()));
+			logger.info("Reading price history from " + tickFile.getPath() + " (" + tickFile.getSymbols().size()
+					+ " symbols)");
+		} catch (IOException ex) {
+			logger.error("Unable to open " + tickFilePath + ", reading price history from the database", ex);
+		}
+	}
+
+	public static class AnalysisResult {
 		private List<OwnedAsset> initialOwnedAssets;
 		private List<OwnedAsset> finalOwnedAssets;
 		private List<HoldingRatio> holdingRatios;
@@ -45,6 +147,29 @@ public class HistoricalAnalysis {
 		private double amountBitcoin;
 		private double amountUsd;
 		private double initialAmountBitcoin;
+		private RebalanceStrategy strategy;
+		private int rebalances;
+
+		public RebalanceStrategy getStrategy() {
+			return strategy;
+		}
+
+		/**
+		 * @param strategy - how it was rebalanced, or null if it was every daysBetween days
+		 */
+		public AnalysisResult setStrategy(RebalanceStrategy strategy) {
+			this.strategy = strategy;
+			return this;
+		}
+
+		public int getRebalances() {
+			return rebalances;
+		}
+
+		public AnalysisResult setRebalances(int rebalances) {
+			this.rebalances = rebalances;
+			return this;
+		}
 
 		public double getInitialAmountBitcoin() {
 			return initialAmountBitcoin;
@@ -132,7 +257,7 @@ public class HistoricalAnalysis {
 			StringBuilder builder = new StringBuilder();
 			builder.append("---------------------------------------------------------------------------------------------\n")
 				.append("Dates: ").append(startDate).append(" - ").append(endDate).append("\n")
-				.append("Frequency: ").append(daysBetween).append(" days\n")
+				.append("Frequency: ").append(strategy == null ? daysBetween + " days" : strategy.toString()).append("\n")
 				.append("Holding Ratios: \n")
 					;
 
@@ -146,6 +271,9 @@ public class HistoricalAnalysis {
 			builder.append("Initial Bitcoin: ").append(String.format("%.4f", initialAmountBitcoin)).append("\n");
 			builder.append("Total Bitcoin: ").append(String.format("%.4f", amountBitcoin)).append(" ($").append(amountUsd).append(")\n");
 			builder.append("Profit: ").append(String.format("%.4f", amountBitcoin - initialAmountBitcoin)).append("\n");
+			if (strategy != null) {
+				builder.append("Rebalances: ").append(rebalances).append("\n");
+			}
 			return builder.toString();
 		}
 	}
@@ -160,10 +288,140 @@ public class HistoricalAnalysis {
 		return testHistorical(newAssets, startDate, endDate, writer);
 	}
 
+	/**
+	 * Try up to numberOfTries holding ratios of the assets we currently own, each at every rebalance frequency
+	 * from 1 to 30 days, spread across sweep.parallelism threads (0 uses the common pool). The ratios are picked
+	 * by sweep.optimizer, and the ones that fall sweep.pruneTolerance behind part way through aren't finished.
+	 * Only the best results are kept. A summary of all of them is logged, and they're written to
+	 * sweep.resultsFile if it's set.
+	 *
+	 * @param startDate - the start of the history to test against
+	 * @param endDate - the end of the history to test against
+	 * @param numberOfTries - the most ratios to try
+	 * @param numberToKeep - the number of best results to return
+	 * @return the best results, best first
+	 */
+	public List<AnalysisResult> sweepMyHistorical(Date startDate, Date endDate, int numberOfTries, int numberToKeep) {
+		SweepStatistics statistics = new SweepStatistics();
+		List<ResultSink> sinks = new ArrayList<>();
+		sinks.add(statistics);
+		CsvResultSink csv = null;
+		if (sweepResultsFile != null && !sweepResultsFile.trim().isEmpty()) {
+			try {
+				csv = new CsvResultSink(Files.newBufferedWriter(Paths.get(sweepResultsFile.trim())));
+				sinks.add(csv);
+			} catch (IOException ex) {
+				logger.error("Unable to write the sweep results to " + sweepResultsFile, ex);
+			}
+		}
+		try {
+			return sweepMyHistorical(startDate, endDate, numberOfTries, numberToKeep, sinks);
+		} finally {
+			if (csv != null) {
+				try {
+					csv.close();
+				} catch (IOException ex) {
+					logger.error("Unable to finish writing the sweep results to " + sweepResultsFile, ex);
+				}
+			}
+			logger.info("Sweep from " + startDate + " to " + endDate + "\n" + statistics);
+		}
+	}
+
+	/**
+	 * The same as sweepMyHistorical, also sending every result to the sinks
+	 */
+	public List<AnalysisResult> sweepMyHistorical(Date startDate, Date endDate, int numberOfTries, int numberToKeep,
+												  List<ResultSink> sinks) {
+		List<OwnedAsset> ownedAssets = new ArrayList<>(cb.getOwnedAssets());
+		// Remove ONT for now
+		ownedAssets.removeIf(c -> c.getAsset().equalsIgnoreCase("ONT"));
+		// Trades are paid for in bitcoin, so it has to be there even if we don't own any
+		if (executionEnabled && ownedAssets.stream().noneMatch(c -> c.getAsset().equalsIgnoreCase("BTC"))) {
+			ownedAssets.add(new OwnedAsset().setAsset("BTC").setFree(0.0).setLocked(0.0));
+		}
+
+		PriceHistory history = getPriceHistory(ownedAssets.stream().map(OwnedAsset::getAsset).collect(Collectors.toList()),
+				startDate, endDate, "BTC", DAY_MICROSECONDS);
+		RebalanceSimulator simulator = createSimulator(ownedAssets, history, startDate, endDate);
+		PriceSnapshot latestPrices = priceFeed.getPriceSnapshot();
+		PriceData usd = latestPrices.getPriceData("USDTBTC");
+		List<String> initialTickers = ownedAssets.stream().map(c -> c.getAsset() + "BTC").collect(Collectors.toList());
+		List<PriceData> initialPriceData = getInitialPrices(initialTickers, startDate);
+		double[] finalPrices = new double[ownedAssets.size()];
+		for (int i = 0; i < finalPrices.length; i++) {
+			String asset = ownedAssets.get(i).getAsset();
+			PriceData pd = latestPrices.getPriceData(asset, "BTC");
+			finalPrices[i] = asset.equalsIgnoreCase("BTC") ? 1.0 : (pd == null ? Double.NaN : pd.getPrice());
+		}
+		List<HoldingRatio> allAssets = ownedAssets.stream()
+				.map(c -> new HoldingRatio().setTicker(c.getAsset())).collect(Collectors.toList());
+
+		ForkJoinPool pool = sweepParallelism > 0 ? new ForkJoinPool(sweepParallelism) : ForkJoinPool.commonPool();
+		try {
+			SweepEngine engine = new SweepEngine(pool, simulator);
+			sinks.forEach(engine::addSink);
+			return engine
+					.setInitialAssets(ownedAssets)
+					.setCurrentRatios(cb.getDesiredHoldingRatios())
+					.setFinalPrices(finalPrices)
+					.setInitialAmountBitcoin(CurrencyBalancer.getTotalValue(ownedAssets, allAssets, initialPriceData, "BTC"))
+					.setUsdPrice(usd == null ? 0.0 : usd.getPrice())
+					.setDates(startDate, endDate)
+					.setSeed(sweepSeed)
+					.setOptimizer(sweepOptimizer.create(simulator.getNumberOfAssets(),
+							sweepSeed == null ? new Random() : new Random(sweepSeed)))
+					.setPruner(sweepPruneTolerance > 0 ? new DominancePruner(sweepPruneTolerance) : null)
+					.run(numberOfTries, numberToKeep);
+		} finally {
+			if (pool != ForkJoinPool.commonPool()) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * @return how trades are filled in the backtests, or null if backtest.execution.enabled isn't set and they're
+	 * free. Assets that can't be traded in fractions are rounded to whole units, like the balancer does.
+	 */
+	public ExecutionModel getExecutionModel() {
+		if (!executionEnabled) {
+			return null;
+		}
+		ExecutionModel model = new ExecutionModel()
+				.setTakerFee(executionFee)
+				.setHalfSpread(executionHalfSpread)
+				.setImpact(executionImpact)
+				.setImpactExponent(executionImpactExponent)
+				.setMinNotional(executionMinNotional)
+				.setLotSize(executionLotSize);
+		for (HoldingRatio ratio : cb.getDesiredHoldingRatios()) {
+			if (!ratio.canDoFraction()) {
+				model.setLotSize(ratio.getTicker(), 1.0);
+			}
+		}
+		return model;
+	}
+
+	private RebalanceSimulator createSimulator(List<OwnedAsset> ownedAssets, PriceHistory history, Date startDate,
+											   Date endDate) {
+		ExecutionModel execution = getExecutionModel();
+		if (execution != null && ownedAssets.stream()
+				.noneMatch(c -> c.getAsset().equalsIgnoreCase(history.getBaseCurrency()))) {
+			logger.warn("No " + history.getBaseCurrency() + " to pay for trades with, so they're free");
+			execution = null;
+		}
+		return new RebalanceSimulator(ownedAssets, history, startDate, endDate, execution);
+	}
+
 	public List<PriceData> getInitialPrices(List<String> tickers, Date startDate) {
+		Date endDate = new Date(startDate.getTime() + 3 * 60 * 60 * 1000);
+		if (tickFile != null) {
+			return tickFile.getFirstPrices(tickers, startDate, endDate);
+		}
 		List<PriceData> initialPrices = new ArrayList<>();
 		List<PriceData> pds = priceDataSQLRepository.
-				findByUpdateTimeGreaterThanAndUpdateTimeLessThan(startDate, new Date(startDate.getTime() + 3 * 60 * 60 * 1000));
+				findByUpdateTimeGreaterThanAndUpdateTimeLessThan(startDate, endDate);
 		if (pds != null && !pds.isEmpty()) {
 			for (String s : tickers) {
 				PriceData pd = pds.stream().filter(c -> c.getTicker().equalsIgnoreCase(s)).findFirst().orElse(null);
@@ -179,18 +437,23 @@ public class HistoricalAnalysis {
 		// create random values for the dedired holding ratios
 		List<AnalysisResult> results = new ArrayList<>();
 		List<HoldingRatio> ratios = getRandomRatios(ownedAssets, cb.getDesiredHoldingRatios());
-		List<PriceData> latestPriceData = accountServices.getData();
-		PriceData usd = getPriceData(latestPriceData, "USDTBTC");
+		PriceSnapshot latestPrices = priceFeed.getPriceSnapshot();
+		PriceData usd = latestPrices.getPriceData("USDTBTC");
 		List<String> initialTickers = ownedAssets.stream().map(c -> c.getAsset() + "BTC").collect(Collectors.toList());
 		List<PriceData> initialPriceData = getInitialPrices(initialTickers, startDate);
 		double usdprice = 0.0;
 		if (usd != null) {
 			usdprice = usd.getPrice();
 		}
+		PriceHistory history = getPriceHistory(ratios.stream().map(HoldingRatio::getTicker).collect(Collectors.toList()),
+				startDate, endDate, "BTC", DAY_MICROSECONDS);
 
+		RebalanceSimulator simulator = createSimulator(ownedAssets, history, startDate, endDate);
+		// Every frequency in one pass through the prices
+		double[][][] amounts = simulator.simulateAll(new double[][] {simulator.toRatios(ratios)}, 30);
 		for (int i=1; i<= 30; i++) {
-			List<OwnedAsset> finalAssets = getFinalAssetsOwned(ratios, i, startDate, endDate, ownedAssets, "BTC");
-			double totalBitcoins = CurrencyBalancer.getTotalValue(finalAssets, ratios, latestPriceData, "BTC");
+			List<OwnedAsset> finalAssets = toOwnedAssets(simulator, amounts[0][i - 1]);
+			double totalBitcoins = CurrencyBalancer.getTotalValue(finalAssets, ratios, latestPrices, "BTC");
 			AnalysisResult result = new AnalysisResult()
 					.setHoldingRatios(ratios)
 					.setDaysBetween(i)
@@ -211,34 +474,128 @@ public class HistoricalAnalysis {
 		return results;
 	}
 
+	/**
+	 * Try the desired holding ratios with each strategy against the history, to see which way of deciding when to
+	 * rebalance does best. The strategies that watch the drift see every price, so the history is only rolled up
+	 * into candles (if backtest.useCandles is set) by the minute.
+	 *
+	 * @param startDate - the start of the history to test against
+	 * @param endDate - the end of the history to test against
+	 * @param strategies - the strategies to try
+	 * @return a result for each strategy, best first
+	 */
+	public List<AnalysisResult> testStrategies(Date startDate, Date endDate, List<RebalanceStrategy> strategies) {
+		List<OwnedAsset> ownedAssets = new ArrayList<>(cb.getOwnedAssets());
+		// Remove ONT for now
+		ownedAssets.removeIf(c -> c.getAsset().equalsIgnoreCase("ONT"));
+		List<HoldingRatio> ratios = cb.getDesiredHoldingRatios();
+		PriceSnapshot latestPrices = priceFeed.getPriceSnapshot();
+		PriceData usd = latestPrices.getPriceData("USDTBTC");
+		double usdPrice = usd == null ? 0.0 : usd.getPrice();
+		List<String> initialTickers = ownedAssets.stream().map(c -> c.getAsset() + "BTC").collect(Collectors.toList());
+		double initialAmountBitcoin = CurrencyBalancer.getTotalValue(ownedAssets, ratios,
+				getInitialPrices(initialTickers, startDate), "BTC");
+
+		PriceHistory history = getPriceHistory(ownedAssets.stream().map(OwnedAsset::getAsset).collect(Collectors.toList()),
+				startDate, endDate, "BTC", STRATEGY_STEP);
+		RebalanceSimulator simulator = createSimulator(ownedAssets, history, startDate, endDate);
+		int[][] rebalances = new int[1][strategies.size()];
+		double[][][] amounts = simulator.simulateStrategies(new double[][] {simulator.toRatios(ratios)},
+				strategies.toArray(new RebalanceStrategy[0]), rebalances);
+
+		List<AnalysisResult> results = new ArrayList<>();
+		for (int s = 0; s < strategies.size(); s++) {
+			List<OwnedAsset> finalAssets = toOwnedAssets(simulator, amounts[0][s]);
+			double totalBitcoins = CurrencyBalancer.getTotalValue(finalAssets, ratios, latestPrices, "BTC");
+			results.add(new AnalysisResult()
+					.setHoldingRatios(ratios)
+					.setStrategy(strategies.get(s))
+					.setRebalances(rebalances[0][s])
+					.setStartDate(startDate)
+					.setEndDate(endDate)
+					.setFinalOwnedAssets(finalAssets)
+					.setAmountBitcoin(totalBitcoins)
+					.setAmountUsd(usdPrice * totalBitcoins)
+					.setInitialOwnedAssets(ownedAssets)
+					.setInitialAmountBitcoin(initialAmountBitcoin));
+		}
+		results.sort(Comparator.comparingDouble(AnalysisResult::getAmountBitcoin).reversed());
+		return results;
+	}
+
+	/**
+	 * Try every combination of minDrift and minSingleDrift as a THRESHOLD strategy, to pick the ones for the live
+	 * balancer
+	 */
+	public List<AnalysisResult> testThresholds(Date startDate, Date endDate, double[] minDrifts, double[] minSingleDrifts) {
+		List<RebalanceStrategy> strategies = new ArrayList<>();
+		for (double minDrift : minDrifts) {
+			for (double minSingleDrift : minSingleDrifts) {
+				strategies.add(RebalanceStrategy.threshold(minDrift, minSingleDrift));
+			}
+		}
+		return testStrategies(startDate, endDate, strategies);
+	}
+
 	public List<HoldingRatio> getRandomRatios(List<OwnedAsset> ownedAssets, List<HoldingRatio> currentInfo) {
+		return getRandomRatios(ownedAssets, currentInfo, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Create random holding ratios for the assets. Pass in the random number generator so each thread (or each
+	 * trial, if you want to be able to repeat it) can use its own.
+	 */
+	public static List<HoldingRatio> getRandomRatios(List<OwnedAsset> ownedAssets, List<HoldingRatio> currentInfo,
+													 Random random) {
 		List<HoldingRatio> ratios = new ArrayList<>();
 		if (ownedAssets == null) {
 			return ratios;
 		}
-		List<Double> randomValues = generateRandomValues(ownedAssets.size());
+		List<Double> randomValues = generateRandomValues(ownedAssets.size(), random);
 		for (int i=0; i< ownedAssets.size(); i++) {
-			OwnedAsset asset = ownedAssets.get(i);
-			HoldingRatio ratio = new HoldingRatio();
-			ratio.setPercent(randomValues.get(i));
-			// We don't have a good way to determine if we can trade fractional numbers, so see if we already know
-			// otherwise, it's okay to assume we can't
-			HoldingRatio existingOne = getHoldingRatio(currentInfo, asset.getAsset());
-			if (existingOne != null) {
-				ratio.setFraction(existingOne.canDoFraction());
-			} else {
-				ratio.setFraction(false);
-			}
-			ratio.setTicker(asset.getAsset());
-			ratios.add(ratio);
+			ratios.add(toHoldingRatio(ownedAssets.get(i).getAsset(), randomValues.get(i), currentInfo));
+		}
+		return ratios;
+	}
+
+	/**
+	 * Turn ratios lined up with the simulator's assets back into holding ratios
+	 */
+	static List<HoldingRatio> toHoldingRatios(RebalanceSimulator simulator, double[] ratioValues,
+											  List<HoldingRatio> currentInfo) {
+		List<HoldingRatio> ratios = new ArrayList<>();
+		for (int i = 0; i < ratioValues.length; i++) {
+			ratios.add(toHoldingRatio(simulator.getAsset(i), ratioValues[i], currentInfo));
 		}
 		return ratios;
 	}
 
+	private static HoldingRatio toHoldingRatio(String asset, double percent, List<HoldingRatio> currentInfo) {
+		HoldingRatio ratio = new HoldingRatio();
+		ratio.setPercent(percent);
+		// We don't have a good way to determine if we can trade fractional numbers, so see if we already know
+		// otherwise, it's okay to assume we can't
+		HoldingRatio existingOne = currentInfo == null ? null : getHoldingRatio(currentInfo, asset);
+		if (existingOne != null) {
+			ratio.setFraction(existingOne.canDoFraction());
+		} else {
+			ratio.setFraction(false);
+		}
+		ratio.setTicker(asset);
+		return ratio;
+	}
+
 	public List<Double> generateRandomValues(int numberOfValues) {
+		return generateRandomValues(numberOfValues, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Random ratios adding up to 1, with every mix equally likely (see DirichletSampler)
+	 */
+	public static List<Double> generateRandomValues(int numberOfValues, Random random) {
 		List<Double> initialRatios = new ArrayList<>();
 		for (int i=0; i<numberOfValues; i++) {
-			initialRatios.add(Math.random());
+			initialRatios.add(DirichletSampler.gamma(1.0, random));
 		}
 		// Now correct to make sure they add up to 100%
 		double totalAmount = initialRatios.stream().mapToDouble(c -> c).sum();
@@ -251,54 +608,114 @@ public class HistoricalAnalysis {
 	}
 
 
-	private List<OwnedAsset> getFinalAssetsOwned(List<HoldingRatio> desiredRatios, int daysBetween,
-												 Date startDate, Date endDate, List<OwnedAsset> startingAssets,
-												 String baseCurrency) {
-		Map<String, List<PriceData>> allPriceDataFromDb = new HashMap<>();
-		for (HoldingRatio ratio : desiredRatios) {
-			List<PriceData> data = null;
-			if (ratio.getTicker().equalsIgnoreCase(baseCurrency)) {
-				// It's itself, so no conversion. Assume 1 to 1 conversion, but get the data so it has data with time
-				data = priceDataSQLRepository.findByTickerAndUpdateTimeGreaterThanAndUpdateTimeLessThan(
-						ratio.getTicker() + "USDT", startDate, endDate);
-				data.stream().forEach(c -> c.setPrice(1.0));
-				data.stream().forEach(c -> c.setTicker("BTCBTC"));
-			} else {
-				data = priceDataSQLRepository.findByTickerAndUpdateTimeGreaterThanAndUpdateTimeLessThan(
-						ratio.getTicker() + baseCurrency, startDate,endDate);
+	/**
+	 * Retrieve the price history of the assets between the two dates. The history is only loaded from the
+	 * database (or the tick file, if backtest.tickFile is set) the first time it's asked for, after that the same
+	 * copy is handed out to every simulation.
+	 *
+	 * @param assets - the assets to load the history of
+	 * @param startDate - the start of the history
+	 * @param endDate - the end of the history
+	 * @param baseCurrency - the currency to load prices in
+	 * @return the price history
+	 */
+	public PriceHistory getPriceHistory(List<String> assets, Date startDate, Date endDate, String baseCurrency) {
+		return getPriceHistory(assets, startDate, endDate, baseCurrency, 0);
+	}
+
+	/**
+	 * Retrieve the price history of the assets between the two dates for simulations that rebalance no more often
+	 * than every step milliseconds. If backtest.useCandles is set, and the step is long enough for one of the
+	 * candle resolutions, the history is read from those candles instead of every tick.
+	 *
+	 * @param assets - the assets to load the history of
+	 * @param startDate - the start of the history
+	 * @param endDate - the end of the history
+	 * @param baseCurrency - the currency to load prices in
+	 * @param step - the shortest time between rebalances in milliseconds, 0 for every tick
+	 * @return the price history
+	 */
+	public PriceHistory getPriceHistory(List<String> assets, Date startDate, Date endDate, String baseCurrency,
+										long step) {
+		List<String> sortedAssets = assets.stream().map(String::toUpperCase).sorted().distinct()
+				.collect(Collectors.toList());
+		PriceCandle.Resolution resolution = useCandles && tickFile == null ? PriceCandle.Resolution.forStep(step) : null;
+		String key = baseCurrency.toUpperCase() + ":" + startDate.getTime() + ":" + endDate.getTime() + ":" + sortedAssets
+				+ (resolution == null ? "" : ":" + resolution);
+		synchronized (priceHistoryCache) {
+			PriceHistory cached = priceHistoryCache.get(key);
+			if (cached != null) {
+				return cached;
 			}
-			allPriceDataFromDb.put(ratio.getTicker(), data);
 		}
+		// Loaded outside the lock so one slow load doesn't hold up requests for history that's already loaded. Two
+		// requests for the same history at once may both load it, and the first one kept is used by both.
+		PriceHistory history;
+		if (tickFile != null) {
+			history = PriceHistory.fromTickFile(tickFile, sortedAssets, baseCurrency, startDate, endDate);
+		} else if (resolution != null) {
+			history = PriceHistory.fromCandles(priceCandleRepository, priceDataSQLRepository, resolution,
+					sortedAssets, baseCurrency, startDate, endDate);
+		} else {
+			history = PriceHistory.load(priceDataSQLRepository, sortedAssets, baseCurrency, startDate, endDate);
+		}
+		if (historyCacheSize <= 0) {
+			return history;
+		}
+		synchronized (priceHistoryCache) {
+			PriceHistory cached = priceHistoryCache.putIfAbsent(key, history);
+			return cached == null ? history : cached;
+		}
+	}
+
+	/**
+	 * Save the price history of the assets we own or want to a tick file in backtest.tickDir, so it can be
+	 * backtested without the database
+	 *
+	 * @param name - the file to write, in backtest.tickDir
+	 * @param startDate - save data after this date
+	 * @param endDate - save data before this date
+	 * @return the number of prices saved
+	 * @throws IOException if the file can't be written
+	 * @throws ScratchException if the name is outside backtest.tickDir, or it isn't set
+	 */
+	public long exportTickFile(String name, Date startDate, Date endDate) throws IOException, ScratchException {
+		Path path = resolveTickFile(name);
+		Set<String> assets = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		cb.getOwnedAssets().forEach(c -> assets.add(c.getAsset()));
+		cb.getDesiredHoldingRatios().forEach(c -> assets.add(c.getTicker()));
+		assets.add("BTC");
+		return TickFile.export(priceDataSQLRepository, path, PriceHistory.getSymbols(assets, "BTC"),
+				startDate, endDate);
+	}
+
+	/**
+	 * Load the prices in a tick file in backtest.tickDir into the database
+	 */
+	public long importTickFile(String name) throws IOException, ScratchException {
+		return TickFile.importInto(priceDataSQLRepository, resolveTickFile(name));
+	}
+
+	private Path resolveTickFile(String name) throws ScratchException {
+		if (tickDir == null || tickDir.trim().isEmpty()) {
+			throw new ScratchException("No directory for tick files, set backtest.tickDir");
+		}
+		return TickFile.resolve(Paths.get(tickDir.trim()), name);
+	}
+
+	public void clearPriceHistoryCache() {
+		synchronized (priceHistoryCache) {
+			priceHistoryCache.clear();
+		}
+	}
+
+	static List<OwnedAsset> toOwnedAssets(RebalanceSimulator simulator, double[] amounts) {
 		List<OwnedAsset> assets = new ArrayList<>();
-		assets.addAll(startingAssets);
-		Date newDate = startDate;
-		List<PriceData> lastPrices = new ArrayList<>();
-		double totalValue;
-		while (newDate.getTime() < endDate.getTime()) {
-			for (HoldingRatio ratio : desiredRatios) {
-				PriceData val = getPrice(allPriceDataFromDb.get(ratio.getTicker()), ratio.getTicker(), newDate, baseCurrency);
-				if (val != null) {
-					PriceData pd = new PriceData().setUpdateTime(val.getUpdateTime()).setTicker(ratio.getTicker() + baseCurrency).setPrice(val.getPrice());
-					lastPrices.add(pd);
-				}
-			}
-			totalValue = CurrencyBalancer.getTotalValue(assets, desiredRatios, lastPrices, baseCurrency);
-			logger.info("Total Value: " + totalValue);
-			List<OwnedAsset> newAssets = new ArrayList<>();
-			for (OwnedAsset asset : assets) {
-				double desiredRatio = getRatio(desiredRatios, asset.getAsset());
-				PriceData pd = getPriceData(lastPrices, asset.getAsset() + baseCurrency);
-				// double totalAmountForThis = (asset.getFree() + asset.getLocked()) * pd.getPrice();
-				double adjustment = CurrencyBalancer.getAdjustment(asset, desiredRatio, pd.getPrice(), totalValue);
-				OwnedAsset a = new OwnedAsset()
-						.setAsset(asset.getAsset())
-						.setFree(asset.getFree() + asset.getLocked() + adjustment)
-						.setLocked(0.0);
-				newAssets.add(a);
-			}
-			newDate = new Date(newDate.getTime() + (daysBetween * DAY_MICROSECONDS));
-			lastPrices.clear();
-			assets = newAssets;
+		for (int i = 0; i < amounts.length; i++) {
+			assets.add(new OwnedAsset()
+					.setAsset(simulator.getAsset(i))
+					.setFree(amounts[i])
+					.setLocked(0.0));
 		}
 		return assets;
 	}
@@ -325,7 +742,11 @@ public class HistoricalAnalysis {
 		return ratio.getPercent();
 	}
 
-	private PriceData getPrice(List<PriceData> prices, String ticker, Date firstAfter, String baseCurr) {
+	/**
+	 * Find the first price for the ticker at or after the date by scanning the list. The simulations use
+	 * PriceCursor instead, this is kept as the reference for what it should return.
+	 */
+	static PriceData getPrice(List<PriceData> prices, String ticker, Date firstAfter, String baseCurr) {
 		if (prices == null || prices.isEmpty() || ticker ==  null || ticker.isEmpty() || firstAfter == null) {
 			return null;
 		}
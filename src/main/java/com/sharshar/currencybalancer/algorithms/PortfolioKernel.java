@@ -0,0 +1,229 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The same math as CurrencyBalancer.getTotalValue, getAdjustments and the drift methods, but done over arrays.
+ * Each ticker in the holding ratios is given an index once, when the kernel is created, and from then on amounts,
+ * prices, adjustments and drifts are all double[] in that order. None of the calculations create any objects, so
+ * the simulations can run as many of them as they want, and the arrays can be reused between calls.
+ *
+ * The kernel doesn't change after it's created, so it can be shared between threads as long as each thread
+ * passes in its own arrays.
+ */
+public class PortfolioKernel {
+
+	// Adjustments smaller than this are ignored, same as CurrencyBalancer.getAdjustments
+	public static final double MIN_ADJUSTMENT = 0.01;
+
+	private final String baseCurrency;
+	private final String[] tickers;
+	private final double[] ratios;
+	private final boolean[] canDoFraction;
+	private final boolean[] isBase;
+	private final Map<String, Integer> indexByTicker = new HashMap<>();
+	private final String[] symbols;
+
+	public PortfolioKernel(List<HoldingRatio> holdingRatios, String baseCurrency) {
+		int size = holdingRatios.size();
+		this.baseCurrency = baseCurrency;
+		this.tickers = new String[size];
+		this.ratios = new double[size];
+		this.canDoFraction = new boolean[size];
+		this.isBase = new boolean[size];
+		this.symbols = new String[size];
+		for (int i = 0; i < size; i++) {
+			HoldingRatio ratio = holdingRatios.get(i);
+			tickers[i] = ratio.getTicker();
+			ratios[i] = ratio.getPercent();
+			canDoFraction[i] = ratio.canDoFraction();
+			isBase[i] = ratio.getTicker().equalsIgnoreCase(baseCurrency);
+			indexByTicker.put(ratio.getTicker().toUpperCase(), i);
+			symbols[i] = (ratio.getTicker() + baseCurrency).toUpperCase();
+		}
+	}
+
+	public int size() {
+		return tickers.length;
+	}
+
+	public String getTicker(int index) {
+		return tickers[index];
+	}
+
+	/**
+	 * @return the symbol the ticker is priced with, for example NEOBTC
+	 */
+	public String getSymbol(int index) {
+		return symbols[index];
+	}
+
+	public boolean isBaseCurrency(int index) {
+		return isBase[index];
+	}
+
+	public double getRatio(int index) {
+		return ratios[index];
+	}
+
+	public String getBaseCurrency() {
+		return baseCurrency;
+	}
+
+	/**
+	 * @param ticker - the ticker, for example NEO
+	 * @return the index of the ticker, or -1 if it isn't one we hold
+	 */
+	public int indexOf(String ticker) {
+		Integer index = indexByTicker.get(ticker.toUpperCase());
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Fill in the amount owned of each ticker. Tickers we don't own are 0.
+	 *
+	 * @param ownedAssets - the owned assets
+	 * @param amounts - filled in with the free + locked amount of each ticker
+	 */
+	public void loadAmounts(List<OwnedAsset> ownedAssets, double[] amounts) {
+		Arrays.fill(amounts, 0.0);
+		for (OwnedAsset asset : ownedAssets) {
+			int index = indexOf(asset.getAsset());
+			if (index >= 0) {
+				amounts[index] = asset.getFree() + asset.getLocked();
+			}
+		}
+	}
+
+	/**
+	 * Fill in the price of each ticker in the base currency. The base currency is 1.0 and tickers without a price
+	 * are NaN.
+	 *
+	 * @param priceData - the prices of all the symbols on the exchange
+	 * @param prices - filled in with the price of each ticker
+	 */
+	public void loadPrices(List<PriceData> priceData, double[] prices) {
+		loadPrices(PriceSnapshot.of(priceData), prices);
+	}
+
+	/**
+	 * Fill in the price of each ticker in the base currency. The base currency is 1.0 and tickers without a price
+	 * are NaN.
+	 *
+	 * @param snapshot - the prices of all the symbols on the exchange
+	 * @param prices - filled in with the price of each ticker
+	 */
+	public void loadPrices(PriceSnapshot snapshot, double[] prices) {
+		for (int i = 0; i < symbols.length; i++) {
+			prices[i] = isBase[i] ? 1.0 : snapshot.getPrice(symbols[i]);
+		}
+	}
+
+	/**
+	 * @param amounts - the amount owned of each ticker
+	 * @param prices - the price of each ticker
+	 * @return the total value in the base currency, skipping tickers without a price
+	 */
+	public double getTotalValue(double[] amounts, double[] prices) {
+		double totalValue = 0;
+		for (int i = 0; i < tickers.length; i++) {
+			if (!Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+			}
+		}
+		return totalValue;
+	}
+
+	/**
+	 * Work out the amount of each ticker to buy (positive) or sell (negative) to get back to the desired ratios.
+	 * Like CurrencyBalancer.getAdjustments, tickers that can't be traded in fractions are rounded, and tiny
+	 * adjustments or tickers without a price are left at 0.
+	 *
+	 * @param amounts - the amount owned of each ticker
+	 * @param prices - the price of each ticker
+	 * @param adjustments - filled in with the adjustment of each ticker
+	 * @return the total value in the base currency
+	 */
+	public double getAdjustments(double[] amounts, double[] prices, double[] adjustments) {
+		double totalValue = getTotalValue(amounts, prices);
+		for (int i = 0; i < tickers.length; i++) {
+			adjustments[i] = getAdjustment(i, amounts[i], prices[i], totalValue);
+		}
+		return totalValue;
+	}
+
+	/**
+	 * @return the adjustment of a single ticker given the total value, see getAdjustments
+	 */
+	public double getAdjustment(int index, double amount, double price, double totalValue) {
+		if (Double.isNaN(price)) {
+			return 0.0;
+		}
+		double adjustment = (ratios[index] * totalValue - amount * price) / price;
+		if (!canDoFraction[index]) {
+			adjustment = Math.round(adjustment);
+		}
+		if (Math.abs(adjustment) > MIN_ADJUSTMENT) {
+			return adjustment;
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Work out how far each ticker has drifted, as the adjustment relative to the amount owned
+	 *
+	 * @param amounts - the amount owned of each ticker
+	 * @param prices - the price of each ticker
+	 * @param drifts - filled in with the drift of each ticker (negative means we have too much)
+	 */
+	public void getDrifts(double[] amounts, double[] prices, double[] drifts) {
+		getAdjustments(amounts, prices, drifts);
+		for (int i = 0; i < tickers.length; i++) {
+			if (drifts[i] != 0.0) {
+				drifts[i] = drifts[i] / amounts[i];
+			}
+		}
+	}
+
+	/**
+	 * @param amounts - the amount owned of each ticker
+	 * @param prices - the price of each ticker
+	 * @param scratch - an array the size of the kernel to work in
+	 * @return the drift of each ticker, ignoring direction and weighted by its desired ratio
+	 */
+	public double getDriftPercent(double[] amounts, double[] prices, double[] scratch) {
+		getDrifts(amounts, prices, scratch);
+		double totalPercentDifference = 0;
+		for (int i = 0; i < tickers.length; i++) {
+			// Negative and positive shouldn't count against each other
+			totalPercentDifference += Math.abs(scratch[i]) * ratios[i];
+		}
+		return totalPercentDifference;
+	}
+
+	/**
+	 * @param amounts - the amount owned of each ticker
+	 * @param prices - the price of each ticker
+	 * @param scratch - an array the size of the kernel to work in
+	 * @param driftPercent - the maximum drift
+	 * @return true if any single ticker has drifted more than driftPercent in either direction
+	 */
+	public boolean ifMaxDriftExceededOnAnyCurrency(double[] amounts, double[] prices, double[] scratch,
+												   double driftPercent) {
+		getDrifts(amounts, prices, scratch);
+		for (int i = 0; i < tickers.length; i++) {
+			if (Math.abs(scratch[i]) > driftPercent) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
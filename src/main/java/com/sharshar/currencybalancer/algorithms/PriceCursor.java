@@ -0,0 +1,50 @@
+package com.sharshar.currencybalancer.algorithms;
+
+/**
+ * Resolves the price of one asset as of a time, meaning the first price at or after that time. Simulations walk
+ * forward through time, so the cursor remembers where it last was and only searches the part of the series after
+ * it. Going backwards is allowed, it just searches the whole series again.
+ *
+ * A cursor keeps state, so each simulation (and each thread) needs its own. The series underneath can be shared.
+ */
+public class PriceCursor {
+	private final PriceHistory.Series series;
+	private int index;
+	private long lastTime = Long.MIN_VALUE;
+
+	public PriceCursor(PriceHistory.Series series) {
+		this.series = series;
+	}
+
+	/**
+	 * @param time - the time in milliseconds
+	 * @return the first price at or after the time, or NaN if there isn't one
+	 */
+	public double priceAtOrAfter(long time) {
+		if (series == null) {
+			return Double.NaN;
+		}
+		int from = time >= lastTime ? index : 0;
+		index = series.indexAtOrAfter(time, from);
+		lastTime = time;
+		if (index >= series.size()) {
+			return Double.NaN;
+		}
+		return series.getPrice(index);
+	}
+
+	/**
+	 * @return the update time of the price last returned, or -1 if there wasn't one
+	 */
+	public long currentTime() {
+		if (series == null || index >= series.size() || lastTime == Long.MIN_VALUE) {
+			return -1;
+		}
+		return series.getTime(index);
+	}
+
+	public void reset() {
+		index = 0;
+		lastTime = Long.MIN_VALUE;
+	}
+}
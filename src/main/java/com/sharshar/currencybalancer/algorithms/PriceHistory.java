@@ -0,0 +1,360 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.PriceCandle;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.PriceCandleRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * Columnar, in-memory copy of the price history of a set of assets over a date range. Each asset is stored as a
+ * time sorted long[] of update times and a matching double[] of prices so the backtester can step through it as
+ * many times as it wants without going back to the database.
+ *
+ * Instances are immutable once built, so one can be shared by any number of simulations.
+ */
+public class PriceHistory {
+
+	private final Map<String, Series> seriesByAsset;
+	private final String baseCurrency;
+	private final Date startDate;
+	private final Date endDate;
+
+	/**
+	 * The prices of a single asset, sorted by update time. The times and prices are either arrays, or a part of a
+	 * memory mapped TickFile that's read in place. Arrays are faster to read, so they're used when we have them.
+	 */
+	public static final class Series {
+		private final long[] timeArray;
+		private final double[] priceArray;
+		private final LongBuffer timeBuffer;
+		private final DoubleBuffer priceBuffer;
+		private final int size;
+
+		Series(long[] times, double[] prices) {
+			this.timeArray = times;
+			this.priceArray = prices;
+			this.timeBuffer = null;
+			this.priceBuffer = null;
+			this.size = times.length;
+		}
+
+		Series(LongBuffer times, DoubleBuffer prices) {
+			this.timeArray = null;
+			this.priceArray = null;
+			this.timeBuffer = times;
+			this.priceBuffer = prices;
+			this.size = times.limit();
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long getTime(int index) {
+			return timeArray != null ? timeArray[index] : timeBuffer.get(index);
+		}
+
+		public double getPrice(int index) {
+			return priceArray != null ? priceArray[index] : priceBuffer.get(index);
+		}
+
+		/**
+		 * @return the entries from fromIndex up to but not including toIndex
+		 */
+		public Series slice(int fromIndex, int toIndex) {
+			if (fromIndex == 0 && toIndex == size) {
+				return this;
+			}
+			if (timeArray != null) {
+				return new Series(Arrays.copyOfRange(timeArray, fromIndex, toIndex),
+						Arrays.copyOfRange(priceArray, fromIndex, toIndex));
+			}
+			// Still reading the file in place
+			LongBuffer times = timeBuffer.duplicate();
+			times.position(fromIndex);
+			times.limit(toIndex);
+			DoubleBuffer prices = priceBuffer.duplicate();
+			prices.position(fromIndex);
+			prices.limit(toIndex);
+			return new Series(times.slice(), prices.slice());
+		}
+
+		/**
+		 * Binary search for the first entry at or after the time, starting at fromIndex
+		 *
+		 * @param time - the time in milliseconds
+		 * @param fromIndex - the first index to consider
+		 * @return the index, or size() if every entry is before the time
+		 */
+		public int indexAtOrAfter(long time, int fromIndex) {
+			int low = fromIndex;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (getTime(mid) < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		public PriceCursor cursor() {
+			return new PriceCursor(this);
+		}
+	}
+
+	private PriceHistory(Map<String, Series> seriesByAsset, String baseCurrency, Date startDate, Date endDate) {
+		this.seriesByAsset = seriesByAsset;
+		this.baseCurrency = baseCurrency;
+		this.startDate = startDate;
+		this.endDate = endDate;
+	}
+
+	/**
+	 * Load the history of the assets from the database, one query per asset. The base currency itself is
+	 * always worth 1.0, but we still load the times from its tether pair so it has the same time axis as
+	 * the rest of the data.
+	 *
+	 * The rows are streamed straight into the arrays, so only the arrays are held in memory, not the rows.
+	 *
+	 * @param repository - the price data repository
+	 * @param assets - the assets to load (for example NEO, not NEOBTC)
+	 * @param baseCurrency - the currency the prices are in
+	 * @param startDate - load data after this date
+	 * @param endDate - load data before this date
+	 * @return the loaded history
+	 */
+	public static PriceHistory load(PriceDataSQLRepository repository, Collection<String> assets, String baseCurrency,
+									Date startDate, Date endDate) {
+		Map<String, Series> seriesByAsset = new HashMap<>();
+		for (String asset : assets) {
+			SeriesBuilder builder = new SeriesBuilder();
+			if (asset.equalsIgnoreCase(baseCurrency)) {
+				repository.forEachByTicker(getSymbol(asset, baseCurrency), startDate, endDate,
+						c -> builder.add(c.getUpdateTime(), 1.0));
+			} else {
+				repository.forEachByTicker(getSymbol(asset, baseCurrency), startDate, endDate,
+						c -> builder.add(c.getUpdateTime(), c.getPrice()));
+			}
+			seriesByAsset.put(asset.toUpperCase(), builder.build());
+		}
+		return new PriceHistory(Collections.unmodifiableMap(seriesByAsset), baseCurrency, startDate, endDate);
+	}
+
+	/**
+	 * Read the history of the assets from a tick file instead of the database. Each asset's prices are read from
+	 * the file in place rather than copied, apart from the base currency which is always worth 1.0.
+	 *
+	 * @param file - the open tick file
+	 * @param assets - the assets to load (for example NEO, not NEOBTC)
+	 * @param baseCurrency - the currency the prices are in
+	 * @param startDate - load data after this date
+	 * @param endDate - load data before this date
+	 * @return the history
+	 */
+	public static PriceHistory fromTickFile(TickFile file, Collection<String> assets, String baseCurrency,
+											Date startDate, Date endDate) {
+		Map<String, Series> seriesByAsset = new HashMap<>();
+		for (String asset : assets) {
+			boolean isBase = asset.equalsIgnoreCase(baseCurrency);
+			Series series = file.getSeries(getSymbol(asset, baseCurrency), startDate, endDate);
+			if (series == null) {
+				series = new Series(new long[0], new double[0]);
+			} else if (isBase) {
+				long[] times = new long[series.size()];
+				for (int i = 0; i < times.length; i++) {
+					times[i] = series.getTime(i);
+				}
+				double[] prices = new double[times.length];
+				Arrays.fill(prices, 1.0);
+				series = new Series(times, prices);
+			}
+			seriesByAsset.put(asset.toUpperCase(), series);
+		}
+		return new PriceHistory(Collections.unmodifiableMap(seriesByAsset), baseCurrency, startDate, endDate);
+	}
+
+	/**
+	 * Load the history of the assets from the candles at a resolution instead of every tick. Each candle's open
+	 * is its first tick, so the history is a sample of the ticks: looking up the price at a time gives the first
+	 * price at or after it, as with the ticks, but it may be up to one candle later than the tick would have been.
+	 *
+	 * The candles may not be rolled up as far as the end date yet, so the ticks after the last candle's close are
+	 * read from pricedata. An asset without any candles is read entirely from the ticks.
+	 *
+	 * @param candleRepository - the candle repository
+	 * @param repository - the price data repository
+	 * @param resolution - the candles to read
+	 * @param assets - the assets to load (for example NEO, not NEOBTC)
+	 * @param baseCurrency - the currency the prices are in
+	 * @param startDate - load data after this date
+	 * @param endDate - load data before this date
+	 * @return the loaded history
+	 */
+	public static PriceHistory fromCandles(PriceCandleRepository candleRepository, PriceDataSQLRepository repository,
+										   PriceCandle.Resolution resolution, Collection<String> assets,
+										   String baseCurrency, Date startDate, Date endDate) {
+		Map<String, Series> seriesByAsset = new HashMap<>();
+		Date bucketStart = new Date(resolution.getBucketStart(startDate.getTime()));
+		for (String asset : assets) {
+			boolean isBase = asset.equalsIgnoreCase(baseCurrency);
+			String symbol = getSymbol(asset, baseCurrency);
+			SeriesBuilder builder = new SeriesBuilder();
+			Date after = startDate;
+			List<PriceCandle> candles = candleRepository
+					.findByTickerAndResolutionAndBucketStartGreaterThanEqualAndBucketStartLessThanOrderByBucketStart(
+							symbol, resolution, bucketStart, endDate);
+			for (PriceCandle candle : candles) {
+				// The first candle can open before the start date
+				if (candle.getOpenTime().after(startDate) && candle.getOpenTime().before(endDate)) {
+					builder.add(candle.getOpenTime(), isBase ? 1.0 : candle.getOpen());
+				}
+				if (candle.getCloseTime().after(after)) {
+					after = candle.getCloseTime();
+				}
+			}
+			repository.forEachByTicker(symbol, after, endDate,
+					c -> builder.add(c.getUpdateTime(), isBase ? 1.0 : c.getPrice()));
+			seriesByAsset.put(asset.toUpperCase(), builder.build());
+		}
+		return new PriceHistory(Collections.unmodifiableMap(seriesByAsset), baseCurrency, startDate, endDate);
+	}
+
+	/**
+	 * @param assets - the assets (for example NEO)
+	 * @param baseCurrency - the currency the prices are in
+	 * @return the symbols load reads for the assets
+	 */
+	public static Set<String> getSymbols(Collection<String> assets, String baseCurrency) {
+		Set<String> symbols = new LinkedHashSet<>();
+		for (String asset : assets) {
+			symbols.add(getSymbol(asset, baseCurrency));
+		}
+		return symbols;
+	}
+
+	/**
+	 * The base currency's times come from its tether pair, everything else is priced in the base currency
+	 */
+	private static String getSymbol(String asset, String baseCurrency) {
+		if (asset.equalsIgnoreCase(baseCurrency)) {
+			return (asset + "USDT").toUpperCase();
+		}
+		return (asset + baseCurrency).toUpperCase();
+	}
+
+	/**
+	 * Build the history from price data that has already been loaded
+	 *
+	 * @param dataByAsset - the price data, keyed by asset
+	 * @param baseCurrency - the currency the prices are in
+	 * @param startDate - the start of the range the data covers
+	 * @param endDate - the end of the range the data covers
+	 * @return the history
+	 */
+	public static PriceHistory fromPriceData(Map<String, List<PriceData>> dataByAsset, String baseCurrency,
+											 Date startDate, Date endDate) {
+		Map<String, Series> seriesByAsset = new HashMap<>();
+		for (Map.Entry<String, List<PriceData>> entry : dataByAsset.entrySet()) {
+			seriesByAsset.put(entry.getKey().toUpperCase(), toSeries(entry.getValue()));
+		}
+		return new PriceHistory(Collections.unmodifiableMap(seriesByAsset), baseCurrency, startDate, endDate);
+	}
+
+	private static Series toSeries(List<PriceData> data) {
+		SeriesBuilder builder = new SeriesBuilder();
+		if (data != null) {
+			for (PriceData pd : data) {
+				builder.add(pd.getUpdateTime(), pd.getPrice());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Collects the rows of one asset into growing arrays
+	 */
+	static final class SeriesBuilder {
+		private long[] times = new long[1024];
+		private double[] prices = new double[1024];
+		private int size;
+		private boolean sorted = true;
+
+		void add(Date updateTime, Double price) {
+			if (updateTime == null || price == null) {
+				return;
+			}
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				prices = Arrays.copyOf(prices, size * 2);
+			}
+			long time = updateTime.getTime();
+			if (size > 0 && time < times[size - 1]) {
+				sorted = false;
+			}
+			times[size] = time;
+			prices[size] = price;
+			size++;
+		}
+
+		Series build() {
+			if (!sorted) {
+				sort();
+			}
+			return new Series(Arrays.copyOf(times, size), Arrays.copyOf(prices, size));
+		}
+
+		/**
+		 * The lookups depend on the rows being in time order. The sort is stable so rows with the same time keep
+		 * the order the database gave them.
+		 */
+		private void sort() {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+			long[] sortedTimes = new long[size];
+			double[] sortedPrices = new double[size];
+			for (int i = 0; i < size; i++) {
+				sortedTimes[i] = times[order[i]];
+				sortedPrices[i] = prices[order[i]];
+			}
+			times = sortedTimes;
+			prices = sortedPrices;
+		}
+	}
+
+	/**
+	 * @param asset - the asset (for example NEO)
+	 * @return the series for the asset, or null if it wasn't loaded
+	 */
+	public Series getSeries(String asset) {
+		if (asset == null) {
+			return null;
+		}
+		return seriesByAsset.get(asset.toUpperCase());
+	}
+
+	public Set<String> getAssets() {
+		return seriesByAsset.keySet();
+	}
+
+	public String getBaseCurrency() {
+		return baseCurrency;
+	}
+
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	public Date getEndDate() {
+		return endDate;
+	}
+}
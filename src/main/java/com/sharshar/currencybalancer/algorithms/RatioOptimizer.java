@@ -0,0 +1,38 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.Random;
+
+/**
+ * Comes up with holding ratios to try in a sweep, and learns from how they did. The sweep asks for a batch of
+ * ratios, simulates them all together, then tells the optimizer their scores before asking for more.
+ *
+ * Each set of ratios has one ratio per asset in the simulator's order, and they add up to 1.
+ */
+public interface RatioOptimizer {
+
+	enum Type {
+		// Ratios picked evenly from every possible mix
+		DIRICHLET,
+		// Start the same way, then home in on the best ratios found
+		EVOLUTION;
+
+		public RatioOptimizer create(int numberOfAssets, Random random) {
+			if (this == EVOLUTION) {
+				return new EvolutionStrategyOptimizer(numberOfAssets, random);
+			}
+			return new DirichletSampler(numberOfAssets, 1.0, random);
+		}
+	}
+
+	/**
+	 * @param max - the most ratios to return
+	 * @return the ratios to try next, or none if there's nothing left worth trying
+	 */
+	double[][] ask(int max);
+
+	/**
+	 * @param ratios - ratios returned by ask
+	 * @param scores - how each did, higher is better. NaN if it was dropped before it finished.
+	 */
+	void tell(double[][] ratios, double[] scores);
+}
@@ -0,0 +1,596 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Simulates rebalancing a set of starting assets to a set of ratios over a price history, either at a fixed
+ * interval or with one of the RebalanceStrategy types that watch the drift.
+ * Without an ExecutionModel the trades are free and exact, with one they're filled the way the exchange would.
+ * Everything is kept in arrays indexed by asset so a simulation doesn't create any objects other than its
+ * cursors and result.
+ *
+ * The simulator doesn't change after it's created, so one can be used by many threads at the same time.
+ */
+public class RebalanceSimulator {
+	private static Logger logger = LogManager.getLogger();
+
+	private final String[] assets;
+	private final double[] startingAmounts;
+	private final boolean[] isBase;
+	private final PriceHistory.Series[] series;
+	private final long startTime;
+	private final long endTime;
+	// How trades are filled, or null if they're free and exact
+	private final ExecutionModel execution;
+	private final double[] lotSizes;
+	private final double[] minNotionals;
+	private final int baseIndex;
+
+	public RebalanceSimulator(List<OwnedAsset> startingAssets, PriceHistory history, Date startDate, Date endDate) {
+		this(startingAssets, history, startDate, endDate, null);
+	}
+
+	/**
+	 * @param execution - how trades are filled, or null for free trades of any size at the price. The base currency
+	 *                  has to be one of the starting assets, since it pays for the trades.
+	 */
+	public RebalanceSimulator(List<OwnedAsset> startingAssets, PriceHistory history, Date startDate, Date endDate,
+							  ExecutionModel execution) {
+		int numAssets = startingAssets.size();
+		this.assets = new String[numAssets];
+		this.startingAmounts = new double[numAssets];
+		this.isBase = new boolean[numAssets];
+		this.series = new PriceHistory.Series[numAssets];
+		for (int i = 0; i < numAssets; i++) {
+			OwnedAsset asset = startingAssets.get(i);
+			assets[i] = asset.getAsset();
+			startingAmounts[i] = asset.getFree() + asset.getLocked();
+			isBase[i] = asset.getAsset().equalsIgnoreCase(history.getBaseCurrency());
+			series[i] = history.getSeries(asset.getAsset());
+		}
+		this.startTime = startDate.getTime();
+		this.endTime = endDate.getTime();
+		this.execution = execution;
+		this.lotSizes = new double[numAssets];
+		this.minNotionals = new double[numAssets];
+		int base = -1;
+		for (int i = 0; i < numAssets; i++) {
+			if (isBase[i]) {
+				base = i;
+			}
+			if (execution != null) {
+				lotSizes[i] = execution.getLotSize(assets[i]);
+				minNotionals[i] = execution.getMinNotional(assets[i]);
+			}
+		}
+		this.baseIndex = base;
+		if (execution != null && baseIndex < 0) {
+			throw new IllegalArgumentException(history.getBaseCurrency() + " has to be one of the assets to pay for trades");
+		}
+	}
+
+	public int getNumberOfAssets() {
+		return assets.length;
+	}
+
+	public String getAsset(int index) {
+		return assets[index];
+	}
+
+	/**
+	 * Line the holding ratios up with the assets. Assets without a ratio are NaN, which means they don't count
+	 * towards the total value and are sold off at the first rebalance.
+	 *
+	 * @param ratios - the desired holding ratios
+	 * @return the ratio of each asset
+	 */
+	public double[] toRatios(List<HoldingRatio> ratios) {
+		double[] result = new double[assets.length];
+		for (int i = 0; i < assets.length; i++) {
+			HoldingRatio ratio = HistoricalAnalysis.getHoldingRatio(ratios, assets[i]);
+			result[i] = ratio == null ? Double.NaN : ratio.getPercent();
+		}
+		return result;
+	}
+
+	/**
+	 * Rebalance to the ratios every daysBetween days from the start to the end of the history
+	 *
+	 * @param ratios - the ratio of each asset (see toRatios)
+	 * @param daysBetween - the number of days between each rebalance
+	 * @return the amount of each asset owned at the end
+	 */
+	public double[] simulateEveryDays(double[] ratios, int daysBetween) {
+		return simulate(ratios, daysBetween * HistoricalAnalysis.DAY_MICROSECONDS);
+	}
+
+	/**
+	 * Rebalance to the ratios every interval from the start to the end of the history
+	 *
+	 * @param ratios - the ratio of each asset (see toRatios)
+	 * @param interval - the time between each rebalance in milliseconds
+	 * @return the amount of each asset owned at the end
+	 */
+	public double[] simulate(double[] ratios, long interval) {
+		return simulateAll(new double[][] {ratios}, new long[] {interval})[0][0];
+	}
+
+	/**
+	 * Rebalance every set of ratios at every interval, in one pass through the history. The rebalance times of all
+	 * the intervals are visited in order, and the prices at each time are looked up once and used by every
+	 * simulation that rebalances then, so more ratios or intervals only add arithmetic, not more searching
+	 * through the prices. Each result is exactly what simulate would give for the same ratios and interval.
+	 *
+	 * @param ratios - the ratios to try, each with one ratio per asset (see toRatios)
+	 * @param intervals - the times between rebalances to try, in milliseconds
+	 * @return the amount of each asset owned at the end, by ratios then interval then asset
+	 */
+	public double[][][] simulateAll(double[][] ratios, long[] intervals) {
+		return simulateAll(ratios, intervals, null);
+	}
+
+	/**
+	 * Decides part way through simulateAll which sets of ratios aren't worth finishing
+	 */
+	public interface Pruner {
+		/**
+		 * @return the number of times to check, spread evenly through the history
+		 */
+		int getCheckpoints();
+
+		/**
+		 * @param checkpoint - which check this is, from 0 to getCheckpoints() - 1
+		 * @param values - the value so far of each set of ratios at each interval, at the current prices. Sets
+		 *               of ratios that were already dropped are null.
+		 * @param active - which sets of ratios are still going, set one to false to drop it
+		 */
+		void prune(int checkpoint, double[][] values, boolean[] active);
+	}
+
+	/**
+	 * The same as simulateAll, but checking with the pruner a few times along the way. The sets of ratios it drops
+	 * stop being simulated, and come back as null. The rest come out the same as they would have anyway.
+	 */
+	public double[][][] simulateAll(double[][] ratios, long[] intervals, Pruner pruner) {
+		int numAssets = assets.length;
+		double[][][] amounts = new double[ratios.length][intervals.length][];
+		for (double[][] byInterval : amounts) {
+			for (int j = 0; j < intervals.length; j++) {
+				byInterval[j] = startingAmounts.clone();
+			}
+		}
+		long[] nextTimes = new long[intervals.length];
+		for (int j = 0; j < intervals.length; j++) {
+			if (intervals[j] <= 0) {
+				throw new IllegalArgumentException("The time between rebalances has to be more than 0");
+			}
+			nextTimes[j] = startTime;
+		}
+		boolean[] active = new boolean[ratios.length];
+		Arrays.fill(active, true);
+		int checkpoints = pruner == null ? 0 : pruner.getCheckpoints();
+		int checkpoint = 1;
+		double[] prices = new double[numAssets];
+		// How many times each asset had no price, logged once at the end rather than at every rebalance
+		int[] missing = new int[numAssets];
+		long[] firstMissing = new long[numAssets];
+		PriceCursor[] cursors = new PriceCursor[numAssets];
+		for (int i = 0; i < numAssets; i++) {
+			cursors[i] = new PriceCursor(series[i]);
+		}
+		while (true) {
+			long time = Long.MAX_VALUE;
+			for (long nextTime : nextTimes) {
+				if (nextTime < endTime && nextTime < time) {
+					time = nextTime;
+				}
+			}
+			if (time == Long.MAX_VALUE) {
+				break;
+			}
+			for (int i = 0; i < numAssets; i++) {
+				// The base currency is always worth itself
+				prices[i] = isBase[i] ? 1.0 : cursors[i].priceAtOrAfter(time);
+				if (Double.isNaN(prices[i]) && missing[i]++ == 0) {
+					firstMissing[i] = time;
+				}
+			}
+			if (checkpoint <= checkpoints && time >= startTime + (endTime - startTime) * checkpoint / (checkpoints + 1)) {
+				prune(pruner, checkpoint - 1, amounts, prices, active);
+				while (checkpoint <= checkpoints
+						&& time >= startTime + (endTime - startTime) * checkpoint / (checkpoints + 1)) {
+					checkpoint++;
+				}
+			}
+			for (int j = 0; j < intervals.length; j++) {
+				if (nextTimes[j] != time) {
+					continue;
+				}
+				for (int k = 0; k < ratios.length; k++) {
+					if (active[k]) {
+						rebalance(amounts[k][j], ratios[k], prices, null);
+					}
+				}
+				nextTimes[j] += intervals[j];
+			}
+		}
+		logMissing(missing, firstMissing);
+		for (int k = 0; k < ratios.length; k++) {
+			if (!active[k]) {
+				amounts[k] = null;
+			}
+		}
+		return amounts;
+	}
+
+	/**
+	 * Log the assets that had no price at some of the times they were needed, all in one line
+	 */
+	private void logMissing(int[] missing, long[] firstMissing) {
+		StringBuilder message = null;
+		for (int i = 0; i < missing.length; i++) {
+			if (missing[i] == 0) {
+				continue;
+			}
+			message = message == null ? new StringBuilder("No price for ") : message.append(", ");
+			message.append(assets[i]).append(" ").append(missing[i]).append(missing[i] == 1 ? " time" : " times")
+					.append(" from ").append(new Date(firstMissing[i]));
+		}
+		if (message != null) {
+			logger.error(message.toString());
+		}
+	}
+
+	private static void prune(Pruner pruner, int checkpoint, double[][][] amounts, double[] prices, boolean[] active) {
+		double[][] values = new double[amounts.length][];
+		for (int k = 0; k < amounts.length; k++) {
+			if (active[k]) {
+				values[k] = new double[amounts[k].length];
+				for (int j = 0; j < values[k].length; j++) {
+					values[k][j] = getTotalValue(amounts[k][j], prices);
+				}
+			}
+		}
+		pruner.prune(checkpoint, values, active);
+	}
+
+	/**
+	 * Rebalance every set of ratios every 1 to maxDaysBetween days, in one pass through the history
+	 *
+	 * @param ratios - the ratios to try, each with one ratio per asset (see toRatios)
+	 * @param maxDaysBetween - the most days between rebalances to try
+	 * @return the amount of each asset owned at the end, by ratios then days between - 1 then asset
+	 */
+	public double[][][] simulateAll(double[][] ratios, int maxDaysBetween) {
+		return simulateAll(ratios, maxDaysBetween, null);
+	}
+
+	/**
+	 * The same as simulateAll for days, checking with the pruner along the way
+	 */
+	public double[][][] simulateAll(double[][] ratios, int maxDaysBetween, Pruner pruner) {
+		long[] intervals = new long[maxDaysBetween];
+		for (int j = 0; j < maxDaysBetween; j++) {
+			intervals[j] = (j + 1) * HistoricalAnalysis.DAY_MICROSECONDS;
+		}
+		return simulateAll(ratios, intervals, pruner);
+	}
+
+	/**
+	 * Rebalance every set of ratios with every strategy, in one pass through the history. Every strategy starts by
+	 * rebalancing at the start, the same as simulate.
+	 *
+	 * The ones that watch the drift (THRESHOLD and BAND) see every price as it comes in, and keep a DriftTracker
+	 * for each set of ratios so checking after each change takes constant time. The scheduled ones (INTERVAL and
+	 * HYBRID) rebalance at the first price at or after each time, the same as simulate, so an INTERVAL strategy
+	 * gives exactly what simulate does for the same interval.
+	 *
+	 * @param ratios - the ratios to try, each with one ratio per asset (see toRatios)
+	 * @param strategies - the strategies to try
+	 * @param rebalances - filled in with the number of times each set of ratios was rebalanced with each strategy,
+	 *                   by ratios then strategy, or null if it isn't needed
+	 * @return the amount of each asset owned at the end, by ratios then strategy then asset
+	 */
+	public double[][][] simulateStrategies(double[][] ratios, RebalanceStrategy[] strategies, int[][] rebalances) {
+		int numAssets = assets.length;
+		double[][][] amounts = new double[ratios.length][strategies.length][];
+		int[][] counts = rebalances == null ? new int[ratios.length][strategies.length] : rebalances;
+
+		// Start off where each series is at the start. The base currency doesn't need one.
+		int[] indexes = new int[numAssets];
+		int[] sizes = new int[numAssets];
+		double[] prices = new double[numAssets];
+		int[] missing = new int[numAssets];
+		long[] firstMissing = new long[numAssets];
+		for (int i = 0; i < numAssets; i++) {
+			if (isBase[i]) {
+				prices[i] = 1.0;
+			} else if (series[i] == null) {
+				prices[i] = Double.NaN;
+			} else {
+				sizes[i] = series[i].size();
+				indexes[i] = series[i].indexAtOrAfter(startTime, 0);
+				prices[i] = indexes[i] < sizes[i] ? series[i].getPrice(indexes[i]++) : Double.NaN;
+			}
+			if (Double.isNaN(prices[i]) && missing[i]++ == 0) {
+				firstMissing[i] = startTime;
+			}
+		}
+		long[] nextTimes = new long[strategies.length];
+		DriftTracker[][] trackers = new DriftTracker[ratios.length][strategies.length];
+		for (int s = 0; s < strategies.length; s++) {
+			nextTimes[s] = strategies[s].isScheduled() ? startTime + strategies[s].getInterval() : Long.MAX_VALUE;
+			for (int k = 0; k < ratios.length; k++) {
+				amounts[k][s] = startingAmounts.clone();
+				rebalance(amounts[k][s], ratios[k], prices, null);
+				counts[k][s]++;
+				if (!strategies[s].isScheduled()) {
+					trackers[k][s] = new DriftTracker(ratios[k]);
+					trackers[k][s].load(amounts[k][s], prices);
+				}
+			}
+		}
+
+		double[] scheduledPrices = new double[numAssets];
+		PriceCursor[] cursors = new PriceCursor[numAssets];
+		for (int i = 0; i < numAssets; i++) {
+			cursors[i] = new PriceCursor(series[i]);
+		}
+		boolean[] outside = new boolean[numAssets];
+		while (true) {
+			long tickTime = Long.MAX_VALUE;
+			for (int i = 0; i < numAssets; i++) {
+				if (indexes[i] < sizes[i]) {
+					tickTime = Math.min(tickTime, series[i].getTime(indexes[i]));
+				}
+			}
+			long scheduledTime = Long.MAX_VALUE;
+			for (long nextTime : nextTimes) {
+				scheduledTime = Math.min(scheduledTime, nextTime);
+			}
+			long time = Math.min(tickTime, scheduledTime);
+			if (time >= endTime) {
+				break;
+			}
+
+			if (scheduledTime == time) {
+				for (int i = 0; i < numAssets; i++) {
+					scheduledPrices[i] = isBase[i] ? 1.0 : cursors[i].priceAtOrAfter(time);
+					if (Double.isNaN(scheduledPrices[i]) && missing[i]++ == 0) {
+						firstMissing[i] = time;
+					}
+				}
+				for (int s = 0; s < strategies.length; s++) {
+					if (nextTimes[s] != time) {
+						continue;
+					}
+					RebalanceStrategy strategy = strategies[s];
+					for (int k = 0; k < ratios.length; k++) {
+						if (strategy.getType() == RebalanceStrategy.Type.HYBRID) {
+							// Only checked now, so there's no need to keep it up to date in between
+							DriftTracker tracker = new DriftTracker(ratios[k]);
+							tracker.load(amounts[k][s], scheduledPrices);
+							if (!tracker.shouldBalance(strategy.getMinDrift(), strategy.getMinSingleDrift())) {
+								continue;
+							}
+						}
+						rebalance(amounts[k][s], ratios[k], scheduledPrices, null);
+						counts[k][s]++;
+					}
+					nextTimes[s] += strategy.getInterval();
+				}
+				continue;
+			}
+
+			// Every price that came in at this time, then see if it's drifted far enough
+			for (int i = 0; i < numAssets; i++) {
+				if (indexes[i] >= sizes[i] || series[i].getTime(indexes[i]) != time) {
+					continue;
+				}
+				prices[i] = series[i].getPrice(indexes[i]++);
+				for (int k = 0; k < ratios.length; k++) {
+					for (int s = 0; s < strategies.length; s++) {
+						if (trackers[k][s] != null) {
+							trackers[k][s].setPrice(i, prices[i]);
+						}
+					}
+				}
+			}
+			for (int s = 0; s < strategies.length; s++) {
+				RebalanceStrategy strategy = strategies[s];
+				if (strategy.isScheduled()) {
+					continue;
+				}
+				for (int k = 0; k < ratios.length; k++) {
+					DriftTracker tracker = trackers[k][s];
+					if (strategy.getType() == RebalanceStrategy.Type.BAND) {
+						if (!tracker.ifMaxDriftExceededOnAnyCurrency(strategy.getMinSingleDrift())) {
+							continue;
+						}
+						findOutsideBand(amounts[k][s], ratios[k], prices, strategy.getMinSingleDrift(), outside);
+						rebalance(amounts[k][s], ratios[k], prices, outside);
+					} else {
+						if (!tracker.shouldBalance(strategy.getMinDrift(), strategy.getMinSingleDrift())) {
+							continue;
+						}
+						rebalance(amounts[k][s], ratios[k], prices, null);
+					}
+					counts[k][s]++;
+					tracker.load(amounts[k][s], prices);
+				}
+			}
+		}
+		logMissing(missing, firstMissing);
+		return amounts;
+	}
+
+	/**
+	 * Rebalance the way simulateAll does, through the execution model if there is one
+	 *
+	 * @param only - the assets to trade, or null for all of them
+	 */
+	private void rebalance(double[] amounts, double[] ratios, double[] prices, boolean[] only) {
+		if (execution != null) {
+			trade(amounts, ratios, prices, only);
+		} else if (only == null) {
+			rebalance(amounts, ratios, prices);
+		} else {
+			rebalanceBand(amounts, ratios, prices, only);
+		}
+	}
+
+	/**
+	 * Mark the assets that drifted more than the band. Assets we don't want any of are always outside it.
+	 */
+	private static void findOutsideBand(double[] amounts, double[] ratios, double[] prices, double band,
+										boolean[] outside) {
+		int numAssets = amounts.length;
+		double totalValue = 0;
+		for (int i = 0; i < numAssets; i++) {
+			if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+			}
+		}
+		for (int i = 0; i < numAssets; i++) {
+			if (Double.isNaN(prices[i])) {
+				outside[i] = false;
+			} else if (Double.isNaN(ratios[i])) {
+				outside[i] = amounts[i] != 0.0;
+			} else {
+				double value = amounts[i] * prices[i];
+				outside[i] = value == 0.0 ? ratios[i] > 0 : Math.abs(ratios[i] * totalValue / value - 1) > band;
+			}
+		}
+	}
+
+	/**
+	 * Trade the assets outside the band to their ratios, and share what that frees up (or costs) out among the rest
+	 * by how much of each we have, so their ratios to each other don't change
+	 */
+	private static void rebalanceBand(double[] amounts, double[] ratios, double[] prices, boolean[] outside) {
+		int numAssets = amounts.length;
+		double totalValue = 0;
+		double insideValue = 0;
+		for (int i = 0; i < numAssets; i++) {
+			if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+				if (!outside[i]) {
+					insideValue += amounts[i] * prices[i];
+				}
+			}
+		}
+		double outsideValue = 0;
+		for (int i = 0; i < numAssets; i++) {
+			if (outside[i]) {
+				double desiredRatio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+				amounts[i] = desiredRatio * totalValue / prices[i];
+				outsideValue += amounts[i] * prices[i];
+			}
+		}
+		if (insideValue <= 0) {
+			return;
+		}
+		double scale = (totalValue - outsideValue) / insideValue;
+		for (int i = 0; i < numAssets; i++) {
+			if (!outside[i] && !Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				amounts[i] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * Trade the amounts to the ratios at the prices. Assets without a price are left alone.
+	 */
+	private static void rebalance(double[] amounts, double[] ratios, double[] prices) {
+		int numAssets = amounts.length;
+		// Only the assets we manage count towards the total value
+		double totalValue = 0;
+		for (int i = 0; i < numAssets; i++) {
+			if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+			}
+		}
+		for (int i = 0; i < numAssets; i++) {
+			if (Double.isNaN(prices[i])) {
+				continue;
+			}
+			double desiredRatio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+			double totalOwnedValue = amounts[i] * prices[i];
+			double totalDesiredValue = desiredRatio * totalValue;
+			amounts[i] += (totalDesiredValue - totalOwnedValue) / prices[i];
+		}
+	}
+
+	/**
+	 * Trade towards the ratios the way the exchange would fill the orders, using the execution model. Each asset
+	 * is bought or sold against the base currency, which ends up with whatever is left over. The sells go first so
+	 * the buys have the base currency to pay with, and a buy that costs more than there is is cut down.
+	 *
+	 * @param only - the assets to trade, or null for all of them
+	 */
+	private void trade(double[] amounts, double[] ratios, double[] prices, boolean[] only) {
+		int numAssets = amounts.length;
+		double totalValue = 0;
+		for (int i = 0; i < numAssets; i++) {
+			if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+			}
+		}
+		double fee = execution.getTakerFee();
+		for (int pass = 0; pass < 2; pass++) {
+			boolean selling = pass == 0;
+			for (int i = 0; i < numAssets; i++) {
+				if (i == baseIndex || Double.isNaN(prices[i]) || (only != null && !only[i])) {
+					continue;
+				}
+				double desiredRatio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+				double adjustment = (desiredRatio * totalValue - amounts[i] * prices[i]) / prices[i];
+				if (selling != adjustment < 0) {
+					continue;
+				}
+				adjustment = ExecutionModel.roundToLot(adjustment, lotSizes[i]);
+				double notional = Math.abs(adjustment) * prices[i];
+				if (Math.abs(adjustment) <= PortfolioKernel.MIN_ADJUSTMENT || notional < minNotionals[i]) {
+					continue;
+				}
+				double slippage = execution.getSlippage(notional);
+				if (selling) {
+					amounts[i] += adjustment;
+					amounts[baseIndex] += notional * (1 - slippage) * (1 - fee);
+					continue;
+				}
+				double unitCost = prices[i] * (1 + slippage) * (1 + fee);
+				if (adjustment * unitCost > amounts[baseIndex]) {
+					adjustment = ExecutionModel.roundToLot(Math.max(0, amounts[baseIndex]) / unitCost, lotSizes[i]);
+					if (adjustment <= PortfolioKernel.MIN_ADJUSTMENT || adjustment * prices[i] < minNotionals[i]) {
+						continue;
+					}
+				}
+				amounts[i] += adjustment;
+				amounts[baseIndex] -= adjustment * unitCost;
+			}
+		}
+	}
+
+	/**
+	 * @param amounts - the amount of each asset
+	 * @param prices - the price of each asset in the base currency
+	 * @return the total value, skipping assets without a price
+	 */
+	public static double getTotalValue(double[] amounts, double[] prices) {
+		double total = 0;
+		for (int i = 0; i < amounts.length; i++) {
+			if (!Double.isNaN(prices[i])) {
+				total += amounts[i] * prices[i];
+			}
+		}
+		return total;
+	}
+}
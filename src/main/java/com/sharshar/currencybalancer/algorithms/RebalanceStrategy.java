@@ -0,0 +1,103 @@
+package com.sharshar.currencybalancer.algorithms;
+
+/**
+ * When to rebalance in a backtest, and how much of the portfolio to trade when we do:
+ *
+ * - INTERVAL: everything, at a fixed interval, whatever the drift
+ * - THRESHOLD: everything, as soon as the prices make shouldBalance(minDrift, minSingleDrift) true, the same test
+ *   the live balancer uses
+ * - BAND: only the assets that drifted more than minSingleDrift, as soon as one does. The rest keep their share of
+ *   what's left, so it trades less but never quite gets back to the ratios.
+ * - HYBRID: everything, at a fixed interval, but only if shouldBalance(minDrift, minSingleDrift) is true then
+ *
+ * A drift of 0 is ignored, the same as in CurrencyBalancer.shouldBalance.
+ */
+public class RebalanceStrategy {
+	public enum Type {
+		INTERVAL, THRESHOLD, BAND, HYBRID
+	}
+
+	private final Type type;
+	private final long interval;
+	private final double minDrift;
+	private final double minSingleDrift;
+
+	private RebalanceStrategy(Type type, long interval, double minDrift, double minSingleDrift) {
+		if ((type == Type.INTERVAL || type == Type.HYBRID) && interval <= 0) {
+			throw new IllegalArgumentException("The time between rebalances has to be more than 0");
+		}
+		if (type == Type.BAND && minSingleDrift <= 0) {
+			throw new IllegalArgumentException("The band has to be wider than 0");
+		}
+		this.type = type;
+		this.interval = interval;
+		this.minDrift = minDrift;
+		this.minSingleDrift = minSingleDrift;
+	}
+
+	/**
+	 * @param interval - the time between rebalances in milliseconds
+	 */
+	public static RebalanceStrategy interval(long interval) {
+		return new RebalanceStrategy(Type.INTERVAL, interval, 0, 0);
+	}
+
+	public static RebalanceStrategy threshold(double minDrift, double minSingleDrift) {
+		return new RebalanceStrategy(Type.THRESHOLD, 0, minDrift, minSingleDrift);
+	}
+
+	/**
+	 * @param band - how far one asset can drift before it's traded back to its ratio
+	 */
+	public static RebalanceStrategy band(double band) {
+		return new RebalanceStrategy(Type.BAND, 0, 0, band);
+	}
+
+	/**
+	 * @param interval - the time between checks of the drift in milliseconds
+	 */
+	public static RebalanceStrategy hybrid(long interval, double minDrift, double minSingleDrift) {
+		return new RebalanceStrategy(Type.HYBRID, interval, minDrift, minSingleDrift);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the time between rebalances (or checks of the drift) in milliseconds, 0 if it's only the drift
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public double getMinDrift() {
+		return minDrift;
+	}
+
+	public double getMinSingleDrift() {
+		return minSingleDrift;
+	}
+
+	/**
+	 * @return true if it rebalances at the times it's scheduled to instead of whenever the prices change
+	 */
+	public boolean isScheduled() {
+		return type == Type.INTERVAL || type == Type.HYBRID;
+	}
+
+	@Override
+	public String toString() {
+		switch (type) {
+			case INTERVAL:
+				return "every " + interval / 1000 / 60 + " minutes";
+			case THRESHOLD:
+				return "drift over " + minDrift + " or single drift over " + minSingleDrift;
+			case BAND:
+				return "single drift over " + minSingleDrift + ", just that asset";
+			default:
+				return "every " + interval / 1000 / 60 + " minutes if drift over " + minDrift
+						+ " or single drift over " + minSingleDrift;
+		}
+	}
+}
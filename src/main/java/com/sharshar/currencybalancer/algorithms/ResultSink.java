@@ -0,0 +1,13 @@
+package com.sharshar.currencybalancer.algorithms;
+
+/**
+ * Somewhere for the results of a sweep to go as they're worked out, so they don't all have to be kept. A sink
+ * only sees the results one at a time, on the thread that runs the sweep, in the order the trials were tried.
+ */
+public interface ResultSink {
+	/**
+	 * @param result - one set of ratios at one rebalance frequency. The same object is reused for the next
+	 *               result, so copy anything that needs to be kept.
+	 */
+	void accept(SweepEngine.TrialResult result);
+}
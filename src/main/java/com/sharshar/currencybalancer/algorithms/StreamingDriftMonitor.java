@@ -0,0 +1,278 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.services.LatestPriceTable;
+import com.sharshar.currencybalancer.services.PriceStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the drift of our holdings up to date as prices stream in, so we can tell if we should balance at any
+ * moment without asking the exchange. Only prices of assets we hold are streamed, and each price change is a
+ * constant time update to a DriftTracker.
+ *
+ * Turned on with prices.stream.enabled.
+ *
+ * If we haven't heard a price for one of the assets in prices.stream.maxAge milliseconds, the stream may have
+ * stopped sending it, so shouldBalance asks the balancer instead, which goes through the shared price feed.
+ *
+ * It listens to the balancer, so the holdings are updated after every trade or reload of the balances, and the
+ * stream is started again on the new symbols when the ratios change.
+ */
+@Service
+public class StreamingDriftMonitor implements PriceStream.PriceListener {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private CurrencyBalancer balancer;
+
+	@Autowired
+	private PriceStream priceStream;
+
+	@Value("${prices.stream.enabled:false}")
+	private boolean enabled;
+
+	// The longest to go without a price for an asset before we stop trusting the streamed drift, in milliseconds
+	@Value("${prices.stream.maxAge:300000}")
+	private long maxAge = 300000;
+
+	private final Consumer<BalancerState> stateListener = this::onStateChange;
+	private PortfolioKernel kernel;
+	private List<HoldingRatio> ratios;
+	private LatestPriceTable priceTable;
+	private DriftTracker tracker;
+	private long updateTime;
+	// When we last got a price for each asset, by our clock rather than the exchange's
+	private long[] receivedAt;
+
+	/**
+	 * The drift as of the last price change
+	 */
+	public static class DriftReading {
+		private final double driftPercent;
+		private final double maxSingleDrift;
+		private final long updateTime;
+		private final boolean complete;
+
+		DriftReading(double driftPercent, double maxSingleDrift, long updateTime, boolean complete) {
+			this.driftPercent = driftPercent;
+			this.maxSingleDrift = maxSingleDrift;
+			this.updateTime = updateTime;
+			this.complete = complete;
+		}
+
+		public double getDriftPercent() {
+			return driftPercent;
+		}
+
+		// The largest drift of any one asset, in either direction
+		public double getMaxSingleDrift() {
+			return maxSingleDrift;
+		}
+
+		public long getUpdateTime() {
+			return updateTime;
+		}
+
+		// False until we have a price for every asset
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+
+	public StreamingDriftMonitor() {
+	}
+
+	public StreamingDriftMonitor(PriceStream priceStream) {
+		this.priceStream = priceStream;
+	}
+
+	public StreamingDriftMonitor setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+		return this;
+	}
+
+	@PostConstruct
+	public void startIfEnabled() {
+		if (enabled) {
+			// The ratios, holdings and prices from the same moment
+			BalancerState state = balancer.getState();
+			start(state.getRatios(), state.getOwnedAssets(), state.getPrices());
+			balancer.addListener(stateListener);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (balancer != null) {
+			balancer.removeListener(stateListener);
+		}
+		if (kernel != null) {
+			priceStream.close();
+		}
+	}
+
+	/**
+	 * @return true once we're following the drift
+	 */
+	public synchronized boolean isStarted() {
+		return kernel != null;
+	}
+
+	/**
+	 * The balancer's ratios or holdings changed. New holdings are a constant time update for each asset, new ratios
+	 * mean following different symbols, so the stream is started again.
+	 */
+	public synchronized void onStateChange(BalancerState state) {
+		if (kernel == null) {
+			return;
+		}
+		if (sameRatios(ratios, state.getRatios())) {
+			updateOwnedAssets(state.getOwnedAssets());
+			return;
+		}
+		logger.info("The ratios changed, following the drift again");
+		priceStream.close();
+		start(state.getRatios(), state.getOwnedAssets(), state.getPrices());
+	}
+
+	private static boolean sameRatios(List<HoldingRatio> ratios, List<HoldingRatio> newRatios) {
+		if (ratios == newRatios) {
+			return true;
+		}
+		if (ratios.size() != newRatios.size()) {
+			return false;
+		}
+		for (int i = 0; i < ratios.size(); i++) {
+			HoldingRatio ratio = ratios.get(i);
+			HoldingRatio newRatio = newRatios.get(i);
+			if (!ratio.getTicker().equalsIgnoreCase(newRatio.getTicker()) || ratio.getPercent() != newRatio.getPercent()
+					|| ratio.canDoFraction() != newRatio.canDoFraction()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start following the prices of the assets in the ratios
+	 *
+	 * @param ratios - the desired holding ratios
+	 * @param ownedAssets - what we own now
+	 * @param initialPrices - the prices to use until the stream sends new ones, can be null
+	 */
+	public synchronized void start(List<HoldingRatio> ratios, List<OwnedAsset> ownedAssets, PriceSnapshot initialPrices) {
+		this.ratios = ratios;
+		kernel = new PortfolioKernel(ratios, "BTC");
+		int size = kernel.size();
+		List<String> symbols = new ArrayList<>();
+		List<String> streamedSymbols = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			symbols.add(kernel.getSymbol(i));
+			if (!kernel.isBaseCurrency(i)) {
+				streamedSymbols.add(kernel.getSymbol(i));
+			}
+		}
+		// The table is in the same order as the kernel, so they share indexes
+		priceTable = new LatestPriceTable(symbols);
+		double[] amounts = new double[size];
+		double[] prices = new double[size];
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(initialPrices == null ? PriceSnapshot.empty() : initialPrices, prices);
+		for (int i = 0; i < size; i++) {
+			priceTable.update(i, prices[i], 0);
+		}
+		tracker = new DriftTracker(kernel);
+		tracker.load(amounts, prices);
+		updateTime = System.currentTimeMillis();
+		receivedAt = new long[size];
+		Arrays.fill(receivedAt, updateTime);
+		logger.info("Following the drift of " + symbols);
+		priceStream.subscribe(streamedSymbols, this);
+	}
+
+	@Override
+	public void onPrice(String symbol, double price, long time) {
+		LatestPriceTable table = priceTable;
+		if (table == null) {
+			return;
+		}
+		int index = table.indexOf(symbol);
+		if (index < 0 || !table.update(index, price, time)) {
+			return;
+		}
+		synchronized (this) {
+			tracker.setPrice(index, table.getPrice(index));
+			updateTime = time;
+			receivedAt[index] = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Our balances changed, for example after a trade
+	 */
+	public synchronized void updateOwnedAssets(List<OwnedAsset> ownedAssets) {
+		if (kernel == null) {
+			return;
+		}
+		double[] amounts = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, amounts);
+		for (int i = 0; i < amounts.length; i++) {
+			tracker.setAmount(i, amounts[i]);
+		}
+		updateTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the drift as of the last price change, or null if we haven't started
+	 */
+	public synchronized DriftReading getReading() {
+		if (tracker == null) {
+			return null;
+		}
+		return new DriftReading(tracker.getDriftPercent(), tracker.getMaxSingleDrift(), updateTime,
+				tracker.isComplete());
+	}
+
+	/**
+	 * The same test as CurrencyBalancer.shouldBalance, using the streamed drift. If a streamed price is older than
+	 * prices.stream.maxAge, the balancer's answer, or false if there isn't a balancer.
+	 */
+	public boolean shouldBalance(double minDrift, double minSingleDrift) {
+		synchronized (this) {
+			if (tracker == null || !tracker.isComplete()) {
+				return false;
+			}
+			if (!isStale()) {
+				return tracker.shouldBalance(minDrift, minSingleDrift);
+			}
+		}
+		// Outside the lock, so prices keep streaming in while the feed goes to the exchange
+		return balancer != null && balancer.getState().shouldBalance(minDrift, minSingleDrift);
+	}
+
+	/**
+	 * @return true if we haven't had a price for one of the streamed assets in prices.stream.maxAge
+	 */
+	private boolean isStale() {
+		long oldest = System.currentTimeMillis() - maxAge;
+		for (int i = 0; i < receivedAt.length; i++) {
+			if (!kernel.isBaseCurrency(i) && receivedAt[i] < oldest) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
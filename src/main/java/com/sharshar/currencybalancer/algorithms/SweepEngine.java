@@ -0,0 +1,330 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Searches for good holding ratios by trying the ones a RatioOptimizer picks, each at every rebalance frequency, and
+ * keeping the best. The trials are split up across a fork join pool, and each task simulates its trials at every
+ * frequency in one pass through the prices. Every trial reads the same simulator and prices, which don't change.
+ *
+ * The results are handed to the leaderboard, which keeps the best few, and to any other sinks one at a time, so
+ * memory doesn't grow with the number of trials.
+ */
+public class SweepEngine {
+
+	// Don't split the trials up any smaller than this. The trials in a task are simulated together.
+	private static final int TRIALS_PER_TASK = 16;
+	// The most ratios to ask the optimizer for at once
+	private static final int BATCH_SIZE = 256;
+
+	private final ForkJoinPool pool;
+	private final RebalanceSimulator simulator;
+	private List<OwnedAsset> initialAssets = new ArrayList<>();
+	private List<HoldingRatio> currentRatios = new ArrayList<>();
+	private double[] finalPrices;
+	private double initialAmountBitcoin;
+	private double usdPrice;
+	private Date startDate;
+	private Date endDate;
+	private int maxDaysBetween = 30;
+	private Long seed;
+	private RatioOptimizer optimizer;
+	private RebalanceSimulator.Pruner pruner;
+	private int pruned;
+	private final List<ResultSink> sinks = new ArrayList<>();
+
+	/**
+	 * Keeps the best results seen so far, by the amount of bitcoin at the end. Only the results good enough to
+	 * keep are turned into AnalysisResults, and there are never more than size of them.
+	 */
+	public static class Leaderboard implements ResultSink {
+		private final int size;
+		private final PriorityQueue<HistoricalAnalysis.AnalysisResult> best;
+
+		public Leaderboard(int size) {
+			this.size = size;
+			this.best = new PriorityQueue<>(Math.max(1, size),
+					Comparator.comparingDouble(HistoricalAnalysis.AnalysisResult::getAmountBitcoin));
+		}
+
+		/**
+		 * @param amountBitcoin - the amount of bitcoin a result ended with
+		 * @return true if a result with that amount would make it on the board
+		 */
+		public boolean accepts(double amountBitcoin) {
+			return size > 0 && (best.size() < size || amountBitcoin > best.peek().getAmountBitcoin());
+		}
+
+		public void offer(HistoricalAnalysis.AnalysisResult result) {
+			if (!accepts(result.getAmountBitcoin())) {
+				return;
+			}
+			if (best.size() >= size) {
+				best.poll();
+			}
+			best.add(result);
+		}
+
+		@Override
+		public void accept(TrialResult result) {
+			if (accepts(result.getAmountBitcoin())) {
+				offer(result.toAnalysisResult());
+			}
+		}
+
+		/**
+		 * @return the results, best first
+		 */
+		public List<HistoricalAnalysis.AnalysisResult> getResults() {
+			List<HistoricalAnalysis.AnalysisResult> results = new ArrayList<>(best);
+			results.sort(Comparator.comparingDouble(HistoricalAnalysis.AnalysisResult::getAmountBitcoin).reversed());
+			return results;
+		}
+	}
+
+	/**
+	 * One result of the sweep: a set of ratios at one rebalance frequency, as the sinks see it. The same one is
+	 * reused for every result.
+	 */
+	public final class TrialResult {
+		private int trial;
+		private double[] ratios;
+		private int daysBetween;
+		private double[] finalAmounts;
+		private double amountBitcoin;
+
+		private void set(int trial, double[] ratios, int daysBetween, double[] finalAmounts, double amountBitcoin) {
+			this.trial = trial;
+			this.ratios = ratios;
+			this.daysBetween = daysBetween;
+			this.finalAmounts = finalAmounts;
+			this.amountBitcoin = amountBitcoin;
+		}
+
+		// Which set of ratios this is, counting from 0 in the order they were tried
+		public int getTrial() {
+			return trial;
+		}
+
+		public int getNumberOfAssets() {
+			return ratios.length;
+		}
+
+		public String getAsset(int index) {
+			return simulator.getAsset(index);
+		}
+
+		public double getRatio(int index) {
+			return ratios[index];
+		}
+
+		public int getDaysBetween() {
+			return daysBetween;
+		}
+
+		public double getFinalAmount(int index) {
+			return finalAmounts[index];
+		}
+
+		public double getAmountBitcoin() {
+			return amountBitcoin;
+		}
+
+		public double getInitialAmountBitcoin() {
+			return initialAmountBitcoin;
+		}
+
+		/**
+		 * @return a copy of the result that can be kept
+		 */
+		public HistoricalAnalysis.AnalysisResult toAnalysisResult() {
+			return new HistoricalAnalysis.AnalysisResult()
+					.setHoldingRatios(HistoricalAnalysis.toHoldingRatios(simulator, ratios, currentRatios))
+					.setDaysBetween(daysBetween)
+					.setStartDate(startDate)
+					.setEndDate(endDate)
+					.setFinalOwnedAssets(HistoricalAnalysis.toOwnedAssets(simulator, finalAmounts))
+					.setAmountBitcoin(amountBitcoin)
+					.setAmountUsd(usdPrice * amountBitcoin)
+					.setInitialOwnedAssets(initialAssets)
+					.setInitialAmountBitcoin(initialAmountBitcoin);
+		}
+	}
+
+	public SweepEngine(ForkJoinPool pool, RebalanceSimulator simulator) {
+		this.pool = pool;
+		this.simulator = simulator;
+	}
+
+	public SweepEngine setInitialAssets(List<OwnedAsset> initialAssets) {
+		this.initialAssets = initialAssets;
+		return this;
+	}
+
+	/**
+	 * @param currentRatios - the ratios we're using now, only used to know which assets can be traded in fractions
+	 */
+	public SweepEngine setCurrentRatios(List<HoldingRatio> currentRatios) {
+		this.currentRatios = currentRatios;
+		return this;
+	}
+
+	/**
+	 * @param finalPrices - the price in bitcoin of each asset (in the simulator's order) to value the results at
+	 */
+	public SweepEngine setFinalPrices(double[] finalPrices) {
+		this.finalPrices = finalPrices;
+		return this;
+	}
+
+	public SweepEngine setInitialAmountBitcoin(double initialAmountBitcoin) {
+		this.initialAmountBitcoin = initialAmountBitcoin;
+		return this;
+	}
+
+	public SweepEngine setUsdPrice(double usdPrice) {
+		this.usdPrice = usdPrice;
+		return this;
+	}
+
+	public SweepEngine setDates(Date startDate, Date endDate) {
+		this.startDate = startDate;
+		this.endDate = endDate;
+		return this;
+	}
+
+	public SweepEngine setMaxDaysBetween(int maxDaysBetween) {
+		this.maxDaysBetween = maxDaysBetween;
+		return this;
+	}
+
+	/**
+	 * @param seed - if set, the default optimizer is seeded from this, so a sweep can be repeated exactly no
+	 *             matter how the trials end up spread across threads. Pruners that share a leader between tasks,
+	 *             like DominancePruner, can still make it come out differently.
+	 */
+	public SweepEngine setSeed(Long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * @param optimizer - picks the ratios to try. Evenly spread random ratios if not set.
+	 */
+	public SweepEngine setOptimizer(RatioOptimizer optimizer) {
+		this.optimizer = optimizer;
+		return this;
+	}
+
+	/**
+	 * @param pruner - drops ratios part way through their simulation if they aren't worth finishing, or null to
+	 *               finish them all. Every task checks with this one from its own thread.
+	 */
+	public SweepEngine setPruner(RebalanceSimulator.Pruner pruner) {
+		this.pruner = pruner;
+		return this;
+	}
+
+	/**
+	 * @param sink - also send every result here, not just the best ones
+	 */
+	public SweepEngine addSink(ResultSink sink) {
+		sinks.add(sink);
+		return this;
+	}
+
+	/**
+	 * @return the number of ratios dropped part way through by the pruner in the last run
+	 */
+	public int getPruned() {
+		return pruned;
+	}
+
+	/**
+	 * Run the sweep. The optimizer is asked for ratios a batch at a time, and each batch is split up across the
+	 * pool and then scored by the best result of each set of ratios, before asking for the next one. The sweep
+	 * stops early if the optimizer runs out of ratios worth trying.
+	 *
+	 * @param numberOfTries - the most ratios to try
+	 * @param numberToKeep - the number of best results to keep
+	 * @return the best results, best first
+	 */
+	public List<HistoricalAnalysis.AnalysisResult> run(int numberOfTries, int numberToKeep) {
+		if (finalPrices == null || finalPrices.length != simulator.getNumberOfAssets()) {
+			throw new IllegalStateException("There needs to be a final price for each asset");
+		}
+		RatioOptimizer ratioOptimizer = optimizer != null ? optimizer
+				: new DirichletSampler(simulator.getNumberOfAssets(), 1.0, seed == null ? new Random() : new Random(seed));
+		Leaderboard leaderboard = new Leaderboard(numberToKeep);
+		TrialResult result = new TrialResult();
+		pruned = 0;
+		int tried = 0;
+		while (tried < numberOfTries) {
+			double[][] batch = ratioOptimizer.ask(Math.min(BATCH_SIZE, numberOfTries - tried));
+			if (batch.length == 0) {
+				break;
+			}
+			double[][][] amounts = new double[batch.length][][];
+			pool.invoke(new TrialTask(batch, amounts, 0, batch.length));
+			// Only the batch is ever held, the sinks decide what to keep of it
+			double[] scores = new double[batch.length];
+			for (int k = 0; k < batch.length; k++) {
+				scores[k] = Double.NaN;
+				if (amounts[k] == null) {
+					pruned++;
+					continue;
+				}
+				for (int daysBetween = 1; daysBetween <= maxDaysBetween; daysBetween++) {
+					double[] finalAmounts = amounts[k][daysBetween - 1];
+					double totalBitcoins = RebalanceSimulator.getTotalValue(finalAmounts, finalPrices);
+					if (Double.isNaN(scores[k]) || totalBitcoins > scores[k]) {
+						scores[k] = totalBitcoins;
+					}
+					result.set(tried + k, batch[k], daysBetween, finalAmounts, totalBitcoins);
+					leaderboard.accept(result);
+					for (ResultSink sink : sinks) {
+						sink.accept(result);
+					}
+				}
+			}
+			ratioOptimizer.tell(batch, scores);
+			tried += batch.length;
+		}
+		return leaderboard.getResults();
+	}
+
+	/**
+	 * Simulates its part of a batch of trials together, so the simulator only goes through the prices once for
+	 * all of them. Trials the pruner drops are left null.
+	 */
+	private class TrialTask extends RecursiveAction {
+		private final double[][] ratios;
+		private final double[][][] amounts;
+		private final int from;
+		private final int to;
+
+		TrialTask(double[][] ratios, double[][][] amounts, int from, int to) {
+			this.ratios = ratios;
+			this.amounts = amounts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= TRIALS_PER_TASK) {
+				double[][][] results = simulator.simulateAll(Arrays.copyOfRange(ratios, from, to), maxDaysBetween,
+						pruner);
+				System.arraycopy(results, 0, amounts, from, results.length);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new TrialTask(ratios, amounts, from, middle), new TrialTask(ratios, amounts, middle, to));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes every result of a sweep as it goes, without keeping any of them: how many there were, the spread of
+ * the amount of bitcoin they ended with, how many beat what we started with, and the best at each frequency.
+ */
+public class SweepStatistics implements ResultSink {
+	private long count;
+	private long trials;
+	private long profitable;
+	private double mean;
+	// The sum of the squared differences from the mean, for the standard deviation
+	private double squares;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private double[] bestByDaysBetween = new double[0];
+	private int lastTrial = -1;
+
+	@Override
+	public void accept(SweepEngine.TrialResult result) {
+		double amount = result.getAmountBitcoin();
+		if (result.getTrial() != lastTrial) {
+			trials++;
+			lastTrial = result.getTrial();
+		}
+		if (Double.isNaN(amount)) {
+			return;
+		}
+		count++;
+		double difference = amount - mean;
+		mean += difference / count;
+		squares += difference * (amount - mean);
+		min = Double.isNaN(min) ? amount : Math.min(min, amount);
+		max = Double.isNaN(max) ? amount : Math.max(max, amount);
+		if (amount > result.getInitialAmountBitcoin()) {
+			profitable++;
+		}
+		int days = result.getDaysBetween();
+		if (days > bestByDaysBetween.length) {
+			int oldLength = bestByDaysBetween.length;
+			bestByDaysBetween = Arrays.copyOf(bestByDaysBetween, days);
+			Arrays.fill(bestByDaysBetween, oldLength, days, Double.NaN);
+		}
+		if (Double.isNaN(bestByDaysBetween[days - 1]) || amount > bestByDaysBetween[days - 1]) {
+			bestByDaysBetween[days - 1] = amount;
+		}
+	}
+
+	// The number of results, one for each set of ratios at each frequency
+	public long getCount() {
+		return count;
+	}
+
+	// The number of sets of ratios that finished
+	public long getTrials() {
+		return trials;
+	}
+
+	// The number of results that ended with more bitcoin than we started with
+	public long getProfitable() {
+		return profitable;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	public double getStandardDeviation() {
+		return count < 2 ? Double.NaN : Math.sqrt(squares / (count - 1));
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the best amount of bitcoin for each number of days between rebalances, starting at 1 day. NaN if
+	 * there wasn't a result for that many days.
+	 */
+	public double[] getBestByDaysBetween() {
+		return bestByDaysBetween.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Results: ").append(count).append(" from ").append(trials).append(" ratios\n")
+				.append("Bitcoin: mean ").append(getMean()).append(", standard deviation ").append(getStandardDeviation())
+				.append(", min ").append(min).append(", max ").append(max).append("\n")
+				.append("More than we started with: ").append(profitable).append("\n")
+				.append("Best by days between:\n");
+		for (int i = 0; i < bestByDaysBetween.length; i++) {
+			builder.append("    ").append(i + 1).append(": ").append(bestByDaysBetween[i]).append("\n");
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,347 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import com.sharshar.currencybalancer.utils.ScratchException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Price history saved to a binary file, so backtests can run without the database.
+ *
+ * The file starts with a header: a magic number, the version, the number of symbols, then for each symbol its
+ * name, the number of prices, and where they start in the file. Each symbol's prices follow as fixed width
+ * columns sorted by time: the update times as longs, then the prices as doubles. Everything is little endian and
+ * the columns start on 8 byte boundaries.
+ *
+ * Opening a file maps it into memory and reads the header. The prices are read from the mapping in place when
+ * they're used, so opening is quick no matter how big the file is. An open file never changes, so it can be
+ * shared by any number of threads. Exporting over an open file writes a new one and moves it into place, so the
+ * open file keeps the prices it had.
+ */
+public class TickFile {
+	public static final int MAGIC = 0x5449434B;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int ROWS_PER_IMPORT = 10000;
+
+	private final Path path;
+	private final Map<String, PriceHistory.Series> seriesBySymbol;
+
+	private TickFile(Path path, Map<String, PriceHistory.Series> seriesBySymbol) {
+		this.path = path;
+		this.seriesBySymbol = seriesBySymbol;
+	}
+
+	/**
+	 * Map the file into memory
+	 *
+	 * @param path - the file
+	 * @return the open file
+	 * @throws IOException if the file can't be read or isn't a tick file
+	 */
+	public static TickFile open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+				throw new IOException(path + " is not a tick file");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " is version " + version + ", only version " + VERSION + " can be read");
+			}
+			int numberOfSymbols = header.getInt();
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+					getIndexSize(channel, numberOfSymbols)).order(ByteOrder.LITTLE_ENDIAN);
+			Map<String, PriceHistory.Series> seriesBySymbol = new HashMap<>(numberOfSymbols * 2);
+			for (int i = 0; i < numberOfSymbols; i++) {
+				byte[] name = new byte[index.getShort()];
+				index.get(name);
+				int count = index.getInt();
+				long offset = index.getLong();
+				seriesBySymbol.put(new String(name, StandardCharsets.UTF_8), map(channel, count, offset));
+			}
+			// The mappings stay valid after the channel is closed
+			return new TickFile(path, Collections.unmodifiableMap(seriesBySymbol));
+		}
+	}
+
+	/**
+	 * The index entries are variable length, so find where they end by reading through them
+	 */
+	private static long getIndexSize(FileChannel channel, int numberOfSymbols) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+		long position = HEADER_SIZE;
+		for (int i = 0; i < numberOfSymbols; i++) {
+			entry.clear();
+			channel.read(entry, position);
+			entry.flip();
+			position += 2 + entry.getShort() + 4 + 8;
+		}
+		return position - HEADER_SIZE;
+	}
+
+	private static PriceHistory.Series map(FileChannel channel, int count, long offset) throws IOException {
+		if (count == 0) {
+			return new PriceHistory.Series(new long[0], new double[0]);
+		}
+		long size = (long) count * 8;
+		MappedByteBuffer times = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		MappedByteBuffer prices = channel.map(FileChannel.MapMode.READ_ONLY, offset + size, size);
+		return new PriceHistory.Series(times.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(),
+				prices.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Set<String> getSymbols() {
+		return seriesBySymbol.keySet();
+	}
+
+	/**
+	 * @param symbol - the symbol, for example NEOBTC
+	 * @return the prices of the symbol, or null if it's not in the file
+	 */
+	public PriceHistory.Series getSeries(String symbol) {
+		if (symbol == null) {
+			return null;
+		}
+		return seriesBySymbol.get(symbol.toUpperCase());
+	}
+
+	/**
+	 * @param symbol - the symbol, for example NEOBTC
+	 * @param startDate - look for prices after this date
+	 * @param endDate - look for prices before this date
+	 * @return the prices of the symbol between the dates (not including either), or null if it's not in the file
+	 */
+	public PriceHistory.Series getSeries(String symbol, Date startDate, Date endDate) {
+		PriceHistory.Series series = getSeries(symbol);
+		if (series == null) {
+			return null;
+		}
+		int from = series.indexAtOrAfter(startDate.getTime() + 1, 0);
+		int to = Math.max(from, series.indexAtOrAfter(endDate.getTime(), from));
+		return series.slice(from, to);
+	}
+
+	/**
+	 * @return the first price of each symbol between the dates, skipping symbols without one
+	 */
+	public List<PriceData> getFirstPrices(Collection<String> symbols, Date startDate, Date endDate) {
+		List<PriceData> prices = new ArrayList<>();
+		for (String symbol : symbols) {
+			PriceHistory.Series series = getSeries(symbol, startDate, endDate);
+			if (series != null && series.size() > 0) {
+				prices.add(new PriceData().setTicker(symbol.toUpperCase()).setPrice(series.getPrice(0))
+						.setUpdateTime(new Date(series.getTime(0))).setExchange(ScratchConstants.BINANCE));
+			}
+		}
+		return prices;
+	}
+
+	/**
+	 * Find a tick file by name in a directory. Names that would reach outside the directory aren't allowed.
+	 *
+	 * @param directory - where the tick files are kept
+	 * @param name - the file's name, or a path relative to the directory
+	 * @return the file
+	 * @throws ScratchException if there's no directory, or the name is absolute or goes up out of the directory
+	 */
+	public static Path resolve(Path directory, String name) throws ScratchException {
+		if (directory == null) {
+			throw new ScratchException("No directory for tick files, set backtest.tickDir");
+		}
+		if (name == null || name.trim().isEmpty()) {
+			throw new ScratchException("No tick file name");
+		}
+		Path relative = directory.getFileSystem().getPath(name.trim());
+		if (relative.isAbsolute() || relative.getRoot() != null) {
+			throw new ScratchException("Tick file names can't be absolute: " + name);
+		}
+		for (Path part : relative) {
+			if (part.toString().equals("..")) {
+				throw new ScratchException("Tick file names can't go up a directory: " + name);
+			}
+		}
+		Path base = directory.toAbsolutePath().normalize();
+		Path resolved = base.resolve(relative).normalize();
+		if (!resolved.startsWith(base) || resolved.equals(base)) {
+			throw new ScratchException("Tick file is outside " + directory + ": " + name);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Save the price history of the symbols between the two dates from the database to a file, one symbol at a
+	 * time so only one symbol's prices are in memory at once. The file is written next to where it's going and then
+	 * moved into place, so anything reading the old one keeps reading it, and a failed export leaves it as it was.
+	 *
+	 * @param repository - the price data repository
+	 * @param path - the file to write
+	 * @param symbols - the symbols to save, for example NEOBTC
+	 * @param startDate - save data after this date
+	 * @param endDate - save data before this date
+	 * @return the number of prices saved
+	 * @throws IOException if the file can't be written
+	 */
+	public static long export(PriceDataSQLRepository repository, Path path, Collection<String> symbols,
+							  Date startDate, Date endDate) throws IOException {
+		long total = 0;
+		Path directory = path.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		try {
+			try (Writer writer = new Writer(temp, symbols)) {
+				for (String symbol : symbols) {
+					PriceHistory.SeriesBuilder builder = new PriceHistory.SeriesBuilder();
+					repository.forEachByTicker(symbol, startDate, endDate,
+							c -> builder.add(c.getUpdateTime(), c.getPrice()));
+					PriceHistory.Series series = builder.build();
+					writer.write(symbol, series);
+					total += series.size();
+				}
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return total;
+	}
+
+	/**
+	 * Load the prices in a file into the database
+	 *
+	 * @param repository - the price data repository
+	 * @param path - the file to read
+	 * @return the number of prices loaded
+	 * @throws IOException if the file can't be read
+	 */
+	public static long importInto(PriceDataSQLRepository repository, Path path) throws IOException {
+		TickFile file = open(path);
+		long total = 0;
+		List<PriceData> rows = new ArrayList<>(ROWS_PER_IMPORT);
+		for (String symbol : file.getSymbols()) {
+			PriceHistory.Series series = file.getSeries(symbol);
+			for (int i = 0; i < series.size(); i++) {
+				rows.add(new PriceData().setTicker(symbol).setPrice(series.getPrice(i))
+						.setUpdateTime(new Date(series.getTime(i))).setExchange(ScratchConstants.BINANCE));
+				if (rows.size() == ROWS_PER_IMPORT) {
+					total += repository.insertAll(rows);
+					rows.clear();
+				}
+			}
+		}
+		if (!rows.isEmpty()) {
+			total += repository.insertAll(rows);
+		}
+		return total;
+	}
+
+	/**
+	 * Writes a tick file one symbol at a time. The symbols are needed up front to leave room for the header, which
+	 * is filled in when the writer is closed.
+	 */
+	public static class Writer implements Closeable {
+		private final FileChannel channel;
+		private final List<String> symbols;
+		private final Map<String, long[]> written = new HashMap<>();
+		private long position;
+
+		public Writer(Path path, Collection<String> symbols) throws IOException {
+			this.symbols = new ArrayList<>();
+			for (String symbol : symbols) {
+				String upper = symbol.toUpperCase();
+				if (!this.symbols.contains(upper)) {
+					this.symbols.add(upper);
+				}
+			}
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			long indexSize = 0;
+			for (String symbol : this.symbols) {
+				indexSize += 2 + symbol.getBytes(StandardCharsets.UTF_8).length + 4 + 8;
+			}
+			this.position = align(HEADER_SIZE + indexSize);
+		}
+
+		/**
+		 * @param symbol - one of the symbols given to the constructor
+		 * @param series - its prices, sorted by time
+		 */
+		public void write(String symbol, PriceHistory.Series series) throws IOException {
+			String upper = symbol.toUpperCase();
+			if (!symbols.contains(upper) || written.containsKey(upper)) {
+				throw new IllegalArgumentException(symbol + " wasn't expected or was already written");
+			}
+			int count = series.size();
+			written.put(upper, new long[] {count, position});
+			ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < count; i++) {
+				if (!buffer.hasRemaining()) {
+					flush(buffer);
+				}
+				buffer.putLong(series.getTime(i));
+			}
+			for (int i = 0; i < count; i++) {
+				if (!buffer.hasRemaining()) {
+					flush(buffer);
+				}
+				buffer.putDouble(series.getPrice(i));
+			}
+			flush(buffer);
+		}
+
+		private void flush(ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				int size = HEADER_SIZE;
+				for (String symbol : symbols) {
+					size += 2 + symbol.getBytes(StandardCharsets.UTF_8).length + 4 + 8;
+				}
+				ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(symbols.size());
+				for (String symbol : symbols) {
+					byte[] name = symbol.getBytes(StandardCharsets.UTF_8);
+					// Symbols that were never written are empty
+					long[] entry = written.getOrDefault(symbol, new long[] {0, 0});
+					header.putShort((short) name.length).put(name).putInt((int) entry[0]).putLong(entry[1]);
+				}
+				header.flip();
+				long headerPosition = 0;
+				while (header.hasRemaining()) {
+					headerPosition += channel.write(header, headerPosition);
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+		private static long align(long position) {
+			return (position + 7) & ~7L;
+		}
+	}
+}
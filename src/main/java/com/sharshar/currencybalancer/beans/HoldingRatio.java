@@ -16,6 +16,8 @@ public class HoldingRatio {
 	@Id
 	@GeneratedValue(strategy = GenerationType.IDENTITY)
 	private long tableId;
+	// The portfolio the ratio is part of, 0 for the original one
+	private long portfolioId;
 	private String ticker;
 	private double percent;
 	private short fraction;
@@ -29,6 +31,15 @@ public class HoldingRatio {
 		return this;
 	}
 
+	public long getPortfolioId() {
+		return portfolioId;
+	}
+
+	public HoldingRatio setPortfolioId(long portfolioId) {
+		this.portfolioId = portfolioId;
+		return this;
+	}
+
 	public String getTicker() {
 		return ticker;
 	}
@@ -61,6 +72,7 @@ public class HoldingRatio {
 		return (new ToStringBuilder(this,
 				ToStringStyle.SHORT_PREFIX_STYLE)
 				.append("Id: ").append(getTableId())
+				.append(" Portfolio: ").append(getPortfolioId())
 				.append(" Ticker: ").append(getTicker())
 				.append(" Percent: ").append(getPercent())).toString();
 	}
@@ -0,0 +1,87 @@
+package com.sharshar.currencybalancer.beans;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import javax.persistence.*;
+
+/**
+ * A set of holding ratios kept in balance in one account. The ratios are the rows of holding_ratio with this
+ * portfolio's id; the ones with portfolio id 0 are the original portfolio, the one CurrencyBalancer balances.
+ *
+ * The account is the name of a sub-account on the exchange. Everything in it counts as the portfolio's holdings, so
+ * each portfolio has one to itself, and the main account is left to the default portfolio.
+ *
+ * The tables are added by db/portfolios.sql.
+ */
+@Entity
+@Table(name="portfolio")
+public class Portfolio {
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long tableId;
+	private String name;
+	private String account;
+	private double minDrift;
+	private double minSingleDrift;
+
+	public long getTableId() {
+		return tableId;
+	}
+
+	public Portfolio setTableId(long tableId) {
+		this.tableId = tableId;
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Portfolio setName(String name) {
+		this.name = name;
+		return this;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public Portfolio setAccount(String account) {
+		this.account = account;
+		return this;
+	}
+
+	/**
+	 * @return balance when the drift, weighted by the ratios, is more than this (0 to ignore)
+	 */
+	public double getMinDrift() {
+		return minDrift;
+	}
+
+	public Portfolio setMinDrift(double minDrift) {
+		this.minDrift = minDrift;
+		return this;
+	}
+
+	/**
+	 * @return balance when any one currency has drifted more than this (0 to ignore)
+	 */
+	public double getMinSingleDrift() {
+		return minSingleDrift;
+	}
+
+	public Portfolio setMinSingleDrift(double minSingleDrift) {
+		this.minSingleDrift = minSingleDrift;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return (new ToStringBuilder(this,
+				ToStringStyle.SHORT_PREFIX_STYLE)
+				.append("Id: ").append(getTableId())
+				.append(" Name: ").append(getName())
+				.append(" Account: ").append(getAccount())).toString();
+	}
+}
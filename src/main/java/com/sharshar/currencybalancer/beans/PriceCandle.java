@@ -0,0 +1,170 @@
+package com.sharshar.currencybalancer.beans;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * The open, high, low and close price of a ticker over one minute, hour or day, rolled up from pricedata so
+ * backtests that only need a price every so often don't have to read every tick.
+ *
+ * The open is the first tick in the period and openTime is when it came in, so a series of opens is a sample of
+ * the ticks themselves.
+ */
+@Entity
+@Table(name="price_candle")
+public class PriceCandle {
+
+	public enum Resolution {
+		MINUTE(60L * 1000L),
+		HOUR(60L * 60L * 1000L),
+		DAY(24L * 60L * 60L * 1000L);
+
+		private final long millis;
+
+		Resolution(long millis) {
+			this.millis = millis;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return the start of the period the time is in
+		 */
+		public long getBucketStart(long time) {
+			return Math.floorDiv(time, millis) * millis;
+		}
+
+		/**
+		 * The coarsest resolution that still has at least 24 candles per step, so using the candles moves each
+		 * rebalance by less than 1/24th of the time between them
+		 *
+		 * @param step - the time between rebalances in milliseconds
+		 * @return the resolution, or null if the step is too small for any of them
+		 */
+		public static Resolution forStep(long step) {
+			Resolution best = null;
+			for (Resolution resolution : values()) {
+				if (resolution.millis * 24 <= step) {
+					best = resolution;
+				}
+			}
+			return best;
+		}
+	}
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long tableId;
+	private String ticker;
+	@Enumerated(EnumType.STRING)
+	private Resolution resolution;
+	private Date bucketStart;
+	private Date openTime;
+	private double open;
+	private double high;
+	private double low;
+	private double close;
+	private Date closeTime;
+	private int ticks;
+
+	public Long getTableId() {
+		return tableId;
+	}
+
+	public PriceCandle setTableId(Long tableId) {
+		this.tableId = tableId;
+		return this;
+	}
+
+	public String getTicker() {
+		return ticker;
+	}
+
+	public PriceCandle setTicker(String ticker) {
+		this.ticker = ticker;
+		return this;
+	}
+
+	public Resolution getResolution() {
+		return resolution;
+	}
+
+	public PriceCandle setResolution(Resolution resolution) {
+		this.resolution = resolution;
+		return this;
+	}
+
+	public Date getBucketStart() {
+		return bucketStart;
+	}
+
+	public PriceCandle setBucketStart(Date bucketStart) {
+		this.bucketStart = bucketStart;
+		return this;
+	}
+
+	public Date getOpenTime() {
+		return openTime;
+	}
+
+	public PriceCandle setOpenTime(Date openTime) {
+		this.openTime = openTime;
+		return this;
+	}
+
+	public double getOpen() {
+		return open;
+	}
+
+	public PriceCandle setOpen(double open) {
+		this.open = open;
+		return this;
+	}
+
+	public double getHigh() {
+		return high;
+	}
+
+	public PriceCandle setHigh(double high) {
+		this.high = high;
+		return this;
+	}
+
+	public double getLow() {
+		return low;
+	}
+
+	public PriceCandle setLow(double low) {
+		this.low = low;
+		return this;
+	}
+
+	public double getClose() {
+		return close;
+	}
+
+	public PriceCandle setClose(double close) {
+		this.close = close;
+		return this;
+	}
+
+	public Date getCloseTime() {
+		return closeTime;
+	}
+
+	public PriceCandle setCloseTime(Date closeTime) {
+		this.closeTime = closeTime;
+		return this;
+	}
+
+	public int getTicks() {
+		return ticks;
+	}
+
+	public PriceCandle setTicks(int ticks) {
+		this.ticks = ticks;
+		return this;
+	}
+}
@@ -0,0 +1,93 @@
+package com.sharshar.currencybalancer.beans;
+
+import java.util.*;
+
+/**
+ * The prices of all the symbols on an exchange at one point in time, looked up by symbol (for example NEOBTC)
+ * without scanning the list. Symbols are matched ignoring case. If a symbol is in the list more than once, the
+ * first one wins, the same as searching the list would.
+ *
+ * A snapshot never changes once it's built, so it can be shared by everything that needs prices.
+ */
+public class PriceSnapshot {
+	private final List<PriceData> priceData;
+	private final Map<String, PriceData> bySymbol;
+	private final Date updateTime;
+
+	private PriceSnapshot(List<PriceData> priceData, Date updateTime) {
+		this.priceData = Collections.unmodifiableList(new ArrayList<>(priceData));
+		this.bySymbol = new HashMap<>(priceData.size() * 2);
+		for (PriceData pd : priceData) {
+			if (pd.getTicker() != null) {
+				bySymbol.putIfAbsent(pd.getTicker().toUpperCase(), pd);
+			}
+		}
+		this.updateTime = updateTime;
+	}
+
+	public static PriceSnapshot of(List<PriceData> priceData, Date updateTime) {
+		return new PriceSnapshot(priceData == null ? Collections.emptyList() : priceData, updateTime);
+	}
+
+	public static PriceSnapshot of(List<PriceData> priceData) {
+		return of(priceData, null);
+	}
+
+	public static PriceSnapshot empty() {
+		return of(Collections.emptyList(), null);
+	}
+
+	/**
+	 * @param symbol - the symbol, for example NEOBTC
+	 * @return the price data for the symbol, or null if there isn't any
+	 */
+	public PriceData getPriceData(String symbol) {
+		if (symbol == null) {
+			return null;
+		}
+		return bySymbol.get(symbol.toUpperCase());
+	}
+
+	/**
+	 * @param asset - the asset, for example NEO
+	 * @param quoteCurrency - the currency to price it in, for example BTC
+	 * @return the price data for the pair, or null if there isn't any
+	 */
+	public PriceData getPriceData(String asset, String quoteCurrency) {
+		return getPriceData(asset + quoteCurrency);
+	}
+
+	/**
+	 * @param symbol - the symbol, already upper case
+	 * @return the price, or NaN if there isn't one
+	 */
+	public double getPrice(String symbol) {
+		PriceData pd = bySymbol.get(symbol);
+		if (pd == null || pd.getPrice() == null) {
+			return Double.NaN;
+		}
+		return pd.getPrice();
+	}
+
+	/**
+	 * @return all the price data, in the order the exchange gave it to us
+	 */
+	public List<PriceData> getPriceData() {
+		return priceData;
+	}
+
+	/**
+	 * @return when the prices were retrieved, or null if not known
+	 */
+	public Date getUpdateTime() {
+		return updateTime;
+	}
+
+	public int size() {
+		return priceData.size();
+	}
+
+	public boolean isEmpty() {
+		return priceData.isEmpty();
+	}
+}
@@ -1,5 +1,6 @@
 package com.sharshar.currencybalancer.binance;
 
+import com.binance.api.client.BinanceApiClientFactory;
 import com.binance.api.client.BinanceApiRestClient;
 import com.binance.api.client.domain.OrderSide;
 import com.binance.api.client.domain.OrderStatus;
@@ -10,30 +11,41 @@ import com.binance.api.client.domain.account.NewOrder;
 import com.binance.api.client.domain.account.NewOrderResponse;
 import com.binance.api.client.domain.account.Order;
 import com.binance.api.client.domain.account.request.AllOrdersRequest;
+import com.binance.api.client.domain.account.request.OrderRequest;
 import com.binance.api.client.domain.account.request.OrderStatusRequest;
 import com.binance.api.client.domain.market.TickerPrice;
 import com.sharshar.currencybalancer.beans.OrderHistory;
 import com.sharshar.currencybalancer.beans.OwnedAsset;
 import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
 import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import com.sharshar.currencybalancer.services.ExchangeGateway;
+import com.sharshar.currencybalancer.utils.MetricsConfiguration;
 import com.sharshar.currencybalancer.utils.ScratchConstants;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import com.sharshar.currencybalancer.utils.TimingInterceptor;
+import io.micrometer.core.instrument.Metrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Used to support the types of transactions we wish to do with binance
+ * Used to support the types of transactions we wish to do with binance. Used unless exchange.simulated is set.
  *
  * Created by lsharshar on 5/27/2018.
  */
 @Service
-public class BinanceAccountServices {
+@ConditionalOnProperty(name = "exchange.simulated", havingValue = "false", matchIfMissing = true)
+public class BinanceAccountServices implements ExchangeGateway {
 	Logger logger = LogManager.getLogger();
 
 	@Autowired
@@ -42,6 +54,48 @@ public class BinanceAccountServices {
 	@Autowired
 	private OrderHistoryRepository orderHistoryRepository;
 
+	// Where the keys of the sub-accounts are, binance.accounts.<name>.apiKey and apiSecretKey
+	@Autowired(required = false)
+	private Environment environment;
+
+	// The sub-accounts used so far, by name
+	private final Map<String, BinanceAccountServices> accounts = new ConcurrentHashMap<>();
+
+	public BinanceAccountServices() {
+	}
+
+	public BinanceAccountServices(BinanceApiRestClient binanceApiRestClient,
+								  OrderHistoryRepository orderHistoryRepository) {
+		this.binanceApiRestClient = binanceApiRestClient;
+		this.orderHistoryRepository = orderHistoryRepository;
+	}
+
+	/**
+	 * Sub-accounts have their own keys, and their own client, timed like the main one with the account name as
+	 * the client tag
+	 */
+	@Override
+	public ExchangeGateway forAccount(String account) throws ScratchException {
+		if (account == null || account.trim().isEmpty()) {
+			return this;
+		}
+		BinanceAccountServices found = accounts.get(account);
+		if (found != null) {
+			return found;
+		}
+		String apiKey = environment == null ? null : environment.getProperty("binance.accounts." + account + ".apiKey");
+		String apiSecretKey = environment == null ? null
+				: environment.getProperty("binance.accounts." + account + ".apiSecretKey");
+		if (apiKey == null || apiSecretKey == null) {
+			throw new ScratchException("No keys for the account " + account);
+		}
+		BinanceApiRestClient client = (BinanceApiRestClient) MetricsConfiguration.wrap(
+				BinanceApiClientFactory.newInstance(apiKey, apiSecretKey).newRestClient(),
+				new TimingInterceptor(() -> Metrics.globalRegistry, "binance.requests", "client", account));
+		return accounts.computeIfAbsent(account, a -> new BinanceAccountServices(client, orderHistoryRepository));
+	}
+
+	@Override
 	public List<OwnedAsset> getBalances() {
 		List<OwnedAsset> normalizedBalance = new ArrayList<>();
 		List<AssetBalance> balances = binanceApiRestClient.getAccount().getBalances();
@@ -83,19 +137,29 @@ public class BinanceAccountServices {
 		binanceApiRestClient.newOrderTest(newOrder);
 	}
 
-	public List<OwnedAsset> getBalancesWithValues() {
-		List<OwnedAsset> balances = getBalances();
-		return balances.stream().filter(c -> c.getFree() > 0.00001 || c.getLocked() > 0.00001).collect(Collectors.toList());
+	/**
+	 * Retrieve the current price of every symbol on Binance
+	 *
+	 * @return the prices, indexed by symbol
+	 */
+	@Override
+	public PriceSnapshot getPriceSnapshot() {
+		return toPriceSnapshot(binanceApiRestClient.getAllPrices(), new Date());
 	}
 
-	public List<PriceData> getData() {
-		List<TickerPrice> allPrices = binanceApiRestClient.getAllPrices();
-		List<PriceData> priceData = new ArrayList<>();
+	/**
+	 * Turn the prices Binance gives us into a snapshot
+	 *
+	 * @param allPrices - the price of every symbol, as text
+	 * @param now - when they were retrieved
+	 * @return the prices, indexed by symbol
+	 */
+	public PriceSnapshot toPriceSnapshot(List<TickerPrice> allPrices, Date now) {
 		if (allPrices == null || allPrices.isEmpty()) {
 			logger.error("Unable to load prices from Binance");
-
+			return PriceSnapshot.of(new ArrayList<>(), now);
 		}
-		Date now = new Date();
+		List<PriceData> priceData = new ArrayList<>(allPrices.size());
 		for (TickerPrice tp : allPrices) {
 			PriceData pd = new PriceData().setTicker(tp.getSymbol()).setExchange(ScratchConstants.BINANCE).setUpdateTime(now);
 			try {
@@ -107,9 +171,10 @@ public class BinanceAccountServices {
 			}
 			priceData.add(pd);
 		}
-		return priceData;
+		return PriceSnapshot.of(priceData, now);
 	}
 
+	@Override
 	public NewOrderResponse createMarketOrder(String ticker, double amount, OrderSide orderSide) {
 		OrderHistory history = new OrderHistory().setAmount(amount).setSymbol(ticker).setSide(orderSide.name()).setStatus(OrderStatus.NEW.name());
 		logger.info("Attempting to " + orderSide + " " + amount + " of " + ticker);
@@ -141,13 +206,24 @@ public class BinanceAccountServices {
 
 	}
 
+	@Override
 	public Order checkOrderStatus(String ticker, String origClientOrderId) {
 		OrderStatusRequest request = new OrderStatusRequest(ticker, origClientOrderId);
 		return binanceApiRestClient.getOrderStatus(request);
 	}
 
+	@Override
 	public List<Order> getAllMyOrders(String ticker) {
 		AllOrdersRequest request = new AllOrdersRequest(ticker);
 		return binanceApiRestClient.getAllOrders(request);
 	}
+
+	/**
+	 * @param ticker - the symbol, for example NEOBTC
+	 * @return all the orders for the symbol that haven't finished yet, in one request
+	 */
+	@Override
+	public List<Order> getOpenOrders(String ticker) {
+		return binanceApiRestClient.getOpenOrders(new OrderRequest(ticker));
+	}
 }
@@ -2,6 +2,8 @@ package com.sharshar.currencybalancer.binance;
 
 import com.binance.api.client.BinanceApiClientFactory;
 import com.binance.api.client.BinanceApiRestClient;
+import com.binance.api.client.BinanceApiWebSocketClient;
+import com.sharshar.currencybalancer.services.PriceStream;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,6 +20,13 @@ public class BinanceClient {
 	@Value("${binance.apiSecretKey}")
 	private String binanceSecretKey;
 
+	// How long to wait before opening a price socket again after it fails, doubling up to the max, in milliseconds
+	@Value("${prices.stream.initialBackoff:1000}")
+	private long streamInitialBackoff;
+
+	@Value("${prices.stream.maxBackoff:60000}")
+	private long streamMaxBackoff;
+
 	@Bean
 	public BinanceApiRestClient binanceApiRestClient() {
 		BinanceApiClientFactory factory = BinanceApiClientFactory.newInstance(
@@ -25,4 +34,15 @@ public class BinanceClient {
 		BinanceApiRestClient client = factory.newRestClient();
 		return client;
 	}
+
+	@Bean
+	public BinanceApiWebSocketClient binanceApiWebSocketClient() {
+		// Market data doesn't need the keys
+		return BinanceApiClientFactory.newInstance().newWebSocketClient();
+	}
+
+	@Bean
+	public PriceStream priceStream(BinanceApiWebSocketClient webSocketClient) {
+		return new BinancePriceStream(webSocketClient, streamInitialBackoff, streamMaxBackoff);
+	}
 }
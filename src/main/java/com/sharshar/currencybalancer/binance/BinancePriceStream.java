@@ -0,0 +1,153 @@
+package com.sharshar.currencybalancer.binance;
+
+import com.binance.api.client.BinanceApiCallback;
+import com.binance.api.client.BinanceApiWebSocketClient;
+import com.binance.api.client.domain.event.AggTradeEvent;
+import com.sharshar.currencybalancer.services.PriceStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams prices from the Binance trade websockets, one per symbol. When a socket fails it is closed and opened
+ * again, waiting twice as long after each failure in a row, up to maxBackoff, so a symbol's price doesn't just stop.
+ */
+public class BinancePriceStream implements PriceStream {
+	private Logger logger = LogManager.getLogger();
+
+	private final BinanceApiWebSocketClient webSocketClient;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final ScheduledExecutorService reconnects;
+	private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * One symbol's socket, and how many times in a row it has failed
+	 */
+	private class Subscription implements BinanceApiCallback<AggTradeEvent> {
+		private final String symbol;
+		private final PriceListener listener;
+		private volatile Closeable socket;
+		private volatile int failures;
+
+		Subscription(String symbol, PriceListener listener) {
+			this.symbol = symbol;
+			this.listener = listener;
+		}
+
+		synchronized void open() {
+			if (closed || subscriptions.get(symbol) != this) {
+				return;
+			}
+			try {
+				socket = webSocketClient.onAggTradeEvent(symbol.toLowerCase(), this);
+			} catch (RuntimeException ex) {
+				onFailure(ex);
+			}
+		}
+
+		synchronized void close() {
+			closeQuietly(socket);
+			socket = null;
+		}
+
+		@Override
+		public void onResponse(AggTradeEvent event) {
+			if (closed) {
+				return;
+			}
+			failures = 0;
+			try {
+				listener.onPrice(event.getSymbol().toUpperCase(), Double.parseDouble(event.getPrice()),
+						event.getEventTime());
+			} catch (Exception ex) {
+				logger.error("Unable to handle trade for " + event.getSymbol() + " - " + event.getPrice(), ex);
+			}
+		}
+
+		@Override
+		public void onFailure(Throwable cause) {
+			if (closed) {
+				return;
+			}
+			close();
+			long backoff = getBackoff(failures++);
+			logger.error("Price stream for " + symbol + " failed, opening it again in " + backoff + "ms", cause);
+			reconnects.schedule(this::open, backoff, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public BinancePriceStream(BinanceApiWebSocketClient webSocketClient) {
+		this(webSocketClient, 1000, 60000);
+	}
+
+	/**
+	 * @param webSocketClient - where the sockets come from
+	 * @param initialBackoff - how long to wait before opening a socket again after it first fails, in milliseconds
+	 * @param maxBackoff - the longest to wait, however many times it has failed
+	 */
+	public BinancePriceStream(BinanceApiWebSocketClient webSocketClient, long initialBackoff, long maxBackoff) {
+		this.webSocketClient = webSocketClient;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.reconnects = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "price-stream-reconnect");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void subscribe(Collection<String> symbols, PriceListener listener) {
+		closed = false;
+		for (String symbol : symbols) {
+			Subscription subscription = new Subscription(symbol.toUpperCase(), listener);
+			Subscription previous = subscriptions.put(subscription.symbol, subscription);
+			if (previous != null) {
+				previous.close();
+			}
+			subscription.open();
+		}
+		logger.info("Streaming prices for " + symbols);
+	}
+
+	/**
+	 * Stop passing on prices and close the sockets
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Subscription subscription : subscriptions.values()) {
+			subscription.close();
+		}
+		subscriptions.clear();
+	}
+
+	/**
+	 * @return how long to wait before opening a socket again after it has failed this many times in a row
+	 */
+	long getBackoff(int failures) {
+		long backoff = initialBackoff << Math.min(failures, 30);
+		return backoff <= 0 || backoff > maxBackoff ? maxBackoff : backoff;
+	}
+
+	private void closeQuietly(Closeable socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException | RuntimeException ex) {
+			logger.error("Unable to close price stream", ex);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.sharshar.currencybalancer.controllers;
+
+import com.sharshar.currencybalancer.algorithms.HistoricalAnalysis;
+import com.sharshar.currencybalancer.services.CandleRollupService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Used to move price history between the database and tick files, and to roll it up into candles, for backtesting.
+ * Also runs the backtests that are quick enough to wait for.
+ */
+@RestController
+public class BacktestController {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private HistoricalAnalysis historicalAnalysis;
+
+	@Autowired
+	private CandleRollupService candleRollupService;
+
+	/**
+	 * @param file - the file to write, in backtest.tickDir on the server
+	 * @param start - save data after this time, in milliseconds since 1970
+	 * @param end - save data before this time, in milliseconds since 1970
+	 * @return the number of prices saved, or -1 if it failed
+	 */
+	@PostMapping("/ticks/export")
+	public long exportTicks(@RequestParam String file, @RequestParam long start, @RequestParam long end) {
+		try {
+			return historicalAnalysis.exportTickFile(file, new Date(start), new Date(end));
+		} catch (Exception ex) {
+			logger.error("Unable to export prices to " + file, ex);
+			return -1;
+		}
+	}
+
+	/**
+	 * @param file - the file to read, in backtest.tickDir on the server
+	 * @return the number of prices loaded, or -1 if it failed
+	 */
+	@PostMapping("/ticks/import")
+	public long importTicks(@RequestParam String file) {
+		try {
+			return historicalAnalysis.importTickFile(file);
+		} catch (Exception ex) {
+			logger.error("Unable to import prices from " + file, ex);
+			return -1;
+		}
+	}
+
+	/**
+	 * Bring the candles of the assets we hold up to date now instead of waiting for the next rollup
+	 *
+	 * @return the number of candles saved
+	 */
+	@PostMapping("/candles/rollup")
+	public int rollupCandles() {
+		return candleRollupService.rollupAll();
+	}
+
+	/**
+	 * Backtest the desired holding ratios with every combination of the drifts, to pick minDrift and minSingleDrift
+	 *
+	 * @param start - the start of the history, in milliseconds since 1970
+	 * @param end - the end of the history, in milliseconds since 1970
+	 * @param minDrifts - the weighted drifts to try, 0 to ignore it
+	 * @param minSingleDrifts - the single drifts to try, 0 to ignore it
+	 * @return a result for each combination, best first
+	 */
+	@PostMapping("/backtest/thresholds")
+	public List<HistoricalAnalysis.AnalysisResult> testThresholds(@RequestParam long start, @RequestParam long end,
+																  @RequestParam double[] minDrifts,
+																  @RequestParam double[] minSingleDrifts) {
+		return historicalAnalysis.testThresholds(new Date(start), new Date(end), minDrifts, minSingleDrifts);
+	}
+}
@@ -1,10 +1,13 @@
 package com.sharshar.currencybalancer.controllers;
 
-import com.binance.api.client.domain.account.NewOrderResponse;
 import com.binance.api.client.domain.account.Order;
 import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.algorithms.StreamingDriftMonitor;
 import com.sharshar.currencybalancer.beans.OwnedAsset;
 import com.sharshar.currencybalancer.services.BalancerServices;
+import com.sharshar.currencybalancer.services.PriceFeedService;
+import com.sharshar.currencybalancer.services.PriceRecorder;
+import com.sharshar.currencybalancer.services.RebalanceScheduler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,7 +15,6 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,6 +32,18 @@ public class BalancerController {
 	@Autowired
 	private CurrencyBalancer balancer;
 
+	@Autowired
+	private PriceFeedService priceFeed;
+
+	@Autowired
+	private StreamingDriftMonitor driftMonitor;
+
+	@Autowired
+	private PriceRecorder priceRecorder;
+
+	@Autowired
+	private RebalanceScheduler rebalanceScheduler;
+
 	@GetMapping("/assets")
 	public List<OwnedAsset> getOwnedAssets() {
 		return balancerServices.getOwnedAssets();
@@ -38,8 +52,7 @@ public class BalancerController {
 	@GetMapping("/open")
 	public List<Order> getOpenOrders() {
 		try {
-			balancerServices.updateNewOrdersWithStatus();
-			return balancerServices.getOrderStatuses(balancerServices.getNewOrders());
+			return balancerServices.getOpenOrders();
 		} catch (Exception ex) {
 			logger.error("Cannot find open orders", ex);
 			return null;
@@ -56,10 +69,31 @@ public class BalancerController {
 		return balancer.getDrifts();
 	}
 
+	@GetMapping("/drift/stream")
+	public StreamingDriftMonitor.DriftReading getStreamingDrift() {
+		return driftMonitor.getReading();
+	}
+
+	@GetMapping("/prices/stats")
+	public PriceFeedService.PriceFeedStats getPriceStats() {
+		return priceFeed.getStats();
+	}
+
+	@GetMapping("/prices/recorder")
+	public PriceRecorder.RecorderStats getRecorderStats() {
+		return priceRecorder.getStats();
+	}
+
+	/**
+	 * Rebalance now, whatever the drift. Only logs the orders unless rebalance.dryRun is false.
+	 */
 	@PostMapping("/balance")
-	public List<NewOrderResponse> balance() {
-		return new ArrayList<NewOrderResponse>();
-		// Too scared to put this in yet
-		//return balancer.balance();
+	public RebalanceScheduler.Cycle balance() {
+		return rebalanceScheduler.balanceNow();
+	}
+
+	@GetMapping("/balance/status")
+	public RebalanceScheduler.RebalanceStats getBalanceStatus() {
+		return rebalanceScheduler.getStats();
 	}
 }
@@ -1,7 +1,11 @@
 package com.sharshar.currencybalancer.controllers;
 
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
 import com.sharshar.currencybalancer.beans.HoldingRatio;
 import com.sharshar.currencybalancer.services.BalancerServices;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
@@ -14,9 +18,14 @@ import java.util.List;
  */
 @RestController
 public class ConfigureController {
+	private Logger logger = LogManager.getLogger();
+
 	@Autowired
 	BalancerServices balancerServices;
 
+	@Autowired
+	CurrencyBalancer balancer;
+
 	@GetMapping("/currentConfig")
 	public List<HoldingRatio> getRatios() {
 		return balancerServices.getDesiredRatios();
@@ -27,6 +36,13 @@ public class ConfigureController {
 		if (newRatios == null) {
 			return null;
 		}
-		return balancerServices.saveNewRatios(newRatios);
+		List<HoldingRatio> saved = balancerServices.saveNewRatios(newRatios);
+		// So the balancer, and the drift it streams, use the new ones
+		try {
+			balancer.load();
+		} catch (ScratchException ex) {
+			logger.error("Unable to load the new ratios", ex);
+		}
+		return saved;
 	}
 }
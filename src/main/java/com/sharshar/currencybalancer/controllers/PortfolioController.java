@@ -0,0 +1,103 @@
+package com.sharshar.currencybalancer.controllers;
+
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.Portfolio;
+import com.sharshar.currencybalancer.services.BalancerServices;
+import com.sharshar.currencybalancer.services.PortfolioScheduler;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Used to set up the portfolios, each with its own ratios and account, and to see how far each has drifted. The
+ * portfolios are only watched, nothing places orders for them.
+ */
+@RestController
+public class PortfolioController {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private BalancerServices balancerServices;
+
+	@Autowired
+	private PortfolioScheduler portfolioScheduler;
+
+	@Autowired
+	private CurrencyBalancer balancer;
+
+	@GetMapping("/portfolios")
+	public List<Portfolio> getPortfolios() {
+		return balancerServices.getPortfolios();
+	}
+
+	@PutMapping("/portfolios")
+	public Portfolio savePortfolio(@RequestBody Portfolio portfolio) {
+		if (portfolio == null) {
+			return null;
+		}
+		try {
+			return balancerServices.savePortfolio(portfolio);
+		} catch (ScratchException ex) {
+			logger.error("Unable to save " + portfolio, ex);
+			return null;
+		}
+	}
+
+	@GetMapping("/portfolios/{id}/config")
+	public List<HoldingRatio> getRatios(@PathVariable long id) {
+		return balancerServices.getDesiredRatios(id);
+	}
+
+	@PutMapping("/portfolios/{id}/config")
+	public List<HoldingRatio> setRatios(@PathVariable long id, @RequestBody List<HoldingRatio> newRatios) {
+		if (newRatios == null) {
+			return null;
+		}
+		List<HoldingRatio> saved = balancerServices.saveNewRatios(id, newRatios);
+		if (id == BalancerServices.DEFAULT_PORTFOLIO) {
+			// The balancer uses the default portfolio's ratios
+			try {
+				balancer.load();
+			} catch (ScratchException ex) {
+				logger.error("Unable to load the new ratios", ex);
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * @return the drift of every portfolio as of the last check
+	 */
+	@GetMapping("/portfolios/drift")
+	public PortfolioScheduler.PortfolioCheck getDrift() {
+		try {
+			return portfolioScheduler.getLatest();
+		} catch (Exception ex) {
+			logger.error("Unable to check the portfolios", ex);
+			return null;
+		}
+	}
+
+	@PostMapping("/portfolios/check")
+	public PortfolioScheduler.PortfolioCheck check() {
+		try {
+			return portfolioScheduler.check();
+		} catch (Exception ex) {
+			logger.error("Unable to check the portfolios", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Pick up changes to the portfolios and their ratios
+	 */
+	@PostMapping("/portfolios/reload")
+	public void reload() {
+		portfolioScheduler.reload();
+	}
+}
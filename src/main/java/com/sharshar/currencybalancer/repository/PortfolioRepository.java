@@ -0,0 +1,10 @@
+package com.sharshar.currencybalancer.repository;
+
+import com.sharshar.currencybalancer.beans.Portfolio;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * Used to load the portfolios from the db
+ */
+public interface PortfolioRepository extends CrudRepository<Portfolio, Long> {
+}
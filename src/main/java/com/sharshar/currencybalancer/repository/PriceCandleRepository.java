@@ -0,0 +1,25 @@
+package com.sharshar.currencybalancer.repository;
+
+import com.sharshar.currencybalancer.beans.PriceCandle;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Used to load and save the candles rolled up from the price data
+ */
+@Transactional
+public interface PriceCandleRepository extends CrudRepository<PriceCandle, Long> {
+	List<PriceCandle> findByTickerAndResolutionAndBucketStartGreaterThanEqualAndBucketStartLessThanOrderByBucketStart(
+			String ticker, PriceCandle.Resolution resolution, Date start, Date end);
+
+	PriceCandle findFirstByTickerAndResolutionOrderByBucketStartDesc(String ticker, PriceCandle.Resolution resolution);
+
+	@Modifying
+	@Query("delete from PriceCandle c where c.ticker = ?1 and c.bucketStart >= ?2")
+	int deleteFrom(String ticker, Date start);
+}
@@ -0,0 +1,34 @@
+package com.sharshar.currencybalancer.repository;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes large amounts of price data without holding it all in memory. Rows are read through a forward
+ * only cursor and handed over one at a time, and are never attached to the persistence context, so nothing keeps
+ * hold of them once they've been used. Inserts are sent to the database in batches.
+ */
+public interface PriceDataBulkRepository {
+	/**
+	 * Read the prices of a ticker between two dates, oldest first. Prices from the simulated exchange aren't real,
+	 * so they're left out.
+	 *
+	 * @param ticker - the symbol, for example NEOBTC
+	 * @param startDate - read data after this date
+	 * @param endDate - read data before this date
+	 * @param consumer - called with each row. The row isn't managed, so changing it doesn't change the database.
+	 * @return the number of rows read
+	 */
+	long forEachByTicker(String ticker, Date startDate, Date endDate, Consumer<PriceData> consumer);
+
+	/**
+	 * Insert the prices in batches. The table ids aren't read back.
+	 *
+	 * @param priceData - the prices to insert
+	 * @return the number of rows inserted
+	 */
+	int insertAll(Collection<PriceData> priceData);
+}
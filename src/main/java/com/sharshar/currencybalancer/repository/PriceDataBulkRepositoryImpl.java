@@ -0,0 +1,85 @@
+package com.sharshar.currencybalancer.repository;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Plain JDBC version of the bulk operations, picked up by Spring Data as part of PriceDataSQLRepository.
+ *
+ * The MySQL driver reads the whole result into memory unless the fetch size is Integer.MIN_VALUE, which makes it
+ * stream the rows instead, so that's the default. Inserts are only sent as one statement per batch if the
+ * connection has rewriteBatchedStatements=true.
+ */
+public class PriceDataBulkRepositoryImpl implements PriceDataBulkRepository {
+	private static final String SELECT_BY_TICKER = "select table_id, price, update_time, ticker, exchange "
+			+ "from pricedata where ticker = ? and update_time > ? and update_time < ? "
+			+ "and exchange <> " + ScratchConstants.SIMULATED + " order by update_time, table_id";
+	private static final String INSERT = "insert into pricedata (price, update_time, ticker, exchange) "
+			+ "values (?, ?, ?, ?)";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	@Value("${prices.batchSize:500}")
+	private int batchSize;
+
+	@Autowired
+	public PriceDataBulkRepositoryImpl(DataSource dataSource,
+									   @Value("${prices.fetchSize:" + Integer.MIN_VALUE + "}") int fetchSize) {
+		// Our own template so the fetch size doesn't change anyone else's queries
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.jdbcTemplate.setFetchSize(fetchSize);
+	}
+
+	@Override
+	public long forEachByTicker(String ticker, Date startDate, Date endDate, Consumer<PriceData> consumer) {
+		long[] count = new long[1];
+		jdbcTemplate.query(SELECT_BY_TICKER, rs -> {
+			Timestamp updateTime = rs.getTimestamp(3);
+			double price = rs.getDouble(2);
+			PriceData pd = new PriceData()
+					.setTableId(rs.getLong(1))
+					.setPrice(rs.wasNull() ? null : price)
+					.setUpdateTime(updateTime == null ? null : new Date(updateTime.getTime()))
+					.setTicker(rs.getString(4))
+					.setExchange(rs.getShort(5));
+			consumer.accept(pd);
+			count[0]++;
+		}, ticker, new Timestamp(startDate.getTime()), new Timestamp(endDate.getTime()));
+		return count[0];
+	}
+
+	@Override
+	public int insertAll(Collection<PriceData> priceData) {
+		List<Object[]> batch = new ArrayList<>(Math.min(priceData.size(), batchSize));
+		int inserted = 0;
+		for (PriceData pd : priceData) {
+			batch.add(new Object[] {pd.getPrice(),
+					pd.getUpdateTime() == null ? null : new Timestamp(pd.getUpdateTime().getTime()),
+					pd.getTicker(), pd.getExchange()});
+			if (batch.size() >= batchSize) {
+				inserted += insertBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			inserted += insertBatch(batch);
+		}
+		return inserted;
+	}
+
+	private int insertBatch(List<Object[]> batch) {
+		jdbcTemplate.batchUpdate(INSERT, batch);
+		return batch.size();
+	}
+}
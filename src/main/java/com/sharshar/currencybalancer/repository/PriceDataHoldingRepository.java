@@ -3,6 +3,7 @@ package com.sharshar.currencybalancer.repository;
 import com.sharshar.currencybalancer.beans.HoldingRatio;
 import org.springframework.data.repository.CrudRepository;
 
+import java.util.List;
 
 /**
  * Used to load the holding ratio information from the db
@@ -10,4 +11,5 @@ import org.springframework.data.repository.CrudRepository;
  * Created by lsharshar on 5/14/2018.
  */
 public interface PriceDataHoldingRepository extends CrudRepository<HoldingRatio, Long> {
+	List<HoldingRatio> findByPortfolioId(long portfolioId);
 }
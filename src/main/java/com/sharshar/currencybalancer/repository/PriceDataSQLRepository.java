@@ -8,12 +8,13 @@ import java.util.Date;
 import java.util.List;
 
 /**
- * Used to load historical data on tickers from the database
+ * Used to load historical data on tickers from the database. Use the PriceDataBulkRepository methods for long date
+ * ranges, the find methods load every row into memory at once.
  *
  * Created by lsharshar on 5/14/2018.
  */
 @Transactional
-public interface PriceDataSQLRepository extends CrudRepository<PriceData, Long> {
+public interface PriceDataSQLRepository extends CrudRepository<PriceData, Long>, PriceDataBulkRepository {
 	public List<PriceData> findByTickerAndUpdateTimeGreaterThanAndUpdateTimeLessThan(String ticker, Date d1, Date d2);
 	public List<PriceData> findByUpdateTimeGreaterThanAndUpdateTimeLessThan(Date d1, Date d2);
 	public List<PriceData> findTop500ByTicker(String ticker);
@@ -1,14 +1,14 @@
 package com.sharshar.currencybalancer.services;
 
-import com.binance.api.client.domain.OrderSide;
 import com.binance.api.client.domain.OrderStatus;
 import com.binance.api.client.domain.account.NewOrderResponse;
 import com.binance.api.client.domain.account.Order;
 import com.sharshar.currencybalancer.beans.HoldingRatio;
 import com.sharshar.currencybalancer.beans.OrderHistory;
 import com.sharshar.currencybalancer.beans.OwnedAsset;
-import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import com.sharshar.currencybalancer.beans.Portfolio;
 import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import com.sharshar.currencybalancer.repository.PortfolioRepository;
 import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
 import com.sharshar.currencybalancer.utils.ScratchException;
 import org.apache.logging.log4j.LogManager;
@@ -36,24 +36,72 @@ public class BalancerServices {
 	private OrderHistoryRepository orderHistoryRepository;
 
 	@Autowired
-	private BinanceAccountServices accountServices;
+	private PortfolioRepository portfolioRepository;
 
+	@Autowired
+	private ExchangeGateway exchange;
+
+	@Autowired
+	private OrderDispatcher orderDispatcher;
+
+	@Autowired
+	private OrderReconciler orderReconciler;
+
+	// The portfolio the ratios belong to when none is given
+	public static final long DEFAULT_PORTFOLIO = 0;
+
+	/**
+	 * @return the ratios of the original portfolio
+	 */
 	public List<HoldingRatio> getDesiredRatios() {
-		Iterable<HoldingRatio> ih = repository.findAll();
-		List<HoldingRatio> ratios = new ArrayList<>();
-		ih.forEach(ratios::add);
-		return ratios;
+		return getDesiredRatios(DEFAULT_PORTFOLIO);
+	}
+
+	public List<HoldingRatio> getDesiredRatios(long portfolioId) {
+		return new ArrayList<>(repository.findByPortfolioId(portfolioId));
 	}
 
 	public List<OwnedAsset> getOwnedAssets() {
-		return accountServices.getBalancesWithValues();
+		return exchange.getBalancesWithValues();
+	}
+
+	public List<Portfolio> getPortfolios() {
+		List<Portfolio> portfolios = new ArrayList<>();
+		portfolioRepository.findAll().forEach(portfolios::add);
+		return portfolios;
+	}
+
+	/**
+	 * Save the portfolio, as long as it has an account to itself. A portfolio counts everything in its account as
+	 * its holdings, so two in one account would both count the same coins. The main account is the default
+	 * portfolio's.
+	 *
+	 * @throws ScratchException if the account is the main one, or another portfolio's
+	 */
+	public Portfolio savePortfolio(Portfolio portfolio) throws ScratchException {
+		String account = PortfolioScheduler.getAccount(portfolio);
+		if (account.isEmpty()) {
+			throw new ScratchException("The main account belongs to the default portfolio, " + portfolio.getName()
+					+ " needs a sub-account");
+		}
+		for (Portfolio other : portfolioRepository.findAll()) {
+			if (other.getTableId() != portfolio.getTableId() && account.equals(PortfolioScheduler.getAccount(other))) {
+				throw new ScratchException("The account " + account + " already belongs to " + other.getName());
+			}
+		}
+		return portfolioRepository.save(portfolio.setAccount(account));
 	}
 
 	public List<HoldingRatio> saveNewRatios(List<HoldingRatio> newDesiredRatios) {
+		return saveNewRatios(DEFAULT_PORTFOLIO, newDesiredRatios);
+	}
+
+	public List<HoldingRatio> saveNewRatios(long portfolioId, List<HoldingRatio> newDesiredRatios) {
+		newDesiredRatios.forEach(r -> r.setPortfolioId(portfolioId));
 		// Correct them so the percent adds up to 100%
 		List<HoldingRatio> correctedRatios = correctRatios(newDesiredRatios);
 		// Retrieve the existing ratios
-		List<HoldingRatio> existingRatios = getDesiredRatios();
+		List<HoldingRatio> existingRatios = getDesiredRatios(portfolioId);
 		// Update the correctedRatios with db ids if they have them
 		correctedRatios = loadIds(correctedRatios, existingRatios);
 		// Determine which items are not in the new list
@@ -63,7 +111,7 @@ public class BalancerServices {
 		// Add/update the database with the new list
 		repository.saveAll(correctedRatios);
 		// Retrieve the data from the database and pass it back to verify it's correct
-		return getDesiredRatios();
+		return getDesiredRatios(portfolioId);
 	}
 
 	public List<HoldingRatio> loadIds(List<HoldingRatio> newValues, List<HoldingRatio> existingValues) {
@@ -107,48 +155,42 @@ public class BalancerServices {
 		return orderHistoryRepository.findByStatus(OrderStatus.NEW.name());
 	}
 
-	public List<Order> getOrderStatuses(List<OrderHistory> ordersHistories) {
-		List<Order> orders = new ArrayList<>();
-		for (OrderHistory oh : ordersHistories) {
-			orders.add(accountServices.checkOrderStatus(oh.getSymbol(), oh.getClientOrderId()));
-		}
-		return orders;
+	public List<Order> getOrderStatuses(List<OrderHistory> ordersHistories) throws ScratchException {
+		return orderReconciler.getOrderStatuses(ordersHistories);
 	}
 
 	public void updateNewOrdersWithStatus() throws ScratchException {
-		try {
-			List<OrderHistory> orderHistories = getNewOrders();
-			List<Order> orders = getOrderStatuses(orderHistories);
-			List<OrderHistory> toSave = new ArrayList<>();
-			for (Order order : orders) {
-				OrderHistory oh = orderHistories.stream()
-						.filter(c -> c.getClientOrderId().equalsIgnoreCase(order.getClientOrderId()))
-						.findFirst().orElse(null);
-				if (oh != null) {
-					oh.setStatus(order.getStatus().name());
-					toSave.add(oh);
-				}
-			}
-			orderHistoryRepository.saveAll(toSave);
-		} catch (Exception ex) {
-			throw new ScratchException("Unable to udate status", ex);
-		}
+		orderReconciler.reconcile();
+	}
+
+	/**
+	 * @return the orders still open on the exchange, as of the last time they were checked
+	 */
+	public List<Order> getOpenOrders() throws ScratchException {
+		return orderReconciler.getLatest().getOpenOrders();
 	}
 
+	/**
+	 * Send the orders to the exchange at the same time
+	 *
+	 * @param items - the amount of each symbol to buy (positive) or sell (negative)
+	 * @return the responses from the exchange, in the same order as the items (null for orders that failed)
+	 */
 	public List<NewOrderResponse> createOrders(Map<String, Double> items) {
 		List<NewOrderResponse> orders = new ArrayList<>();
-		if (items == null || items.isEmpty()) {
-			return orders;
-		}
-		for (String ticker : items.keySet()) {
-			OrderSide os;
-			if (items.get(ticker) > 0) {
-				os = OrderSide.BUY;
-			} else {
-				os = OrderSide.SELL;
-			}
-			orders.add(accountServices.createMarketOrder(ticker, Math.abs(items.get(ticker)), os));
+		for (OrderDispatcher.OrderLeg leg : createOrderLegs(items)) {
+			orders.add(leg.getResponse());
 		}
 		return orders;
 	}
+
+	/**
+	 * Same as createOrders, but also says how long each order waited on the rate limits and took to send
+	 */
+	public List<OrderDispatcher.OrderLeg> createOrderLegs(Map<String, Double> items) {
+		if (items == null || items.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return orderDispatcher.dispatch(items);
+	}
 }
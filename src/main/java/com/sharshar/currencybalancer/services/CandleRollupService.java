@@ -0,0 +1,207 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.algorithms.PriceHistory;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.PriceCandle;
+import com.sharshar.currencybalancer.repository.PriceCandleRepository;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Rolls the raw prices in pricedata up into minute, hour and day candles, so the backtester can read one price an
+ * hour instead of every tick.
+ *
+ * Each run picks up where the last one left off. It starts over from the beginning of the last day candle of the
+ * ticker, since that day (and the hours and minutes in it) may not have been finished, deletes the candles from
+ * there on, and reads the ticks since then once to build all three resolutions together. If a run fails part way
+ * the next one starts from an earlier day, so nothing is missed.
+ *
+ * Runs every candles.rollup.interval ms for the symbols of the assets in holding_ratio, or when asked.
+ */
+@Service
+public class CandleRollupService {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private PriceDataSQLRepository priceDataRepository;
+
+	@Autowired
+	private PriceCandleRepository candleRepository;
+
+	@Autowired
+	private PriceDataHoldingRepository holdingRepository;
+
+	// How often to roll up the prices, in milliseconds. 0 to only roll up when asked.
+	@Value("${candles.rollup.interval:0}")
+	private long interval;
+
+	// The number of candles to save at once
+	@Value("${candles.batchSize:1000}")
+	private int batchSize;
+
+	@Value("${candles.baseCurrency:BTC}")
+	private String baseCurrency;
+
+	private ScheduledExecutorService scheduler;
+
+	public CandleRollupService() {
+	}
+
+	public CandleRollupService(PriceDataSQLRepository priceDataRepository, PriceCandleRepository candleRepository,
+							   PriceDataHoldingRepository holdingRepository, int batchSize) {
+		this.priceDataRepository = priceDataRepository;
+		this.candleRepository = candleRepository;
+		this.holdingRepository = holdingRepository;
+		this.batchSize = batchSize;
+		this.baseCurrency = "BTC";
+	}
+
+	@PostConstruct
+	public void init() {
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					rollupAll();
+				} catch (Exception ex) {
+					logger.error("Unable to roll up prices", ex);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Roll up the prices of the symbols the backtester reads for the assets we hold. A symbol that fails is
+	 * logged and tried again next time.
+	 *
+	 * @return the number of candles saved
+	 */
+	public int rollupAll() {
+		List<String> assets = new ArrayList<>();
+		for (HoldingRatio ratio : holdingRepository.findAll()) {
+			assets.add(ratio.getTicker());
+		}
+		assets.add(baseCurrency);
+		int total = 0;
+		for (String symbol : PriceHistory.getSymbols(assets, baseCurrency)) {
+			try {
+				total += rollup(symbol, new Date());
+			} catch (Exception ex) {
+				logger.error("Unable to roll up prices for " + symbol, ex);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Bring the candles of the ticker up to date
+	 *
+	 * @param ticker - the symbol, for example NEOBTC
+	 * @param until - roll up the prices before this time
+	 * @return the number of candles saved
+	 */
+	public synchronized int rollup(String ticker, Date until) {
+		String symbol = ticker.toUpperCase();
+		PriceCandle lastDay = candleRepository.findFirstByTickerAndResolutionOrderByBucketStartDesc(symbol,
+				PriceCandle.Resolution.DAY);
+		long from = lastDay == null ? 0 : lastDay.getBucketStart().getTime();
+		if (lastDay != null) {
+			candleRepository.deleteFrom(symbol, lastDay.getBucketStart());
+		}
+		List<PriceCandle> batch = new ArrayList<>();
+		int[] saved = new int[1];
+		Rollup rollup = new Rollup(symbol, c -> {
+			batch.add(c);
+			if (batch.size() >= batchSize) {
+				saved[0] += save(batch);
+			}
+		});
+		// The query leaves out both ends, so start just before the day
+		priceDataRepository.forEachByTicker(symbol, new Date(from - 1), until,
+				c -> rollup.add(c.getUpdateTime(), c.getPrice()));
+		rollup.finish();
+		saved[0] += save(batch);
+		if (saved[0] > 0) {
+			logger.debug("Saved " + saved[0] + " candles for " + symbol + " from " + new Date(from));
+		}
+		return saved[0];
+	}
+
+	private int save(List<PriceCandle> batch) {
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		candleRepository.saveAll(batch);
+		int size = batch.size();
+		batch.clear();
+		return size;
+	}
+
+	/**
+	 * Builds the candles of one ticker at every resolution from its ticks, which have to come in time order.
+	 * Each candle is passed on as soon as a tick from a later period shows up, and the rest when it's finished.
+	 */
+	static final class Rollup {
+		private final String ticker;
+		private final Consumer<PriceCandle> done;
+		private final PriceCandle[] current = new PriceCandle[PriceCandle.Resolution.values().length];
+
+		Rollup(String ticker, Consumer<PriceCandle> done) {
+			this.ticker = ticker;
+			this.done = done;
+		}
+
+		void add(Date updateTime, Double price) {
+			if (updateTime == null || price == null) {
+				return;
+			}
+			long time = updateTime.getTime();
+			for (PriceCandle.Resolution resolution : PriceCandle.Resolution.values()) {
+				int i = resolution.ordinal();
+				long bucketStart = resolution.getBucketStart(time);
+				PriceCandle candle = current[i];
+				if (candle != null && candle.getBucketStart().getTime() != bucketStart) {
+					done.accept(candle);
+					candle = null;
+				}
+				if (candle == null) {
+					current[i] = new PriceCandle().setTicker(ticker).setResolution(resolution)
+							.setBucketStart(new Date(bucketStart)).setOpenTime(updateTime).setOpen(price)
+							.setHigh(price).setLow(price).setClose(price).setCloseTime(updateTime).setTicks(1);
+				} else {
+					candle.setHigh(Math.max(candle.getHigh(), price)).setLow(Math.min(candle.getLow(), price))
+							.setClose(price).setCloseTime(updateTime).setTicks(candle.getTicks() + 1);
+				}
+			}
+		}
+
+		void finish() {
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] != null) {
+					done.accept(current[i]);
+					current[i] = null;
+				}
+			}
+		}
+	}
+}
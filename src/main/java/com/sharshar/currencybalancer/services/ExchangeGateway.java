@@ -0,0 +1,71 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderSide;
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.binance.api.client.domain.account.Order;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.utils.ScratchException;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Everything we need from an exchange: our balances, the prices, and placing and checking orders. The Binance
+ * order objects are used for every exchange, since they're what the rest of the application already works with.
+ *
+ * BinanceAccountServices goes to Binance, and SimulatedExchange does it all in memory, for tests and for seeing how
+ * fast the rest of the application can go (exchange.simulated).
+ */
+public interface ExchangeGateway {
+
+	/**
+	 * @return everything the account holds, including assets with nothing in them
+	 */
+	List<OwnedAsset> getBalances();
+
+	/**
+	 * @return the assets the account holds some of
+	 */
+	default List<OwnedAsset> getBalancesWithValues() {
+		return getBalances().stream()
+				.filter(c -> c.getFree() > 0.00001 || c.getLocked() > 0.00001)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the current price of every symbol, indexed by symbol
+	 */
+	PriceSnapshot getPriceSnapshot();
+
+	/**
+	 * @param symbol - the symbol, for example NEOBTC
+	 * @param amount - the amount of the asset to buy or sell
+	 * @param side - whether to buy or sell
+	 * @return what the exchange said, or null if the order failed
+	 */
+	NewOrderResponse createMarketOrder(String symbol, double amount, OrderSide side);
+
+	/**
+	 * @return the order, as the exchange has it now
+	 */
+	Order checkOrderStatus(String symbol, String clientOrderId);
+
+	/**
+	 * @return all the orders for the symbol that haven't finished yet, in one request
+	 */
+	List<Order> getOpenOrders(String symbol);
+
+	/**
+	 * @return every order for the symbol, finished or not
+	 */
+	List<Order> getAllMyOrders(String symbol);
+
+	/**
+	 * @param account - the name of a sub-account, or empty for this account
+	 * @return the same exchange, working with the sub-account. Requests from every account count against the same
+	 * rate limit, since the exchange limits them all together.
+	 * @throws ScratchException if the sub-account isn't set up
+	 */
+	ExchangeGateway forAccount(String account) throws ScratchException;
+}
@@ -0,0 +1,81 @@
+package com.sharshar.currencybalancer.services;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest price of a fixed set of symbols. Each symbol gets an index when the table is created, and the prices
+ * are kept in atomic arrays, so any number of threads can update and read it without locking. Each symbol is
+ * expected to be updated by one thread at a time, which is how the streams deliver them.
+ */
+public class LatestPriceTable {
+	private final String[] symbols;
+	private final Map<String, Integer> indexBySymbol = new HashMap<>();
+	private final AtomicLongArray priceBits;
+	private final AtomicLongArray times;
+
+	public LatestPriceTable(List<String> symbols) {
+		this.symbols = new String[symbols.size()];
+		this.priceBits = new AtomicLongArray(symbols.size());
+		this.times = new AtomicLongArray(symbols.size());
+		for (int i = 0; i < symbols.size(); i++) {
+			this.symbols[i] = symbols.get(i).toUpperCase();
+			indexBySymbol.put(this.symbols[i], i);
+			priceBits.set(i, Double.doubleToRawLongBits(Double.NaN));
+		}
+	}
+
+	public int size() {
+		return symbols.length;
+	}
+
+	public String getSymbol(int index) {
+		return symbols[index];
+	}
+
+	/**
+	 * @param symbol - the symbol, upper case
+	 * @return the index of the symbol, or -1 if it isn't in the table
+	 */
+	public int indexOf(String symbol) {
+		Integer index = indexBySymbol.get(symbol);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Set the price of a symbol, unless we already have a newer one
+	 *
+	 * @param index - the index of the symbol
+	 * @param price - the price
+	 * @param time - when the price changed, in milliseconds
+	 * @return true if the price is different than it was
+	 */
+	public boolean update(int index, double price, long time) {
+		long lastTime;
+		do {
+			lastTime = times.get(index);
+			if (time < lastTime) {
+				// Out of order, we already have something newer
+				return false;
+			}
+		} while (!times.compareAndSet(index, lastTime, time));
+		long bits = Double.doubleToRawLongBits(price);
+		return priceBits.getAndSet(index, bits) != bits;
+	}
+
+	/**
+	 * @return the latest price, or NaN if we don't have one yet
+	 */
+	public double getPrice(int index) {
+		return Double.longBitsToDouble(priceBits.get(index));
+	}
+
+	/**
+	 * @return when the latest price changed, or 0 if we don't have one yet
+	 */
+	public long getTime(int index) {
+		return times.get(index);
+	}
+}
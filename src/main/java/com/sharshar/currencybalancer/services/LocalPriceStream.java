@@ -0,0 +1,48 @@
+package com.sharshar.currencybalancer.services;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A price stream we push prices into ourselves. Used by tests and simulations in place of the exchange. Prices are
+ * delivered on the thread that publishes them.
+ */
+public class LocalPriceStream implements PriceStream {
+
+	private static class Subscription {
+		private final Set<String> symbols = new HashSet<>();
+		private final PriceListener listener;
+
+		Subscription(Collection<String> symbols, PriceListener listener) {
+			symbols.forEach(c -> this.symbols.add(c.toUpperCase()));
+			this.listener = listener;
+		}
+	}
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	@Override
+	public void subscribe(Collection<String> symbols, PriceListener listener) {
+		subscriptions.add(new Subscription(symbols, listener));
+	}
+
+	/**
+	 * Send a price to everyone subscribed to the symbol
+	 */
+	public void publish(String symbol, double price, long time) {
+		String upperSymbol = symbol.toUpperCase();
+		for (Subscription subscription : subscriptions) {
+			if (subscription.symbols.contains(upperSymbol)) {
+				subscription.listener.onPrice(upperSymbol, price, time);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		subscriptions.clear();
+	}
+}
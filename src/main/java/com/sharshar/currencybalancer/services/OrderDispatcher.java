@@ -0,0 +1,174 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderSide;
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.sharshar.currencybalancer.utils.TokenBucket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends a set of orders to the exchange at the same time instead of one after the other, while keeping under the
+ * exchange's limits on request weight and orders per second.
+ */
+@Service
+public class OrderDispatcher {
+	private Logger logger = LogManager.getLogger();
+
+	// Binance counts a new order as a weight of 1, the account information as 5 and all the prices as 2
+	public static final int ORDER_WEIGHT = 1;
+	public static final int ACCOUNT_WEIGHT = 5;
+	public static final int ALL_PRICES_WEIGHT = 2;
+
+	@Autowired
+	private ExchangeGateway exchange;
+
+	@Value("${orders.threads:4}")
+	private int threads;
+
+	@Value("${orders.maxPerSecond:10}")
+	private int maxOrdersPerSecond;
+
+	@Value("${orders.maxWeightPerMinute:1200}")
+	private int maxWeightPerMinute;
+
+	private ExecutorService executor;
+	private TokenBucket orderLimit;
+	private TokenBucket weightLimit;
+
+	/**
+	 * What happened to one order
+	 */
+	public static class OrderLeg {
+		private final String symbol;
+		private final OrderSide side;
+		private final double amount;
+		private NewOrderResponse response;
+		private long waitMillis;
+		private long latencyMillis;
+
+		OrderLeg(String symbol, OrderSide side, double amount) {
+			this.symbol = symbol;
+			this.side = side;
+			this.amount = amount;
+		}
+
+		public String getSymbol() {
+			return symbol;
+		}
+
+		public OrderSide getSide() {
+			return side;
+		}
+
+		public double getAmount() {
+			return amount;
+		}
+
+		// null if the order failed
+		public NewOrderResponse getResponse() {
+			return response;
+		}
+
+		// How long the order waited on the rate limits
+		public long getWaitMillis() {
+			return waitMillis;
+		}
+
+		// How long the order took once it was sent, including saving it
+		public long getLatencyMillis() {
+			return latencyMillis;
+		}
+	}
+
+	public OrderDispatcher() {
+	}
+
+	public OrderDispatcher(ExchangeGateway exchange, int threads, int maxOrdersPerSecond,
+						   int maxWeightPerMinute) {
+		this.exchange = exchange;
+		this.threads = threads;
+		this.maxOrdersPerSecond = maxOrdersPerSecond;
+		this.maxWeightPerMinute = maxWeightPerMinute;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		orderLimit = new TokenBucket(maxOrdersPerSecond, maxOrdersPerSecond);
+		weightLimit = new TokenBucket(maxWeightPerMinute, maxWeightPerMinute / 60.0);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the request weight left before we'd have to wait
+	 */
+	public double getAvailableWeight() {
+		return weightLimit.getAvailable();
+	}
+
+	/**
+	 * Take request weight for something other than an order, so it's counted against the same limit
+	 *
+	 * @param weight - the weight of the request
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquireWeight(int weight) throws InterruptedException {
+		weightLimit.acquire(weight);
+	}
+
+	/**
+	 * Send all the orders at once and wait for them to finish
+	 *
+	 * @param items - the amount of each symbol to buy (positive) or sell (negative)
+	 * @return what happened to each order
+	 */
+	public List<OrderLeg> dispatch(Map<String, Double> items) {
+		List<OrderLeg> legs = new ArrayList<>();
+		List<Future<OrderLeg>> futures = new ArrayList<>();
+		for (Map.Entry<String, Double> item : items.entrySet()) {
+			OrderSide side = item.getValue() > 0 ? OrderSide.BUY : OrderSide.SELL;
+			OrderLeg leg = new OrderLeg(item.getKey(), side, Math.abs(item.getValue()));
+			legs.add(leg);
+			futures.add(executor.submit(() -> send(leg)));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted waiting for " + legs.get(i).getSymbol(), ex);
+			} catch (ExecutionException ex) {
+				logger.error("Unable to " + legs.get(i).getSide() + " " + legs.get(i).getSymbol(), ex.getCause());
+			}
+		}
+		return legs;
+	}
+
+	private OrderLeg send(OrderLeg leg) throws InterruptedException {
+		leg.waitMillis = orderLimit.acquire(1) + weightLimit.acquire(ORDER_WEIGHT);
+		long start = System.nanoTime();
+		leg.response = exchange.createMarketOrder(leg.symbol, leg.amount, leg.side);
+		leg.latencyMillis = (System.nanoTime() - start) / 1000000L;
+		logger.info(leg.side + " " + leg.amount + " of " + leg.symbol + " took " + leg.latencyMillis
+				+ " ms after waiting " + leg.waitMillis + " ms");
+		return leg;
+	}
+}
@@ -0,0 +1,308 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderStatus;
+import com.binance.api.client.domain.account.Order;
+import com.sharshar.currencybalancer.beans.OrderHistory;
+import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the order history up to date with the exchange in the background, so the open orders can be looked up
+ * without waiting on the exchange.
+ *
+ * Instead of asking for each order we think is open, it asks for all the open orders of each symbol at once, and
+ * only asks about an order on its own once it's no longer open, to find out how it ended. The symbols are checked
+ * at the same time, a few at a time, and the request weight counts against the same limit as the orders.
+ */
+@Service
+public class OrderReconciler {
+	private Logger logger = LogManager.getLogger();
+
+	// Binance counts the open orders for one symbol, and the status of one order, as a weight of 1
+	public static final int OPEN_ORDERS_WEIGHT = 1;
+	public static final int ORDER_STATUS_WEIGHT = 1;
+
+	// The statuses of orders that haven't finished yet
+	private static final List<String> OPEN_STATUSES =
+			Arrays.asList(OrderStatus.NEW.name(), OrderStatus.PARTIALLY_FILLED.name());
+
+	@Autowired
+	private OrderHistoryRepository orderHistoryRepository;
+
+	@Autowired
+	private ExchangeGateway exchange;
+
+	@Autowired
+	private OrderDispatcher orderDispatcher;
+
+	// Where the time it took orders to fill goes, the global registry if there isn't one
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+	@Value("${orders.reconcile.threads:4}")
+	private int threads;
+
+	// How often to check, in milliseconds. 0 to only check when asked.
+	@Value("${orders.reconcile.interval:60000}")
+	private long interval;
+
+	private ExecutorService executor;
+	private ScheduledExecutorService scheduler;
+	private volatile Reconciliation latest;
+
+	/**
+	 * The result of checking the orders
+	 */
+	public static class Reconciliation {
+		private final List<Order> openOrders;
+		private final int checked;
+		private final int updated;
+		private final Date checkedTime;
+
+		Reconciliation(List<Order> openOrders, int checked, int updated, Date checkedTime) {
+			this.openOrders = Collections.unmodifiableList(openOrders);
+			this.checked = checked;
+			this.updated = updated;
+			this.checkedTime = checkedTime;
+		}
+
+		// The orders that are still open on the exchange
+		public List<Order> getOpenOrders() {
+			return openOrders;
+		}
+
+		// The number of orders we thought were open
+		public int getChecked() {
+			return checked;
+		}
+
+		// The number of orders whose status changed
+		public int getUpdated() {
+			return updated;
+		}
+
+		public Date getCheckedTime() {
+			return checkedTime;
+		}
+	}
+
+	public OrderReconciler() {
+	}
+
+	public OrderReconciler(OrderHistoryRepository orderHistoryRepository, ExchangeGateway exchange,
+						   OrderDispatcher orderDispatcher, int threads) {
+		this.orderHistoryRepository = orderHistoryRepository;
+		this.exchange = exchange;
+		this.orderDispatcher = orderDispatcher;
+		this.threads = threads;
+		init();
+	}
+
+	public OrderReconciler setMeterRegistry(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		return this;
+	}
+
+	@PostConstruct
+	public void init() {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					reconcile();
+				} catch (Exception ex) {
+					logger.error("Unable to check orders", ex);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the orders we think are open
+	 */
+	public List<OrderHistory> getOpenOrderHistories() {
+		List<OrderHistory> histories = new ArrayList<>();
+		for (String status : OPEN_STATUSES) {
+			histories.addAll(orderHistoryRepository.findByStatus(status));
+		}
+		return histories;
+	}
+
+	/**
+	 * @return the last result, checking now if there isn't one yet
+	 */
+	public Reconciliation getLatest() throws ScratchException {
+		Reconciliation result = latest;
+		if (result == null) {
+			result = reconcile();
+		}
+		return result;
+	}
+
+	/**
+	 * Check the orders we think are open against the exchange and save the ones whose status changed
+	 *
+	 * @return what was found
+	 */
+	public synchronized Reconciliation reconcile() throws ScratchException {
+		long checkedTime = System.currentTimeMillis();
+		List<OrderHistory> histories = getOpenOrderHistories();
+		Map<String, Map<String, OrderHistory>> bySymbol = new HashMap<>();
+		for (OrderHistory oh : histories) {
+			if (oh.getClientOrderId() != null) {
+				bySymbol.computeIfAbsent(oh.getSymbol(), k -> new HashMap<>()).put(oh.getClientOrderId(), oh);
+			}
+		}
+		List<Future<Map<String, Order>>> futures = new ArrayList<>();
+		for (Map.Entry<String, Map<String, OrderHistory>> symbol : bySymbol.entrySet()) {
+			futures.add(executor.submit(() -> checkSymbol(symbol.getKey(), symbol.getValue().keySet())));
+		}
+		List<Order> openOrders = new ArrayList<>();
+		List<OrderHistory> toSave = new ArrayList<>();
+		int i = 0;
+		for (Map.Entry<String, Map<String, OrderHistory>> symbol : bySymbol.entrySet()) {
+			Map<String, Order> orders;
+			try {
+				orders = getResult(futures.get(i++));
+			} catch (ScratchException ex) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw ex;
+				}
+				// Try again next time
+				logger.error("Unable to check orders for " + symbol.getKey(), ex);
+				continue;
+			}
+			Map<String, OrderHistory> symbolHistories = symbol.getValue();
+			for (Map.Entry<String, Order> entry : orders.entrySet()) {
+				Order order = entry.getValue();
+				OrderHistory oh = symbolHistories.get(entry.getKey());
+				if (order.getStatus() == null) {
+					continue;
+				}
+				if (!order.getStatus().name().equals(oh.getStatus())) {
+					toSave.add(oh.setStatus(order.getStatus().name()));
+					if (order.getStatus() == OrderStatus.FILLED) {
+						recordFill(oh, checkedTime);
+					}
+				}
+				if (OPEN_STATUSES.contains(order.getStatus().name())) {
+					openOrders.add(order);
+				}
+			}
+		}
+		if (!toSave.isEmpty()) {
+			try {
+				orderHistoryRepository.saveAll(toSave);
+			} catch (Exception ex) {
+				throw new ScratchException("Unable to update status", ex);
+			}
+		}
+		logger.info("Checked " + histories.size() + " orders in " + bySymbol.size() + " symbols, "
+				+ toSave.size() + " changed, " + openOrders.size() + " still open");
+		Reconciliation result = new Reconciliation(openOrders, histories.size(), toSave.size(), new Date());
+		latest = result;
+		return result;
+	}
+
+	/**
+	 * Look up the status of each order, a few at a time
+	 *
+	 * @param histories - the orders to look up
+	 * @return the status of each, in the same order
+	 * @throws ScratchException if any of them couldn't be looked up
+	 */
+	public List<Order> getOrderStatuses(List<OrderHistory> histories) throws ScratchException {
+		List<Future<Order>> futures = new ArrayList<>();
+		for (OrderHistory oh : histories) {
+			futures.add(executor.submit(() -> checkOrder(oh.getSymbol(), oh.getClientOrderId())));
+		}
+		List<Order> orders = new ArrayList<>();
+		for (Future<Order> future : futures) {
+			orders.add(getResult(future));
+		}
+		return orders;
+	}
+
+	/**
+	 * @return the orders for the symbol, by client order id
+	 */
+	private Map<String, Order> checkSymbol(String symbol, Set<String> clientOrderIds) throws InterruptedException {
+		Map<String, Order> found = new HashMap<>();
+		orderDispatcher.acquireWeight(OPEN_ORDERS_WEIGHT);
+		List<Order> open = exchange.getOpenOrders(symbol);
+		if (open != null) {
+			for (Order order : open) {
+				if (clientOrderIds.contains(order.getClientOrderId())) {
+					found.put(order.getClientOrderId(), order);
+				}
+			}
+		}
+		// The rest have finished, find out how
+		for (String clientOrderId : clientOrderIds) {
+			if (!found.containsKey(clientOrderId)) {
+				try {
+					Order order = checkOrder(symbol, clientOrderId);
+					if (order != null) {
+						found.put(clientOrderId, order);
+					}
+				} catch (RuntimeException ex) {
+					logger.error("Unable to check order " + clientOrderId + " for " + symbol, ex);
+				}
+			}
+		}
+		return found;
+	}
+
+	private Order checkOrder(String symbol, String clientOrderId) throws InterruptedException {
+		orderDispatcher.acquireWeight(ORDER_STATUS_WEIGHT);
+		return exchange.checkOrderStatus(symbol, clientOrderId);
+	}
+
+	/**
+	 * Record how long the order took to fill, from when the exchange took it until we saw it was filled. We only
+	 * look every so often, so it's at most the interval longer than it really took.
+	 */
+	private void recordFill(OrderHistory oh, long checkedTime) {
+		if (oh.getTransactTime() <= 0 || checkedTime < oh.getTransactTime()) {
+			return;
+		}
+		Timer.builder("orders.fill.latency")
+				.tag("side", oh.getSide() == null ? "unknown" : oh.getSide())
+				.publishPercentileHistogram()
+				.register(meterRegistry)
+				.record(checkedTime - oh.getTransactTime(), TimeUnit.MILLISECONDS);
+	}
+
+	private static <T> T getResult(Future<T> future) throws ScratchException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ScratchException("Interrupted checking orders", ex);
+		} catch (ExecutionException ex) {
+			throw new ScratchException("Unable to check orders", ex.getCause());
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.algorithms.DriftTracker;
+import com.sharshar.currencybalancer.algorithms.PortfolioKernel;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.Portfolio;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.PortfolioRepository;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps track of the drift of every portfolio. Each check gets the prices once from the shared price feed, and
+ * the balances once for each account, so adding portfolios doesn't add requests to the exchange and adding an
+ * account only adds the one request for its balances. The accounts are checked at the same time, a few at a time,
+ * and an account or portfolio that can't be checked doesn't stop the others.
+ *
+ * Each portfolio has a sub-account to itself, since everything in the account counts as its holdings. The main
+ * account is the default portfolio's, which CurrencyBalancer and RebalanceScheduler look after. A portfolio on the
+ * main account, or on an account an earlier portfolio has, isn't tracked.
+ *
+ * This only reports the drift. Nothing places orders for these portfolios yet; only the default portfolio is
+ * rebalanced.
+ *
+ * The portfolios and their ratios are read from the database on the first check and on reload(). Each portfolio
+ * keeps its own drift tracker, so a check only goes over the prices and amounts that changed.
+ */
+@Service
+public class PortfolioScheduler {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private PortfolioRepository portfolioRepository;
+
+	@Autowired
+	private PriceDataHoldingRepository holdingRepository;
+
+	@Autowired
+	private ExchangeGateway exchange;
+
+	@Autowired
+	private PriceFeedService priceFeed;
+
+	@Autowired
+	private OrderDispatcher orderDispatcher;
+
+	@Value("${portfolios.threads:8}")
+	private int threads;
+
+	// How often to check, in milliseconds. 0 to only check when asked.
+	@Value("${portfolios.interval:0}")
+	private long interval;
+
+	private ExecutorService executor;
+	private ScheduledExecutorService scheduler;
+
+	// The portfolios being tracked, and the ones that couldn't be, null until they're loaded
+	private List<TrackedPortfolio> tracked;
+	private List<PortfolioStatus> invalid;
+	private volatile PortfolioCheck latest;
+
+	/**
+	 * Where one portfolio stood at the last check
+	 */
+	public static class PortfolioStatus {
+		private final long portfolioId;
+		private final String name;
+		private final String account;
+		private final double totalValue;
+		private final double driftPercent;
+		private final double maxSingleDrift;
+		private final boolean shouldBalance;
+		private final String error;
+
+		PortfolioStatus(Portfolio portfolio, double totalValue, double driftPercent, double maxSingleDrift,
+						boolean shouldBalance) {
+			this(portfolio, totalValue, driftPercent, maxSingleDrift, shouldBalance, null);
+		}
+
+		PortfolioStatus(Portfolio portfolio, String error) {
+			this(portfolio, 0.0, 0.0, 0.0, false, error);
+		}
+
+		private PortfolioStatus(Portfolio portfolio, double totalValue, double driftPercent, double maxSingleDrift,
+								boolean shouldBalance, String error) {
+			this.portfolioId = portfolio.getTableId();
+			this.name = portfolio.getName();
+			this.account = portfolio.getAccount();
+			this.totalValue = totalValue;
+			this.driftPercent = driftPercent;
+			this.maxSingleDrift = maxSingleDrift;
+			this.shouldBalance = shouldBalance;
+			this.error = error;
+		}
+
+		public long getPortfolioId() {
+			return portfolioId;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getAccount() {
+			return account;
+		}
+
+		// In the base currency
+		public double getTotalValue() {
+			return totalValue;
+		}
+
+		public double getDriftPercent() {
+			return driftPercent;
+		}
+
+		public double getMaxSingleDrift() {
+			return maxSingleDrift;
+		}
+
+		public boolean isShouldBalance() {
+			return shouldBalance;
+		}
+
+		// Why the portfolio couldn't be checked, null if it was
+		public String getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * The result of checking every portfolio
+	 */
+	public static class PortfolioCheck {
+		private final List<PortfolioStatus> statuses;
+		private final int accounts;
+		private final Date checkedTime;
+		private final Date priceTime;
+		private final long elapsed;
+
+		PortfolioCheck(List<PortfolioStatus> statuses, int accounts, Date checkedTime, Date priceTime, long elapsed) {
+			this.statuses = Collections.unmodifiableList(statuses);
+			this.accounts = accounts;
+			this.checkedTime = checkedTime;
+			this.priceTime = priceTime;
+			this.elapsed = elapsed;
+		}
+
+		// By portfolio id
+		public List<PortfolioStatus> getStatuses() {
+			return statuses;
+		}
+
+		// The number of accounts whose balances were loaded
+		public int getAccounts() {
+			return accounts;
+		}
+
+		public Date getCheckedTime() {
+			return checkedTime;
+		}
+
+		// When the prices used were from
+		public Date getPriceTime() {
+			return priceTime;
+		}
+
+		// How long the check took, in milliseconds
+		public long getElapsed() {
+			return elapsed;
+		}
+	}
+
+	/**
+	 * A portfolio with its ratios set up to do the math over arrays, and its drift as of the last check. Only
+	 * looked at by one thread at a time, the one checking its account.
+	 */
+	private static class TrackedPortfolio {
+		private final Portfolio portfolio;
+		private final PortfolioKernel kernel;
+		private final DriftTracker driftTracker;
+		private final double[] values;
+		private PriceSnapshot trackedPrices;
+
+		TrackedPortfolio(Portfolio portfolio, List<HoldingRatio> ratios) {
+			this.portfolio = portfolio;
+			this.kernel = new PortfolioKernel(ratios, "BTC");
+			this.driftTracker = new DriftTracker(kernel);
+			this.values = new double[kernel.size()];
+		}
+
+		PortfolioStatus check(List<OwnedAsset> balances, PriceSnapshot prices) {
+			// The prices are the same object for every portfolio until the feed refreshes them
+			if (prices != trackedPrices) {
+				kernel.loadPrices(prices, values);
+				for (int i = 0; i < values.length; i++) {
+					driftTracker.setPrice(i, values[i]);
+				}
+				trackedPrices = prices;
+			}
+			kernel.loadAmounts(balances, values);
+			for (int i = 0; i < values.length; i++) {
+				driftTracker.setAmount(i, values[i]);
+			}
+			return new PortfolioStatus(portfolio, driftTracker.getTotalValue(), driftTracker.getDriftPercent(),
+					driftTracker.getMaxSingleDrift(),
+					driftTracker.shouldBalance(portfolio.getMinDrift(), portfolio.getMinSingleDrift()));
+		}
+	}
+
+	public PortfolioScheduler() {
+	}
+
+	public PortfolioScheduler(PortfolioRepository portfolioRepository, PriceDataHoldingRepository holdingRepository,
+							  ExchangeGateway exchange, PriceFeedService priceFeed, OrderDispatcher orderDispatcher,
+							  int threads) {
+		this.portfolioRepository = portfolioRepository;
+		this.holdingRepository = holdingRepository;
+		this.exchange = exchange;
+		this.priceFeed = priceFeed;
+		this.orderDispatcher = orderDispatcher;
+		this.threads = threads;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					check();
+				} catch (Exception ex) {
+					logger.error("Unable to check the portfolios", ex);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Read the portfolios and their ratios from the database again, in two queries however many there are
+	 */
+	public synchronized void reload() {
+		Map<Long, List<HoldingRatio>> ratiosByPortfolio = new HashMap<>();
+		for (HoldingRatio ratio : holdingRepository.findAll()) {
+			ratiosByPortfolio.computeIfAbsent(ratio.getPortfolioId(), k -> new ArrayList<>()).add(ratio);
+		}
+		List<TrackedPortfolio> newTracked = new ArrayList<>();
+		List<PortfolioStatus> newInvalid = new ArrayList<>();
+		// Which portfolio has each account, the first one saved keeps it
+		Map<String, Portfolio> byAccount = new HashMap<>();
+		List<Portfolio> portfolios = new ArrayList<>();
+		portfolioRepository.findAll().forEach(portfolios::add);
+		portfolios.sort(Comparator.comparingLong(Portfolio::getTableId));
+		for (Portfolio portfolio : portfolios) {
+			List<HoldingRatio> ratios = ratiosByPortfolio.get(portfolio.getTableId());
+			double total = ratios == null ? 0.0 : ratios.stream().mapToDouble(HoldingRatio::getPercent).sum();
+			String account = getAccount(portfolio);
+			Portfolio owner = byAccount.putIfAbsent(account, portfolio);
+			if (account.isEmpty()) {
+				newInvalid.add(new PortfolioStatus(portfolio, "The main account belongs to the default portfolio"));
+			} else if (owner != null) {
+				newInvalid.add(new PortfolioStatus(portfolio, "The account belongs to " + owner.getName()));
+			} else if (ratios == null || ratios.isEmpty()) {
+				newInvalid.add(new PortfolioStatus(portfolio, "No holding ratios found"));
+			} else if (Math.abs(1.0 - total) > 0.0001) {
+				newInvalid.add(new PortfolioStatus(portfolio, "Holdings should add up to 1"));
+			} else {
+				newTracked.add(new TrackedPortfolio(portfolio, ratios));
+			}
+		}
+		tracked = newTracked;
+		invalid = newInvalid;
+		logger.info("Tracking " + tracked.size() + " portfolios, " + invalid.size() + " can't be tracked");
+	}
+
+	/**
+	 * @return the last result, checking now if there isn't one yet
+	 */
+	public PortfolioCheck getLatest() throws ScratchException {
+		PortfolioCheck result = latest;
+		if (result == null) {
+			result = check();
+		}
+		return result;
+	}
+
+	/**
+	 * Work out the drift of every portfolio with the current prices and balances
+	 *
+	 * @return where each portfolio stands
+	 * @throws ScratchException if the prices can't be loaded, or we're interrupted
+	 */
+	public synchronized PortfolioCheck check() throws ScratchException {
+		long start = System.currentTimeMillis();
+		if (tracked == null) {
+			reload();
+		}
+		PriceSnapshot prices = priceFeed.getPriceSnapshot();
+		if (prices == null || prices.isEmpty()) {
+			throw new ScratchException("Unable to load the prices");
+		}
+		Map<String, List<TrackedPortfolio>> byAccount = new LinkedHashMap<>();
+		for (TrackedPortfolio portfolio : tracked) {
+			byAccount.computeIfAbsent(getAccount(portfolio.portfolio), k -> new ArrayList<>()).add(portfolio);
+		}
+		Map<String, Future<List<PortfolioStatus>>> futures = new LinkedHashMap<>();
+		for (Map.Entry<String, List<TrackedPortfolio>> account : byAccount.entrySet()) {
+			futures.put(account.getKey(),
+					executor.submit(() -> checkAccount(account.getKey(), account.getValue(), prices)));
+		}
+		List<PortfolioStatus> statuses = new ArrayList<>(invalid);
+		for (Map.Entry<String, Future<List<PortfolioStatus>>> future : futures.entrySet()) {
+			try {
+				statuses.addAll(future.getValue().get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new ScratchException("Interrupted checking the portfolios", ex);
+			} catch (ExecutionException ex) {
+				// Only the portfolios in this account miss out
+				logger.error("Unable to check the account " + future.getKey(), ex.getCause());
+				for (TrackedPortfolio portfolio : byAccount.get(future.getKey())) {
+					statuses.add(new PortfolioStatus(portfolio.portfolio, "Unable to load the balances: "
+							+ ex.getCause().getMessage()));
+				}
+			}
+		}
+		statuses.sort(Comparator.comparingLong(PortfolioStatus::getPortfolioId));
+		PortfolioCheck result = new PortfolioCheck(statuses, byAccount.size(), new Date(start),
+				prices.getUpdateTime(), System.currentTimeMillis() - start);
+		latest = result;
+		return result;
+	}
+
+	/**
+	 * Load the balances of the account once and check each of its portfolios against them
+	 */
+	private List<PortfolioStatus> checkAccount(String account, List<TrackedPortfolio> portfolios,
+											   PriceSnapshot prices) throws ScratchException, InterruptedException {
+		orderDispatcher.acquireWeight(OrderDispatcher.ACCOUNT_WEIGHT);
+		List<OwnedAsset> balances = exchange.forAccount(account).getBalancesWithValues();
+		List<PortfolioStatus> statuses = new ArrayList<>();
+		for (TrackedPortfolio portfolio : portfolios) {
+			try {
+				statuses.add(portfolio.check(balances, prices));
+			} catch (Exception ex) {
+				logger.error("Unable to check " + portfolio.portfolio, ex);
+				statuses.add(new PortfolioStatus(portfolio.portfolio, ex.getMessage()));
+			}
+		}
+		return statuses;
+	}
+
+	static String getAccount(Portfolio portfolio) {
+		return portfolio.getAccount() == null ? "" : portfolio.getAccount().trim();
+	}
+}
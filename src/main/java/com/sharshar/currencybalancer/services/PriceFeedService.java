@@ -0,0 +1,318 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Shares the prices from the exchange between everything that needs them. The last snapshot is handed out until it
+ * is older than prices.maxAge milliseconds, and when it does need refreshing, callers that ask at the same time all
+ * wait on the one request instead of each making their own.
+ *
+ * If the exchange can't be reached (or sends no prices), the last snapshot is handed out until it is older than
+ * prices.maxStaleAge, and after that the failure is thrown. Callers can tell how old the prices they got are from
+ * the snapshot's update time.
+ *
+ * Loading the prices takes its request weight from the order dispatcher's limit, so the prices count against the
+ * same budget as the balances and orders of whoever asked for them.
+ *
+ * The stats are also in the meter registry, as prices.requests by result (hit, miss or coalesced), prices.failures
+ * and prices.age.
+ */
+@Service
+public class PriceFeedService {
+	private Logger logger = LogManager.getLogger();
+
+	@Autowired
+	private ExchangeGateway exchange;
+
+	// Where the request weight comes from, none is counted if there isn't one
+	@Autowired(required = false)
+	private OrderDispatcher orderDispatcher;
+
+	// Where the stats go, the global registry if there isn't one
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+	@Value("${prices.maxAge:" + ScratchConstants.MAX_EXCHANGE_DOWN_TIME + "}")
+	private long maxAge;
+
+	// The oldest the prices can be, in milliseconds, to keep using them when they can't be refreshed
+	@Value("${prices.maxStaleAge:300000}")
+	private long maxStaleAge = 300000;
+
+	private final AtomicReference<CachedSnapshot> current = new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<CachedSnapshot>> inFlight = new AtomicReference<>();
+
+	private final List<Consumer<PriceSnapshot>> listeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private static class CachedSnapshot {
+		private final PriceSnapshot snapshot;
+		private final long loadedAt;
+
+		CachedSnapshot(PriceSnapshot snapshot, long loadedAt) {
+			this.snapshot = snapshot;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * How well the cache is doing
+	 */
+	public static class PriceFeedStats {
+		private final long hits;
+		private final long misses;
+		private final long coalesced;
+		private final long failures;
+		private final long age;
+
+		PriceFeedStats(long hits, long misses, long coalesced, long failures, long age) {
+			this.hits = hits;
+			this.misses = misses;
+			this.coalesced = coalesced;
+			this.failures = failures;
+			this.age = age;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		// The number of times the prices were loaded from the exchange
+		public long getMisses() {
+			return misses;
+		}
+
+		// The number of callers that waited on another caller's refresh instead of making their own
+		public long getCoalesced() {
+			return coalesced;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		// Milliseconds since the current prices were loaded, or -1 if none have been
+		public long getAge() {
+			return age;
+		}
+	}
+
+	/**
+	 * Be told about each set of prices loaded from the exchange. The listener is called on the thread that loaded
+	 * them, after the callers waiting on them have them, so it shouldn't take long.
+	 */
+	public PriceFeedService addListener(Consumer<PriceSnapshot> listener) {
+		listeners.add(listener);
+		return this;
+	}
+
+	public PriceFeedService removeListener(Consumer<PriceSnapshot> listener) {
+		listeners.remove(listener);
+		return this;
+	}
+
+	public PriceFeedService setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+		return this;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public PriceFeedService setOrderDispatcher(OrderDispatcher orderDispatcher) {
+		this.orderDispatcher = orderDispatcher;
+		return this;
+	}
+
+	public PriceFeedService setMeterRegistry(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		registerMeters();
+		return this;
+	}
+
+	public PriceFeedService setMaxStaleAge(long maxStaleAge) {
+		this.maxStaleAge = maxStaleAge;
+		return this;
+	}
+
+	@PostConstruct
+	public void registerMeters() {
+		registerRequests("hit", hits);
+		registerRequests("miss", misses);
+		registerRequests("coalesced", coalesced);
+		FunctionCounter.builder("prices.failures", failures, AtomicLong::get)
+				.description("Times the prices couldn't be loaded from the exchange")
+				.register(meterRegistry);
+		Gauge.builder("prices.age", this, PriceFeedService::getAge)
+				.description("Milliseconds since the current prices were loaded, or -1 if none have been")
+				.baseUnit("milliseconds")
+				.register(meterRegistry);
+	}
+
+	private void registerRequests(String result, AtomicLong count) {
+		FunctionCounter.builder("prices.requests", count, AtomicLong::get)
+				.description("Requests for prices, by whether they were cached, loaded or waited on another load")
+				.tag("result", result)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * @return prices no older than prices.maxAge, loading them from the exchange if needed
+	 */
+	public PriceSnapshot getPriceSnapshot() {
+		return getPriceSnapshot(maxAge);
+	}
+
+	/**
+	 * @param maxAge - the oldest (in milliseconds) the prices can be
+	 * @return prices no older than maxAge, loading them from the exchange if needed. If they can't be loaded, the
+	 * last prices if they're no older than prices.maxStaleAge.
+	 * @throws RuntimeException if the prices can't be loaded, and the last ones are too old or there aren't any
+	 */
+	public PriceSnapshot getPriceSnapshot(long maxAge) {
+		CachedSnapshot cached = current.get();
+		if (cached != null && now() - cached.loadedAt < maxAge) {
+			hits.incrementAndGet();
+			return cached.snapshot;
+		}
+		return refresh(maxAge).snapshot;
+	}
+
+	/**
+	 * @return the last prices loaded, no matter how old, or null if none have been
+	 */
+	public PriceSnapshot getLastPriceSnapshot() {
+		CachedSnapshot cached = current.get();
+		return cached == null ? null : cached.snapshot;
+	}
+
+	/**
+	 * Use prices that came from somewhere else, for example a stream, as the current prices
+	 */
+	public void update(PriceSnapshot snapshot) {
+		current.set(new CachedSnapshot(snapshot, now()));
+	}
+
+	public PriceFeedStats getStats() {
+		return new PriceFeedStats(hits.get(), misses.get(), coalesced.get(), failures.get(), getAge());
+	}
+
+	private long getAge() {
+		CachedSnapshot cached = current.get();
+		return cached == null ? -1 : now() - cached.loadedAt;
+	}
+
+	private CachedSnapshot refresh(long maxAge) {
+		CompletableFuture<CachedSnapshot> future = new CompletableFuture<>();
+		while (!inFlight.compareAndSet(null, future)) {
+			CompletableFuture<CachedSnapshot> existing = inFlight.get();
+			if (existing != null) {
+				// Someone is already loading them, wait for theirs
+				coalesced.incrementAndGet();
+				try {
+					return existing.join();
+				} catch (CompletionException ex) {
+					throw unwrap(ex);
+				}
+			}
+		}
+		try {
+			// Someone may have finished loading them between our check and now
+			CachedSnapshot cached = current.get();
+			if (cached != null && now() - cached.loadedAt < maxAge) {
+				hits.incrementAndGet();
+				future.complete(cached);
+				return cached;
+			}
+			misses.incrementAndGet();
+			acquireWeight();
+			PriceSnapshot snapshot = exchange.getPriceSnapshot();
+			if (snapshot == null || snapshot.isEmpty()) {
+				// Keep the last prices rather than replacing them with nothing
+				throw new IllegalStateException("No prices from the exchange");
+			}
+			CachedSnapshot loaded = new CachedSnapshot(snapshot, now());
+			current.set(loaded);
+			future.complete(loaded);
+			notifyListeners(loaded.snapshot);
+			return loaded;
+		} catch (Throwable ex) {
+			// Whatever went wrong, the callers waiting on this refresh have to hear about it
+			failures.incrementAndGet();
+			CachedSnapshot stale = current.get();
+			if (ex instanceof RuntimeException && stale != null) {
+				long age = now() - stale.loadedAt;
+				if (age < maxStaleAge) {
+					logger.error("Unable to refresh prices, using prices from " + age + " ms ago", ex);
+					future.complete(stale);
+					return stale;
+				}
+				IllegalStateException tooOld = new IllegalStateException("Unable to refresh prices, and the last ones "
+						+ "are from " + age + " ms ago", ex);
+				future.completeExceptionally(tooOld);
+				throw tooOld;
+			}
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			inFlight.set(null);
+		}
+	}
+
+	private void acquireWeight() {
+		if (orderDispatcher == null) {
+			return;
+		}
+		try {
+			orderDispatcher.acquireWeight(OrderDispatcher.ALL_PRICES_WEIGHT);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting to load the prices", ex);
+		}
+	}
+
+	private void notifyListeners(PriceSnapshot snapshot) {
+		for (Consumer<PriceSnapshot> listener : listeners) {
+			try {
+				listener.accept(snapshot);
+			} catch (RuntimeException ex) {
+				logger.error("Price listener failed", ex);
+			}
+		}
+	}
+
+	private static RuntimeException unwrap(CompletionException ex) {
+		if (ex.getCause() instanceof RuntimeException) {
+			return (RuntimeException) ex.getCause();
+		}
+		return ex;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
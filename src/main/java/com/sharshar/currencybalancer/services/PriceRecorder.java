@@ -0,0 +1,330 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.algorithms.PriceHistory;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Saves the prices we load from the exchange to the pricedata table, so we have our own history to backtest
+ * against.
+ *
+ * Snapshots are put on a bounded queue and saved by a background thread, which saves everything waiting on the
+ * queue in one set of batched inserts. Adding a snapshot never waits on the database. If the queue is full, the
+ * policy decides what to give up: the snapshot being added (DROP_NEWEST), the oldest one waiting (DROP_OLDEST), or
+ * wait up to prices.record.maxWait ms for room and then give up the new one (BLOCK).
+ *
+ * Turned on with prices.record.enabled. With prices.record.holdingsOnly, only the symbols the backtester loads for
+ * the assets in holding_ratio are saved. Prices from the simulated exchange are never saved, they'd end up in the
+ * history we backtest against.
+ */
+@Service
+public class PriceRecorder implements Consumer<PriceSnapshot> {
+	private Logger logger = LogManager.getLogger();
+
+	public enum OverflowPolicy {
+		DROP_NEWEST, DROP_OLDEST, BLOCK
+	}
+
+	@Autowired
+	private PriceDataSQLRepository priceDataRepository;
+
+	@Autowired
+	private PriceDataHoldingRepository holdingRepository;
+
+	@Autowired
+	private PriceFeedService priceFeed;
+
+	@Value("${prices.record.enabled:false}")
+	private boolean enabled;
+
+	@Value("${prices.record.queueSize:60}")
+	private int queueSize;
+
+	@Value("${prices.record.policy:DROP_OLDEST}")
+	private OverflowPolicy policy;
+
+	@Value("${prices.record.maxWait:100}")
+	private long maxWait;
+
+	@Value("${prices.record.holdingsOnly:true}")
+	private boolean holdingsOnly;
+
+	@Value("${prices.record.baseCurrency:BTC}")
+	private String baseCurrency;
+
+	@Value("${exchange.simulated:false}")
+	private boolean simulated;
+
+	// How long stop waits for the writer to save what's queued before giving up on it, in milliseconds
+	@Value("${prices.record.stopWait:10000}")
+	private long stopWait = 10000L;
+
+	// How often the writer checks whether it's been stopped while the queue is empty
+	private static final long POLL_WAIT = 100L;
+
+	private BlockingQueue<PriceSnapshot> queue;
+	private Thread writer;
+	private volatile boolean running;
+
+	private final AtomicLong snapshotsRecorded = new AtomicLong();
+	private final AtomicLong snapshotsDropped = new AtomicLong();
+	private final AtomicLong rowsInserted = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * How the recorder is keeping up
+	 */
+	public static class RecorderStats {
+		private final long snapshotsRecorded;
+		private final long snapshotsDropped;
+		private final long rowsInserted;
+		private final long failures;
+		private final int queued;
+
+		RecorderStats(long snapshotsRecorded, long snapshotsDropped, long rowsInserted, long failures, int queued) {
+			this.snapshotsRecorded = snapshotsRecorded;
+			this.snapshotsDropped = snapshotsDropped;
+			this.rowsInserted = rowsInserted;
+			this.failures = failures;
+			this.queued = queued;
+		}
+
+		public long getSnapshotsRecorded() {
+			return snapshotsRecorded;
+		}
+
+		public long getSnapshotsDropped() {
+			return snapshotsDropped;
+		}
+
+		public long getRowsInserted() {
+			return rowsInserted;
+		}
+
+		// The number of times saving failed. The snapshots being saved at the time are lost.
+		public long getFailures() {
+			return failures;
+		}
+
+		public int getQueued() {
+			return queued;
+		}
+	}
+
+	public PriceRecorder() {
+	}
+
+	public PriceRecorder(PriceDataSQLRepository priceDataRepository, PriceDataHoldingRepository holdingRepository,
+						 int queueSize, OverflowPolicy policy, boolean holdingsOnly) {
+		this.priceDataRepository = priceDataRepository;
+		this.holdingRepository = holdingRepository;
+		this.queueSize = queueSize;
+		this.policy = policy;
+		this.holdingsOnly = holdingsOnly;
+		this.baseCurrency = "BTC";
+	}
+
+	public PriceRecorder setStopWait(long stopWait) {
+		this.stopWait = stopWait;
+		return this;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (enabled && simulated) {
+			logger.warn("Not recording prices, they're from the simulated exchange");
+			return;
+		}
+		if (enabled) {
+			start();
+			priceFeed.addListener(this);
+		}
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		BlockingQueue<PriceSnapshot> writerQueue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		queue = writerQueue;
+		running = true;
+		writer = new Thread(() -> writeLoop(writerQueue), "price-recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop the background thread once it's saved what's on the queue. If it hasn't finished in
+	 * prices.record.stopWait (the database may be down), it's interrupted and what's left is dropped.
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		Thread stopping;
+		BlockingQueue<PriceSnapshot> stoppingQueue;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			if (priceFeed != null) {
+				priceFeed.removeListener(this);
+			}
+			// The writer sees this and saves what's left, nothing is put on the queue that a producer could drop
+			running = false;
+			stopping = writer;
+			stoppingQueue = queue;
+		}
+		stopping.join(stopWait);
+		if (stopping.isAlive()) {
+			stopping.interrupt();
+			stopping.join(stopWait);
+		}
+		int lost = stoppingQueue.size();
+		stoppingQueue.clear();
+		snapshotsDropped.addAndGet(lost);
+		if (stopping.isAlive() || lost > 0) {
+			logger.error("Price recorder didn't finish saving, " + lost + " snapshots lost");
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void accept(PriceSnapshot snapshot) {
+		record(snapshot);
+	}
+
+	/**
+	 * Queue the snapshot to be saved
+	 *
+	 * @param snapshot - the prices
+	 * @return true if it was queued, false if it was dropped
+	 */
+	public boolean record(PriceSnapshot snapshot) {
+		if (!running || snapshot == null || snapshot.isEmpty()) {
+			return false;
+		}
+		BlockingQueue<PriceSnapshot> target = queue;
+		boolean queued;
+		switch (policy) {
+			case DROP_OLDEST:
+				queued = target.offer(snapshot);
+				while (!queued) {
+					if (target.poll() != null) {
+						snapshotsDropped.incrementAndGet();
+					}
+					queued = target.offer(snapshot);
+				}
+				break;
+			case BLOCK:
+				try {
+					queued = target.offer(snapshot, maxWait, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					queued = false;
+				}
+				break;
+			default:
+				queued = target.offer(snapshot);
+		}
+		if (!queued) {
+			snapshotsDropped.incrementAndGet();
+		}
+		return queued;
+	}
+
+	public RecorderStats getStats() {
+		return new RecorderStats(snapshotsRecorded.get(), snapshotsDropped.get(), rowsInserted.get(), failures.get(),
+				queue == null ? 0 : queue.size());
+	}
+
+	private void writeLoop(BlockingQueue<PriceSnapshot> writerQueue) {
+		List<PriceSnapshot> batch = new ArrayList<>();
+		while (!Thread.currentThread().isInterrupted()) {
+			// Read before taking from the queue, so everything queued before stop is saved
+			boolean stopping = !running;
+			try {
+				PriceSnapshot first = stopping ? writerQueue.poll() : writerQueue.poll(POLL_WAIT, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					writerQueue.drainTo(batch);
+				}
+			} catch (InterruptedException ex) {
+				return;
+			}
+			if (!batch.isEmpty()) {
+				save(batch);
+				batch.clear();
+			} else if (stopping) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Save the snapshots in one go
+	 */
+	void save(List<PriceSnapshot> snapshots) {
+		try {
+			Set<String> symbols = holdingsOnly ? getHoldingSymbols() : null;
+			List<PriceData> rows = new ArrayList<>();
+			for (PriceSnapshot snapshot : snapshots) {
+				Date updateTime = snapshot.getUpdateTime() == null ? new Date() : snapshot.getUpdateTime();
+				for (PriceData pd : snapshot.getPriceData()) {
+					if (pd.getTicker() == null || pd.getPrice() == null
+							|| pd.getExchange() == ScratchConstants.SIMULATED) {
+						continue;
+					}
+					if (symbols != null && !symbols.contains(pd.getTicker().toUpperCase())) {
+						continue;
+					}
+					// The snapshot's rows are shared, so save copies
+					rows.add(new PriceData().setTicker(pd.getTicker()).setPrice(pd.getPrice())
+							.setExchange(pd.getExchange())
+							.setUpdateTime(pd.getUpdateTime() == null ? updateTime : pd.getUpdateTime()));
+				}
+			}
+			rowsInserted.addAndGet(priceDataRepository.insertAll(rows));
+			snapshotsRecorded.addAndGet(snapshots.size());
+		} catch (Exception ex) {
+			if (ex instanceof InterruptedException) {
+				// Stopped while waiting on the database, don't try to save anything else
+				Thread.currentThread().interrupt();
+			}
+			failures.incrementAndGet();
+			logger.error("Unable to save " + snapshots.size() + " price snapshots", ex);
+		}
+	}
+
+	/**
+	 * The symbols the backtester reads for the assets we hold
+	 */
+	private Set<String> getHoldingSymbols() {
+		List<String> assets = new ArrayList<>();
+		for (HoldingRatio ratio : holdingRepository.findAll()) {
+			assets.add(ratio.getTicker());
+		}
+		// The base currency's price against tether is always wanted
+		assets.add(baseCurrency);
+		return PriceHistory.getSymbols(assets, baseCurrency);
+	}
+}
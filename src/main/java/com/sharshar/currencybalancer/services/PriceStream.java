@@ -0,0 +1,31 @@
+package com.sharshar.currencybalancer.services;
+
+import java.util.Collection;
+
+/**
+ * A source of prices pushed to us as they change, instead of asked for
+ */
+public interface PriceStream {
+
+	interface PriceListener {
+		/**
+		 * @param symbol - the symbol, for example NEOBTC
+		 * @param price - the new price
+		 * @param time - when the price changed, in milliseconds
+		 */
+		void onPrice(String symbol, double price, long time);
+	}
+
+	/**
+	 * Start sending the prices of the symbols to the listener
+	 *
+	 * @param symbols - the symbols, for example NEOBTC
+	 * @param listener - where to send them
+	 */
+	void subscribe(Collection<String> symbols, PriceListener listener);
+
+	/**
+	 * Stop sending prices to all listeners
+	 */
+	void close();
+}
@@ -0,0 +1,450 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.sharshar.currencybalancer.algorithms.BalancerState;
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.algorithms.PortfolioKernel;
+import com.sharshar.currencybalancer.algorithms.StreamingDriftMonitor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebalances on its own when the holdings drift too far. Every interval (plus up to jitter more, picked at random,
+ * so we don't hit the exchange on the same beat as everyone else) it:
+ *
+ * - gives up if the prices from the shared feed are older than pricesMaxAge, since the drift can't be trusted
+ * - loads the balances again if they're older than balancesMaxAge, or we've traded since they were loaded
+ * - asks the balancer whether to rebalance, with the prices from the shared feed. When prices are streamed, the
+ *   streamed drift decides instead, since it's more up to date.
+ * - if so, and the last rebalance was more than cooldown ago, places the orders. In a dry run it only logs them.
+ *   If rounding leaves nothing to trade, it counts as in balance and the cooldown isn't started.
+ *
+ * Each cycle works from one state of the balancer, so the decision and the orders use the same prices and
+ * holdings. A cycle that might need more request weight than is left is skipped, instead of waiting on the
+ * limit, so a cycle never takes longer than the requests it makes and never crowds out the order checks. When the
+ * prices need loading, the price feed takes their weight from the same limit, and it's counted before the check.
+ *
+ * Off unless rebalance.interval is set, and a dry run unless rebalance.dryRun is false.
+ */
+@Service
+public class RebalanceScheduler {
+	private Logger logger = LogManager.getLogger();
+
+	/**
+	 * What a cycle did
+	 */
+	public enum Outcome {
+		// Close enough to the ratios
+		IN_BALANCE,
+		// Drifted, but rebalanced too recently
+		COOLDOWN,
+		// Drifted, and the orders were logged instead of placed
+		DRY_RUN,
+		REBALANCED,
+		// Not enough request weight left to be sure of finishing
+		THROTTLED,
+		// The prices are too old to decide on
+		STALE_PRICES,
+		FAILED
+	}
+
+	@Autowired
+	private CurrencyBalancer balancer;
+
+	@Autowired
+	private OrderDispatcher orderDispatcher;
+
+	// Only used once it's started, which is when prices.stream.enabled is set
+	@Autowired(required = false)
+	private StreamingDriftMonitor driftMonitor;
+
+	// Where the cycle times go, the global registry if there isn't one
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+	// How often to check, in milliseconds. 0 to only rebalance when asked.
+	@Value("${rebalance.interval:0}")
+	private long interval;
+
+	// The most extra time to wait before each check, in milliseconds
+	@Value("${rebalance.jitter:0}")
+	private long jitter;
+
+	// Rebalance when the drift, weighted by the ratios, is more than this (0 to ignore)
+	@Value("${rebalance.minDrift:0.05}")
+	private double minDrift = 0.05;
+
+	// Rebalance when any one currency has drifted more than this (0 to ignore)
+	@Value("${rebalance.minSingleDrift:0.1}")
+	private double minSingleDrift = 0.1;
+
+	// How long to wait after rebalancing before rebalancing again, in milliseconds
+	@Value("${rebalance.cooldown:600000}")
+	private long cooldown = 600000;
+
+	// The oldest the balances can be, in milliseconds, if we haven't traded since they were loaded
+	@Value("${rebalance.balancesMaxAge:60000}")
+	private long balancesMaxAge = 60000;
+
+	// The oldest the prices can be, in milliseconds, even when asked to rebalance now
+	@Value("${rebalance.pricesMaxAge:60000}")
+	private long pricesMaxAge = 60000;
+
+	@Value("${rebalance.dryRun:true}")
+	private boolean dryRun = true;
+
+	private ScheduledExecutorService scheduler;
+	private volatile Cycle latest;
+	private volatile boolean stopped;
+
+	// When we last rebalanced and loaded the balances, 0 for never, and whether we've traded since. Guarded by this.
+	private long lastRebalance;
+	private long balancesLoaded;
+	private boolean traded;
+
+	private final AtomicLong cycles = new AtomicLong();
+	private final AtomicLong rebalances = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * The result of one cycle
+	 */
+	public static class Cycle {
+		private final Outcome outcome;
+		private final double driftPercent;
+		private final Map<String, Double> adjustments;
+		private final int ordersPlaced;
+		private final int ordersFailed;
+		private final Date time;
+		private final long elapsed;
+
+		Cycle(Outcome outcome, double driftPercent, Map<String, Double> adjustments, int ordersPlaced,
+			  int ordersFailed, Date time, long elapsed) {
+			this.outcome = outcome;
+			this.driftPercent = driftPercent;
+			this.adjustments = Collections.unmodifiableMap(adjustments);
+			this.ordersPlaced = ordersPlaced;
+			this.ordersFailed = ordersFailed;
+			this.time = time;
+			this.elapsed = elapsed;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		public double getDriftPercent() {
+			return driftPercent;
+		}
+
+		// The adjustments by asset, when we rebalanced or would have
+		public Map<String, Double> getAdjustments() {
+			return adjustments;
+		}
+
+		public int getOrdersPlaced() {
+			return ordersPlaced;
+		}
+
+		public int getOrdersFailed() {
+			return ordersFailed;
+		}
+
+		public Date getTime() {
+			return time;
+		}
+
+		// How long the cycle took, in milliseconds
+		public long getElapsed() {
+			return elapsed;
+		}
+	}
+
+	/**
+	 * How the loop is doing
+	 */
+	public static class RebalanceStats {
+		private final long cycles;
+		private final long rebalances;
+		private final long throttled;
+		private final long failures;
+		private final boolean dryRun;
+		private final Cycle latest;
+
+		RebalanceStats(long cycles, long rebalances, long throttled, long failures, boolean dryRun, Cycle latest) {
+			this.cycles = cycles;
+			this.rebalances = rebalances;
+			this.throttled = throttled;
+			this.failures = failures;
+			this.dryRun = dryRun;
+			this.latest = latest;
+		}
+
+		public long getCycles() {
+			return cycles;
+		}
+
+		public long getRebalances() {
+			return rebalances;
+		}
+
+		public long getThrottled() {
+			return throttled;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public boolean isDryRun() {
+			return dryRun;
+		}
+
+		// The last cycle, null if there hasn't been one
+		public Cycle getLatest() {
+			return latest;
+		}
+	}
+
+	public RebalanceScheduler() {
+	}
+
+	public RebalanceScheduler(CurrencyBalancer balancer, OrderDispatcher orderDispatcher) {
+		this.balancer = balancer;
+		this.orderDispatcher = orderDispatcher;
+	}
+
+	/**
+	 * @param minDrift - rebalance when the drift, weighted by the ratios, is more than this (0 to ignore)
+	 * @param minSingleDrift - rebalance when any one currency has drifted more than this (0 to ignore)
+	 */
+	public RebalanceScheduler setDrift(double minDrift, double minSingleDrift) {
+		this.minDrift = minDrift;
+		this.minSingleDrift = minSingleDrift;
+		return this;
+	}
+
+	public RebalanceScheduler setCooldown(long cooldown) {
+		this.cooldown = cooldown;
+		return this;
+	}
+
+	public RebalanceScheduler setBalancesMaxAge(long balancesMaxAge) {
+		this.balancesMaxAge = balancesMaxAge;
+		return this;
+	}
+
+	public RebalanceScheduler setPricesMaxAge(long pricesMaxAge) {
+		this.pricesMaxAge = pricesMaxAge;
+		return this;
+	}
+
+	public RebalanceScheduler setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+		return this;
+	}
+
+	public RebalanceScheduler setDriftMonitor(StreamingDriftMonitor driftMonitor) {
+		this.driftMonitor = driftMonitor;
+		return this;
+	}
+
+	public RebalanceScheduler setMeterRegistry(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		return this;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+			scheduleNext();
+			logger.info("Checking the balance every " + interval + "ms" + (dryRun ? ", as a dry run" : ""));
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		stopped = true;
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Each check is scheduled when the last one finishes, so a slow one pushes the next back instead of piling up
+	 */
+	private void scheduleNext() {
+		if (stopped) {
+			return;
+		}
+		long delay = interval + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+		scheduler.schedule(() -> {
+			try {
+				cycle(false);
+			} catch (Exception ex) {
+				logger.error("Unable to check the balance", ex);
+			} finally {
+				scheduleNext();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	public Cycle getLatest() {
+		return latest;
+	}
+
+	public RebalanceStats getStats() {
+		return new RebalanceStats(cycles.get(), rebalances.get(), throttled.get(), failures.get(), dryRun, latest);
+	}
+
+	/**
+	 * Check the drift and rebalance if it's too far off, the same as the loop does
+	 *
+	 * @return what happened
+	 */
+	public Cycle check() {
+		return cycle(false);
+	}
+
+	/**
+	 * Rebalance now, whatever the drift and however long since the last time. Still only logs the orders in a dry
+	 * run, and still starts the cooldown.
+	 *
+	 * @return what happened
+	 */
+	public Cycle balanceNow() {
+		return cycle(true);
+	}
+
+	private synchronized Cycle cycle(boolean force) {
+		long start = System.currentTimeMillis();
+		cycles.incrementAndGet();
+		Cycle result;
+		try {
+			result = runCycle(force, start);
+		} catch (Exception ex) {
+			logger.error("Unable to rebalance", ex);
+			failures.incrementAndGet();
+			result = new Cycle(Outcome.FAILED, 0.0, new HashMap<>(), 0, 0, new Date(start),
+					System.currentTimeMillis() - start);
+		}
+		Timer.builder("rebalance.cycles")
+				.tag("outcome", result.getOutcome().name())
+				.register(meterRegistry)
+				.record(result.getElapsed(), TimeUnit.MILLISECONDS);
+		latest = result;
+		return result;
+	}
+
+	private Cycle runCycle(boolean force, long start) throws Exception {
+		BalancerState state = balancer.getState();
+		Date pricesTime = state.getPrices().getUpdateTime();
+		if (pricesTime == null || start - pricesTime.getTime() > pricesMaxAge) {
+			logger.warn("Not rebalancing, the prices are from " + pricesTime);
+			return finish(Outcome.STALE_PRICES, state, new HashMap<>(), 0, 0, start);
+		}
+		boolean refresh = traded || start - balancesLoaded >= balancesMaxAge;
+		// The most we could need: the balances, and an order for each currency but the base one
+		int weight = (refresh ? OrderDispatcher.ACCOUNT_WEIGHT : 0) + getTradable(state) * OrderDispatcher.ORDER_WEIGHT;
+		if (orderDispatcher.getAvailableWeight() < weight) {
+			throttled.incrementAndGet();
+			return finish(Outcome.THROTTLED, state, new HashMap<>(), 0, 0, start);
+		}
+		if (refresh) {
+			orderDispatcher.acquireWeight(OrderDispatcher.ACCOUNT_WEIGHT);
+			state = balancer.refreshOwnedAssets();
+			balancesLoaded = start;
+			traded = false;
+		}
+		if (!force && !shouldBalance(state)) {
+			return finish(Outcome.IN_BALANCE, state, new HashMap<>(), 0, 0, start);
+		}
+		if (!force && start - lastRebalance < cooldown) {
+			return finish(Outcome.COOLDOWN, state, new HashMap<>(), 0, 0, start);
+		}
+		Map<String, Double> adjustments = balancer.getAdjustments(state);
+		// The drift is before rounding, so there may be nothing left worth trading
+		if (!hasOrders(state, adjustments)) {
+			return finish(Outcome.IN_BALANCE, state, new HashMap<>(), 0, 0, start);
+		}
+		lastRebalance = start;
+		if (dryRun) {
+			logger.info("Would rebalance " + String.format("%.4f", state.getDriftPercent()) + " drift with "
+					+ adjustments);
+			return finish(Outcome.DRY_RUN, state, adjustments, 0, 0, start);
+		}
+		traded = true;
+		List<NewOrderResponse> responses = balancer.balance(state);
+		int failed = (int) responses.stream().filter(Objects::isNull).count();
+		rebalances.incrementAndGet();
+		logger.info("Rebalanced " + String.format("%.4f", state.getDriftPercent()) + " drift with "
+				+ (responses.size() - failed) + " orders, " + failed + " failed");
+		return finish(Outcome.REBALANCED, state, adjustments, responses.size() - failed, failed, start);
+	}
+
+	/**
+	 * @return true if we've drifted enough to rebalance, by the streamed prices if they're streamed. The streamed
+	 * holdings are up to date, the balancer tells the monitor when they change.
+	 */
+	private boolean shouldBalance(BalancerState state) {
+		if (driftMonitor != null && driftMonitor.isStarted()) {
+			return driftMonitor.shouldBalance(minDrift, minSingleDrift);
+		}
+		return state.shouldBalance(minDrift, minSingleDrift);
+	}
+
+	/**
+	 * @return the number of currencies that are traded, which is all of them but the base currency
+	 */
+	private static int getTradable(BalancerState state) {
+		PortfolioKernel kernel = state.getKernel();
+		int tradable = 0;
+		for (int i = 0; i < kernel.size(); i++) {
+			if (!kernel.isBaseCurrency(i)) {
+				tradable++;
+			}
+		}
+		return tradable;
+	}
+
+	/**
+	 * @return true if any of the adjustments would be an order, the base currency's isn't
+	 */
+	private static boolean hasOrders(BalancerState state, Map<String, Double> adjustments) {
+		PortfolioKernel kernel = state.getKernel();
+		for (int i = 0; i < kernel.size(); i++) {
+			if (kernel.isBaseCurrency(i)) {
+				continue;
+			}
+			for (Map.Entry<String, Double> adjustment : adjustments.entrySet()) {
+				if (adjustment.getKey().equalsIgnoreCase(kernel.getTicker(i)) && adjustment.getValue() != 0.0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static Cycle finish(Outcome outcome, BalancerState state, Map<String, Double> adjustments,
+								int ordersPlaced, int ordersFailed, long start) {
+		return new Cycle(outcome, state.getDriftPercent(), adjustments, ordersPlaced, ordersFailed, new Date(start),
+				System.currentTimeMillis() - start);
+	}
+}
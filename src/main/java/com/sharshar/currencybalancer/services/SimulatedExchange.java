@@ -0,0 +1,489 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderSide;
+import com.binance.api.client.domain.OrderStatus;
+import com.binance.api.client.domain.OrderType;
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.binance.api.client.domain.account.Order;
+import com.sharshar.currencybalancer.beans.OrderHistory;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import com.sharshar.currencybalancer.utils.TokenBucket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An exchange that lives in memory, used in place of Binance when exchange.simulated is set, and by tests. It
+ * keeps balances and prices, and fills market orders against them:
+ *
+ * - every request waits latency milliseconds, plus up to latencyJitter more
+ * - an order fills right away, unless it's one of the partialFillChance that only gets partialFillFraction filled
+ *   at first. The rest fills at the price then the next time the order is looked at.
+ * - each fill pays the taker fee in the base currency
+ * - orders we can't pay for, or for symbols without a price, are rejected
+ * - requests count against a limit on weight per minute, the same weights Binance uses, and ones over the limit
+ *   are turned away the way Binance does (0 for no limit)
+ *
+ * Only symbols quoted in the base currency can be traded. It's safe to use from many threads; the latency is
+ * waited out before taking the lock, so slow requests don't hold each other up.
+ *
+ * Sub-accounts have their own balances and orders, starting from exchange.simulated.accounts.<name>.balances,
+ * and share the prices and the rate limit with the main account.
+ *
+ * Orders are kept in memory. They're only saved to a repository if a test gives it one, never to the real
+ * order_history table.
+ */
+@Service
+@ConditionalOnProperty(name = "exchange.simulated", havingValue = "true")
+public class SimulatedExchange implements ExchangeGateway {
+	private Logger logger = LogManager.getLogger();
+
+	// The weight Binance counts for each kind of request
+	public static final int ACCOUNT_WEIGHT = 5;
+	public static final int ALL_PRICES_WEIGHT = 2;
+	public static final int ORDER_WEIGHT = 1;
+	public static final int ORDER_STATUS_WEIGHT = 1;
+	public static final int OPEN_ORDERS_WEIGHT = 1;
+	public static final int ALL_ORDERS_WEIGHT = 5;
+
+	private OrderHistoryRepository orderHistoryRepository;
+
+	@Autowired(required = false)
+	private Environment environment;
+
+	@Value("${exchange.simulated.baseCurrency:BTC}")
+	private String baseCurrency = "BTC";
+
+	@Value("${exchange.simulated.latency:0}")
+	private long latency;
+
+	@Value("${exchange.simulated.latencyJitter:0}")
+	private long latencyJitter;
+
+	@Value("${exchange.simulated.fee:0.001}")
+	private double takerFee = 0.001;
+
+	@Value("${exchange.simulated.partialFillChance:0}")
+	private double partialFillChance;
+
+	@Value("${exchange.simulated.partialFillFraction:0.5}")
+	private double partialFillFraction = 0.5;
+
+	@Value("${exchange.simulated.maxWeightPerMinute:0}")
+	private int maxWeightPerMinute;
+
+	// What we start with, for example BTC=1,NEO=20
+	@Value("${exchange.simulated.balances:}")
+	private String startingBalances = "";
+
+	// The prices to start at, for example NEOBTC=0.002,ETHBTC=0.07
+	@Value("${exchange.simulated.prices:}")
+	private String startingPrices = "";
+
+	private final Map<String, Double> balances = new HashMap<>();
+	private final Map<String, Double> prices = new HashMap<>();
+	private final Map<String, SimulatedOrder> ordersByClientId = new HashMap<>();
+	private final Map<String, List<SimulatedOrder>> ordersBySymbol = new HashMap<>();
+	private final AtomicLong nextOrderId = new AtomicLong(1);
+	private volatile TokenBucket weightLimit;
+
+	// The exchange that has the prices, this one unless it's a sub-account
+	private SimulatedExchange market = this;
+	private final Map<String, SimulatedExchange> accounts = new ConcurrentHashMap<>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong fills = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+
+	/**
+	 * Thrown when a request goes over the rate limit, like the 429 Binance sends back
+	 */
+	public static class RateLimitException extends RuntimeException {
+		public RateLimitException(String message) {
+			super(message);
+		}
+	}
+
+	private static class SimulatedOrder {
+		private final long orderId;
+		private final String clientOrderId;
+		private final String symbol;
+		private final String asset;
+		private final OrderSide side;
+		private final double amount;
+		private final long time;
+		private double executed;
+		private double lastPrice;
+		private OrderStatus status = OrderStatus.NEW;
+
+		SimulatedOrder(long orderId, String symbol, String asset, OrderSide side, double amount, long time) {
+			this.orderId = orderId;
+			this.clientOrderId = "sim" + orderId;
+			this.symbol = symbol;
+			this.asset = asset;
+			this.side = side;
+			this.amount = amount;
+			this.time = time;
+		}
+
+		Order toOrder() {
+			Order order = new Order();
+			order.setSymbol(symbol);
+			order.setOrderId(orderId);
+			order.setClientOrderId(clientOrderId);
+			order.setSide(side);
+			order.setType(OrderType.MARKET);
+			order.setStatus(status);
+			order.setOrigQty("" + amount);
+			order.setExecutedQty("" + executed);
+			order.setPrice("" + lastPrice);
+			order.setTime(time);
+			return order;
+		}
+	}
+
+	public SimulatedExchange() {
+	}
+
+	@PostConstruct
+	public void init() {
+		baseCurrency = baseCurrency.toUpperCase();
+		weightLimit = maxWeightPerMinute > 0 ? new TokenBucket(maxWeightPerMinute, maxWeightPerMinute / 60.0) : null;
+		parse(startingBalances).forEach(this::setBalance);
+		parse(startingPrices).forEach(this::setPrice);
+	}
+
+	private static Map<String, Double> parse(String values) {
+		Map<String, Double> parsed = new LinkedHashMap<>();
+		if (values == null) {
+			return parsed;
+		}
+		for (String value : values.split(",")) {
+			String[] parts = value.split("=");
+			if (parts.length == 2) {
+				parsed.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+			}
+		}
+		return parsed;
+	}
+
+	public SimulatedExchange setBaseCurrency(String baseCurrency) {
+		this.baseCurrency = baseCurrency.toUpperCase();
+		return this;
+	}
+
+	/**
+	 * @param latency - how long every request takes, in milliseconds
+	 * @param latencyJitter - the most extra time a request can take on top of that, picked at random
+	 */
+	public SimulatedExchange setLatency(long latency, long latencyJitter) {
+		this.latency = latency;
+		this.latencyJitter = latencyJitter;
+		return this;
+	}
+
+	public SimulatedExchange setTakerFee(double takerFee) {
+		this.takerFee = takerFee;
+		return this;
+	}
+
+	/**
+	 * @param partialFillChance - the chance an order only partly fills at first, from 0 to 1
+	 * @param partialFillFraction - how much of it fills at first when it does
+	 */
+	public SimulatedExchange setPartialFills(double partialFillChance, double partialFillFraction) {
+		this.partialFillChance = partialFillChance;
+		this.partialFillFraction = partialFillFraction;
+		return this;
+	}
+
+	/**
+	 * @param maxWeightPerMinute - the most request weight a minute before requests are turned away, 0 for no limit
+	 */
+	public SimulatedExchange setMaxWeightPerMinute(int maxWeightPerMinute) {
+		this.maxWeightPerMinute = maxWeightPerMinute;
+		weightLimit = maxWeightPerMinute > 0 ? new TokenBucket(maxWeightPerMinute, maxWeightPerMinute / 60.0) : null;
+		return this;
+	}
+
+	public SimulatedExchange setOrderHistoryRepository(OrderHistoryRepository orderHistoryRepository) {
+		this.orderHistoryRepository = orderHistoryRepository;
+		return this;
+	}
+
+	public synchronized SimulatedExchange setBalance(String asset, double amount) {
+		balances.put(asset.toUpperCase(), amount);
+		return this;
+	}
+
+	public synchronized double getBalance(String asset) {
+		return balances.getOrDefault(asset.toUpperCase(), 0.0);
+	}
+
+	/**
+	 * @param symbol - the symbol, for example NEOBTC
+	 * @param price - the price in the base currency
+	 */
+	public SimulatedExchange setPrice(String symbol, double price) {
+		if (market != this) {
+			market.setPrice(symbol, price);
+			return this;
+		}
+		synchronized (this) {
+			prices.put(symbol.toUpperCase(), price);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the price of the symbol, or null if there isn't one
+	 */
+	private Double getPrice(String symbol) {
+		if (market != this) {
+			return market.getPrice(symbol);
+		}
+		synchronized (this) {
+			return prices.get(symbol);
+		}
+	}
+
+	/**
+	 * Unknown sub-accounts are made as they're asked for, so a test can have as many as it likes
+	 */
+	@Override
+	public ExchangeGateway forAccount(String account) {
+		if (account == null || account.trim().isEmpty()) {
+			return this;
+		}
+		return accounts.computeIfAbsent(account, a -> {
+			SimulatedExchange sub = new SimulatedExchange()
+					.setBaseCurrency(baseCurrency)
+					.setLatency(latency, latencyJitter)
+					.setTakerFee(takerFee)
+					.setPartialFills(partialFillChance, partialFillFraction)
+					.setOrderHistoryRepository(orderHistoryRepository);
+			sub.market = market;
+			if (environment != null) {
+				parse(environment.getProperty("exchange.simulated.accounts." + a + ".balances"))
+						.forEach(sub::setBalance);
+			}
+			return sub;
+		});
+	}
+
+	@Override
+	public List<OwnedAsset> getBalances() {
+		request(ACCOUNT_WEIGHT);
+		List<OwnedAsset> owned = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Double> balance : balances.entrySet()) {
+				owned.add(new OwnedAsset().setAsset(balance.getKey()).setFree(balance.getValue()).setLocked(0.0));
+			}
+		}
+		return owned;
+	}
+
+	@Override
+	public PriceSnapshot getPriceSnapshot() {
+		request(ALL_PRICES_WEIGHT);
+		return market.snapshotPrices();
+	}
+
+	private PriceSnapshot snapshotPrices() {
+		Date now = new Date();
+		List<PriceData> priceData = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Double> price : prices.entrySet()) {
+				priceData.add(new PriceData().setTicker(price.getKey()).setPrice(price.getValue())
+						.setExchange(ScratchConstants.SIMULATED).setUpdateTime(now));
+			}
+		}
+		return PriceSnapshot.of(priceData, now);
+	}
+
+	@Override
+	public NewOrderResponse createMarketOrder(String symbol, double amount, OrderSide side) {
+		try {
+			request(ORDER_WEIGHT);
+		} catch (RateLimitException ex) {
+			logger.error("Unable to " + side + " " + amount + " of " + symbol, ex);
+			return null;
+		}
+		String upperSymbol = symbol.toUpperCase();
+		SimulatedOrder order;
+		synchronized (this) {
+			if (!upperSymbol.endsWith(baseCurrency) || upperSymbol.equals(baseCurrency) || amount <= 0
+					|| getPrice(upperSymbol) == null) {
+				rejected.incrementAndGet();
+				logger.error("Unable to " + side + " " + amount + " of " + symbol + ", it can't be traded");
+				return null;
+			}
+			order = new SimulatedOrder(nextOrderId.getAndIncrement(), upperSymbol,
+					upperSymbol.substring(0, upperSymbol.length() - baseCurrency.length()), side, amount,
+					System.currentTimeMillis());
+			double first = ThreadLocalRandom.current().nextDouble() < partialFillChance
+					? amount * partialFillFraction : amount;
+			if (!fill(order, first)) {
+				rejected.incrementAndGet();
+				logger.error("Unable to " + side + " " + amount + " of " + symbol + ", there isn't enough to pay for it");
+				return null;
+			}
+			ordersByClientId.put(order.clientOrderId, order);
+			ordersBySymbol.computeIfAbsent(upperSymbol, k -> new ArrayList<>()).add(order);
+		}
+		NewOrderResponse response = new NewOrderResponse();
+		response.setSymbol(order.symbol);
+		response.setOrderId(order.orderId);
+		response.setClientOrderId(order.clientOrderId);
+		response.setTransactTime(order.time);
+		if (orderHistoryRepository != null) {
+			try {
+				orderHistoryRepository.save(new OrderHistory().setAmount(amount).setSymbol(order.symbol)
+						.setSide(side.name()).setStatus(OrderStatus.NEW.name()).setClientOrderId(order.clientOrderId)
+						.setOrderId(order.orderId).setTransactTime(order.time).setCreateDtm(new Date()));
+			} catch (Exception ex) {
+				logger.error("Unable to save " + side + " " + amount + " of " + symbol, ex);
+			}
+		}
+		return response;
+	}
+
+	@Override
+	public Order checkOrderStatus(String symbol, String clientOrderId) {
+		request(ORDER_STATUS_WEIGHT);
+		synchronized (this) {
+			SimulatedOrder order = ordersByClientId.get(clientOrderId);
+			if (order == null || !order.symbol.equalsIgnoreCase(symbol)) {
+				return null;
+			}
+			fillRest(order);
+			return order.toOrder();
+		}
+	}
+
+	@Override
+	public List<Order> getOpenOrders(String symbol) {
+		request(OPEN_ORDERS_WEIGHT);
+		List<Order> open = new ArrayList<>();
+		synchronized (this) {
+			for (SimulatedOrder order : ordersBySymbol.getOrDefault(symbol.toUpperCase(), Collections.emptyList())) {
+				if (order.status == OrderStatus.PARTIALLY_FILLED) {
+					// Seen as open this time, it fills by the next
+					open.add(order.toOrder());
+					fillRest(order);
+				}
+			}
+		}
+		return open;
+	}
+
+	@Override
+	public List<Order> getAllMyOrders(String symbol) {
+		request(ALL_ORDERS_WEIGHT);
+		List<Order> all = new ArrayList<>();
+		synchronized (this) {
+			for (SimulatedOrder order : ordersBySymbol.getOrDefault(symbol.toUpperCase(), Collections.emptyList())) {
+				all.add(order.toOrder());
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * @return the number of requests made, including the ones turned away
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	// The number of times part or all of an order was filled
+	public long getFills() {
+		return fills.get();
+	}
+
+	// The number of orders that couldn't be made
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	// The number of requests turned away for going over the rate limit
+	public long getRateLimited() {
+		return rateLimited.get();
+	}
+
+	/**
+	 * Wait out the latency and take the weight of the request from the limit
+	 */
+	private void request(int weight) {
+		requests.incrementAndGet();
+		long wait = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0);
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// Sub-accounts count against the main account's limit
+		TokenBucket limit = market.weightLimit;
+		if (limit != null && !limit.tryAcquire(weight)) {
+			rateLimited.incrementAndGet();
+			throw new RateLimitException("Over the limit of " + market.maxWeightPerMinute + " weight a minute");
+		}
+	}
+
+	private void fillRest(SimulatedOrder order) {
+		if (order.status == OrderStatus.PARTIALLY_FILLED && !fill(order, order.amount - order.executed)) {
+			// Can't pay for the rest any more, so that's all it gets
+			order.status = OrderStatus.CANCELED;
+		}
+	}
+
+	/**
+	 * Fill some of the order at the current price, if we can pay for it
+	 *
+	 * @return false if there wasn't enough to pay for it
+	 */
+	private boolean fill(SimulatedOrder order, double quantity) {
+		double price = getPrice(order.symbol);
+		double base = balances.getOrDefault(baseCurrency, 0.0);
+		double held = balances.getOrDefault(order.asset, 0.0);
+		if (order.side == OrderSide.BUY) {
+			double cost = quantity * price * (1 + takerFee);
+			if (cost > base) {
+				return false;
+			}
+			balances.put(baseCurrency, base - cost);
+			balances.put(order.asset, held + quantity);
+		} else {
+			if (quantity > held) {
+				return false;
+			}
+			balances.put(order.asset, held - quantity);
+			balances.put(baseCurrency, base + quantity * price * (1 - takerFee));
+		}
+		order.executed = Math.min(order.amount, order.executed + quantity);
+		order.lastPrice = price;
+		// Allow for the parts not quite adding back up to the whole
+		order.status = order.amount - order.executed <= order.amount * 1e-9
+				? OrderStatus.FILLED : OrderStatus.PARTIALLY_FILLED;
+		fills.incrementAndGet();
+		return true;
+	}
+}
@@ -0,0 +1,79 @@
+package com.sharshar.currencybalancer.utils;
+
+import com.binance.api.client.BinanceApiRestClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.repository.Repository;
+import org.springframework.util.ClassUtils;
+
+import java.util.function.Supplier;
+
+/**
+ * Times every call to Binance and every repository query, so we can see when the exchange or the database slows
+ * down. The timers are published through Actuator, at /actuator/prometheus:
+ *
+ * - binance.requests, by method and outcome
+ * - repository.queries, by repository, method and outcome
+ * - repository.queries.rows, the number of rows each find returned, or each bulk read, insert or delete went through
+ */
+@Configuration
+public class MetricsConfiguration {
+
+	// Only our own repositories are named in the tags
+	private static final String REPOSITORY_PACKAGE = "com.sharshar.currencybalancer.repository";
+
+	/**
+	 * Static so it's made before the beans it wraps. The registry is only looked up on the first call.
+	 */
+	@Bean
+	public static BeanPostProcessor timingPostProcessor(ObjectProvider<MeterRegistry> registryProvider) {
+		Supplier<MeterRegistry> registry = () -> {
+			MeterRegistry found = registryProvider.getIfAvailable();
+			return found == null ? Metrics.globalRegistry : found;
+		};
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				if (bean instanceof BinanceApiRestClient) {
+					return wrap(bean, new TimingInterceptor(registry, "binance.requests", "client", "rest"));
+				}
+				if (bean instanceof Repository) {
+					Class<?> type = getRepositoryInterface(bean);
+					if (type != null) {
+						return wrap(bean, new TimingInterceptor(registry, "repository.queries", "repository",
+								type.getSimpleName(), true));
+					}
+				}
+				return bean;
+			}
+		};
+	}
+
+	/**
+	 * @return the repository interface the bean was made from, meaning the one of ours that none of the others
+	 * extend, or null if it isn't one of ours
+	 */
+	static Class<?> getRepositoryInterface(Object bean) {
+		Class<?> found = null;
+		for (Class<?> type : ClassUtils.getAllInterfaces(bean)) {
+			if (type.getName().startsWith(REPOSITORY_PACKAGE) && (found == null || found.isAssignableFrom(type))) {
+				found = type;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return a proxy with all the interfaces of the bean that times each call to it
+	 */
+	public static Object wrap(Object bean, TimingInterceptor interceptor) {
+		ProxyFactory factory = new ProxyFactory(bean);
+		factory.addAdvice(interceptor);
+		return factory.getProxy();
+	}
+}
@@ -10,7 +10,8 @@ public class ScratchConstants {
 
 	public static final short BINANCE = 1;
 	public static final short CRYPTO_COMPARE = 2;
-	public static final String[] EXCHANGES = {"", "Binance", "Crypto Compare"};
+	public static final short SIMULATED = 3;
+	public static final String[] EXCHANGES = {"", "Binance", "Crypto Compare", "Simulated"};
 	public static final short ELASTIC_SEARCH = 1;
 	public static final short SQL_SEARCH = 2;
 	public static final int[] EXCHANGES_SEARCHES = {0, 1, 2};
@@ -0,0 +1,125 @@
+package com.sharshar.currencybalancer.utils;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Times every call through a proxy, with a histogram for each method and whether it threw. Methods that return a
+ * collection also count how many things came back, which for a repository is the number of rows. Repository
+ * methods that stream or write rows return how many they read or changed instead, so when numericRows is set an
+ * int or long return is counted as rows too.
+ *
+ * The meters for each method are only looked up the first time it's called, so after that a call costs two reads
+ * of the clock and a map lookup.
+ */
+public class TimingInterceptor implements MethodInterceptor {
+	private final Supplier<MeterRegistry> registrySupplier;
+	private final String name;
+	private final String tagName;
+	private final String tagValue;
+	private final boolean numericRows;
+	private final Map<Method, Meters> metersByMethod = new ConcurrentHashMap<>();
+	private volatile MeterRegistry registry;
+
+	private class Meters {
+		private final Timer success;
+		private final Timer error;
+		private final DistributionSummary rows;
+
+		Meters(Method method) {
+			MeterRegistry meterRegistry = getRegistry();
+			success = timer(meterRegistry, method, "success");
+			error = timer(meterRegistry, method, "error");
+			rows = isRowCount(method.getReturnType())
+					? DistributionSummary.builder(name + ".rows")
+							.tag(tagName, tagValue)
+							.tag("method", method.getName())
+							.register(meterRegistry)
+					: null;
+		}
+
+		private Timer timer(MeterRegistry meterRegistry, Method method, String outcome) {
+			return Timer.builder(name)
+					.tag(tagName, tagValue)
+					.tag("method", method.getName())
+					.tag("outcome", outcome)
+					.publishPercentileHistogram()
+					.register(meterRegistry);
+		}
+	}
+
+	/**
+	 * @param registrySupplier - where to register the meters, asked for on the first call so the registry doesn't
+	 *                         have to exist when the proxy is made
+	 * @param name - the name of the timer, and with .rows on the end the name of the row count
+	 * @param tagName - what the calls are to, for example repository
+	 * @param tagValue - which one it is, for example PriceDataSQLRepository
+	 */
+	public TimingInterceptor(Supplier<MeterRegistry> registrySupplier, String name, String tagName, String tagValue) {
+		this(registrySupplier, name, tagName, tagValue, false);
+	}
+
+	/**
+	 * @param numericRows - true if an int or long return is a number of rows, as it is for a repository
+	 */
+	public TimingInterceptor(Supplier<MeterRegistry> registrySupplier, String name, String tagName, String tagValue,
+							 boolean numericRows) {
+		this.registrySupplier = registrySupplier;
+		this.name = name;
+		this.tagName = tagName;
+		this.tagValue = tagValue;
+		this.numericRows = numericRows;
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		Method method = invocation.getMethod();
+		if (method.getDeclaringClass() == Object.class) {
+			return invocation.proceed();
+		}
+		Meters meters = metersByMethod.computeIfAbsent(method, Meters::new);
+		long start = System.nanoTime();
+		Object result;
+		try {
+			result = invocation.proceed();
+		} catch (Throwable ex) {
+			meters.error.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			throw ex;
+		}
+		meters.success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		if (meters.rows != null) {
+			if (result instanceof Collection) {
+				meters.rows.record(((Collection<?>) result).size());
+			} else if (result instanceof Number) {
+				meters.rows.record(((Number) result).doubleValue());
+			}
+			// Any other Iterable may only be read once, so it isn't counted
+		}
+		return result;
+	}
+
+	private boolean isRowCount(Class<?> returnType) {
+		if (Iterable.class.isAssignableFrom(returnType)) {
+			return true;
+		}
+		return numericRows && (returnType == int.class || returnType == long.class
+				|| returnType == Integer.class || returnType == Long.class);
+	}
+
+	private MeterRegistry getRegistry() {
+		if (registry == null) {
+			registry = registrySupplier.get();
+		}
+		return registry;
+	}
+}
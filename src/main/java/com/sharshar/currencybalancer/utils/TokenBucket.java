@@ -0,0 +1,72 @@
+package com.sharshar.currencybalancer.utils;
+
+/**
+ * A token bucket, used to keep under the exchange's rate limits. The bucket holds up to capacity tokens and
+ * refills at a steady rate, and each request takes the tokens it costs, waiting for them if there aren't enough.
+ */
+public class TokenBucket {
+	private final double capacity;
+	private final double tokensPerNano;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param capacity - the most tokens the bucket can hold, which is also the largest burst allowed
+	 * @param tokensPerSecond - how fast the bucket refills
+	 */
+	public TokenBucket(double capacity, double tokensPerSecond) {
+		this.capacity = capacity;
+		this.tokensPerNano = tokensPerSecond / 1e9;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take the tokens, waiting until there are enough
+	 *
+	 * @param permits - the number of tokens to take
+	 * @return the time spent waiting in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long acquire(double permits) throws InterruptedException {
+		long start = System.nanoTime();
+		while (true) {
+			long waitNanos;
+			synchronized (this) {
+				refill();
+				if (tokens >= permits) {
+					tokens -= permits;
+					return (System.nanoTime() - start) / 1000000L;
+				}
+				waitNanos = (long) Math.ceil((permits - tokens) / tokensPerNano);
+			}
+			Thread.sleep(Math.max(1L, waitNanos / 1000000L), (int) (waitNanos % 1000000L));
+		}
+	}
+
+	/**
+	 * Take the tokens if they're there
+	 *
+	 * @param permits - the number of tokens to take
+	 * @return true if they were taken
+	 */
+	public synchronized boolean tryAcquire(double permits) {
+		refill();
+		if (tokens >= permits) {
+			tokens -= permits;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized double getAvailable() {
+		refill();
+		return tokens;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,12 @@
+-- Adds the portfolios. Run once against an existing database before starting this version; the holding ratios
+-- already there become the default portfolio, id 0, which CurrencyBalancer and /currentConfig use.
+
+ALTER TABLE holding_ratio ADD portfolio_id BIGINT NOT NULL DEFAULT 0;
+
+CREATE TABLE portfolio (
+	table_id BIGINT AUTO_INCREMENT PRIMARY KEY,
+	name VARCHAR(255),
+	account VARCHAR(255) NOT NULL UNIQUE,
+	min_drift DOUBLE NOT NULL DEFAULT 0,
+	min_single_drift DOUBLE NOT NULL DEFAULT 0
+);
@@ -0,0 +1,213 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.services.BalancerServices;
+import com.sharshar.currencybalancer.services.PriceFeedService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test that the balancer's state is worked out the same as before, and that requests at the same time each see
+ * one whole state
+ */
+public class BalancerStateTest {
+	private List<HoldingRatio> ratios;
+	private List<OwnedAsset> balanced;
+	private List<OwnedAsset> drifted;
+	private PriceSnapshot prices;
+
+	@Before
+	public void createState() {
+		ratios = Arrays.asList(
+				new HoldingRatio().setTicker("BTC").setPercent(0.5).setFraction(true),
+				new HoldingRatio().setTicker("NEO").setPercent(0.3).setFraction(true),
+				new HoldingRatio().setTicker("ETH").setPercent(0.2).setFraction(true));
+		balanced = assets(0.5, 60, 4);
+		drifted = assets(0.5, 20, 8);
+		prices = prices(new Date(1000L), 0.005, 0.05);
+	}
+
+	@Test
+	public void testSameAsKernel() {
+		BalancerState state = new BalancerState(ratios, drifted, prices, "BTC");
+		PortfolioKernel kernel = new PortfolioKernel(ratios, "BTC");
+		double[] amounts = new double[kernel.size()];
+		double[] tickerPrices = new double[kernel.size()];
+		double[] drifts = new double[kernel.size()];
+		kernel.loadAmounts(drifted, amounts);
+		kernel.loadPrices(prices, tickerPrices);
+		assertEquals(kernel.getDriftPercent(amounts, tickerPrices, drifts), state.getDriftPercent(), 0.0);
+		for (int i = 0; i < kernel.size(); i++) {
+			assertEquals(drifts[i], state.getDrift(i), 0.0);
+		}
+		DriftTracker tracker = new DriftTracker(kernel);
+		tracker.load(amounts, tickerPrices);
+		assertEquals(tracker.shouldBalance(0.05, 0), state.shouldBalance(0.05, 0));
+		assertEquals(tracker.shouldBalance(0, 0.5), state.shouldBalance(0, 0.5));
+		assertEquals(tracker.shouldBalance(0, 1.0), state.shouldBalance(0, 1.0));
+		assertTrue(state.ifMaxDriftExceededOnAnyCurrency(0.2));
+	}
+
+	@Test
+	public void testCopies() {
+		List<OwnedAsset> assets = assets(0.5, 60, 4);
+		BalancerState state = new BalancerState(ratios, assets, prices, "BTC");
+		assertEquals(0.0, state.getDriftPercent(), 1e-12);
+
+		// Changing what went in doesn't change the state
+		assets.get(1).setFree(1000);
+		ratios.get(1).setPercent(0.9);
+		assertEquals(60.0, state.getOwnedAssets().get(1).getFree(), 0.0);
+		assertEquals(0.3, state.getRatios().get(1).getPercent(), 0.0);
+		try {
+			state.getOwnedAssets().add(new OwnedAsset());
+			fail("The assets can't be changed");
+		} catch (UnsupportedOperationException ex) {
+			// Expected
+		}
+
+		// A new state for new holdings or prices, and the old one stays as it was
+		BalancerState moved = state.withOwnedAssets(drifted);
+		assertTrue(moved.getDriftPercent() > 0);
+		assertEquals(0.0, state.getDriftPercent(), 1e-12);
+		assertSame(state.getPrices(), moved.getPrices());
+		BalancerState repriced = moved.withPrices(prices(new Date(2000L), 0.015, 0.025));
+		assertEquals(0.0, repriced.getDriftPercent(), 1e-12);
+		assertSame(moved.getOwnedAssets(), repriced.getOwnedAssets());
+	}
+
+	@Test
+	public void testBalancer() throws Exception {
+		CurrencyBalancer balancer = createBalancer(prices);
+		assertEquals(0.0, balancer.getDriftPercent(), 1e-12);
+		assertEquals(1.0, balancer.getTotalValue("BTC"), 1e-12);
+
+		List<BalancerState> changes = new ArrayList<>();
+		balancer.addListener(changes::add);
+		balancer.setOwnedAssets(drifted);
+		assertTrue(balancer.shouldBalance(0.05, 0));
+		// Told about the new holdings
+		assertEquals(1, changes.size());
+		assertEquals(20.0, CurrencyBalancer.getOwnedAsset("NEO", changes.get(0).getOwnedAssets()).getFree(), 0.0);
+		assertEquals(2, balancer.getDrifts().size());
+		assertEquals(20.0, balancer.getOwnedAsset("NEO").getFree(), 0.0);
+
+		// Newer prices are swapped in, older ones aren't
+		PriceSnapshot newer = prices(new Date(2000L), 0.015, 0.025);
+		when(balancer.priceFeed.getPriceSnapshot()).thenReturn(newer);
+		assertSame(newer, balancer.getState().getPrices());
+		assertEquals(0.0, balancer.getDriftPercent(), 1e-12);
+		when(balancer.priceFeed.getPriceSnapshot()).thenReturn(prices);
+		assertSame(newer, balancer.getState().getPrices());
+	}
+
+	/**
+	 * Before the first load there's nothing to look things up in
+	 */
+	@Test
+	public void testNotLoaded() {
+		CurrencyBalancer balancer = new CurrencyBalancer();
+		assertNull(balancer.getDesiredHoldingRatios());
+		assertNull(balancer.getHoldingRatio("NEO"));
+		assertNull(balancer.getPriceData("NEO", "BTC"));
+		assertNull(balancer.getOwnedAsset("NEO"));
+	}
+
+	/**
+	 * The orders are placed by symbol, sells first, and the base currency isn't traded itself
+	 */
+	@Test
+	public void testBalanceOrders() throws Exception {
+		CurrencyBalancer balancer = createBalancer(prices);
+		BalancerState state = balancer.setOwnedAssets(drifted);
+		List<Map<String, Double>> orders = new ArrayList<>();
+		when(balancer.services.createOrders(anyMap())).thenAnswer(i -> {
+			orders.add(new HashMap<>(i.getArgument(0)));
+			return new ArrayList<>();
+		});
+		balancer.balance(state);
+		assertEquals(2, orders.size());
+		assertEquals(Collections.singleton("ETHBTC"), orders.get(0).keySet());
+		assertTrue(orders.get(0).get("ETHBTC") < 0);
+		assertEquals(Collections.singleton("NEOBTC"), orders.get(1).keySet());
+		assertTrue(orders.get(1).get("NEOBTC") > 0);
+	}
+
+	/**
+	 * While one thread keeps swapping the holdings, every answer has to be the drift of one of them, never a mix
+	 */
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		CurrencyBalancer balancer = createBalancer(prices);
+		double balancedDrift = new BalancerState(ratios, balanced, prices, "BTC").getDriftPercent();
+		double driftedDrift = new BalancerState(ratios, drifted, prices, "BTC").getDriftPercent();
+		double balancedValue = new BalancerState(ratios, balanced, prices, "BTC").getOwnedAssets().stream()
+				.mapToDouble(a -> CurrencyBalancer.getValueOwned(a, prices, "BTC")).sum();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AtomicBoolean running = new AtomicBoolean(true);
+		try {
+			Future<?> swapper = executor.submit(() -> {
+				for (int i = 0; i < 20000; i++) {
+					balancer.setOwnedAssets(i % 2 == 0 ? drifted : balanced);
+				}
+				running.set(false);
+			});
+			List<Future<Integer>> readers = new ArrayList<>();
+			for (int t = 0; t < 3; t++) {
+				readers.add(executor.submit(() -> {
+					int reads = 0;
+					while (running.get() || reads == 0) {
+						double drift = balancer.getDriftPercent();
+						assertTrue(drift == balancedDrift || drift == driftedDrift);
+						double value = balancer.getTotalValue("BTC");
+						// Both sets of holdings are worth the same
+						assertEquals(balancedValue, value, 1e-12);
+						reads++;
+					}
+					return reads;
+				}));
+			}
+			swapper.get(30, TimeUnit.SECONDS);
+			for (Future<Integer> reader : readers) {
+				assertTrue(reader.get(30, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private CurrencyBalancer createBalancer(PriceSnapshot snapshot) throws Exception {
+		CurrencyBalancer balancer = new CurrencyBalancer();
+		balancer.services = mock(BalancerServices.class);
+		balancer.priceFeed = mock(PriceFeedService.class);
+		when(balancer.services.getDesiredRatios()).thenReturn(ratios);
+		when(balancer.services.getOwnedAssets()).thenReturn(balanced);
+		when(balancer.priceFeed.getPriceSnapshot()).thenReturn(snapshot);
+		balancer.load();
+		return balancer;
+	}
+
+	private static List<OwnedAsset> assets(double btc, double neo, double eth) {
+		return Arrays.asList(
+				new OwnedAsset().setAsset("BTC").setFree(btc).setLocked(0),
+				new OwnedAsset().setAsset("NEO").setFree(neo).setLocked(0),
+				new OwnedAsset().setAsset("ETH").setFree(eth).setLocked(0));
+	}
+
+	private static PriceSnapshot prices(Date time, double neo, double eth) {
+		return PriceSnapshot.of(Arrays.asList(
+				new PriceData().setTicker("NEOBTC").setPrice(neo),
+				new PriceData().setTicker("ETHBTC").setPrice(eth)), time);
+	}
+}
@@ -10,6 +10,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -57,14 +58,13 @@ public class CurrencyBalancerTest {
 		assertTrue(balancer.ifMaxDriftExceededOnAnyCurrency(0.2));
 
 		// Let's do the adjustments, then determine if the ratios are met.
-		for (HoldingRatio ratio : ratios) {
-			OwnedAsset asset = balancer.getOwnedAsset(ratio.getTicker());
-			String assetName = asset.getAsset();
-			Double adjustment = adjustments.get(assetName);
-			if (adjustment != null) {
-				asset.setFree(asset.getFree() + adjustment);
-			}
+		List<OwnedAsset> adjusted = new ArrayList<>();
+		for (OwnedAsset asset : ownedAssets) {
+			Double adjustment = adjustments.get(asset.getAsset());
+			adjusted.add(new OwnedAsset().setAsset(asset.getAsset()).setLocked(asset.getLocked())
+					.setFree(asset.getFree() + (adjustment == null ? 0.0 : adjustment)));
 		}
+		balancer.setOwnedAssets(adjusted);
 		ownedAssets = balancer.getOwnedAssets();
 		System.out.println(ownedAssets);
 
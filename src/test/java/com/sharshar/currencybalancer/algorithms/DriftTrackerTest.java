@@ -0,0 +1,76 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make a lot of random changes to the tracker and check it against adding everything up from scratch
+ */
+public class DriftTrackerTest {
+
+	@Test
+	public void testMatchesFullCalculation() {
+		Random random = new Random(3);
+		List<HoldingRatio> ratios = new ArrayList<>();
+		String[] tickers = {"BTC", "ETH", "NEO", "BAT", "BNB", "XLM", "ADA", "ICX"};
+		for (String ticker : tickers) {
+			ratios.add(new HoldingRatio().setTicker(ticker).setPercent(1.0 / tickers.length).setFraction(true));
+		}
+		PortfolioKernel kernel = new PortfolioKernel(ratios, "BTC");
+		int size = kernel.size();
+		double[] amounts = new double[size];
+		double[] prices = new double[size];
+		for (int i = 0; i < size; i++) {
+			amounts[i] = 1 + random.nextDouble() * 100;
+			prices[i] = i == 0 ? 1.0 : 0.0001 + random.nextDouble() * 0.1;
+		}
+		DriftTracker tracker = new DriftTracker(kernel);
+		tracker.load(amounts, prices);
+
+		for (int step = 0; step < 5000; step++) {
+			int index = 1 + random.nextInt(size - 1);
+			if (random.nextInt(10) == 0) {
+				amounts[index] = 1 + random.nextDouble() * 100;
+				tracker.setAmount(index, amounts[index]);
+			} else {
+				prices[index] *= 1 + (random.nextDouble() - 0.5) * 0.05;
+				tracker.setPrice(index, prices[index]);
+			}
+			double totalValue = kernel.getTotalValue(amounts, prices);
+			double driftPercent = 0;
+			double maxSingleDrift = 0;
+			for (int i = 0; i < size; i++) {
+				double drift = kernel.getRatio(i) * totalValue / (amounts[i] * prices[i]) - 1;
+				driftPercent += Math.abs(drift) * kernel.getRatio(i);
+				maxSingleDrift = Math.max(maxSingleDrift, Math.abs(drift));
+			}
+			assertEquals(totalValue, tracker.getTotalValue(), 1e-9);
+			assertEquals(maxSingleDrift, tracker.getMaxSingleDrift(), 1e-9);
+			assertEquals(driftPercent, tracker.getDriftPercent(), 1e-9);
+			assertEquals(driftPercent > 0.2, tracker.shouldBalance(0.2, 0));
+			assertEquals(maxSingleDrift > 0.5, tracker.shouldBalance(0, 0.5));
+		}
+	}
+
+	@Test
+	public void testMissingPrices() {
+		List<HoldingRatio> ratios = new ArrayList<>();
+		ratios.add(new HoldingRatio().setTicker("BTC").setPercent(.5));
+		ratios.add(new HoldingRatio().setTicker("ETH").setPercent(.5));
+		DriftTracker tracker = new DriftTracker(new PortfolioKernel(ratios, "BTC"));
+		tracker.load(new double[] {1.0, 10.0}, new double[] {1.0, Double.NaN});
+		assertFalse(tracker.isComplete());
+		assertEquals(1.0, tracker.getTotalValue(), 0.0);
+		assertEquals(0.0, tracker.getDrift(1), 0.0);
+		tracker.setPrice(1, 0.1);
+		assertTrue(tracker.isComplete());
+		assertEquals(0.0, tracker.getMaxSingleDrift(), 1e-12);
+		assertFalse(tracker.shouldBalance(0.01, 0.01));
+	}
+}
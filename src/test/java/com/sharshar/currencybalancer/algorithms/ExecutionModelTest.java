@@ -0,0 +1,116 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that trading through the execution model costs what it should
+ */
+public class ExecutionModelTest {
+
+	private static final long START = 1519862400000L;
+	private static final long HOUR = 1000L * 60 * 60;
+	private static final long DAY = 24 * HOUR;
+	private static final long END = START + 60 * DAY;
+
+	private PriceHistory history;
+	private List<OwnedAsset> assets;
+	private final double[] ratios = {0.4, 0.3, 0.2, 0.1};
+	private final double[] endPrices = new double[4];
+
+	@Before
+	public void setUp() {
+		Random random = new Random(11);
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		String[] names = {"BTC", "NEO", "ETH", "BNB"};
+		for (int a = 0; a < names.length; a++) {
+			String asset = names[a];
+			List<PriceData> data = new ArrayList<>();
+			double price = asset.equals("BTC") ? 1.0 : 0.001 + random.nextDouble() * 0.1;
+			for (long time = START; time < END + DAY; time += HOUR) {
+				if (!asset.equals("BTC")) {
+					price *= 1 + (random.nextDouble() - 0.5) * 0.04;
+				}
+				data.add(new PriceData().setTicker(asset + "BTC").setUpdateTime(new Date(time)).setPrice(price));
+				if (time < END) {
+					endPrices[a] = price;
+				}
+			}
+			dataByAsset.put(asset, data);
+		}
+		history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(END + DAY));
+		assets = new ArrayList<>();
+		assets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		assets.add(new OwnedAsset().setAsset("NEO").setFree(20.0));
+		assets.add(new OwnedAsset().setAsset("ETH").setFree(5.0));
+		assets.add(new OwnedAsset().setAsset("BNB").setFree(100.0));
+	}
+
+	private double[] simulate(ExecutionModel execution, long interval) {
+		return new RebalanceSimulator(assets, history, new Date(START), new Date(END), execution)
+				.simulate(ratios, interval);
+	}
+
+	private double value(double[] amounts) {
+		return RebalanceSimulator.getTotalValue(amounts, endPrices);
+	}
+
+	@Test
+	public void testFrictionless() {
+		// Trading for free through the model ends up where the plain simulation does
+		double[] free = simulate(null, DAY);
+		double[] model = simulate(ExecutionModel.frictionless(), DAY);
+		assertArrayEquals(free, model, 1e-9);
+	}
+
+	@Test
+	public void testCosts() {
+		ExecutionModel fees = new ExecutionModel().setTakerFee(0.001).setHalfSpread(0.0005).setMinNotional(0);
+		double free = value(simulate(null, HOUR));
+		double hourly = value(simulate(fees, HOUR));
+		double weekly = value(simulate(fees, 7 * DAY));
+		assertTrue(hourly < free);
+		// Rebalancing every hour pays a lot more in fees than every week
+		assertTrue(free - hourly > 5 * (value(simulate(null, 7 * DAY)) - weekly));
+
+		// Bigger trades slip more
+		ExecutionModel impact = new ExecutionModel().setImpact(0.01).setMinNotional(0);
+		assertTrue(value(simulate(impact, DAY)) < value(simulate(fees, DAY)));
+		assertEquals(0.0005 + 0.01 * 0.5, impact.getSlippage(0.25), 1e-12);
+	}
+
+	@Test
+	public void testLotsAndMinimums() {
+		ExecutionModel lots = new ExecutionModel().setLotSize(1.0).setLotSize("ETH", 0.01).setMinNotional(0.001);
+		for (long interval : new long[] {HOUR, DAY}) {
+			double[] amounts = simulate(lots, interval);
+			// Started on whole numbers, so trading in lots keeps them whole
+			assertEquals(Math.rint(amounts[1]), amounts[1], 1e-9);
+			assertEquals(Math.rint(amounts[3]), amounts[3], 1e-9);
+			assertEquals(Math.rint(amounts[2] * 100), amounts[2] * 100, 1e-6);
+			assertTrue(amounts[0] >= 0);
+		}
+		// Nothing is big enough to trade
+		double[] untouched = simulate(new ExecutionModel().setMinNotional(1000), DAY);
+		assertArrayEquals(new double[] {1.0, 20.0, 5.0, 100.0}, untouched, 0.0);
+	}
+
+	@Test
+	public void testRoundToLot() {
+		assertEquals(1.23, ExecutionModel.roundToLot(1.2399, 0.01), 1e-12);
+		assertEquals(-1.23, ExecutionModel.roundToLot(-1.2399, 0.01), 1e-12);
+		assertEquals(3.0, ExecutionModel.roundToLot(2.9999999999999996, 1.0), 0.0);
+		assertEquals(0.123456, ExecutionModel.roundToLot(0.123456, 0), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNeedsBaseCurrency() {
+		new RebalanceSimulator(assets.subList(1, 4), history, new Date(START), new Date(END), new ExecutionModel());
+	}
+}
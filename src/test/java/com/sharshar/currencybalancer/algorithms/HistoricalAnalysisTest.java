@@ -53,6 +53,7 @@ public class HistoricalAnalysisTest {
 	@Test
 	public void doAnalysis() throws ParseException {
 		int numberOfRandomTries = 1000;
+		int numberToKeep = 50;
 		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
 
 		Date startDate = sdf.parse("03/01/2018 00:00:00");
@@ -61,15 +62,15 @@ public class HistoricalAnalysisTest {
 
 		// Open up a results file
 		try (BufferedWriter s = Files.newBufferedWriter(Paths.get("c:/tmp/balancerresults.txt"))) {
-			// Since each testMyHistorical
-			for (int i=0; i<numberOfRandomTries; i++) {
-				List<HistoricalAnalysis.AnalysisResult> results = historicalAnalysis.testMyHistorical(startDate, endDate, s);
-				bestResult = results.stream().mapToDouble(c -> c.getAmountBitcoin()).max().orElse(0);
-				s.write("****** Best result: " + String.format("%.4f", bestResult));
+			List<HistoricalAnalysis.AnalysisResult> results = historicalAnalysis.sweepMyHistorical(startDate, endDate,
+					numberOfRandomTries, numberToKeep);
+			for (HistoricalAnalysis.AnalysisResult result : results) {
+				s.write(result.toString());
 			}
+			bestResult = results.stream().mapToDouble(c -> c.getAmountBitcoin()).max().orElse(0);
+			s.write("****** Best result: " + String.format("%.4f", bestResult));
 		} catch (Exception ex) {
 			System.out.println("----------------------------------------------------------------------\n****** Best result: " + String.format("%.4f", bestResult));
 		}
-		//results.forEach(c -> System.out.println(c));
 	}
 }
@@ -0,0 +1,93 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure the kernel comes up with the same numbers as the static methods in CurrencyBalancer
+ */
+public class PortfolioKernelTest {
+	private List<HoldingRatio> ratios;
+	private List<OwnedAsset> ownedAssets;
+	private List<PriceData> priceData;
+
+	@Before
+	public void loadPortfolio() {
+		ratios = new ArrayList<>();
+		ratios.add(new HoldingRatio().setTicker("BTC").setPercent(.40).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("ETH").setPercent(.25).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("NEO").setPercent(.20).setFraction(false));
+		ratios.add(new HoldingRatio().setTicker("BAT").setPercent(.15).setFraction(false));
+
+		ownedAssets = new ArrayList<>();
+		ownedAssets.add(new OwnedAsset().setAsset("BTC").setFree(1.2).setLocked(0.1));
+		ownedAssets.add(new OwnedAsset().setAsset("ETH").setFree(4.0));
+		ownedAssets.add(new OwnedAsset().setAsset("NEO").setFree(30.0).setLocked(5.0));
+		ownedAssets.add(new OwnedAsset().setAsset("BAT").setFree(9000.0));
+		ownedAssets.add(new OwnedAsset().setAsset("BNB").setFree(10.0));
+
+		priceData = new ArrayList<>();
+		priceData.add(new PriceData().setTicker("ETHBTC").setPrice(0.075));
+		priceData.add(new PriceData().setTicker("NEOBTC").setPrice(0.0061));
+		priceData.add(new PriceData().setTicker("BATBTC").setPrice(0.000041));
+		priceData.add(new PriceData().setTicker("BNBBTC").setPrice(0.0016));
+		priceData.add(new PriceData().setTicker("BTCUSDT").setPrice(6500.0));
+	}
+
+	@Test
+	public void testMatchesCurrencyBalancer() {
+		PortfolioKernel kernel = new PortfolioKernel(ratios, "BTC");
+		double[] amounts = new double[kernel.size()];
+		double[] prices = new double[kernel.size()];
+		double[] adjustments = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(priceData, prices);
+
+		double totalValue = kernel.getAdjustments(amounts, prices, adjustments);
+		assertEquals(CurrencyBalancer.getTotalValue(ownedAssets, ratios, priceData, "BTC"), totalValue, 1e-12);
+
+		Map<String, Double> expected = CurrencyBalancer.getAdjustments(ownedAssets, ratios, priceData);
+		for (int i = 0; i < kernel.size(); i++) {
+			Double adjustment = expected.get(kernel.getTicker(i));
+			assertEquals(adjustment == null ? 0.0 : adjustment, adjustments[i], 1e-9);
+		}
+		// NEO and BAT can't be traded in fractions
+		assertEquals(Math.rint(adjustments[kernel.indexOf("NEO")]), adjustments[kernel.indexOf("NEO")], 0.0);
+
+		double[] drifts = new double[kernel.size()];
+		kernel.getDrifts(amounts, prices, drifts);
+		double driftPercent = 0;
+		for (int i = 0; i < kernel.size(); i++) {
+			assertEquals(adjustments[i] / amounts[i], drifts[i], 1e-12);
+			driftPercent += Math.abs(drifts[i]) * kernel.getRatio(i);
+		}
+		assertEquals(driftPercent, kernel.getDriftPercent(amounts, prices, new double[kernel.size()]), 1e-12);
+		assertTrue(kernel.ifMaxDriftExceededOnAnyCurrency(amounts, prices, new double[kernel.size()], 0.01));
+		assertFalse(kernel.ifMaxDriftExceededOnAnyCurrency(amounts, prices, new double[kernel.size()], 100));
+	}
+
+	@Test
+	public void testMissingPrice() {
+		priceData.removeIf(c -> c.getTicker().equals("BATBTC"));
+		PortfolioKernel kernel = new PortfolioKernel(ratios, "BTC");
+		double[] amounts = new double[kernel.size()];
+		double[] prices = new double[kernel.size()];
+		double[] adjustments = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(priceData, prices);
+		assertTrue(Double.isNaN(prices[kernel.indexOf("BAT")]));
+		assertEquals(1.0, prices[kernel.indexOf("BTC")], 0.0);
+		kernel.getAdjustments(amounts, prices, adjustments);
+		assertEquals(0.0, adjustments[kernel.indexOf("BAT")], 0.0);
+		assertFalse(CurrencyBalancer.getAdjustments(ownedAssets, ratios, priceData).containsKey("BAT"));
+	}
+}
@@ -0,0 +1,93 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure the cursor returns exactly what scanning the price data list does
+ */
+public class PriceCursorTest {
+
+	private static final long START = 1519862400000L;
+
+	private List<PriceData> createPriceData(Random random, String ticker, int count) {
+		List<PriceData> data = new ArrayList<>();
+		long time = START;
+		for (int i = 0; i < count; i++) {
+			// Sometimes two updates come in at the same time
+			time += random.nextInt(5) == 0 ? 0 : 1 + random.nextInt(120000);
+			data.add(new PriceData().setTicker(ticker).setUpdateTime(new Date(time)).setPrice(random.nextDouble()));
+		}
+		return data;
+	}
+
+	@Test
+	public void testMatchesGetPrice() {
+		Random random = new Random(42);
+		List<PriceData> data = createPriceData(random, "NEOBTC", 2000);
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		dataByAsset.put("NEO", data);
+		PriceHistory history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(START));
+		long last = data.get(data.size() - 1).getUpdateTime().getTime();
+
+		// Walk forward like a simulation does, then jump around
+		PriceCursor cursor = history.getSeries("NEO").cursor();
+		for (long time = START - 1000; time <= last + 1000; time += 1 + random.nextInt(300000)) {
+			assertMatchesReference(data, cursor, time);
+		}
+		for (int i = 0; i < 2000; i++) {
+			assertMatchesReference(data, cursor, START - 1000 + (long) (random.nextDouble() * (last - START + 2000)));
+		}
+		// Exact hits, including duplicate times
+		for (PriceData pd : data) {
+			assertMatchesReference(data, cursor, pd.getUpdateTime().getTime());
+		}
+	}
+
+	/**
+	 * Rows that come in out of order are sorted by time, and rows with the same time keep the order they came in
+	 */
+	@Test
+	public void testUnsorted() {
+		Random random = new Random(7);
+		List<PriceData> shuffled = createPriceData(random, "NEOBTC", 500);
+		Collections.shuffle(shuffled, random);
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		dataByAsset.put("NEO", shuffled);
+		PriceHistory history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(START));
+		List<PriceData> data = new ArrayList<>(shuffled);
+		data.sort(Comparator.comparingLong(pd -> pd.getUpdateTime().getTime()));
+
+		PriceCursor cursor = history.getSeries("NEO").cursor();
+		for (PriceData pd : data) {
+			assertMatchesReference(data, cursor, pd.getUpdateTime().getTime());
+			assertMatchesReference(data, cursor, pd.getUpdateTime().getTime() + 1);
+		}
+		assertMatchesReference(data, cursor, START - 1);
+	}
+
+	@Test
+	public void testEmptyAndMissing() {
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		dataByAsset.put("NEO", new ArrayList<>());
+		PriceHistory history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(START));
+		assertTrue(Double.isNaN(history.getSeries("NEO").cursor().priceAtOrAfter(START)));
+		assertNull(history.getSeries("ETH"));
+		assertTrue(Double.isNaN(new PriceCursor(null).priceAtOrAfter(START)));
+	}
+
+	private void assertMatchesReference(List<PriceData> data, PriceCursor cursor, long time) {
+		PriceData expected = HistoricalAnalysis.getPrice(data, "NEO", new Date(time), "BTC");
+		double actual = cursor.priceAtOrAfter(time);
+		if (expected == null) {
+			assertTrue("Expected no price at " + time, Double.isNaN(actual));
+		} else {
+			assertEquals("Price at " + time, expected.getPrice(), actual, 0.0);
+			assertEquals(expected.getUpdateTime().getTime(), cursor.currentTime());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Make sure loading the history a row at a time gives the same result as loading the lists
+ */
+public class PriceHistoryTest {
+
+	private static final long START = 1519862400000L;
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testLoadMatchesFromPriceData() {
+		Random random = new Random(42);
+		Map<String, List<PriceData>> rows = new HashMap<>();
+		for (String ticker : Arrays.asList("NEOBTC", "BTCUSDT")) {
+			List<PriceData> data = new ArrayList<>();
+			for (int i = 0; i < 3000; i++) {
+				// Out of order, with some times repeated
+				long time = START + random.nextInt(1000) * 60000L;
+				data.add(new PriceData().setTicker(ticker).setUpdateTime(new Date(time)).setPrice(random.nextDouble()));
+			}
+			data.add(new PriceData().setTicker(ticker).setUpdateTime(new Date(START)));
+			rows.put(ticker, data);
+		}
+		PriceDataSQLRepository repository = mock(PriceDataSQLRepository.class);
+		when(repository.forEachByTicker(anyString(), any(Date.class), any(Date.class), any(Consumer.class)))
+				.thenAnswer(c -> {
+					List<PriceData> data = rows.get(c.<String>getArgument(0));
+					data.forEach(c.<Consumer<PriceData>>getArgument(3));
+					return (long) data.size();
+				});
+
+		Date start = new Date(START);
+		Date end = new Date(START + 1000 * 60000L);
+		PriceHistory loaded = PriceHistory.load(repository, Arrays.asList("NEO", "BTC"), "BTC", start, end);
+
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		dataByAsset.put("NEO", rows.get("NEOBTC"));
+		dataByAsset.put("BTC", rows.get("BTCUSDT"));
+		PriceHistory expected = PriceHistory.fromPriceData(dataByAsset, "BTC", start, end);
+
+		PriceHistory.Series neo = loaded.getSeries("NEO");
+		PriceHistory.Series expectedNeo = expected.getSeries("NEO");
+		assertEquals(3000, neo.size());
+		assertEquals(expectedNeo.size(), neo.size());
+		for (int i = 0; i < neo.size(); i++) {
+			assertEquals(expectedNeo.getTime(i), neo.getTime(i));
+			assertEquals(expectedNeo.getPrice(i), neo.getPrice(i), 0.0);
+			if (i > 0) {
+				assertTrue(neo.getTime(i) >= neo.getTime(i - 1));
+			}
+		}
+
+		// The base currency keeps the times but is always worth 1
+		PriceHistory.Series btc = loaded.getSeries("BTC");
+		assertEquals(3001, btc.size());
+		for (int i = 0; i < btc.size(); i++) {
+			assertEquals(1.0, btc.getPrice(i), 0.0);
+		}
+		assertEquals("BTC", loaded.getBaseCurrency());
+		assertEquals(start, loaded.getStartDate());
+	}
+}
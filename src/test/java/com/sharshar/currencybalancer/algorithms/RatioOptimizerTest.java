@@ -0,0 +1,156 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the ratio optimizers against a made up score, so they don't need any prices
+ */
+public class RatioOptimizerTest {
+
+	private static final double[] TARGET = {0.05, 0.4, 0.02, 0.25, 0.08, 0.1, 0.03, 0.07};
+
+	/**
+	 * Best at TARGET, and worse the further away the ratios are
+	 */
+	private static double score(double[] ratios) {
+		double distance = 0;
+		for (int i = 0; i < ratios.length; i++) {
+			distance += (ratios[i] - TARGET[i]) * (ratios[i] - TARGET[i]);
+		}
+		return -distance;
+	}
+
+	/**
+	 * Ask and tell the way the sweep does
+	 *
+	 * @return the best score found
+	 */
+	private static double run(RatioOptimizer optimizer, int numberOfTries, int batchSize) {
+		double best = Double.NEGATIVE_INFINITY;
+		int tried = 0;
+		while (tried < numberOfTries) {
+			double[][] batch = optimizer.ask(Math.min(batchSize, numberOfTries - tried));
+			if (batch.length == 0) {
+				break;
+			}
+			double[] scores = new double[batch.length];
+			for (int k = 0; k < batch.length; k++) {
+				double sum = 0;
+				for (double ratio : batch[k]) {
+					assertTrue(ratio >= 0);
+					sum += ratio;
+				}
+				assertEquals(1.0, sum, 1e-9);
+				scores[k] = score(batch[k]);
+				best = Math.max(best, scores[k]);
+			}
+			optimizer.tell(batch, scores);
+			tried += batch.length;
+		}
+		return best;
+	}
+
+	@Test
+	public void testDirichlet() {
+		Random random = new Random(5);
+		int n = 4;
+		double[] means = new double[n];
+		int samples = 20000;
+		double[][] ratios = new DirichletSampler(n, 1.0, random).ask(samples);
+		assertEquals(samples, ratios.length);
+		// Every mix being equally likely, each ratio is below 1/2 seven times out of eight
+		int belowHalf = 0;
+		for (double[] sample : ratios) {
+			for (int i = 0; i < n; i++) {
+				means[i] += sample[i] / samples;
+			}
+			if (sample[0] < 0.5) {
+				belowHalf++;
+			}
+		}
+		for (double mean : means) {
+			assertEquals(0.25, mean, 0.01);
+		}
+		assertEquals(0.875, belowHalf / (double) samples, 0.01);
+	}
+
+	@Test
+	public void testGamma() {
+		Random random = new Random(9);
+		for (double shape : new double[] {0.3, 1.0, 2.5}) {
+			double total = 0;
+			for (int i = 0; i < 50000; i++) {
+				total += DirichletSampler.gamma(shape, random);
+			}
+			assertEquals(shape, total / 50000, shape * 0.03);
+		}
+	}
+
+	@Test
+	public void testEvolutionBeatsRandom() {
+		double random = run(new DirichletSampler(TARGET.length, 1.0, new Random(1)), 2000, 64);
+		EvolutionStrategyOptimizer evolution = new EvolutionStrategyOptimizer(TARGET.length, new Random(1));
+		double evolved = run(evolution, 500, 64);
+		assertTrue(evolution.getGenerations() > 5);
+		// A quarter of the tries and it's much closer
+		assertTrue(evolved > random);
+		assertTrue(evolved > -1e-4);
+		double[] mean = evolution.getMean();
+		for (int i = 0; i < TARGET.length; i++) {
+			assertEquals(TARGET[i], mean[i], 0.02);
+		}
+	}
+
+	@Test
+	public void testEvolutionFinishes() {
+		EvolutionStrategyOptimizer evolution = new EvolutionStrategyOptimizer(TARGET.length, 8, new Random(2));
+		run(evolution, 1000000, 3);
+		assertTrue(evolution.isFinished());
+		assertEquals(0, evolution.ask(10).length);
+	}
+
+	/**
+	 * With most of a generation dropped, only the ones that finished decide where to look next
+	 */
+	@Test
+	public void testDroppedArentParents() {
+		EvolutionStrategyOptimizer evolution = new EvolutionStrategyOptimizer(3, 8, new Random(3));
+		double[][] ratios = evolution.ask(8);
+		double[] scores = new double[8];
+		Arrays.fill(scores, Double.NaN);
+		scores[5] = 2.0;
+		scores[2] = 1.0;
+		evolution.tell(ratios, scores);
+		// The two that finished, weighted the way the best two of four parents would be
+		double best = Math.log(4.5);
+		double second = Math.log(4.5) - Math.log(2);
+		double[] best5 = EvolutionStrategyOptimizer.toLogs(ratios[5]);
+		double[] second2 = EvolutionStrategyOptimizer.toLogs(ratios[2]);
+		double[] expected = new double[3];
+		for (int i = 0; i < 3; i++) {
+			expected[i] = (best * best5[i] + second * second2[i]) / (best + second);
+		}
+		assertArrayEquals(EvolutionStrategyOptimizer.toRatios(expected), evolution.getMean(), 1e-9);
+		assertEquals(1, evolution.getGenerations());
+
+		// Nothing finished, so nothing changes
+		double[] mean = evolution.getMean();
+		double[][] next = evolution.ask(8);
+		double[] dropped = new double[next.length];
+		Arrays.fill(dropped, Double.NaN);
+		evolution.tell(next, dropped);
+		assertArrayEquals(mean, evolution.getMean(), 0.0);
+		assertEquals(2, evolution.getGenerations());
+	}
+
+	@Test
+	public void testLogs() {
+		double[] ratios = {0.2, 0.5, 0.3};
+		assertArrayEquals(ratios, EvolutionStrategyOptimizer.toRatios(EvolutionStrategyOptimizer.toLogs(ratios)), 1e-12);
+	}
+}
@@ -0,0 +1,175 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure simulating everything in one pass gives the same answers as one simulation at a time
+ */
+public class RebalanceSimulatorTest {
+
+	private static final long START = 1519862400000L;
+	private static final long HOUR = 1000L * 60 * 60;
+	private static final long DAY = 24 * HOUR;
+	private static final long END = START + 60 * DAY;
+
+	private final Random random = new Random(3);
+	private PriceHistory history;
+	private List<OwnedAsset> assets;
+
+	@Before
+	public void setUp() {
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		for (String asset : new String[] {"BTC", "NEO", "ETH", "BNB"}) {
+			List<PriceData> data = new ArrayList<>();
+			double price = asset.equals("BTC") ? 1.0 : 0.01 + random.nextDouble() * 0.1;
+			// BNB runs out of prices part way through
+			long end = asset.equals("BNB") ? START + 40 * DAY : END;
+			for (long time = START + random.nextInt(1000); time < end; time += HOUR / 2 + random.nextInt(60000)) {
+				if (!asset.equals("BTC")) {
+					price *= 1 + (random.nextDouble() - 0.5) * 0.02;
+				}
+				data.add(new PriceData().setTicker(asset + "BTC").setUpdateTime(new Date(time)).setPrice(price));
+			}
+			dataByAsset.put(asset, data);
+		}
+		history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(END));
+		assets = new ArrayList<>();
+		assets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		assets.add(new OwnedAsset().setAsset("NEO").setFree(20.0));
+		assets.add(new OwnedAsset().setAsset("ETH").setFree(5.0).setLocked(1.0));
+		assets.add(new OwnedAsset().setAsset("BNB").setFree(100.0));
+		// No prices at all
+		assets.add(new OwnedAsset().setAsset("XRP").setFree(50.0));
+	}
+
+	/**
+	 * A plain version of one simulation, to check against
+	 */
+	private double[] simulateOne(double[] ratios, long interval) {
+		int numAssets = assets.size();
+		double[] amounts = new double[numAssets];
+		for (int i = 0; i < numAssets; i++) {
+			amounts[i] = assets.get(i).getFree() + assets.get(i).getLocked();
+		}
+		double[] prices = new double[numAssets];
+		for (long time = START; time < END; time += interval) {
+			double totalValue = 0;
+			for (int i = 0; i < numAssets; i++) {
+				String asset = assets.get(i).getAsset();
+				prices[i] = asset.equals("BTC") ? 1.0 : new PriceCursor(history.getSeries(asset)).priceAtOrAfter(time);
+				if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+					totalValue += amounts[i] * prices[i];
+				}
+			}
+			for (int i = 0; i < numAssets; i++) {
+				if (Double.isNaN(prices[i])) {
+					continue;
+				}
+				double desiredRatio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+				amounts[i] += (desiredRatio * totalValue - amounts[i] * prices[i]) / prices[i];
+			}
+		}
+		return amounts;
+	}
+
+	private double[][] createRatios(int count) {
+		double[][] ratios = new double[count][];
+		for (int k = 0; k < count; k++) {
+			List<Double> values = HistoricalAnalysis.generateRandomValues(4, random);
+			// XRP isn't managed
+			ratios[k] = new double[] {values.get(0), values.get(1), values.get(2), values.get(3), Double.NaN};
+		}
+		return ratios;
+	}
+
+	@Test
+	public void testSimulateAll() {
+		RebalanceSimulator simulator = new RebalanceSimulator(assets, history, new Date(START), new Date(END));
+		double[][] ratios = createRatios(6);
+		// Intervals that line up with each other, ones that don't, and ones longer than the history
+		long[] intervals = {DAY, 3 * DAY, 5 * HOUR, 7 * HOUR + 13, 30 * DAY, 90 * DAY};
+		double[][][] all = simulator.simulateAll(ratios, intervals);
+		assertEquals(ratios.length, all.length);
+		for (int k = 0; k < ratios.length; k++) {
+			assertEquals(intervals.length, all[k].length);
+			for (int j = 0; j < intervals.length; j++) {
+				assertArrayEquals(simulateOne(ratios[k], intervals[j]), all[k][j], 0.0);
+				assertArrayEquals(simulator.simulate(ratios[k], intervals[j]), all[k][j], 0.0);
+			}
+		}
+		// XRP has no price, so it's left alone
+		assertEquals(50.0, all[0][0][4], 0.0);
+	}
+
+	@Test
+	public void testSimulateAllDays() {
+		RebalanceSimulator simulator = new RebalanceSimulator(assets, history, new Date(START), new Date(END));
+		double[][] ratios = createRatios(3);
+		double[][][] all = simulator.simulateAll(ratios, 30);
+		for (int k = 0; k < ratios.length; k++) {
+			for (int daysBetween = 1; daysBetween <= 30; daysBetween++) {
+				assertArrayEquals(simulator.simulateEveryDays(ratios[k], daysBetween), all[k][daysBetween - 1], 0.0);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoInterval() {
+		new RebalanceSimulator(assets, history, new Date(START), new Date(END))
+				.simulateAll(createRatios(1), new long[] {DAY, 0});
+	}
+
+	@Test
+	public void testPruning() {
+		RebalanceSimulator simulator = new RebalanceSimulator(assets, history, new Date(START), new Date(END));
+		double[][] ratios = createRatios(40);
+		long[] intervals = {DAY, 7 * DAY};
+		double[][][] all = simulator.simulateAll(ratios, intervals);
+		double[][][] pruned = simulator.simulateAll(ratios, intervals, new DominancePruner(0.02));
+		int dropped = 0;
+		for (int k = 0; k < ratios.length; k++) {
+			if (pruned[k] == null) {
+				dropped++;
+				continue;
+			}
+			// The ones that are left come out exactly the same
+			for (int j = 0; j < intervals.length; j++) {
+				assertArrayEquals(all[k][j], pruned[k][j], 0.0);
+			}
+		}
+		assertTrue(dropped > 0);
+		assertTrue(dropped < ratios.length);
+	}
+
+	@Test
+	public void testDominancePruner() {
+		boolean[] active = {true, true, true, false};
+		new DominancePruner(0.1).prune(0, new double[][] {{1.0, 2.0}, {1.85, 1.0}, {1.79, 1.7}, null}, active);
+		assertArrayEquals(new boolean[] {true, true, false, false}, active);
+	}
+
+	/**
+	 * The leader at a checkpoint is shared between every call, so separate chunks of trials are judged against
+	 * each other, but not against a different checkpoint
+	 */
+	@Test
+	public void testDominancePrunerSharesLeader() {
+		DominancePruner pruner = new DominancePruner(0.1, 2);
+		boolean[] first = {true, true};
+		pruner.prune(0, new double[][] {{2.0}, {1.9}}, first);
+		assertArrayEquals(new boolean[] {true, true}, first);
+		boolean[] second = {true, true};
+		pruner.prune(0, new double[][] {{1.5}, {1.85}}, second);
+		assertArrayEquals(new boolean[] {false, true}, second);
+		boolean[] later = {true, true};
+		pruner.prune(1, new double[][] {{1.5}, {1.4}}, later);
+		assertArrayEquals(new boolean[] {true, true}, later);
+	}
+}
@@ -0,0 +1,193 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure the strategies that watch the drift rebalance when they should
+ */
+public class RebalanceStrategyTest {
+
+	private static final long START = 1519862400000L;
+	private static final long HOUR = 1000L * 60 * 60;
+	private static final long DAY = 24 * HOUR;
+	private static final long END = START + 30 * DAY;
+
+	private final Random random = new Random(5);
+	private PriceHistory history;
+	private List<OwnedAsset> assets;
+	private RebalanceSimulator simulator;
+	private final double[] ratios = {0.25, 0.35, 0.25, 0.15, Double.NaN};
+
+	@Before
+	public void setUp() {
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		for (String asset : new String[] {"BTC", "NEO", "ETH", "BNB"}) {
+			List<PriceData> data = new ArrayList<>();
+			double price = asset.equals("BTC") ? 1.0 : 0.01 + random.nextDouble() * 0.1;
+			// BNB runs out of prices part way through
+			long end = asset.equals("BNB") ? START + 20 * DAY : END;
+			for (long time = START + random.nextInt(1000); time < end; time += HOUR / 2 + random.nextInt(60000)) {
+				if (!asset.equals("BTC")) {
+					price *= 1 + (random.nextDouble() - 0.5) * 0.02;
+				}
+				data.add(new PriceData().setTicker(asset + "BTC").setUpdateTime(new Date(time)).setPrice(price));
+			}
+			dataByAsset.put(asset, data);
+		}
+		history = PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(END));
+		assets = new ArrayList<>();
+		assets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		assets.add(new OwnedAsset().setAsset("NEO").setFree(20.0));
+		assets.add(new OwnedAsset().setAsset("ETH").setFree(5.0).setLocked(1.0));
+		assets.add(new OwnedAsset().setAsset("BNB").setFree(100.0));
+		// No prices at all
+		assets.add(new OwnedAsset().setAsset("XRP").setFree(50.0));
+		simulator = new RebalanceSimulator(assets, history, new Date(START), new Date(END));
+	}
+
+	/**
+	 * A plain version of the threshold strategy that works the drift out from scratch after every price, to check
+	 * against
+	 */
+	private double[] simulateThreshold(double minDrift, double minSingleDrift, int[] rebalances) {
+		int numAssets = assets.size();
+		double[] amounts = new double[numAssets];
+		double[] prices = new double[numAssets];
+		Map<Long, List<Integer>> ticks = new TreeMap<>();
+		for (int i = 0; i < numAssets; i++) {
+			String asset = assets.get(i).getAsset();
+			amounts[i] = assets.get(i).getFree() + assets.get(i).getLocked();
+			PriceHistory.Series series = history.getSeries(asset);
+			prices[i] = asset.equals("BTC") ? 1.0 : new PriceCursor(series).priceAtOrAfter(START);
+			if (asset.equals("BTC") || series == null) {
+				continue;
+			}
+			for (int j = series.indexAtOrAfter(START, 0) + 1; j < series.size() && series.getTime(j) < END; j++) {
+				ticks.computeIfAbsent(series.getTime(j), t -> new ArrayList<>()).add(i);
+			}
+		}
+		rebalance(amounts, prices);
+		rebalances[0] = 1;
+		for (Map.Entry<Long, List<Integer>> tick : ticks.entrySet()) {
+			for (int i : tick.getValue()) {
+				PriceHistory.Series series = history.getSeries(assets.get(i).getAsset());
+				prices[i] = series.getPrice(series.indexAtOrAfter(tick.getKey(), 0));
+			}
+			double totalValue = 0;
+			for (int i = 0; i < numAssets; i++) {
+				if (!Double.isNaN(prices[i])) {
+					totalValue += amounts[i] * prices[i];
+				}
+			}
+			double maxSingleDrift = 0;
+			double driftPercent = 0;
+			for (int i = 0; i < numAssets; i++) {
+				double ratio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+				double value = Double.isNaN(prices[i]) ? 0.0 : amounts[i] * prices[i];
+				if (Double.isNaN(prices[i]) || (value == 0.0 && ratio == 0.0)) {
+					continue;
+				}
+				double drift = value == 0.0 ? Double.POSITIVE_INFINITY : ratio * totalValue / value - 1;
+				maxSingleDrift = Math.max(maxSingleDrift, Math.abs(drift));
+				driftPercent += Math.abs(drift) * ratio;
+			}
+			if ((minSingleDrift > 0 && maxSingleDrift > minSingleDrift) || (minDrift > 0 && driftPercent > minDrift)) {
+				rebalance(amounts, prices);
+				rebalances[0]++;
+			}
+		}
+		return amounts;
+	}
+
+	private void rebalance(double[] amounts, double[] prices) {
+		double totalValue = 0;
+		for (int i = 0; i < amounts.length; i++) {
+			if (!Double.isNaN(ratios[i]) && !Double.isNaN(prices[i])) {
+				totalValue += amounts[i] * prices[i];
+			}
+		}
+		for (int i = 0; i < amounts.length; i++) {
+			if (!Double.isNaN(prices[i])) {
+				double desiredRatio = Double.isNaN(ratios[i]) ? 0.0 : ratios[i];
+				amounts[i] += (desiredRatio * totalValue - amounts[i] * prices[i]) / prices[i];
+			}
+		}
+	}
+
+	@Test
+	public void testInterval() {
+		// The same as the interval simulation, to the bit
+		RebalanceStrategy[] strategies = {RebalanceStrategy.interval(DAY), RebalanceStrategy.interval(7 * DAY)};
+		int[][] rebalances = new int[1][2];
+		double[][][] amounts = simulator.simulateStrategies(new double[][] {ratios}, strategies, rebalances);
+		assertArrayEquals(simulator.simulate(ratios, DAY), amounts[0][0], 0.0);
+		assertArrayEquals(simulator.simulate(ratios, 7 * DAY), amounts[0][1], 0.0);
+		assertEquals(30, rebalances[0][0]);
+		assertEquals(5, rebalances[0][1]);
+	}
+
+	@Test
+	public void testThreshold() {
+		double[][] drifts = {{0.02, 0}, {0, 0.05}, {0.01, 0.03}, {0, 0}};
+		RebalanceStrategy[] strategies = new RebalanceStrategy[drifts.length];
+		for (int s = 0; s < drifts.length; s++) {
+			strategies[s] = RebalanceStrategy.threshold(drifts[s][0], drifts[s][1]);
+		}
+		double[] otherRatios = {0.5, 0.2, 0.2, 0.1, Double.NaN};
+		int[][] rebalances = new int[2][drifts.length];
+		double[][][] amounts = simulator.simulateStrategies(new double[][] {ratios, otherRatios}, strategies, rebalances);
+		for (int s = 0; s < drifts.length; s++) {
+			int[] expectedRebalances = new int[1];
+			double[] expected = simulateThreshold(drifts[s][0], drifts[s][1], expectedRebalances);
+			assertArrayEquals(expected, amounts[0][s], 1e-9);
+			assertEquals(expectedRebalances[0], rebalances[0][s]);
+		}
+		// Only at the start if neither drift is set
+		assertEquals(1, rebalances[0][3]);
+		assertTrue(rebalances[0][2] > rebalances[0][1]);
+		assertTrue(rebalances[1][0] > 1);
+		// XRP doesn't have a price to sell it at
+		assertEquals(50.0, amounts[0][0][4], 0.0);
+	}
+
+	@Test
+	public void testBand() {
+		RebalanceStrategy[] strategies = {
+				RebalanceStrategy.band(0.05), RebalanceStrategy.band(10), RebalanceStrategy.band(1e-12),
+				RebalanceStrategy.threshold(0, 1e-12)
+		};
+		int[][] rebalances = new int[1][strategies.length];
+		double[][][] amounts = simulator.simulateStrategies(new double[][] {ratios}, strategies, rebalances);
+		assertTrue(rebalances[0][0] > 1);
+		assertEquals(1, rebalances[0][1]);
+		// When everything's outside the band it's the same as rebalancing everything
+		assertArrayEquals(amounts[0][3], amounts[0][2], 1e-9);
+	}
+
+	@Test
+	public void testHybrid() {
+		RebalanceStrategy[] strategies = {
+				RebalanceStrategy.hybrid(DAY, 0, 0), RebalanceStrategy.hybrid(DAY, 0, 1e-12),
+				RebalanceStrategy.hybrid(DAY, 0.03, 0), RebalanceStrategy.interval(DAY)
+		};
+		int[][] rebalances = new int[1][strategies.length];
+		double[][][] amounts = simulator.simulateStrategies(new double[][] {ratios}, strategies, rebalances);
+		assertEquals(1, rebalances[0][0]);
+		// Always drifted a little, so it's the same as every day
+		assertArrayEquals(amounts[0][3], amounts[0][1], 0.0);
+		assertEquals(rebalances[0][3], rebalances[0][1]);
+		assertTrue(rebalances[0][2] < rebalances[0][3]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoBand() {
+		RebalanceStrategy.band(0);
+	}
+}
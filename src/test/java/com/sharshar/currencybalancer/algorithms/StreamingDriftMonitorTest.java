@@ -0,0 +1,144 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.services.LocalPriceStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Push prices through a local stream and make sure the drift follows them
+ */
+public class StreamingDriftMonitorTest {
+
+	@Test
+	public void testDriftFollowsStream() {
+		List<HoldingRatio> ratios = new ArrayList<>();
+		ratios.add(new HoldingRatio().setTicker("BTC").setPercent(.5).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("ETH").setPercent(.3).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("NEO").setPercent(.2).setFraction(true));
+
+		List<OwnedAsset> ownedAssets = new ArrayList<>();
+		ownedAssets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		ownedAssets.add(new OwnedAsset().setAsset("ETH").setFree(4.0));
+		ownedAssets.add(new OwnedAsset().setAsset("NEO").setFree(50.0));
+
+		List<PriceData> priceData = new ArrayList<>();
+		priceData.add(new PriceData().setTicker("ETHBTC").setPrice(0.075));
+		LocalPriceStream stream = new LocalPriceStream();
+		StreamingDriftMonitor monitor = new StreamingDriftMonitor(stream);
+		monitor.start(ratios, ownedAssets, PriceSnapshot.of(priceData));
+
+		// No NEO price yet
+		assertFalse(monitor.getReading().isComplete());
+		assertFalse(monitor.shouldBalance(0.0001, 0.0001));
+
+		stream.publish("NEOBTC", 0.0061, 1000L);
+		priceData.add(new PriceData().setTicker("NEOBTC").setPrice(0.0061));
+		assertReading(monitor, ratios, ownedAssets, priceData);
+
+		stream.publish("ETHBTC", 0.09, 2000L);
+		priceData.set(0, new PriceData().setTicker("ETHBTC").setPrice(0.09));
+		assertReading(monitor, ratios, ownedAssets, priceData);
+		assertEquals(2000L, monitor.getReading().getUpdateTime());
+
+		// Older prices are ignored, and so are symbols we don't hold
+		stream.publish("ETHBTC", 0.01, 1500L);
+		stream.publish("BNBBTC", 0.0016, 3000L);
+		assertReading(monitor, ratios, ownedAssets, priceData);
+
+		assertTrue(monitor.shouldBalance(0.0001, 0));
+		assertFalse(monitor.shouldBalance(0, 100));
+	}
+
+	private void assertReading(StreamingDriftMonitor monitor, List<HoldingRatio> ratios, List<OwnedAsset> ownedAssets,
+							   List<PriceData> priceData) {
+		PortfolioKernel kernel = new PortfolioKernel(ratios, "BTC");
+		double[] amounts = new double[kernel.size()];
+		double[] prices = new double[kernel.size()];
+		kernel.loadAmounts(ownedAssets, amounts);
+		kernel.loadPrices(priceData, prices);
+		double totalValue = kernel.getTotalValue(amounts, prices);
+		double driftPercent = 0;
+		for (int i = 0; i < kernel.size(); i++) {
+			double drift = kernel.getRatio(i) * totalValue / (amounts[i] * prices[i]) - 1;
+			driftPercent += Math.abs(drift) * kernel.getRatio(i);
+		}
+		StreamingDriftMonitor.DriftReading reading = monitor.getReading();
+		assertTrue(reading.isComplete());
+		assertEquals(driftPercent, reading.getDriftPercent(), 1e-12);
+	}
+
+	@Test
+	public void testStalePrices() throws Exception {
+		List<HoldingRatio> ratios = new ArrayList<>();
+		ratios.add(new HoldingRatio().setTicker("BTC").setPercent(.5).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("ETH").setPercent(.5).setFraction(true));
+		List<OwnedAsset> ownedAssets = new ArrayList<>();
+		ownedAssets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		ownedAssets.add(new OwnedAsset().setAsset("ETH").setFree(4.0));
+		List<PriceData> priceData = new ArrayList<>();
+		priceData.add(new PriceData().setTicker("ETHBTC").setPrice(0.075));
+
+		LocalPriceStream stream = new LocalPriceStream();
+		StreamingDriftMonitor monitor = new StreamingDriftMonitor(stream).setMaxAge(100);
+		monitor.start(ratios, ownedAssets, PriceSnapshot.of(priceData));
+		assertTrue(monitor.shouldBalance(0.0001, 0));
+
+		// Nothing from the stream for too long, and no balancer to ask
+		Thread.sleep(150);
+		assertFalse(monitor.shouldBalance(0.0001, 0));
+		stream.publish("ETHBTC", 0.08, 1000L);
+		assertTrue(monitor.shouldBalance(0.0001, 0));
+	}
+
+	/**
+	 * After a trade the drift is measured against the new holdings, and new ratios mean new symbols to follow
+	 */
+	@Test
+	public void testFollowsBalancer() {
+		List<HoldingRatio> ratios = new ArrayList<>();
+		ratios.add(new HoldingRatio().setTicker("BTC").setPercent(.5).setFraction(true));
+		ratios.add(new HoldingRatio().setTicker("ETH").setPercent(.5).setFraction(true));
+		List<OwnedAsset> ownedAssets = new ArrayList<>();
+		ownedAssets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		ownedAssets.add(new OwnedAsset().setAsset("ETH").setFree(8.0));
+		List<PriceData> priceData = new ArrayList<>();
+		priceData.add(new PriceData().setTicker("ETHBTC").setPrice(0.25));
+		priceData.add(new PriceData().setTicker("NEOBTC").setPrice(0.01));
+		PriceSnapshot prices = PriceSnapshot.of(priceData);
+
+		LocalPriceStream stream = new LocalPriceStream();
+		StreamingDriftMonitor monitor = new StreamingDriftMonitor(stream);
+		monitor.start(ratios, ownedAssets, prices);
+		assertTrue(monitor.shouldBalance(0.01, 0));
+
+		// Traded back to the ratios
+		List<OwnedAsset> traded = new ArrayList<>();
+		traded.add(new OwnedAsset().setAsset("BTC").setFree(1.5));
+		traded.add(new OwnedAsset().setAsset("ETH").setFree(6.0));
+		monitor.onStateChange(new BalancerState(ratios, traded, prices, "BTC"));
+		assertEquals(0.0, monitor.getReading().getDriftPercent(), 1e-12);
+		assertFalse(monitor.shouldBalance(0.01, 0));
+
+		// Now NEO instead of ETH
+		List<HoldingRatio> newRatios = new ArrayList<>();
+		newRatios.add(new HoldingRatio().setTicker("BTC").setPercent(.5).setFraction(true));
+		newRatios.add(new HoldingRatio().setTicker("NEO").setPercent(.5).setFraction(true));
+		List<OwnedAsset> neo = new ArrayList<>();
+		neo.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		neo.add(new OwnedAsset().setAsset("NEO").setFree(100.0));
+		monitor.onStateChange(new BalancerState(newRatios, neo, prices, "BTC"));
+		assertEquals(0.0, monitor.getReading().getDriftPercent(), 1e-12);
+		stream.publish("ETHBTC", 0.5, 1000L);
+		assertEquals(0.0, monitor.getReading().getDriftPercent(), 1e-12);
+		stream.publish("NEOBTC", 0.02, 1000L);
+		assertTrue(monitor.getReading().getDriftPercent() > 0.1);
+	}
+}
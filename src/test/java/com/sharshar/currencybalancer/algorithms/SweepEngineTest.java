@@ -0,0 +1,173 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run the sweep against made up prices so it doesn't need the database
+ */
+public class SweepEngineTest {
+
+	private static final long START = 1519862400000L;
+	private static final long HOUR = 1000L * 60 * 60;
+
+	private PriceHistory createHistory(int days) {
+		Random random = new Random(7);
+		Map<String, List<PriceData>> dataByAsset = new HashMap<>();
+		for (String asset : new String[] {"BTC", "NEO", "ETH", "BNB"}) {
+			List<PriceData> data = new ArrayList<>();
+			double price = asset.equals("BTC") ? 1.0 : 0.01 + random.nextDouble() * 0.1;
+			for (long time = START; time < START + days * 24 * HOUR; time += HOUR) {
+				if (!asset.equals("BTC")) {
+					price *= 1 + (random.nextDouble() - 0.5) * 0.02;
+				}
+				data.add(new PriceData().setTicker(asset + "BTC").setUpdateTime(new Date(time)).setPrice(price));
+			}
+			dataByAsset.put(asset, data);
+		}
+		return PriceHistory.fromPriceData(dataByAsset, "BTC", new Date(START), new Date(START + days * 24 * HOUR));
+	}
+
+	private List<HistoricalAnalysis.AnalysisResult> sweep(ForkJoinPool pool, long seed) {
+		return createEngine(pool).setSeed(seed).run(100, 10);
+	}
+
+	private SweepEngine createEngine(ForkJoinPool pool) {
+		List<OwnedAsset> assets = new ArrayList<>();
+		assets.add(new OwnedAsset().setAsset("BTC").setFree(1.0));
+		assets.add(new OwnedAsset().setAsset("NEO").setFree(20.0));
+		assets.add(new OwnedAsset().setAsset("ETH").setFree(5.0));
+		assets.add(new OwnedAsset().setAsset("BNB").setFree(100.0));
+		PriceHistory history = createHistory(60);
+		RebalanceSimulator simulator = new RebalanceSimulator(assets, history, history.getStartDate(), history.getEndDate());
+		double[] finalPrices = {1.0, 0.05, 0.07, 0.002};
+		return new SweepEngine(pool, simulator)
+				.setInitialAssets(assets)
+				.setFinalPrices(finalPrices)
+				.setDates(history.getStartDate(), history.getEndDate());
+	}
+
+	@Test
+	public void testSweep() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ForkJoinPool singleThread = new ForkJoinPool(1);
+		try {
+			List<HistoricalAnalysis.AnalysisResult> results = sweep(pool, 11L);
+			assertEquals(10, results.size());
+			for (int i = 1; i < results.size(); i++) {
+				assertTrue(results.get(i - 1).getAmountBitcoin() >= results.get(i).getAmountBitcoin());
+			}
+			// Seeding makes the sweep repeatable, no matter how many threads run it
+			List<HistoricalAnalysis.AnalysisResult> again = sweep(singleThread, 11L);
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(results.get(i).getAmountBitcoin(), again.get(i).getAmountBitcoin(), 0.0);
+				assertEquals(results.get(i).getDaysBetween(), again.get(i).getDaysBetween());
+			}
+		} finally {
+			pool.shutdown();
+			singleThread.shutdown();
+		}
+	}
+
+	@Test
+	public void testLeaderboard() {
+		SweepEngine.Leaderboard leaderboard = new SweepEngine.Leaderboard(3);
+		for (int i = 0; i < 10; i++) {
+			leaderboard.offer(new HistoricalAnalysis.AnalysisResult().setAmountBitcoin(i));
+		}
+		List<HistoricalAnalysis.AnalysisResult> results = leaderboard.getResults();
+		assertEquals(3, results.size());
+		assertEquals(9.0, results.get(0).getAmountBitcoin(), 0.0);
+		assertEquals(7.0, results.get(2).getAmountBitcoin(), 0.0);
+		assertFalse(leaderboard.accepts(6.0));
+	}
+
+	@Test
+	public void testOptimizer() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			double random = sweep(pool, 3L).get(0).getAmountBitcoin();
+			SweepEngine engine = createEngine(pool)
+					.setOptimizer(new EvolutionStrategyOptimizer(4, 16, new Random(3)))
+					.setPruner(new DominancePruner(0.1));
+			List<HistoricalAnalysis.AnalysisResult> results = engine.run(100, 10);
+			assertEquals(10, results.size());
+			assertTrue(results.get(0).getAmountBitcoin() >= random);
+			assertTrue(engine.getPruned() > 0);
+			double total = results.get(0).getHoldingRatios().stream().mapToDouble(c -> c.getPercent()).sum();
+			assertEquals(1.0, total, 1e-9);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSinks() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SweepStatistics statistics = new SweepStatistics();
+			StringWriter csv = new StringWriter();
+			CsvResultSink csvSink = new CsvResultSink(csv);
+			List<HistoricalAnalysis.AnalysisResult> results = createEngine(pool)
+					.setInitialAmountBitcoin(2.0)
+					.setSeed(5L)
+					.addSink(statistics)
+					.addSink(csvSink)
+					.run(300, 5);
+			csvSink.close();
+
+			// Every result goes to the sinks, only the best are kept
+			assertEquals(5, results.size());
+			assertEquals(300 * 30, statistics.getCount());
+			assertEquals(300, statistics.getTrials());
+			assertEquals(results.get(0).getAmountBitcoin(), statistics.getMax(), 0.0);
+			assertTrue(statistics.getMin() <= statistics.getMean() && statistics.getMean() <= statistics.getMax());
+			assertTrue(statistics.getStandardDeviation() > 0);
+			assertTrue(statistics.getProfitable() > 0 && statistics.getProfitable() <= statistics.getCount());
+			double[] best = statistics.getBestByDaysBetween();
+			assertEquals(30, best.length);
+			assertEquals(statistics.getMax(), Arrays.stream(best).max().getAsDouble(), 0.0);
+
+			String[] lines = csv.toString().split("\n");
+			assertEquals(300 * 30 + 1, lines.length);
+			assertEquals(300 * 30, csvSink.getLines());
+			assertEquals("trial,daysBetween,amountBitcoin,ratioBTC,ratioNEO,ratioETH,ratioBNB,amountBTC,amountNEO,"
+					+ "amountETH,amountBNB", lines[0]);
+			String[] first = lines[1].split(",");
+			assertEquals("0", first[0]);
+			assertEquals("1", first[1]);
+			double ratioTotal = 0;
+			for (int i = 3; i < 7; i++) {
+				ratioTotal += Double.parseDouble(first[i]);
+			}
+			assertEquals(1.0, ratioTotal, 1e-9);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testStatistics() {
+		SweepStatistics statistics = new SweepStatistics();
+		assertTrue(Double.isNaN(statistics.getMean()));
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			createEngine(pool).setMaxDaysBetween(3).setInitialAmountBitcoin(Double.MAX_VALUE).setSeed(1L)
+					.addSink(statistics).run(2, 1);
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(6, statistics.getCount());
+		assertEquals(2, statistics.getTrials());
+		assertEquals(0, statistics.getProfitable());
+		assertEquals(3, statistics.getBestByDaysBetween().length);
+	}
+}
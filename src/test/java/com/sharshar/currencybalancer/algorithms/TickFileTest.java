@@ -0,0 +1,182 @@
+package com.sharshar.currencybalancer.algorithms;
+
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Make sure a tick file gives back the same history as the database
+ */
+public class TickFileTest {
+
+	private static final long START = 1519862400000L;
+	private static final long MINUTE = 60000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Map<String, List<PriceData>> createRows() {
+		Random random = new Random(42);
+		Map<String, List<PriceData>> rows = new HashMap<>();
+		for (String ticker : Arrays.asList("NEOBTC", "ETHBTC", "BTCUSDT")) {
+			List<PriceData> data = new ArrayList<>();
+			for (int i = 0; i < 5000; i++) {
+				long time = START + random.nextInt(2000) * MINUTE;
+				data.add(new PriceData().setTicker(ticker).setUpdateTime(new Date(time)).setPrice(random.nextDouble()));
+			}
+			rows.put(ticker, data);
+		}
+		return rows;
+	}
+
+	@SuppressWarnings("unchecked")
+	private PriceDataSQLRepository createRepository(Map<String, List<PriceData>> rows) {
+		PriceDataSQLRepository repository = mock(PriceDataSQLRepository.class);
+		when(repository.forEachByTicker(anyString(), any(Date.class), any(Date.class), any(Consumer.class)))
+				.thenAnswer(c -> {
+					Date start = c.getArgument(1);
+					Date end = c.getArgument(2);
+					long count = 0;
+					for (PriceData pd : rows.getOrDefault(c.<String>getArgument(0), Collections.emptyList())) {
+						if (pd.getUpdateTime().after(start) && pd.getUpdateTime().before(end)) {
+							c.<Consumer<PriceData>>getArgument(3).accept(pd);
+							count++;
+						}
+					}
+					return count;
+				});
+		return repository;
+	}
+
+	@Test
+	public void testMatchesDatabase() throws IOException {
+		Map<String, List<PriceData>> rows = createRows();
+		PriceDataSQLRepository repository = createRepository(rows);
+		Path path = folder.newFile("ticks.bin").toPath();
+		List<String> assets = Arrays.asList("NEO", "ETH", "BTC", "XRP");
+		Date exportStart = new Date(START - 1);
+		Date exportEnd = new Date(START + 2000 * MINUTE);
+		long saved = TickFile.export(repository, path, PriceHistory.getSymbols(assets, "BTC"), exportStart, exportEnd);
+		assertEquals(15000, saved);
+		// The header and index take up 93 bytes, padded to 96, then 16 bytes a price
+		assertEquals(96 + 16 * 15000, Files.size(path));
+
+		TickFile file = TickFile.open(path);
+		assertEquals(new HashSet<>(Arrays.asList("NEOBTC", "ETHBTC", "BTCUSDT", "XRPBTC")), file.getSymbols());
+		assertEquals(0, file.getSeries("XRPBTC").size());
+		assertNull(file.getSeries("LTCBTC"));
+
+		// A smaller range than the file, with the edges on prices
+		Date start = new Date(START + 500 * MINUTE);
+		Date end = new Date(START + 1500 * MINUTE);
+		PriceHistory fromFile = PriceHistory.fromTickFile(file, assets, "BTC", start, end);
+		PriceHistory fromDatabase = PriceHistory.load(repository, assets, "BTC", start, end);
+		for (String asset : assets) {
+			PriceHistory.Series expected = fromDatabase.getSeries(asset);
+			PriceHistory.Series actual = fromFile.getSeries(asset);
+			assertEquals(asset, expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.getTime(i), actual.getTime(i));
+				assertEquals(expected.getPrice(i), actual.getPrice(i), 0.0);
+			}
+		}
+		assertTrue(fromFile.getSeries("NEO").size() > 0);
+
+		// The simulations come out the same too
+		List<OwnedAsset> owned = new ArrayList<>();
+		for (String asset : Arrays.asList("NEO", "ETH", "BTC")) {
+			owned.add(new OwnedAsset().setAsset(asset).setFree(10));
+		}
+		double[] ratios = {0.3, 0.3, 0.4};
+		assertArrayEquals(new RebalanceSimulator(owned, fromDatabase, start, end).simulate(ratios, MINUTE * 60),
+				new RebalanceSimulator(owned, fromFile, start, end).simulate(ratios, MINUTE * 60), 0.0);
+
+		List<PriceData> first = file.getFirstPrices(Arrays.asList("NEOBTC", "XRPBTC"), start, end);
+		assertEquals(1, first.size());
+		assertEquals(fromFile.getSeries("NEO").getPrice(0), first.get(0).getPrice(), 0.0);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testImport() throws IOException {
+		Map<String, List<PriceData>> rows = createRows();
+		Path path = folder.newFile("ticks.bin").toPath();
+		TickFile.export(createRepository(rows), path, Arrays.asList("NEOBTC", "ETHBTC"), new Date(START - 1),
+				new Date(START + 2000 * MINUTE));
+
+		PriceDataSQLRepository repository = mock(PriceDataSQLRepository.class);
+		List<PriceData> inserted = new ArrayList<>();
+		when(repository.insertAll(anyCollection())).thenAnswer(c -> {
+			Collection<PriceData> batch = c.getArgument(0);
+			inserted.addAll(batch);
+			return batch.size();
+		});
+		assertEquals(10000, TickFile.importInto(repository, path));
+		assertEquals(10000, inserted.size());
+		assertEquals(5000, inserted.stream().filter(c -> c.getTicker().equals("NEOBTC")).count());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotATickFile() throws IOException {
+		Path path = folder.newFile("prices.csv").toPath();
+		Files.write(path, "NEOBTC,0.006\n".getBytes());
+		TickFile.open(path);
+	}
+
+	/**
+	 * Exporting over a file that's open replaces it without changing what the open one reads
+	 */
+	@Test
+	public void testExportOverOpenFile() throws IOException {
+		Map<String, List<PriceData>> rows = createRows();
+		Path path = folder.getRoot().toPath().resolve("ticks.bin");
+		TickFile.export(createRepository(rows), path, Arrays.asList("NEOBTC", "ETHBTC"), new Date(START - 1),
+				new Date(START + 2000 * MINUTE));
+		TickFile open = TickFile.open(path);
+		double firstPrice = open.getSeries("NEOBTC").getPrice(0);
+
+		TickFile.export(createRepository(new HashMap<>()), path, Collections.singletonList("NEOBTC"),
+				new Date(START - 1), new Date(START + 2000 * MINUTE));
+		assertEquals(5000, open.getSeries("NEOBTC").size());
+		assertEquals(firstPrice, open.getSeries("NEOBTC").getPrice(0), 0.0);
+		assertEquals(0, TickFile.open(path).getSeries("NEOBTC").size());
+		// Nothing left behind
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testResolve() throws Exception {
+		Path directory = folder.getRoot().toPath();
+		assertEquals(directory.resolve("ticks.bin").toAbsolutePath(), TickFile.resolve(directory, "ticks.bin"));
+		assertEquals(directory.resolve("2018/ticks.bin").toAbsolutePath(),
+				TickFile.resolve(directory, "2018/./ticks.bin"));
+		for (String name : Arrays.asList("/etc/passwd", "../ticks.bin", "2018/../../ticks.bin", "", ".")) {
+			try {
+				TickFile.resolve(directory, name);
+				fail(name + " isn't in the directory");
+			} catch (ScratchException ex) {
+				// Expected
+			}
+		}
+		try {
+			TickFile.resolve(null, "ticks.bin");
+			fail("There's no directory");
+		} catch (ScratchException ex) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.sharshar.currencybalancer.binance;
+
+import com.binance.api.client.BinanceApiCallback;
+import com.binance.api.client.BinanceApiWebSocketClient;
+import com.binance.api.client.domain.event.AggTradeEvent;
+import com.sharshar.currencybalancer.services.PriceStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test that the sockets are opened again when they fail, and closed when we're done with them
+ */
+public class BinancePriceStreamTest {
+	private BinanceApiWebSocketClient client;
+	private Map<String, List<BinanceApiCallback<AggTradeEvent>>> callbacks;
+	private List<Closeable> sockets;
+	private BinancePriceStream stream;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void createStream() {
+		callbacks = new ConcurrentHashMap<>();
+		sockets = new CopyOnWriteArrayList<>();
+		client = mock(BinanceApiWebSocketClient.class);
+		when(client.onAggTradeEvent(anyString(), any())).thenAnswer(i -> {
+			callbacks.computeIfAbsent(i.getArgument(0), s -> new CopyOnWriteArrayList<>()).add(i.getArgument(1));
+			Closeable socket = mock(Closeable.class);
+			sockets.add(socket);
+			return socket;
+		});
+		stream = new BinancePriceStream(client, 50, 200);
+	}
+
+	@Test
+	public void testReconnects() throws Exception {
+		List<Double> prices = new ArrayList<>();
+		PriceStream.PriceListener listener = (symbol, price, time) -> prices.add(price);
+		stream.subscribe(Collections.singletonList("NEOBTC"), listener);
+		assertEquals(1, callbacks.get("neobtc").size());
+
+		callbacks.get("neobtc").get(0).onFailure(new RuntimeException("Connection reset"));
+		verify(sockets.get(0)).close();
+		// Opened again once the backoff is over
+		long waited = 0;
+		while (callbacks.get("neobtc").size() < 2 && waited < 5000) {
+			Thread.sleep(10);
+			waited += 10;
+		}
+		assertEquals(2, callbacks.get("neobtc").size());
+		callbacks.get("neobtc").get(1).onResponse(trade("NEOBTC", "0.006"));
+		assertEquals(Collections.singletonList(0.006), prices);
+
+		stream.close();
+		verify(sockets.get(1)).close();
+		// Nothing is passed on or opened again once it's closed
+		callbacks.get("neobtc").get(1).onResponse(trade("NEOBTC", "0.007"));
+		callbacks.get("neobtc").get(1).onFailure(new RuntimeException("Connection reset"));
+		Thread.sleep(100);
+		assertEquals(2, callbacks.get("neobtc").size());
+		assertEquals(1, prices.size());
+	}
+
+	@Test
+	public void testBackoff() {
+		assertEquals(50, stream.getBackoff(0));
+		assertEquals(100, stream.getBackoff(1));
+		assertEquals(200, stream.getBackoff(2));
+		assertEquals(200, stream.getBackoff(3));
+		assertEquals(200, stream.getBackoff(100));
+	}
+
+	private static AggTradeEvent trade(String symbol, String price) {
+		AggTradeEvent event = new AggTradeEvent();
+		event.setSymbol(symbol);
+		event.setPrice(price);
+		event.setEventTime(System.currentTimeMillis());
+		return event;
+	}
+}
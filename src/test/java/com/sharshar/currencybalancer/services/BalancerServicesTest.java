@@ -25,7 +25,7 @@ import static org.junit.Assert.assertEquals;
  * Created by lsharshar on 6/20/2018.
  */
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = "exchange.simulated=true")
 public class BalancerServicesTest {
 	private List<HoldingRatio> existingRatios;
 	private List<HoldingRatio> newRatios;
@@ -0,0 +1,189 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.algorithms.PriceHistory;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.PriceCandle;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.PriceCandleRepository;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the candles rolled up from the ticks, and the history read from them
+ */
+public class CandleRollupServiceTest {
+
+	private static final long START = 1519862400000L;
+	private static final long MINUTE = 60000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	private List<PriceData> ticks;
+	private List<PriceCandle> candles;
+	private PriceDataSQLRepository priceRepository;
+	private PriceCandleRepository candleRepository;
+	private PriceDataHoldingRepository holdingRepository;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		// About one tick every 20 seconds for 5 days
+		Random random = new Random(7);
+		ticks = new ArrayList<>();
+		long time = START;
+		while (time < START + 5 * DAY) {
+			time += 1 + random.nextInt(40000);
+			ticks.add(new PriceData().setTicker("NEOBTC").setUpdateTime(new Date(time)).setPrice(random.nextDouble()));
+		}
+
+		priceRepository = mock(PriceDataSQLRepository.class);
+		when(priceRepository.forEachByTicker(anyString(), any(Date.class), any(Date.class), any(Consumer.class)))
+				.thenAnswer(c -> {
+					Date start = c.getArgument(1);
+					Date end = c.getArgument(2);
+					long count = 0;
+					for (PriceData pd : ticks) {
+						if (pd.getTicker().equals(c.getArgument(0)) && pd.getUpdateTime().after(start)
+								&& pd.getUpdateTime().before(end)) {
+							c.<Consumer<PriceData>>getArgument(3).accept(pd);
+							count++;
+						}
+					}
+					return count;
+				});
+
+		candles = new ArrayList<>();
+		candleRepository = mock(PriceCandleRepository.class);
+		when(candleRepository.saveAll(anyIterable())).thenAnswer(c -> {
+			c.<Iterable<PriceCandle>>getArgument(0).forEach(candles::add);
+			return c.getArgument(0);
+		});
+		when(candleRepository.deleteFrom(anyString(), any(Date.class))).thenAnswer(c -> {
+			int before = candles.size();
+			candles.removeIf(p -> p.getTicker().equals(c.getArgument(0))
+					&& !p.getBucketStart().before(c.getArgument(1)));
+			return before - candles.size();
+		});
+		when(candleRepository.findFirstByTickerAndResolutionOrderByBucketStartDesc(anyString(), any()))
+				.thenAnswer(c -> find(c.getArgument(0), c.getArgument(1), new Date(0), new Date(Long.MAX_VALUE))
+						.stream().reduce((a, b) -> b).orElse(null));
+		when(candleRepository.findByTickerAndResolutionAndBucketStartGreaterThanEqualAndBucketStartLessThanOrderByBucketStart(
+				anyString(), any(), any(Date.class), any(Date.class)))
+				.thenAnswer(c -> find(c.getArgument(0), c.getArgument(1), c.getArgument(2), c.getArgument(3)));
+
+		holdingRepository = mock(PriceDataHoldingRepository.class);
+		when(holdingRepository.findAll()).thenReturn(Collections.singletonList(new HoldingRatio().setTicker("NEO")));
+	}
+
+	private List<PriceCandle> find(String ticker, PriceCandle.Resolution resolution, Date start, Date end) {
+		return candles.stream()
+				.filter(c -> c.getTicker().equals(ticker) && c.getResolution() == resolution)
+				.filter(c -> !c.getBucketStart().before(start) && c.getBucketStart().before(end))
+				.sorted(Comparator.comparing(PriceCandle::getBucketStart))
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testRollup() {
+		CandleRollupService service = new CandleRollupService(priceRepository, candleRepository, holdingRepository, 100);
+		int saved = service.rollup("neobtc", new Date(START + 5 * DAY));
+		assertEquals(candles.size(), saved);
+		assertEquals(5, find("NEOBTC", PriceCandle.Resolution.DAY, new Date(0), new Date(Long.MAX_VALUE)).size());
+		assertEquals(5 * 24, find("NEOBTC", PriceCandle.Resolution.HOUR, new Date(0), new Date(Long.MAX_VALUE)).size());
+
+		// Check each candle against the ticks it covers
+		for (PriceCandle candle : candles) {
+			long bucketStart = candle.getBucketStart().getTime();
+			List<PriceData> covered = ticks.stream()
+					.filter(c -> c.getUpdateTime().getTime() >= bucketStart
+							&& c.getUpdateTime().getTime() < bucketStart + candle.getResolution().getMillis())
+					.collect(Collectors.toList());
+			assertEquals(covered.size(), candle.getTicks());
+			assertEquals(covered.get(0).getPrice(), candle.getOpen(), 0.0);
+			assertEquals(covered.get(0).getUpdateTime(), candle.getOpenTime());
+			assertEquals(covered.get(covered.size() - 1).getPrice(), candle.getClose(), 0.0);
+			assertEquals(covered.stream().mapToDouble(PriceData::getPrice).max().getAsDouble(), candle.getHigh(), 0.0);
+			assertEquals(covered.stream().mapToDouble(PriceData::getPrice).min().getAsDouble(), candle.getLow(), 0.0);
+		}
+	}
+
+	@Test
+	public void testIncremental() {
+		CandleRollupService service = new CandleRollupService(priceRepository, candleRepository, holdingRepository, 100);
+		service.rollup("NEOBTC", new Date(START + 5 * DAY));
+		List<String> fromScratch = describe(candles);
+
+		candles.clear();
+		service.rollup("NEOBTC", new Date(START + DAY + 5 * HOUR + 17 * MINUTE));
+		service.rollup("NEOBTC", new Date(START + 3 * DAY + 2 * MINUTE));
+		service.rollup("NEOBTC", new Date(START + 5 * DAY));
+		assertEquals(fromScratch, describe(candles));
+
+		// Only the last day is read again
+		reset(priceRepository);
+		service.rollup("NEOBTC", new Date(START + 5 * DAY));
+		verify(priceRepository).forEachByTicker(eq("NEOBTC"), eq(new Date(START + 4 * DAY - 1)), any(Date.class), any());
+	}
+
+	private static List<String> describe(List<PriceCandle> candles) {
+		return candles.stream()
+				.map(c -> c.getResolution() + ":" + c.getBucketStart().getTime() + ":" + c.getOpen() + ":" + c.getHigh()
+						+ ":" + c.getLow() + ":" + c.getClose() + ":" + c.getTicks())
+				.sorted().collect(Collectors.toList());
+	}
+
+	@Test
+	public void testRollupAll() {
+		CandleRollupService service = new CandleRollupService(priceRepository, candleRepository, holdingRepository, 100);
+		service.rollupAll();
+		verify(priceRepository).forEachByTicker(eq("NEOBTC"), any(Date.class), any(Date.class), any());
+		verify(priceRepository).forEachByTicker(eq("BTCUSDT"), any(Date.class), any(Date.class), any());
+	}
+
+	@Test
+	public void testHistoryFromCandles() {
+		CandleRollupService service = new CandleRollupService(priceRepository, candleRepository, holdingRepository, 100);
+		// The candles stop part way, the rest come from the ticks
+		service.rollup("NEOBTC", new Date(START + 3 * DAY + 10 * HOUR));
+		Date start = new Date(START + 12 * HOUR);
+		Date end = new Date(START + 5 * DAY);
+		List<String> assets = Collections.singletonList("NEO");
+		PriceHistory.Series fromTicks = PriceHistory.load(priceRepository, assets, "BTC", start, end).getSeries("NEO");
+		PriceHistory.Series fromCandles = PriceHistory.fromCandles(candleRepository, priceRepository,
+				PriceCandle.Resolution.HOUR, assets, "BTC", start, end).getSeries("NEO");
+		assertTrue(fromCandles.size() < fromTicks.size());
+
+		// Every day, the price found is a real one, at most an hour or so later than the tick would be
+		for (long time = start.getTime(); time < end.getTime() - 2 * HOUR; time += DAY) {
+			int tick = fromTicks.indexAtOrAfter(time, 0);
+			int candle = fromCandles.indexAtOrAfter(time, 0);
+			assertTrue(fromCandles.getTime(candle) >= fromTicks.getTime(tick));
+			assertTrue(fromCandles.getTime(candle) < PriceCandle.Resolution.HOUR.getBucketStart(time) + 2 * HOUR);
+			int same = fromTicks.indexAtOrAfter(fromCandles.getTime(candle), 0);
+			assertEquals(fromTicks.getPrice(same), fromCandles.getPrice(candle), 0.0);
+		}
+		// Past the last candle it's every tick
+		long lastClose = candles.stream().mapToLong(c -> c.getCloseTime().getTime()).max().getAsLong();
+		assertEquals(fromTicks.size() - fromTicks.indexAtOrAfter(lastClose + 1, 0),
+				fromCandles.size() - fromCandles.indexAtOrAfter(lastClose + 1, 0));
+	}
+
+	@Test
+	public void testForStep() {
+		assertNull(PriceCandle.Resolution.forStep(MINUTE));
+		assertEquals(PriceCandle.Resolution.MINUTE, PriceCandle.Resolution.forStep(HOUR));
+		assertEquals(PriceCandle.Resolution.HOUR, PriceCandle.Resolution.forStep(DAY));
+		assertEquals(PriceCandle.Resolution.HOUR, PriceCandle.Resolution.forStep(20 * DAY));
+		assertEquals(PriceCandle.Resolution.DAY, PriceCandle.Resolution.forStep(30 * DAY));
+	}
+}
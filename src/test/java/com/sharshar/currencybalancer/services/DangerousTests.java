@@ -3,7 +3,6 @@ package com.sharshar.currencybalancer.services;
 import com.binance.api.client.domain.OrderSide;
 import com.binance.api.client.domain.account.NewOrderResponse;
 import com.binance.api.client.domain.account.Order;
-import com.sharshar.currencybalancer.binance.BinanceAccountServices;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -15,25 +14,28 @@ import org.springframework.test.context.junit4.SpringRunner;
  * I need to test buying and selling, but this involves real money, so keep this tests
  * separate and set them to @Ignore when you're done.
  *
+ * They run against the simulated exchange, so nothing is spent unless exchange.simulated is taken out.
+ *
  * Created by lsharshar on 6/20/2018.
  */
 
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = {"exchange.simulated=true", "exchange.simulated.balances=BTC=1,BNB=100",
+		"exchange.simulated.prices=BNBBTC=0.0015"})
 public class DangerousTests {
 
 	@Autowired
-	BinanceAccountServices binanceAccountServices;
+	ExchangeGateway exchange;
 
 	@Test
 	@Ignore
 	public void testBuy() throws Exception {
 		String ticker = "BNBBTC";
-		NewOrderResponse response = binanceAccountServices.createMarketOrder(ticker, 20, OrderSide.BUY);
-		Order order = binanceAccountServices.checkOrderStatus(ticker, response.getClientOrderId());
+		NewOrderResponse response = exchange.createMarketOrder(ticker, 20, OrderSide.BUY);
+		Order order = exchange.checkOrderStatus(ticker, response.getClientOrderId());
 		System.out.println(order);
 		Thread.sleep(3000L);
-		order = binanceAccountServices.checkOrderStatus(ticker, response.getClientOrderId());
+		order = exchange.checkOrderStatus(ticker, response.getClientOrderId());
 		System.out.println(order);
 	}
 
@@ -41,12 +43,12 @@ public class DangerousTests {
 	@Ignore
 	public void testSell() throws Exception {
 		String ticker = "BNBBTC";
-		NewOrderResponse response = binanceAccountServices
+		NewOrderResponse response = exchange
 				.createMarketOrder(ticker, 10, OrderSide.SELL);
-		Order order = binanceAccountServices.checkOrderStatus(ticker, response.getClientOrderId());
+		Order order = exchange.checkOrderStatus(ticker, response.getClientOrderId());
 		System.out.println(order);
 		Thread.sleep(3000L);
-		order = binanceAccountServices.checkOrderStatus(ticker, response.getClientOrderId());
+		order = exchange.checkOrderStatus(ticker, response.getClientOrderId());
 		System.out.println(order);
 	}
 }
@@ -0,0 +1,86 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderSide;
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test sending orders without going to the exchange
+ */
+public class OrderDispatcherTest {
+	private BinanceAccountServices accountServices;
+	private AtomicInteger running = new AtomicInteger();
+	private AtomicInteger mostRunning = new AtomicInteger();
+	private Map<String, NewOrderResponse> responses = new ConcurrentHashMap<>();
+	private OrderDispatcher dispatcher;
+
+	@Before
+	public void createDispatcher() {
+		accountServices = mock(BinanceAccountServices.class);
+		when(accountServices.createMarketOrder(anyString(), anyDouble(), any(OrderSide.class))).thenAnswer(c -> {
+			mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(100);
+			running.decrementAndGet();
+			if (c.getArgument(0).equals("BADBTC")) {
+				throw new RuntimeException("Exchange is down");
+			}
+			return responses.computeIfAbsent(c.getArgument(0), k -> new NewOrderResponse());
+		});
+	}
+
+	@After
+	public void shutdown() {
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testSendsAtTheSameTime() {
+		dispatcher = new OrderDispatcher(accountServices, 4, 100, 1200);
+		Map<String, Double> items = new LinkedHashMap<>();
+		items.put("NEOBTC", -2.0);
+		items.put("ETHBTC", 1.5);
+		items.put("BADBTC", 3.0);
+		items.put("XRPBTC", -10.0);
+		List<OrderDispatcher.OrderLeg> legs = dispatcher.dispatch(items);
+
+		assertEquals(4, legs.size());
+		assertTrue(mostRunning.get() > 1);
+		assertEquals("NEOBTC", legs.get(0).getSymbol());
+		assertEquals(OrderSide.SELL, legs.get(0).getSide());
+		assertEquals(2.0, legs.get(0).getAmount(), 0.0);
+		assertSame(responses.get("NEOBTC"), legs.get(0).getResponse());
+		assertEquals(OrderSide.BUY, legs.get(1).getSide());
+		assertTrue(legs.get(1).getLatencyMillis() >= 100);
+		assertNull(legs.get(2).getResponse());
+		assertSame(responses.get("XRPBTC"), legs.get(3).getResponse());
+		verify(accountServices).createMarketOrder("ETHBTC", 1.5, OrderSide.BUY);
+	}
+
+	@Test
+	public void testWaitsOnOrderLimit() {
+		// Two orders right away, then one every 500 ms
+		dispatcher = new OrderDispatcher(accountServices, 4, 2, 1200);
+		Map<String, Double> items = new LinkedHashMap<>();
+		items.put("NEOBTC", 1.0);
+		items.put("ETHBTC", 1.0);
+		items.put("XRPBTC", 1.0);
+		items.put("LTCBTC", 1.0);
+		long start = System.currentTimeMillis();
+		List<OrderDispatcher.OrderLeg> legs = dispatcher.dispatch(items);
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertTrue(legs.stream().anyMatch(c -> c.getWaitMillis() >= 900));
+	}
+}
@@ -0,0 +1,129 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderStatus;
+import com.binance.api.client.domain.account.Order;
+import com.sharshar.currencybalancer.beans.OrderHistory;
+import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test checking the orders without going to the exchange or the database
+ */
+public class OrderReconcilerTest {
+	private OrderHistoryRepository repository;
+	private BinanceAccountServices accountServices;
+	private OrderDispatcher dispatcher;
+	private OrderReconciler reconciler;
+
+	@Before
+	public void createReconciler() {
+		repository = mock(OrderHistoryRepository.class);
+		accountServices = mock(BinanceAccountServices.class);
+		dispatcher = new OrderDispatcher(accountServices, 1, 10, 1200);
+		reconciler = new OrderReconciler(repository, accountServices, dispatcher, 4);
+
+		when(repository.findByStatus(OrderStatus.NEW.name())).thenReturn(new ArrayList<>(Arrays.asList(
+				history("NEOBTC", "a", OrderStatus.NEW),
+				history("NEOBTC", "b", OrderStatus.NEW),
+				history("ETHBTC", "c", OrderStatus.NEW))));
+		when(repository.findByStatus(OrderStatus.PARTIALLY_FILLED.name())).thenReturn(new ArrayList<>(
+				Collections.singletonList(history("ETHBTC", "d", OrderStatus.PARTIALLY_FILLED))));
+
+		// a is still open, b has filled, c is partly filled and d is still partly filled
+		List<Order> neoOrders = Collections.singletonList(order("a", OrderStatus.NEW));
+		List<Order> ethOrders = Arrays.asList(
+				order("c", OrderStatus.PARTIALLY_FILLED),
+				order("d", OrderStatus.PARTIALLY_FILLED),
+				order("someone else's", OrderStatus.NEW));
+		Order filled = order("b", OrderStatus.FILLED);
+		when(accountServices.getOpenOrders("NEOBTC")).thenReturn(neoOrders);
+		when(accountServices.getOpenOrders("ETHBTC")).thenReturn(ethOrders);
+		when(accountServices.checkOrderStatus("NEOBTC", "b")).thenReturn(filled);
+	}
+
+	@After
+	public void shutdown() {
+		reconciler.shutdown();
+		dispatcher.shutdown();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testReconcile() throws Exception {
+		OrderReconciler.Reconciliation result = reconciler.reconcile();
+		assertEquals(4, result.getChecked());
+		assertEquals(2, result.getUpdated());
+		assertEquals(3, result.getOpenOrders().size());
+
+		// One request per symbol, and one for the order that isn't open any more
+		verify(accountServices, times(2)).getOpenOrders(anyString());
+		verify(accountServices, times(1)).checkOrderStatus(anyString(), anyString());
+
+		// Only the changed ones are saved, all at once
+		ArgumentCaptor<List<OrderHistory>> saved = ArgumentCaptor.forClass(List.class);
+		verify(repository, times(1)).saveAll(saved.capture());
+		assertEquals(2, saved.getValue().size());
+		for (OrderHistory oh : saved.getValue()) {
+			if (oh.getClientOrderId().equals("b")) {
+				assertEquals(OrderStatus.FILLED.name(), oh.getStatus());
+			} else {
+				assertEquals("c", oh.getClientOrderId());
+				assertEquals(OrderStatus.PARTIALLY_FILLED.name(), oh.getStatus());
+			}
+		}
+
+		// The latest result is used without going back to the exchange
+		assertSame(result, reconciler.getLatest());
+		verify(accountServices, times(2)).getOpenOrders(anyString());
+	}
+
+	@Test
+	public void testOneSymbolFailing() throws Exception {
+		when(accountServices.getOpenOrders("NEOBTC")).thenThrow(new RuntimeException("Exchange is down"));
+		OrderReconciler.Reconciliation result = reconciler.reconcile();
+		assertEquals(2, result.getOpenOrders().size());
+		assertEquals(1, result.getUpdated());
+	}
+
+	@Test
+	public void testFillLatency() throws Exception {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		reconciler.setMeterRegistry(registry);
+		for (OrderHistory oh : repository.findByStatus(OrderStatus.NEW.name())) {
+			oh.setSide("BUY").setTransactTime(System.currentTimeMillis() - 5000);
+		}
+		reconciler.reconcile();
+		// Only b filled
+		Timer fills = registry.find("orders.fill.latency").tag("side", "BUY").timer();
+		assertNotNull(fills);
+		assertEquals(1, fills.count());
+		assertTrue(fills.totalTime(TimeUnit.MILLISECONDS) >= 5000);
+	}
+
+	private static OrderHistory history(String symbol, String clientOrderId, OrderStatus status) {
+		return new OrderHistory().setSymbol(symbol).setClientOrderId(clientOrderId).setStatus(status.name());
+	}
+
+	private static Order order(String clientOrderId, OrderStatus status) {
+		Order order = mock(Order.class);
+		when(order.getClientOrderId()).thenReturn(clientOrderId);
+		when(order.getStatus()).thenReturn(status);
+		return order;
+	}
+}
@@ -0,0 +1,126 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.Portfolio;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.PortfolioRepository;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.utils.ScratchException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test checking many portfolios in different accounts against one set of prices
+ */
+public class PortfolioSchedulerTest {
+	private SimulatedExchange exchange;
+	private PriceFeedService priceFeed;
+	private OrderDispatcher dispatcher;
+	private PortfolioScheduler scheduler;
+
+	@Before
+	public void createScheduler() throws Exception {
+		exchange = new SimulatedExchange();
+		exchange.init();
+		exchange.setPrice("NEOBTC", 0.005).setPrice("ETHBTC", 0.05);
+		exchange.setBalance("BTC", 1.0).setBalance("NEO", 200);
+		((SimulatedExchange) exchange.forAccount("b")).setBalance("BTC", 1.0).setBalance("NEO", 200);
+		((SimulatedExchange) exchange.forAccount("a")).setBalance("BTC", 0.5).setBalance("ETH", 10);
+		PriceSnapshot prices = exchange.getPriceSnapshot();
+
+		// The sub-account "broken" has no keys
+		ExchangeGateway gateway = mock(ExchangeGateway.class);
+		when(gateway.forAccount(anyString())).thenAnswer(i -> exchange.forAccount(i.getArgument(0)));
+		when(gateway.forAccount("broken")).thenThrow(new ScratchException("No keys for the account broken"));
+
+		priceFeed = mock(PriceFeedService.class);
+		when(priceFeed.getPriceSnapshot()).thenReturn(prices);
+
+		PortfolioRepository portfolioRepository = mock(PortfolioRepository.class);
+		when(portfolioRepository.findAll()).thenReturn(Arrays.asList(
+				portfolio(1, "b", 0.05),
+				portfolio(2, "a", 0.05),
+				// Would count the same coins as 2
+				portfolio(3, " a ", 0.05),
+				portfolio(4, "c", 0.05),
+				portfolio(5, "broken", 0.05),
+				// Would count the default portfolio's coins
+				portfolio(6, "", 0.05)));
+		PriceDataHoldingRepository holdingRepository = mock(PriceDataHoldingRepository.class);
+		when(holdingRepository.findAll()).thenReturn(Arrays.asList(
+				ratio(1, "BTC", 0.5), ratio(1, "NEO", 0.5),
+				ratio(2, "BTC", 0.8), ratio(2, "ETH", 0.2),
+				ratio(3, "BTC", 0.5), ratio(3, "ETH", 0.5),
+				ratio(4, "ETH", 0.5),
+				ratio(5, "BTC", 1.0),
+				ratio(6, "BTC", 1.0),
+				// Not one of the portfolios, so it's never looked at
+				ratio(0, "XRP", 1.0)));
+
+		dispatcher = new OrderDispatcher(gateway, 1, 10, 1200);
+		scheduler = new PortfolioScheduler(portfolioRepository, holdingRepository, gateway, priceFeed, dispatcher, 4);
+	}
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testCheck() throws Exception {
+		PortfolioScheduler.PortfolioCheck check = scheduler.check();
+		List<PortfolioScheduler.PortfolioStatus> statuses = check.getStatuses();
+		assertEquals(6, statuses.size());
+		assertEquals(3, check.getAccounts());
+
+		// Right where it should be
+		PortfolioScheduler.PortfolioStatus balanced = statuses.get(0);
+		assertNull(balanced.getError());
+		assertEquals(2.0, balanced.getTotalValue(), 1e-9);
+		assertEquals(0.0, balanced.getDriftPercent(), 1e-9);
+		assertFalse(balanced.isShouldBalance());
+
+		PortfolioScheduler.PortfolioStatus drifted = statuses.get(1);
+		assertEquals(1.0, drifted.getTotalValue(), 1e-9);
+		assertEquals(0.6, drifted.getMaxSingleDrift(), 1e-9);
+		assertTrue(drifted.isShouldBalance());
+
+		// Only one portfolio to an account, and none on the main one
+		assertEquals("The account belongs to p2", statuses.get(2).getError());
+		assertEquals("Holdings should add up to 1", statuses.get(3).getError());
+		assertTrue(statuses.get(4).getError().contains("No keys"));
+		assertEquals("The main account belongs to the default portfolio", statuses.get(5).getError());
+
+		// One price load, and one balance load for each account, none for the main one
+		verify(priceFeed, times(1)).getPriceSnapshot();
+		assertEquals(1, exchange.getRequests());
+		assertEquals(1, ((SimulatedExchange) exchange.forAccount("a")).getRequests());
+		assertEquals(1, ((SimulatedExchange) exchange.forAccount("b")).getRequests());
+	}
+
+	@Test
+	public void testBalancesChange() throws Exception {
+		assertFalse(scheduler.check().getStatuses().get(0).isShouldBalance());
+		((SimulatedExchange) exchange.forAccount("b")).setBalance("NEO", 100);
+		PortfolioScheduler.PortfolioStatus status = scheduler.check().getStatuses().get(0);
+		assertEquals(1.5, status.getTotalValue(), 1e-9);
+		assertTrue(status.isShouldBalance());
+		assertSame(scheduler.getLatest().getStatuses().get(0), status);
+	}
+
+	private static Portfolio portfolio(long id, String account, double minDrift) {
+		return new Portfolio().setTableId(id).setName("p" + id).setAccount(account).setMinDrift(minDrift);
+	}
+
+	private static HoldingRatio ratio(long portfolioId, String ticker, double percent) {
+		return new HoldingRatio().setPortfolioId(portfolioId).setTicker(ticker).setPercent(percent).setFraction(true);
+	}
+}
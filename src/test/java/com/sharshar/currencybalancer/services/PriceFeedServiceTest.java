@@ -0,0 +1,171 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.binance.BinanceAccountServices;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the price cache without going to the exchange
+ */
+public class PriceFeedServiceTest {
+	private BinanceAccountServices accountServices;
+	private PriceFeedService priceFeed;
+
+	@Before
+	public void createFeed() {
+		accountServices = mock(BinanceAccountServices.class);
+		when(accountServices.getPriceSnapshot()).thenAnswer(c -> {
+			// Slow enough that the callers pile up
+			Thread.sleep(200);
+			return PriceSnapshot.of(Collections.singletonList(new PriceData().setTicker("NEOBTC").setPrice(0.006)),
+					new Date());
+		});
+		priceFeed = new PriceFeedService().setMaxAge(60000);
+		ReflectionTestUtils.setField(priceFeed, "exchange", accountServices);
+	}
+
+	@Test
+	public void testCachesUntilTooOld() {
+		PriceSnapshot first = priceFeed.getPriceSnapshot();
+		assertSame(first, priceFeed.getPriceSnapshot());
+		verify(accountServices, times(1)).getPriceSnapshot();
+		assertNotSame(first, priceFeed.getPriceSnapshot(0));
+		verify(accountServices, times(2)).getPriceSnapshot();
+		PriceFeedService.PriceFeedStats stats = priceFeed.getStats();
+		assertEquals(1, stats.getHits());
+		assertEquals(2, stats.getMisses());
+		assertTrue(stats.getAge() >= 0);
+	}
+
+	@Test
+	public void testMeters() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		priceFeed.setMeterRegistry(registry);
+		assertEquals(-1.0, registry.get("prices.age").gauge().value(), 0.0);
+		priceFeed.getPriceSnapshot();
+		priceFeed.getPriceSnapshot();
+		when(accountServices.getPriceSnapshot()).thenThrow(new RuntimeException("Exchange is down"));
+		priceFeed.getPriceSnapshot(0);
+		assertEquals(1.0, registry.get("prices.requests").tag("result", "hit").functionCounter().count(), 0.0);
+		assertEquals(2.0, registry.get("prices.requests").tag("result", "miss").functionCounter().count(), 0.0);
+		assertEquals(0.0, registry.get("prices.requests").tag("result", "coalesced").functionCounter().count(), 0.0);
+		assertEquals(1.0, registry.get("prices.failures").functionCounter().count(), 0.0);
+		assertTrue(registry.get("prices.age").gauge().value() >= 0);
+	}
+
+	/**
+	 * Only loading from the exchange counts against the request weight
+	 */
+	@Test
+	public void testTakesWeight() throws Exception {
+		OrderDispatcher dispatcher = mock(OrderDispatcher.class);
+		priceFeed.setOrderDispatcher(dispatcher);
+		priceFeed.getPriceSnapshot();
+		priceFeed.getPriceSnapshot();
+		verify(dispatcher, times(1)).acquireWeight(OrderDispatcher.ALL_PRICES_WEIGHT);
+		priceFeed.getPriceSnapshot(0);
+		verify(dispatcher, times(2)).acquireWeight(OrderDispatcher.ALL_PRICES_WEIGHT);
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneRequest() throws Exception {
+		int numberOfCallers = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfCallers);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<PriceSnapshot>> futures = new ArrayList<>();
+			for (int i = 0; i < numberOfCallers; i++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					return priceFeed.getPriceSnapshot();
+				}));
+			}
+			start.countDown();
+			PriceSnapshot snapshot = futures.get(0).get();
+			for (Future<PriceSnapshot> future : futures) {
+				assertSame(snapshot, future.get());
+			}
+			verify(accountServices, times(1)).getPriceSnapshot();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testKeepsOldPricesWhenExchangeIsDown() {
+		PriceSnapshot first = priceFeed.getPriceSnapshot();
+		when(accountServices.getPriceSnapshot()).thenThrow(new RuntimeException("Exchange is down"));
+		assertSame(first, priceFeed.getPriceSnapshot(0));
+		assertEquals(1, priceFeed.getStats().getFailures());
+	}
+
+	@Test
+	public void testOldPricesRunOut() throws Exception {
+		priceFeed.setMaxStaleAge(100);
+		priceFeed.getPriceSnapshot();
+		when(accountServices.getPriceSnapshot()).thenThrow(new RuntimeException("Exchange is down"));
+		Thread.sleep(150);
+		try {
+			priceFeed.getPriceSnapshot(0);
+			fail("The prices are too old to use");
+		} catch (IllegalStateException ex) {
+			assertEquals("Exchange is down", ex.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testNoPricesIsAFailure() {
+		PriceSnapshot first = priceFeed.getPriceSnapshot();
+		when(accountServices.getPriceSnapshot()).thenReturn(PriceSnapshot.of(new ArrayList<>(), new Date()));
+		assertSame(first, priceFeed.getPriceSnapshot(0));
+		assertSame(first, priceFeed.getLastPriceSnapshot());
+		assertEquals(1, priceFeed.getStats().getFailures());
+	}
+
+	/**
+	 * Callers waiting on someone else's refresh hear about it when it fails with an error, instead of waiting forever
+	 */
+	@Test
+	public void testErrorReachesWaitingCallers() throws Exception {
+		when(accountServices.getPriceSnapshot()).thenAnswer(c -> {
+			Thread.sleep(200);
+			throw new AssertionError("Out of memory");
+		});
+		int numberOfCallers = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfCallers);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<PriceSnapshot>> futures = new ArrayList<>();
+			for (int i = 0; i < numberOfCallers; i++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					return priceFeed.getPriceSnapshot();
+				}));
+			}
+			start.countDown();
+			for (Future<PriceSnapshot> future : futures) {
+				try {
+					future.get(5, TimeUnit.SECONDS);
+					fail("The refresh failed");
+				} catch (ExecutionException ex) {
+					// Expected, either the error itself or wrapped for the callers that waited
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.sharshar.currencybalancer.services;
+
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import com.sharshar.currencybalancer.repository.PriceDataHoldingRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import com.sharshar.currencybalancer.utils.ScratchConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test recording prices without a database
+ */
+public class PriceRecorderTest {
+	private PriceDataSQLRepository priceDataRepository;
+	private PriceDataHoldingRepository holdingRepository;
+	private List<PriceData> inserted;
+	private CountDownLatch insertStarted;
+	private CountDownLatch releaseInsert;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void createRepositories() {
+		priceDataRepository = mock(PriceDataSQLRepository.class);
+		holdingRepository = mock(PriceDataHoldingRepository.class);
+		inserted = new CopyOnWriteArrayList<>();
+		insertStarted = new CountDownLatch(1);
+		releaseInsert = new CountDownLatch(0);
+		when(holdingRepository.findAll()).thenReturn(Arrays.asList(
+				new HoldingRatio().setTicker("BTC").setPercent(0.5),
+				new HoldingRatio().setTicker("NEO").setPercent(0.5)));
+		when(priceDataRepository.insertAll(anyCollection())).thenAnswer(c -> {
+			insertStarted.countDown();
+			releaseInsert.await();
+			Collection<PriceData> rows = c.getArgument(0);
+			inserted.addAll(rows);
+			return rows.size();
+		});
+	}
+
+	private PriceSnapshot createSnapshot(long time) {
+		return PriceSnapshot.of(Arrays.asList(
+				new PriceData().setTicker("NEOBTC").setPrice(0.006),
+				new PriceData().setTicker("ETHBTC").setPrice(0.07),
+				new PriceData().setTicker("BTCUSDT").setPrice(6500.0)), new Date(time));
+	}
+
+	@Test
+	public void testRecordsHoldingsOnly() throws Exception {
+		PriceRecorder recorder = new PriceRecorder(priceDataRepository, holdingRepository, 10,
+				PriceRecorder.OverflowPolicy.DROP_NEWEST, true);
+		recorder.start();
+		assertTrue(recorder.record(createSnapshot(1000)));
+		assertTrue(recorder.record(createSnapshot(2000)));
+		recorder.stop();
+
+		assertEquals(4, inserted.size());
+		assertTrue(inserted.stream().noneMatch(c -> c.getTicker().equals("ETHBTC")));
+		assertTrue(inserted.stream().anyMatch(c -> c.getTicker().equals("BTCUSDT")
+				&& c.getUpdateTime().getTime() == 2000));
+		PriceRecorder.RecorderStats stats = recorder.getStats();
+		assertEquals(2, stats.getSnapshotsRecorded());
+		assertEquals(4, stats.getRowsInserted());
+		assertEquals(0, stats.getSnapshotsDropped());
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		releaseInsert = new CountDownLatch(1);
+		PriceRecorder recorder = new PriceRecorder(priceDataRepository, holdingRepository, 2,
+				PriceRecorder.OverflowPolicy.DROP_OLDEST, false);
+		recorder.start();
+		// Hold the writer up on the first one so the rest wait on the queue
+		recorder.record(createSnapshot(1000));
+		assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+		long start = System.currentTimeMillis();
+		for (int i = 2; i <= 5; i++) {
+			assertTrue(recorder.record(createSnapshot(i * 1000)));
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(2, recorder.getStats().getSnapshotsDropped());
+		releaseInsert.countDown();
+		recorder.stop();
+
+		// The first one and the newest two
+		Set<Long> times = new TreeSet<>();
+		inserted.forEach(c -> times.add(c.getUpdateTime().getTime()));
+		assertEquals(new TreeSet<>(Arrays.asList(1000L, 4000L, 5000L)), times);
+		assertEquals(9, inserted.size());
+		verify(holdingRepository, never()).findAll();
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		releaseInsert = new CountDownLatch(1);
+		PriceRecorder recorder = new PriceRecorder(priceDataRepository, holdingRepository, 1,
+				PriceRecorder.OverflowPolicy.DROP_NEWEST, false);
+		recorder.start();
+		recorder.record(createSnapshot(1000));
+		assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+		assertTrue(recorder.record(createSnapshot(2000)));
+		assertFalse(recorder.record(createSnapshot(3000)));
+		releaseInsert.countDown();
+		recorder.stop();
+		assertEquals(6, inserted.size());
+		assertTrue(inserted.stream().noneMatch(c -> c.getUpdateTime().getTime() == 3000));
+	}
+
+	/**
+	 * Prices from the simulated exchange would end up in the history we backtest against
+	 */
+	@Test
+	public void testSkipsSimulatedPrices() throws Exception {
+		PriceRecorder recorder = new PriceRecorder(priceDataRepository, holdingRepository, 10,
+				PriceRecorder.OverflowPolicy.DROP_NEWEST, false);
+		recorder.start();
+		assertTrue(recorder.record(createSnapshot(1000)));
+		assertTrue(recorder.record(PriceSnapshot.of(Arrays.asList(
+				new PriceData().setTicker("NEOBTC").setPrice(0.006).setExchange(ScratchConstants.SIMULATED)),
+				new Date(2000))));
+		recorder.stop();
+		assertEquals(3, inserted.size());
+		assertTrue(inserted.stream().noneMatch(c -> c.getUpdateTime().getTime() == 2000));
+	}
+
+	/**
+	 * Stopping while the database hangs and the queue is full gives up after the wait, instead of never returning
+	 */
+	@Test
+	public void testStopWhileDatabaseHangs() throws Exception {
+		releaseInsert = new CountDownLatch(1);
+		PriceRecorder recorder = new PriceRecorder(priceDataRepository, holdingRepository, 1,
+				PriceRecorder.OverflowPolicy.DROP_OLDEST, false).setStopWait(200);
+		recorder.start();
+		recorder.record(createSnapshot(1000));
+		assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+		assertTrue(recorder.record(createSnapshot(2000)));
+		assertTrue(recorder.record(createSnapshot(3000)));
+
+		long start = System.currentTimeMillis();
+		recorder.stop();
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertFalse(recorder.isRunning());
+		assertFalse(recorder.record(createSnapshot(4000)));
+		// The one being saved failed, and the one waiting was dropped along with the one it replaced
+		assertEquals(1, recorder.getStats().getFailures());
+		assertEquals(2, recorder.getStats().getSnapshotsDropped());
+		assertTrue(inserted.isEmpty());
+	}
+}
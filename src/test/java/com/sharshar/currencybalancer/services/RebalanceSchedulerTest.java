@@ -0,0 +1,217 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.sharshar.currencybalancer.algorithms.BalancerState;
+import com.sharshar.currencybalancer.algorithms.CurrencyBalancer;
+import com.sharshar.currencybalancer.algorithms.StreamingDriftMonitor;
+import com.sharshar.currencybalancer.beans.HoldingRatio;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.beans.PriceSnapshot;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test deciding when to rebalance: only when drifted, not again until the cooldown is over, not at all in a dry
+ * run, and not when there isn't the request weight left to finish or the prices are old
+ */
+public class RebalanceSchedulerTest {
+	private CurrencyBalancer balancer;
+	private OrderDispatcher dispatcher;
+	private SimpleMeterRegistry registry;
+	private BalancerState balanced;
+	private BalancerState drifted;
+	private RebalanceScheduler scheduler;
+
+	@Before
+	public void createScheduler() throws Exception {
+		List<HoldingRatio> ratios = Arrays.asList(
+				new HoldingRatio().setTicker("BTC").setPercent(0.5).setFraction(true),
+				new HoldingRatio().setTicker("NEO").setPercent(0.3).setFraction(true),
+				new HoldingRatio().setTicker("ETH").setPercent(0.2).setFraction(true));
+		PriceSnapshot prices = PriceSnapshot.of(Arrays.asList(
+				new PriceData().setTicker("NEOBTC").setPrice(0.005),
+				new PriceData().setTicker("ETHBTC").setPrice(0.05)), new Date());
+		balanced = new BalancerState(ratios, assets(0.5, 60, 4), prices, "BTC");
+		drifted = new BalancerState(ratios, assets(0.5, 20, 8), prices, "BTC");
+
+		balancer = mock(CurrencyBalancer.class);
+		when(balancer.getState()).thenReturn(balanced);
+		when(balancer.refreshOwnedAssets()).thenReturn(balanced);
+		when(balancer.getAdjustments(any(BalancerState.class))).thenAnswer(i -> {
+			BalancerState state = i.getArgument(0);
+			return CurrencyBalancer.getAdjustments(state.getOwnedAssets(), state.getRatios(), state.getPrices());
+		});
+		when(balancer.balance(any(BalancerState.class)))
+				.thenReturn(Arrays.asList(new NewOrderResponse(), null));
+
+		dispatcher = mock(OrderDispatcher.class);
+		when(dispatcher.getAvailableWeight()).thenReturn(1200.0);
+
+		registry = new SimpleMeterRegistry();
+		scheduler = new RebalanceScheduler(balancer, dispatcher)
+				.setDrift(0.05, 0.1)
+				.setCooldown(60000)
+				.setBalancesMaxAge(60000)
+				.setDryRun(false)
+				.setMeterRegistry(registry);
+	}
+
+	@Test
+	public void testInBalance() throws Exception {
+		RebalanceScheduler.Cycle cycle = scheduler.check();
+		assertEquals(RebalanceScheduler.Outcome.IN_BALANCE, cycle.getOutcome());
+		assertSame(cycle, scheduler.getLatest());
+		verify(balancer, never()).balance(any(BalancerState.class));
+
+		// The balances are loaded the first time, and not again until they're old
+		scheduler.check();
+		verify(balancer, times(1)).refreshOwnedAssets();
+		verify(dispatcher, times(1)).acquireWeight(OrderDispatcher.ACCOUNT_WEIGHT);
+		assertEquals(2, registry.get("rebalance.cycles").tag("outcome", "IN_BALANCE").timer().count());
+	}
+
+	@Test
+	public void testRebalanceAndCooldown() throws Exception {
+		drift();
+		RebalanceScheduler.Cycle cycle = scheduler.check();
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, cycle.getOutcome());
+		assertEquals(1, cycle.getOrdersPlaced());
+		assertEquals(1, cycle.getOrdersFailed());
+		assertFalse(cycle.getAdjustments().isEmpty());
+		// The orders come from the same state the decision did
+		verify(balancer).balance(drifted);
+
+		// Still drifted, but we just rebalanced. The balances are loaded again since we've traded.
+		assertEquals(RebalanceScheduler.Outcome.COOLDOWN, scheduler.check().getOutcome());
+		verify(balancer, times(2)).refreshOwnedAssets();
+		verify(balancer, times(1)).balance(any(BalancerState.class));
+
+		// Unless we ask for it
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, scheduler.balanceNow().getOutcome());
+		assertEquals(2, scheduler.getStats().getRebalances());
+	}
+
+	@Test
+	public void testDryRun() throws Exception {
+		drift();
+		scheduler.setDryRun(true);
+		RebalanceScheduler.Cycle cycle = scheduler.check();
+		assertEquals(RebalanceScheduler.Outcome.DRY_RUN, cycle.getOutcome());
+		assertEquals(0, cycle.getOrdersPlaced());
+		assertTrue(cycle.getAdjustments().get("NEO") > 0);
+		assertTrue(cycle.getAdjustments().get("ETH") < 0);
+		verify(balancer, never()).balance(any(BalancerState.class));
+
+		// A dry run still starts the cooldown, so the log isn't filled with the same orders
+		assertEquals(RebalanceScheduler.Outcome.COOLDOWN, scheduler.check().getOutcome());
+		assertEquals(RebalanceScheduler.Outcome.DRY_RUN, scheduler.balanceNow().getOutcome());
+		assertTrue(scheduler.getStats().isDryRun());
+		assertEquals(0, scheduler.getStats().getRebalances());
+	}
+
+	@Test
+	public void testThrottled() throws Exception {
+		drift();
+		// The balances and an order for each currency but BTC need 7
+		when(dispatcher.getAvailableWeight()).thenReturn(6.0);
+		assertEquals(RebalanceScheduler.Outcome.THROTTLED, scheduler.check().getOutcome());
+		verify(balancer, never()).refreshOwnedAssets();
+		verify(dispatcher, never()).acquireWeight(anyInt());
+
+		when(dispatcher.getAvailableWeight()).thenReturn(7.0);
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, scheduler.check().getOutcome());
+		assertEquals(1, scheduler.getStats().getThrottled());
+		assertEquals(2, scheduler.getStats().getCycles());
+	}
+
+	/**
+	 * Old prices could say we've drifted when we haven't, so not even balanceNow trades on them
+	 */
+	@Test
+	public void testStalePrices() throws Exception {
+		PriceSnapshot old = PriceSnapshot.of(drifted.getPrices().getPriceData(),
+				new Date(System.currentTimeMillis() - 120000));
+		BalancerState stale = drifted.withPrices(old);
+		when(balancer.getState()).thenReturn(stale);
+		when(balancer.refreshOwnedAssets()).thenReturn(stale);
+		assertEquals(RebalanceScheduler.Outcome.STALE_PRICES, scheduler.check().getOutcome());
+		assertEquals(RebalanceScheduler.Outcome.STALE_PRICES, scheduler.balanceNow().getOutcome());
+		verify(balancer, never()).refreshOwnedAssets();
+		verify(balancer, never()).balance(any(BalancerState.class));
+
+		scheduler.setPricesMaxAge(300000);
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, scheduler.check().getOutcome());
+	}
+
+	/**
+	 * The drift is before rounding, so it can be enough while the rounded adjustments leave nothing to trade
+	 */
+	@Test
+	public void testNothingToTrade() throws Exception {
+		drift();
+		Map<String, Double> baseOnly = new HashMap<>();
+		baseOnly.put("BTC", 0.2);
+		when(balancer.getAdjustments(any(BalancerState.class))).thenReturn(baseOnly);
+		RebalanceScheduler.Cycle cycle = scheduler.check();
+		assertEquals(RebalanceScheduler.Outcome.IN_BALANCE, cycle.getOutcome());
+		assertTrue(cycle.getAdjustments().isEmpty());
+		verify(balancer, never()).balance(any(BalancerState.class));
+		assertEquals(0, scheduler.getStats().getRebalances());
+
+		// It didn't start the cooldown
+		when(balancer.getAdjustments(any(BalancerState.class))).thenAnswer(i -> {
+			BalancerState state = i.getArgument(0);
+			return CurrencyBalancer.getAdjustments(state.getOwnedAssets(), state.getRatios(), state.getPrices());
+		});
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, scheduler.check().getOutcome());
+	}
+
+	/**
+	 * When prices are streamed, the streamed drift decides, and the orders still come from the balancer's state
+	 */
+	@Test
+	public void testStreamedDrift() throws Exception {
+		drift();
+		StreamingDriftMonitor monitor = new StreamingDriftMonitor(new LocalPriceStream());
+		monitor.start(balanced.getRatios(), balanced.getOwnedAssets(), balanced.getPrices());
+		scheduler.setDriftMonitor(monitor);
+		assertEquals(RebalanceScheduler.Outcome.IN_BALANCE, scheduler.check().getOutcome());
+		verify(balancer, never()).balance(any(BalancerState.class));
+
+		// The balancer tells the monitor about the holdings it loaded
+		monitor.onStateChange(drifted);
+		assertEquals(RebalanceScheduler.Outcome.REBALANCED, scheduler.check().getOutcome());
+		verify(balancer).balance(drifted);
+	}
+
+	@Test
+	public void testFailed() throws Exception {
+		when(balancer.refreshOwnedAssets()).thenThrow(new RuntimeException("No connection"));
+		assertEquals(RebalanceScheduler.Outcome.FAILED, scheduler.check().getOutcome());
+		assertEquals(1, scheduler.getStats().getFailures());
+		assertEquals(1, registry.get("rebalance.cycles").tag("outcome", "FAILED").timer().count());
+	}
+
+	/**
+	 * The holdings have drifted since they were last loaded
+	 */
+	private void drift() throws Exception {
+		when(balancer.getState()).thenReturn(drifted);
+		when(balancer.refreshOwnedAssets()).thenReturn(drifted);
+	}
+
+	private static List<OwnedAsset> assets(double btc, double neo, double eth) {
+		return Arrays.asList(
+				new OwnedAsset().setAsset("BTC").setFree(btc).setLocked(0),
+				new OwnedAsset().setAsset("NEO").setFree(neo).setLocked(0),
+				new OwnedAsset().setAsset("ETH").setFree(eth).setLocked(0));
+	}
+}
@@ -0,0 +1,160 @@
+package com.sharshar.currencybalancer.services;
+
+import com.binance.api.client.domain.OrderSide;
+import com.binance.api.client.domain.OrderStatus;
+import com.binance.api.client.domain.account.NewOrderResponse;
+import com.binance.api.client.domain.account.Order;
+import com.sharshar.currencybalancer.beans.OrderHistory;
+import com.sharshar.currencybalancer.beans.OwnedAsset;
+import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test trading against the exchange in memory
+ */
+public class SimulatedExchangeTest {
+	private SimulatedExchange exchange;
+
+	@Before
+	public void createExchange() {
+		exchange = new SimulatedExchange().setTakerFee(0.001);
+		exchange.init();
+		exchange.setBalance("BTC", 1.0).setBalance("NEO", 20.0)
+				.setPrice("NEOBTC", 0.002).setPrice("ETHBTC", 0.07);
+	}
+
+	@Test
+	public void testFills() {
+		NewOrderResponse sell = exchange.createMarketOrder("NEOBTC", 10, OrderSide.SELL);
+		assertNotNull(sell);
+		assertEquals(10.0, exchange.getBalance("NEO"), 1e-12);
+		assertEquals(1.0 + 10 * 0.002 * 0.999, exchange.getBalance("BTC"), 1e-12);
+
+		NewOrderResponse buy = exchange.createMarketOrder("ETHBTC", 2, OrderSide.BUY);
+		assertEquals(2.0, exchange.getBalance("ETH"), 1e-12);
+		assertEquals(1.0 + 10 * 0.002 * 0.999 - 2 * 0.07 * 1.001, exchange.getBalance("BTC"), 1e-12);
+
+		Order order = exchange.checkOrderStatus("ETHBTC", buy.getClientOrderId());
+		assertEquals(OrderStatus.FILLED, order.getStatus());
+		assertEquals(2.0, Double.parseDouble(order.getExecutedQty()), 0.0);
+		assertTrue(exchange.getOpenOrders("ETHBTC").isEmpty());
+		assertEquals(1, exchange.getAllMyOrders("NEOBTC").size());
+
+		List<OwnedAsset> balances = exchange.getBalancesWithValues();
+		assertEquals(3, balances.size());
+		assertEquals(0.07, exchange.getPriceSnapshot().getPrice("ETHBTC"), 0.0);
+	}
+
+	@Test
+	public void testPartialFills() {
+		exchange.setPartialFills(1.0, 0.25);
+		NewOrderResponse response = exchange.createMarketOrder("NEOBTC", 8, OrderSide.SELL);
+		assertEquals(18.0, exchange.getBalance("NEO"), 1e-12);
+
+		// Open the first time it's looked at, and filled at the new price by the next
+		exchange.setPrice("NEOBTC", 0.003);
+		List<Order> open = exchange.getOpenOrders("NEOBTC");
+		assertEquals(1, open.size());
+		assertEquals(OrderStatus.PARTIALLY_FILLED, open.get(0).getStatus());
+		Order order = exchange.checkOrderStatus("NEOBTC", response.getClientOrderId());
+		assertEquals(OrderStatus.FILLED, order.getStatus());
+		assertEquals(12.0, exchange.getBalance("NEO"), 1e-12);
+		assertEquals(1.0 + (2 * 0.002 + 6 * 0.003) * 0.999, exchange.getBalance("BTC"), 1e-12);
+		assertEquals(2, exchange.getFills());
+	}
+
+	@Test
+	public void testRejected() {
+		// Can't pay for it, don't have it, and no price
+		assertNull(exchange.createMarketOrder("ETHBTC", 100, OrderSide.BUY));
+		assertNull(exchange.createMarketOrder("NEOBTC", 21, OrderSide.SELL));
+		assertNull(exchange.createMarketOrder("XRPBTC", 1, OrderSide.BUY));
+		assertEquals(3, exchange.getRejected());
+		assertEquals(1.0, exchange.getBalance("BTC"), 0.0);
+		assertEquals(20.0, exchange.getBalance("NEO"), 0.0);
+	}
+
+	@Test
+	public void testRateLimit() {
+		exchange.setMaxWeightPerMinute(3);
+		assertNotNull(exchange.createMarketOrder("NEOBTC", 1, OrderSide.SELL));
+		assertNotNull(exchange.getPriceSnapshot());
+		// Orders over the limit fail, everything else throws like the exchange would
+		assertNull(exchange.createMarketOrder("NEOBTC", 1, OrderSide.SELL));
+		try {
+			exchange.getOpenOrders("NEOBTC");
+			fail("Should be over the limit");
+		} catch (SimulatedExchange.RateLimitException ex) {
+			// Expected
+		}
+		assertEquals(2, exchange.getRateLimited());
+	}
+
+	@Test
+	public void testSubAccounts() {
+		assertSame(exchange, exchange.forAccount(""));
+		SimulatedExchange sub = (SimulatedExchange) exchange.forAccount("sub");
+		assertSame(sub, exchange.forAccount("sub"));
+
+		// Its own balances, but the same prices
+		assertEquals(0.0, sub.getBalance("BTC"), 0.0);
+		assertNull(sub.createMarketOrder("NEOBTC", 1, OrderSide.BUY));
+		sub.setBalance("BTC", 1.0);
+		exchange.setPrice("NEOBTC", 0.004);
+		assertNotNull(sub.createMarketOrder("NEOBTC", 10, OrderSide.BUY));
+		assertEquals(10.0, sub.getBalance("NEO"), 0.0);
+		assertEquals(1.0 - 10 * 0.004 * 1.001, sub.getBalance("BTC"), 1e-12);
+		assertEquals(20.0, exchange.getBalance("NEO"), 0.0);
+
+		// And the same limit
+		exchange.setMaxWeightPerMinute(SimulatedExchange.ACCOUNT_WEIGHT * 2);
+		sub.getBalances();
+		exchange.getBalances();
+		try {
+			sub.getBalances();
+			fail("Should be over the limit");
+		} catch (SimulatedExchange.RateLimitException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSavesOrders() {
+		OrderHistoryRepository repository = mock(OrderHistoryRepository.class);
+		exchange.setOrderHistoryRepository(repository);
+		NewOrderResponse response = exchange.createMarketOrder("NEOBTC", 1, OrderSide.SELL);
+		verify(repository, times(1)).save(any(OrderHistory.class));
+		assertTrue(response.getClientOrderId().startsWith("sim"));
+	}
+
+	@Test
+	public void testDispatcher() throws Exception {
+		// Many rebalances through the dispatcher, without waiting on anything real
+		exchange.setTakerFee(0).setBalance("BTC", 1000.0).setBalance("ETH", 1000.0);
+		OrderDispatcher dispatcher = new OrderDispatcher(exchange, 4, 1000000, 1000000);
+		try {
+			Map<String, Double> items = new HashMap<>();
+			items.put("NEOBTC", 1.0);
+			items.put("ETHBTC", -1.0);
+			for (int i = 0; i < 500; i++) {
+				for (OrderDispatcher.OrderLeg leg : dispatcher.dispatch(items)) {
+					assertNotNull(leg.getResponse());
+				}
+			}
+		} finally {
+			dispatcher.shutdown();
+		}
+		assertEquals(520.0, exchange.getBalance("NEO"), 1e-9);
+		assertEquals(500.0, exchange.getBalance("ETH"), 1e-9);
+		assertEquals(1000.0 - 500 * 0.002 + 500 * 0.07, exchange.getBalance("BTC"), 1e-9);
+	}
+}
@@ -0,0 +1,121 @@
+package com.sharshar.currencybalancer.utils;
+
+import com.binance.api.client.BinanceApiRestClient;
+import com.sharshar.currencybalancer.beans.OrderHistory;
+import com.sharshar.currencybalancer.beans.PriceData;
+import com.sharshar.currencybalancer.repository.OrderHistoryRepository;
+import com.sharshar.currencybalancer.repository.PriceDataSQLRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test that the exchange client and the repositories are timed
+ */
+public class MetricsConfigurationTest {
+	private SimpleMeterRegistry registry;
+	private BeanPostProcessor postProcessor;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		registry = new SimpleMeterRegistry();
+		ObjectProvider<MeterRegistry> provider = mock(ObjectProvider.class);
+		when(provider.getIfAvailable()).thenReturn(registry);
+		postProcessor = MetricsConfiguration.timingPostProcessor(provider);
+	}
+
+	@Test
+	public void testRepository() {
+		OrderHistoryRepository repository = mock(OrderHistoryRepository.class);
+		when(repository.findByStatus("NEW")).thenReturn(Arrays.asList(new OrderHistory(), new OrderHistory()));
+		when(repository.findByStatus("BAD")).thenThrow(new IllegalStateException("No database"));
+		OrderHistoryRepository timed = (OrderHistoryRepository) postProcessor
+				.postProcessAfterInitialization(repository, "orderHistoryRepository");
+		assertNotSame(repository, timed);
+
+		assertEquals(2, timed.findByStatus("NEW").size());
+		timed.findByStatus("NEW");
+		try {
+			timed.findByStatus("BAD");
+			fail("The exception should get through");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+
+		Timer success = registry.find("repository.queries")
+				.tags("repository", "OrderHistoryRepository", "method", "findByStatus", "outcome", "success").timer();
+		Timer error = registry.find("repository.queries")
+				.tags("repository", "OrderHistoryRepository", "method", "findByStatus", "outcome", "error").timer();
+		DistributionSummary rows = registry.find("repository.queries.rows")
+				.tags("repository", "OrderHistoryRepository").summary();
+		assertEquals(2, success.count());
+		assertEquals(1, error.count());
+		assertEquals(2, rows.count());
+		assertEquals(4.0, rows.totalAmount(), 0.0);
+		verify(repository, times(2)).findByStatus("NEW");
+	}
+
+	/**
+	 * findAll only says it returns an Iterable, and the bulk reads and writes return how many rows they went through
+	 */
+	@Test
+	public void testRowCounts() {
+		PriceDataSQLRepository repository = mock(PriceDataSQLRepository.class);
+		when(repository.findAll()).thenReturn(Arrays.asList(new PriceData(), new PriceData(), new PriceData()));
+		when(repository.forEachByTicker(any(), any(), any(), any())).thenReturn(5L);
+		when(repository.insertAll(anyCollection())).thenReturn(2);
+		PriceDataSQLRepository timed = (PriceDataSQLRepository) postProcessor
+				.postProcessAfterInitialization(repository, "priceDataSQLRepository");
+
+		timed.findAll();
+		timed.forEachByTicker("NEOBTC", new Date(0), new Date(), c -> { });
+		timed.insertAll(Collections.emptyList());
+
+		assertEquals(3.0, rows("PriceDataSQLRepository", "findAll").totalAmount(), 0.0);
+		assertEquals(5.0, rows("PriceDataSQLRepository", "forEachByTicker").totalAmount(), 0.0);
+		assertEquals(2.0, rows("PriceDataSQLRepository", "insertAll").totalAmount(), 0.0);
+	}
+
+	private DistributionSummary rows(String repository, String method) {
+		return registry.find("repository.queries.rows").tags("repository", repository, "method", method).summary();
+	}
+
+	@Test
+	public void testRepositoryName() {
+		// Named after the repository, not the ones it extends
+		assertEquals(PriceDataSQLRepository.class,
+				MetricsConfiguration.getRepositoryInterface(mock(PriceDataSQLRepository.class)));
+		assertNull(MetricsConfiguration.getRepositoryInterface("not a repository"));
+	}
+
+	@Test
+	public void testExchange() {
+		BinanceApiRestClient client = mock(BinanceApiRestClient.class);
+		BinanceApiRestClient timed = (BinanceApiRestClient) postProcessor
+				.postProcessAfterInitialization(client, "binanceApiRestClient");
+		timed.getAllPrices();
+		assertEquals(1, registry.find("binance.requests")
+				.tags("method", "getAllPrices", "outcome", "success").timer().count());
+		// The server time is a number, but not a number of rows
+		timed.getServerTime();
+		assertNull(registry.find("binance.requests.rows").tags("method", "getServerTime").summary());
+
+		// Everything else is left alone
+		Object other = new Object();
+		assertSame(other, postProcessor.postProcessAfterInitialization(other, "other"));
+	}
+}
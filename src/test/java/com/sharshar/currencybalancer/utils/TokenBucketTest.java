@@ -0,0 +1,22 @@
+package com.sharshar.currencybalancer.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test taking tokens from the bucket, and waiting for it to fill up again
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void testTokenBucket() throws Exception {
+		TokenBucket bucket = new TokenBucket(2, 20);
+		assertTrue(bucket.tryAcquire(1));
+		assertTrue(bucket.tryAcquire(1));
+		assertFalse(bucket.tryAcquire(1));
+		long waited = bucket.acquire(1);
+		assertTrue(waited >= 40);
+		assertTrue(bucket.getAvailable() < 1);
+	}
+}